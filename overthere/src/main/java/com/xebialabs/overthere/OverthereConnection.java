@@ -2,6 +2,10 @@ package com.xebialabs.overthere;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 public interface OverthereConnection extends Closeable {
 	/**
@@ -80,6 +84,52 @@ public interface OverthereConnection extends Closeable {
 	 */
 	int execute(OverthereProcessOutputHandler handler, CmdLine commandLine);
 
+	/**
+	 * Executes a batch of commands, where possible in one round trip to the host. Each command is executed as if it were executed with
+	 * {@link #execute(OverthereProcessOutputHandler, CmdLine)}; its output is sent to its own handler.
+	 *
+	 * @param handlers
+	 *            the handlers that will be invoked when the executed commands generated output, one for each command.
+	 * @param commandLines
+	 *            the command lines to execute.
+	 * @param continueOnFailure
+	 *            <code>true</code> to execute all commands, <code>false</code> to stop after the first command that returns a non-zero exit value.
+	 * @return the exit values of the commands that were executed, in order. When <code>continueOnFailure</code> is <code>false</code>, this list ends with the
+	 *         first non-zero exit value.
+	 */
+	List<Integer> executeBatch(List<? extends OverthereProcessOutputHandler> handlers, List<CmdLine> commandLines, boolean continueOnFailure);
+
+	/**
+	 * Executes a command with its arguments without waiting for it to complete. The output of the command is sent to the handler from a thread of a shared
+	 * thread pool. Cancelling the returned future aborts the command; for connections that can {@link #canStartProcess() start a process} this
+	 * {@link OverthereProcess#destroy() destroys} the process. Callbacks can be registered with
+	 * {@link com.google.common.util.concurrent.Futures#addCallback(ListenableFuture, com.google.common.util.concurrent.FutureCallback)}.
+	 *
+	 * @param handler
+	 *            the handler that will be invoked when the executed command generated output.
+	 * @param commandLine
+	 *            the command line to execute.
+	 * @return a future of the exit value of the executed command.
+	 */
+	ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine);
+
+	/**
+	 * Executes a command with its arguments without waiting for it to complete, aborting it when it has not completed within the given time. In that case the
+	 * returned future fails with a {@link java.util.concurrent.TimeoutException}.
+	 *
+	 * @param handler
+	 *            the handler that will be invoked when the executed command generated output.
+	 * @param commandLine
+	 *            the command line to execute.
+	 * @param timeout
+	 *            the maximum time the command may take.
+	 * @param unit
+	 *            the unit of <code>timeout</code>.
+	 * @return a future of the exit value of the executed command.
+	 * @see #executeAsync(OverthereProcessOutputHandler, CmdLine)
+	 */
+	ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine, long timeout, TimeUnit unit);
+
 	/**
 	 * Starts a command with its argument and returns control to the caller.
 	 *
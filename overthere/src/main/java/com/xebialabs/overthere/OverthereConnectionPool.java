@@ -0,0 +1,480 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.xebialabs.overthere.spi.BaseOverthereConnection;
+
+/**
+ * Pool of {@link OverthereConnection connections}. Connections are keyed on the protocol and the {@link ConnectionOptions connection options} used to
+ * create them, so a connection is only handed out again to a caller that asks for a connection with the same protocol, address, port, username,
+ * credentials and other options.
+ * <p/>
+ * The connections handed out by {@link #getConnection(String, ConnectionOptions)} are leases. Invoking {@link OverthereConnection#close()} on a lease
+ * returns the underlying connection to the pool instead of disconnecting it. The connections are only really closed when they have been idle for longer
+ * than the idle timeout, when they fail validation or when the pool itself is {@link #close() closed}.
+ * <p/>
+ * <b>N.B.:</b> The connection temporary directory of a pooled connection lives as long as the underlying connection, not as long as the lease.
+ */
+public class OverthereConnectionPool implements Closeable {
+
+	/**
+	 * Default value (5) for the maximum number of connections (leased and idle) that the pool holds per host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+	/**
+	 * Default value (60000) for the number of milliseconds after which an idle connection is closed.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * Default value (120000) for the number of milliseconds to wait for a connection to become available when the maximum number of connections for a host
+	 * has been reached.
+	 */
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 120000;
+
+	private final int maxConnectionsPerHost;
+
+	private final long idleTimeoutMillis;
+
+	private final long borrowTimeoutMillis;
+
+	private final Map<PoolKey, LinkedList<IdleConnection>> idleConnections = newHashMap();
+
+	private final Map<String, Integer> connectionsPerHost = newHashMap();
+
+	private boolean closed;
+
+	/**
+	 * Creates a pool with the default settings.
+	 */
+	public OverthereConnectionPool() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Creates a pool.
+	 * 
+	 * @param maxConnectionsPerHost
+	 *            the maximum number of connections (leased and idle) that are held per host.
+	 * @param idleTimeoutMillis
+	 *            the number of milliseconds after which an idle connection is closed.
+	 * @param borrowTimeoutMillis
+	 *            the number of milliseconds to wait for a connection when the maximum number of connections for a host has been reached.
+	 */
+	public OverthereConnectionPool(int maxConnectionsPerHost, long idleTimeoutMillis, long borrowTimeoutMillis) {
+		checkArgument(maxConnectionsPerHost > 0, "Maximum number of connections per host must be positive");
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * Leases a connection from the pool, creating it with {@link Overthere#getConnection(String, ConnectionOptions)} if no idle connection with the same
+	 * protocol and connection options is available.
+	 * 
+	 * @param protocol
+	 *            The protocol to use, e.g. "local".
+	 * @param options
+	 *            A set of options to use for the connection.
+	 * @return the leased connection. Closing it returns it to the pool.
+	 */
+	public OverthereConnection getConnection(String protocol, ConnectionOptions options) {
+		checkNotNull(protocol, "Cannot lease connection with null protocol");
+		checkNotNull(options, "Cannot lease connection with null connection options");
+
+		PoolKey key = new PoolKey(protocol, new ConnectionOptions(options));
+		long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+		for (;;) {
+			OverthereConnection idle = null;
+			RuntimeIOException failure = null;
+			List<OverthereConnection> toClose = newArrayList();
+			synchronized (this) {
+				for (;;) {
+					if (closed) {
+						throw new IllegalStateException("Cannot lease a connection from a closed pool");
+					}
+
+					evictExpiredConnections(toClose);
+
+					LinkedList<IdleConnection> idleForKey = idleConnections.get(key);
+					if (idleForKey != null && !idleForKey.isEmpty()) {
+						idle = idleForKey.removeFirst().connection;
+						break;
+					}
+
+					if (getConnectionCount(key.host) < maxConnectionsPerHost) {
+						adjustConnectionCount(key.host, 1);
+						break;
+					}
+
+					if (evictIdleConnectionForHost(key.host, toClose)) {
+						continue;
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						failure = new RuntimeIOException("Timed out waiting for a connection to " + key.host + " to become available in the pool");
+						break;
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						failure = new RuntimeIOException("Interrupted while waiting for a connection to " + key.host + " to become available in the pool", exc);
+						break;
+					}
+				}
+			}
+			closeQuietly(toClose);
+			if (failure != null) {
+				throw failure;
+			}
+
+			if (idle == null) {
+				return new LeasedConnection(this, key, createConnection(key));
+			}
+
+			if (isValid(idle)) {
+				logger.debug("Reusing pooled connection {}", idle);
+				return new LeasedConnection(this, key, idle);
+			}
+
+			logger.info("Pooled connection {} failed validation, closing it", idle);
+			discard(key, idle);
+		}
+	}
+
+	/**
+	 * Closes all idle connections that have been idle for longer than the idle timeout. This is also done every time a connection is leased or returned.
+	 */
+	public void evictIdleConnections() {
+		List<OverthereConnection> toClose = newArrayList();
+		synchronized (this) {
+			evictExpiredConnections(toClose);
+		}
+		closeQuietly(toClose);
+	}
+
+	/**
+	 * Closes the pool and all idle connections in it. Connections that are leased at this point are closed when they are returned.
+	 */
+	@Override
+	public void close() {
+		List<OverthereConnection> toClose = newArrayList();
+		synchronized (this) {
+			closed = true;
+			for (Map.Entry<PoolKey, LinkedList<IdleConnection>> entry : idleConnections.entrySet()) {
+				for (IdleConnection each : entry.getValue()) {
+					toClose.add(each.connection);
+					adjustConnectionCount(entry.getKey().host, -1);
+				}
+			}
+			idleConnections.clear();
+			notifyAll();
+		}
+		closeQuietly(toClose);
+	}
+
+	private OverthereConnection createConnection(PoolKey key) {
+		try {
+			return Overthere.getConnection(key.protocol, key.options);
+		} catch (RuntimeException exc) {
+			synchronized (this) {
+				adjustConnectionCount(key.host, -1);
+				notifyAll();
+			}
+			throw exc;
+		}
+	}
+
+	private boolean isValid(OverthereConnection connection) {
+		try {
+			return !(connection instanceof BaseOverthereConnection) || ((BaseOverthereConnection) connection).isConnected();
+		} catch (RuntimeException exc) {
+			logger.warn("Validation of pooled connection " + connection + " failed", exc);
+			return false;
+		}
+	}
+
+	void release(PoolKey key, OverthereConnection connection) {
+		connection.setWorkingDirectory(null);
+
+		boolean keep = isValid(connection);
+		List<OverthereConnection> toClose = newArrayList();
+		synchronized (this) {
+			if (keep && !closed) {
+				LinkedList<IdleConnection> idleForKey = idleConnections.get(key);
+				if (idleForKey == null) {
+					idleForKey = new LinkedList<IdleConnection>();
+					idleConnections.put(key, idleForKey);
+				}
+				idleForKey.addFirst(new IdleConnection(connection));
+			} else {
+				toClose.add(connection);
+				adjustConnectionCount(key.host, -1);
+			}
+			evictExpiredConnections(toClose);
+			notifyAll();
+		}
+		closeQuietly(toClose);
+	}
+
+	private void discard(PoolKey key, OverthereConnection connection) {
+		synchronized (this) {
+			adjustConnectionCount(key.host, -1);
+			notifyAll();
+		}
+		closeQuietly(connection);
+	}
+
+	private void evictExpiredConnections(List<OverthereConnection> toClose) {
+		long expiry = System.currentTimeMillis() - idleTimeoutMillis;
+		for (Iterator<Map.Entry<PoolKey, LinkedList<IdleConnection>>> entries = idleConnections.entrySet().iterator(); entries.hasNext();) {
+			Map.Entry<PoolKey, LinkedList<IdleConnection>> entry = entries.next();
+			for (Iterator<IdleConnection> it = entry.getValue().iterator(); it.hasNext();) {
+				IdleConnection each = it.next();
+				if (each.idleSince <= expiry) {
+					logger.debug("Evicting connection {} because it has been idle for too long", each.connection);
+					it.remove();
+					toClose.add(each.connection);
+					adjustConnectionCount(entry.getKey().host, -1);
+				}
+			}
+			if (entry.getValue().isEmpty()) {
+				entries.remove();
+			}
+		}
+	}
+
+	private boolean evictIdleConnectionForHost(String host, List<OverthereConnection> toClose) {
+		for (Iterator<Map.Entry<PoolKey, LinkedList<IdleConnection>>> entries = idleConnections.entrySet().iterator(); entries.hasNext();) {
+			Map.Entry<PoolKey, LinkedList<IdleConnection>> entry = entries.next();
+			if (entry.getKey().host.equals(host) && !entry.getValue().isEmpty()) {
+				IdleConnection eldest = entry.getValue().removeLast();
+				logger.debug("Evicting idle connection {} to make room for a connection with different options to the same host", eldest.connection);
+				toClose.add(eldest.connection);
+				adjustConnectionCount(host, -1);
+				if (entry.getValue().isEmpty()) {
+					entries.remove();
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int getConnectionCount(String host) {
+		Integer count = connectionsPerHost.get(host);
+		return count == null ? 0 : count;
+	}
+
+	private void adjustConnectionCount(String host, int delta) {
+		int count = getConnectionCount(host) + delta;
+		if (count > 0) {
+			connectionsPerHost.put(host, count);
+		} else {
+			connectionsPerHost.remove(host);
+		}
+	}
+
+	private static void closeQuietly(List<OverthereConnection> connections) {
+		for (OverthereConnection each : connections) {
+			closeQuietly(each);
+		}
+	}
+
+	private static void closeQuietly(OverthereConnection connection) {
+		try {
+			connection.close();
+		} catch (RuntimeException exc) {
+			logger.warn("Ignoring exception while closing pooled connection " + connection, exc);
+		}
+	}
+
+	static class PoolKey {
+		final String protocol;
+		final ConnectionOptions options;
+		final String host;
+
+		PoolKey(String protocol, ConnectionOptions options) {
+			this.protocol = protocol;
+			this.options = options;
+			String address = options.getOptional(ADDRESS);
+			this.host = address != null ? address : protocol + ":";
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof PoolKey)) return false;
+
+			PoolKey that = (PoolKey) o;
+			return protocol.equals(that.protocol) && options.equals(that.options);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * protocol.hashCode() + options.hashCode();
+		}
+	}
+
+	private static class IdleConnection {
+		final OverthereConnection connection;
+		final long idleSince;
+
+		IdleConnection(OverthereConnection connection) {
+			this.connection = connection;
+			this.idleSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A connection leased from the pool. Delegates everything to the underlying connection, except for {@link #close()}.
+	 */
+	private static class LeasedConnection implements OverthereConnection {
+
+		private final OverthereConnectionPool pool;
+
+		private final PoolKey key;
+
+		private OverthereConnection delegate;
+
+		LeasedConnection(OverthereConnectionPool pool, PoolKey key, OverthereConnection delegate) {
+			this.pool = pool;
+			this.key = key;
+			this.delegate = delegate;
+		}
+
+		private synchronized OverthereConnection getDelegate() {
+			if (delegate == null) {
+				throw new IllegalStateException("Pooled connection has already been returned to the pool");
+			}
+			return delegate;
+		}
+
+		@Override
+		public OperatingSystemFamily getHostOperatingSystem() {
+			return getDelegate().getHostOperatingSystem();
+		}
+
+		@Override
+		public OverthereFile getFile(String hostPath) {
+			return getDelegate().getFile(hostPath);
+		}
+
+		@Override
+		public OverthereFile getFile(OverthereFile parent, String child) {
+			return getDelegate().getFile(parent, child);
+		}
+
+		@Override
+		public OverthereFile getTempFile(String nameTemplate) {
+			return getDelegate().getTempFile(nameTemplate);
+		}
+
+		@Override
+		public OverthereFile getTempFile(String prefix, String suffix) throws RuntimeIOException {
+			return getDelegate().getTempFile(prefix, suffix);
+		}
+
+		@Override
+		public OverthereFile getWorkingDirectory() {
+			return getDelegate().getWorkingDirectory();
+		}
+
+		@Override
+		public void setWorkingDirectory(OverthereFile workingDirectory) {
+			getDelegate().setWorkingDirectory(workingDirectory);
+		}
+
+		@Override
+		public int execute(OverthereProcessOutputHandler handler, CmdLine commandLine) {
+			return getDelegate().execute(handler, commandLine);
+		}
+
+		@Override
+		public List<Integer> executeBatch(List<? extends OverthereProcessOutputHandler> handlers, List<CmdLine> commandLines, boolean continueOnFailure) {
+			return getDelegate().executeBatch(handlers, commandLines, continueOnFailure);
+		}
+
+		@Override
+		public ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine) {
+			return getDelegate().executeAsync(handler, commandLine);
+		}
+
+		@Override
+		public ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine, long timeout, TimeUnit unit) {
+			return getDelegate().executeAsync(handler, commandLine, timeout, unit);
+		}
+
+		@Override
+		public OverthereProcess startProcess(CmdLine commandLine) {
+			return getDelegate().startProcess(commandLine);
+		}
+
+		@Override
+		public boolean canStartProcess() {
+			return getDelegate().canStartProcess();
+		}
+
+		/**
+		 * Returns the underlying connection to the pool. Does not disconnect.
+		 */
+		@Override
+		public void close() {
+			OverthereConnection released;
+			synchronized (this) {
+				released = delegate;
+				delegate = null;
+			}
+			if (released != null) {
+				pool.release(key, released);
+			}
+		}
+
+		@Override
+		public String toString() {
+			OverthereConnection d;
+			synchronized (this) {
+				d = delegate;
+			}
+			return d != null ? d.toString() : "pooled:" + key.protocol + ":released";
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(OverthereConnectionPool.class);
+
+}
@@ -176,6 +176,14 @@ public interface OverthereFile {
 	 */
 	List<OverthereFile> listFiles();
 
+	/**
+	 * Lists the files in this directory and, recursively, in its subdirectories. Where possible, the whole tree is listed in one round trip to the host
+	 * and the attributes of the files are retrieved with it. If this file is not a directory, the outcome is unspecified.
+	 * 
+	 * @return the files in this directory and its subdirectories. Every directory precedes the files in it; the order is otherwise unspecified.
+	 */
+	List<OverthereFile> listFilesRecursively();
+
 	/**
 	 * Creates this directory. If the parent directory does not exists, a {@link RuntimeIOException} is thrown.
 	 */
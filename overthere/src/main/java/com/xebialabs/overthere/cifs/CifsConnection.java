@@ -17,15 +17,22 @@
 
 package com.xebialabs.overthere.cifs;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
 import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
 import static com.xebialabs.overthere.ConnectionOptions.PORT;
 import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.ATTRIBUTE_EXPIRATION_PERIOD;
 import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.CIFS_PORT;
 import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.DEFAULT_ATTRIBUTE_EXPIRATION_PERIOD;
 import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.DEFAULT_CIFS_PORT;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.DEFAULT_PARALLEL_RANGES;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.DEFAULT_RANGE_SIZE;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.PARALLEL_RANGES;
 import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.PATH_SHARE_MAPPINGS;
 import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.PATH_SHARE_MAPPINGS_DEFAULT;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.RANGE_SIZE;
 import static java.net.InetSocketAddress.createUnresolved;
 
 import java.io.IOException;
@@ -67,6 +74,12 @@ public abstract class CifsConnection extends BaseOverthereConnection {
 
 	protected NtlmPasswordAuthentication authentication;
 
+	protected int parallelRanges;
+
+	protected int rangeSize;
+
+	protected int attributeExpirationPeriod;
+
 	/**
 	 * Creates a {@link CifsConnection}. Don't invoke directly. Use {@link Overthere#getConnection(String, ConnectionOptions)} instead.
 	 */
@@ -82,7 +95,13 @@ public abstract class CifsConnection extends BaseOverthereConnection {
 		InetSocketAddress addressCifsPort = mapper.map(createUnresolved(address, options.get(CIFS_PORT, DEFAULT_CIFS_PORT)));
 		this.cifsPort = addressCifsPort.getPort();
 		this.encoder = new PathEncoder(null, null, this.address, cifsPort, options.get(PATH_SHARE_MAPPINGS, PATH_SHARE_MAPPINGS_DEFAULT));
+		JcifsSettings.INSTANCE.apply(options);
 		this.authentication = new NtlmPasswordAuthentication(null, username, password);
+		this.parallelRanges = options.get(PARALLEL_RANGES, DEFAULT_PARALLEL_RANGES);
+		checkArgument(parallelRanges > 0, "Value for " + PARALLEL_RANGES + " must be greater than 0");
+		this.rangeSize = options.get(RANGE_SIZE, DEFAULT_RANGE_SIZE);
+		checkArgument(rangeSize > 0, "Value for " + RANGE_SIZE + " must be greater than 0");
+		this.attributeExpirationPeriod = options.get(ATTRIBUTE_EXPIRATION_PERIOD, DEFAULT_ATTRIBUTE_EXPIRATION_PERIOD);
 	}
 
 	private Integer getDefaultPort() {
@@ -26,6 +26,7 @@ import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.cifs.telnet.CifsTelnetConnection;
 import com.xebialabs.overthere.cifs.winrm.CifsWinRmConnection;
+import com.xebialabs.overthere.cifs.winrm.HttpConnectorType;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 import com.xebialabs.overthere.spi.OverthereConnectionBuilder;
 import com.xebialabs.overthere.spi.Protocol;
@@ -71,6 +72,78 @@ public class CifsConnectionBuilder implements OverthereConnectionBuilder {
 	 */
 	public static final int DEFAULT_CIFS_PORT = 445;
 
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of ranges of one file that are read or written at the same
+	 * time, each over its own SMB file handle. When set to 1, files are transferred over a single SMB stream.
+	 */
+	public static final String PARALLEL_RANGES = "cifsParallelRanges";
+
+	/**
+	 * Default value (1) of the {@link ConnectionOptions connection option} used to specify the number of ranges of one file that are read or written
+	 * at the same time.
+	 */
+	public static final int DEFAULT_PARALLEL_RANGES = 1;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the size in bytes of the ranges in which files are read or written when
+	 * more than one range is transferred at the same time.
+	 */
+	public static final String RANGE_SIZE = "cifsRangeSize";
+
+	/**
+	 * Default value (4 MB) of the {@link ConnectionOptions connection option} used to specify the size in bytes of the ranges in which files are read or
+	 * written.
+	 */
+	public static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of milliseconds for which the attributes of the files returned
+	 * by {@link com.xebialabs.overthere.OverthereFile#listFiles()} are cached, so that they can be queried without another SMB request.
+	 */
+	public static final String ATTRIBUTE_EXPIRATION_PERIOD = "cifsAttributeExpirationPeriod";
+
+	/**
+	 * Default value (5000) of the {@link ConnectionOptions connection option} used to specify the number of milliseconds for which the attributes of
+	 * listed files are cached.
+	 */
+	public static final int DEFAULT_ATTRIBUTE_EXPIRATION_PERIOD = 5000;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the size in bytes of the buffer jcifs uses to send SMB messages. When not
+	 * set, the jcifs default (16644) is used. Like the other jcifs settings, it is taken from the first CIFS connection created in the JVM.
+	 */
+	public static final String SEND_BUFFER_SIZE = "cifsSendBufferSize";
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the size in bytes of the buffer jcifs uses to receive SMB messages. When
+	 * not set, the jcifs default (60416) is used.
+	 */
+	public static final String RECEIVE_BUFFER_SIZE = "cifsReceiveBufferSize";
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the maximum number of SMB requests jcifs has outstanding on one transport.
+	 * When not set, the jcifs default (10) is used.
+	 */
+	public static final String MAX_MPX_COUNT = "cifsMaxMpxCount";
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of milliseconds after which jcifs closes an idle SMB transport.
+	 * When not set, the jcifs default (35000) is used.
+	 */
+	public static final String SOCKET_TIMEOUT = "cifsSocketTimeout";
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of milliseconds jcifs waits for the response to an SMB request.
+	 * When not set, the jcifs default (30000) is used.
+	 */
+	public static final String RESPONSE_TIMEOUT = "cifsResponseTimeout";
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the comma-separated list of name services jcifs uses to resolve host
+	 * names, e.g. <code>DNS</code>. When not set, the jcifs default (<code>LMHOSTS,DNS,WINS</code> or <code>LMHOSTS,BCAST,DNS</code>) is used.
+	 */
+	public static final String RESOLVE_ORDER = "cifsResolveOrder";
+
 	/**
 	 * Name of the {@link ConnectionOptions connection option} used to specify the path to share mappings to use for CIFS, specified as a
 	 * <tt>Map&lt;String, String&gt;</tt>, e.g. "C:\IBM\WebSphere" -> "WebSphere". If a path is not explicitly mapped to a share the administrative
@@ -102,6 +175,51 @@ public class CifsConnectionBuilder implements OverthereConnectionBuilder {
 	public static final String LOCALE = "winrmLocale";
 	public static final String DEFAULT_LOCALE = "en-US";
 
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the maximum number of commands run in one WinRM shell before it
+	 * is deleted and a new shell is opened. Idle shells are kept open for reuse until the connection is closed.
+	 */
+	public static final String MAX_COMMANDS_PER_SHELL = "winrmMaxCommandsPerShell";
+
+	/**
+	 * Default value (50) of the {@link ConnectionOptions connection option} used to specify the maximum number of commands run in one WinRM shell.
+	 */
+	public static final int DEFAULT_MAX_COMMANDS_PER_SHELL = 50;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the {@link HttpConnectorType HTTP connector} used to send WinRM messages.
+	 */
+	public static final String HTTP_CONNECTOR = "winrmHttpConnector";
+
+	/**
+	 * Default value ({@link HttpConnectorType#JDK JDK}) of the {@link ConnectionOptions connection option} used to specify the HTTP connector used to
+	 * send WinRM messages.
+	 */
+	public static final HttpConnectorType DEFAULT_HTTP_CONNECTOR = HttpConnectorType.JDK;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify whether files are accessed over WinRM instead of CIFS, for hosts on which
+	 * SMB is blocked.
+	 */
+	public static final String FILE_TRANSFER_OVER_WINRM = "winrmFileTransfer";
+
+	/**
+	 * Default value (<code>false</code>) of the {@link ConnectionOptions connection option} used to specify whether files are accessed over WinRM.
+	 */
+	public static final boolean DEFAULT_FILE_TRANSFER_OVER_WINRM = false;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of WinRM commands that transfer chunks of one file at the same
+	 * time when files are accessed over WinRM.
+	 */
+	public static final String FILE_TRANSFER_SHELLS = "winrmFileTransferShells";
+
+	/**
+	 * Default value (4) of the {@link ConnectionOptions connection option} used to specify the number of WinRM commands that transfer chunks of one file
+	 * at the same time.
+	 */
+	public static final int DEFAULT_FILE_TRANSFER_SHELLS = 4;
+
 	private OverthereConnection connection;
 
 	public CifsConnectionBuilder(String type, ConnectionOptions options, AddressPortMapper mapper) {
@@ -20,8 +20,11 @@ package com.xebialabs.overthere.cifs;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.util.ChunkedInputStream;
+import com.xebialabs.overthere.util.ChunkedOutputStream;
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
+import jcifs.smb.SmbRandomAccessFile;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +38,14 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	private SmbFile smbFile;
 
+	private long attributesExpiration;
+
+	private int attributes;
+
+	private long length;
+
+	private long lastModified;
+
 	protected CifsFile(CifsConnection connection, SmbFile smbFile) {
 		super(connection);
 		this.smbFile = smbFile;
@@ -65,6 +76,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean exists() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return true;
+		}
 		try {
 			return smbFile.exists();
 		} catch (SmbException exc) {
@@ -74,6 +88,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean canRead() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return true;
+		}
 		try {
 			return smbFile.canRead();
 		} catch (SmbException exc) {
@@ -83,6 +100,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean canWrite() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return (attributes & SmbFile.ATTR_READONLY) == 0;
+		}
 		try {
 			return smbFile.canWrite();
 		} catch (SmbException exc) {
@@ -92,6 +112,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean canExecute() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return true;
+		}
 		try {
 			return smbFile.canRead();
 		} catch (SmbException exc) {
@@ -101,6 +124,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean isFile() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return (attributes & SmbFile.ATTR_DIRECTORY) == 0;
+		}
 		try {
 			return smbFile.isFile();
 		} catch (SmbException exc) {
@@ -110,6 +136,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean isDirectory() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return (attributes & SmbFile.ATTR_DIRECTORY) != 0;
+		}
 		try {
 			return smbFile.isDirectory();
 		} catch (SmbException exc) {
@@ -119,6 +148,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public boolean isHidden() {
+		if (hasCachedAttributes()) {
+			return (attributes & SmbFile.ATTR_HIDDEN) != 0;
+		}
 		try {
 			return smbFile.isHidden();
 		} catch (SmbException exc) {
@@ -128,6 +160,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public long lastModified() {
+		if (hasCachedAttributes()) {
+			return lastModified;
+		}
 		try {
 			return smbFile.lastModified();
 		} catch (SmbException exc) {
@@ -137,6 +172,9 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public long length() throws RuntimeIOException {
+		if (hasCachedAttributes()) {
+			return length;
+		}
 		try {
 			return smbFile.length();
 		} catch (SmbException exc) {
@@ -144,13 +182,22 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 		}
 	}
 
+	/**
+	 * Lists the directory with one SMB request that also returns the attributes of its entries. These are cached in the returned files for
+	 * {@link CifsConnectionBuilder#ATTRIBUTE_EXPIRATION_PERIOD} milliseconds.
+	 */
 	@Override
 	public List<OverthereFile> listFiles() throws RuntimeIOException {
 		try {
 			upgradeToDirectorySmbFile();
 			List<OverthereFile> files = newArrayList();
-			for (String name : smbFile.list()) {
-				files.add(getFile(name));
+			for (SmbFile entry : smbFile.listFiles()) {
+				String name = entry.getName();
+				OverthereFile file = getFile(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+				if (file instanceof CifsFile) {
+					((CifsFile) file).cacheAttributes(entry);
+				}
+				files.add(file);
 			}
 			return files;
 		} catch (MalformedURLException exc) {
@@ -162,6 +209,7 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public void mkdir() throws RuntimeIOException {
+		clearCachedAttributes();
 		try {
 			smbFile.mkdir();
 		} catch (SmbException exc) {
@@ -171,6 +219,7 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public void mkdirs() throws RuntimeIOException {
+		clearCachedAttributes();
 		try {
 			smbFile.mkdirs();
 		} catch (SmbException exc) {
@@ -181,6 +230,8 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 	@Override
 	public void renameTo(OverthereFile dest) throws RuntimeIOException {
 		if (dest instanceof CifsFile) {
+			clearCachedAttributes();
+			((CifsFile) dest).clearCachedAttributes();
 			SmbFile targetSmbFile = ((CifsFile) dest).getSmbFile();
 			try {
 				smbFile.renameTo(targetSmbFile);
@@ -199,6 +250,7 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public void delete() throws RuntimeIOException {
+		clearCachedAttributes();
 		try {
 			if (smbFile.isDirectory()) {
 				upgradeToDirectorySmbFile();
@@ -217,6 +269,7 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 
 	@Override
 	public void deleteRecursively() throws RuntimeIOException {
+		clearCachedAttributes();
 		try {
 			if (smbFile.isDirectory()) {
 				upgradeToDirectorySmbFile();
@@ -230,24 +283,117 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
 		}
 	}
 
+	/**
+	 * Returns a stream that reads the file over a single SMB stream or, for files larger than one range when
+	 * {@link CifsConnectionBuilder#PARALLEL_RANGES} is greater than 1, one that reads several ranges at the same time.
+	 */
 	@Override
 	public InputStream getInputStream() throws RuntimeIOException {
 		try {
+			if (connection.parallelRanges > 1) {
+				long length = smbFile.length();
+				if (length > connection.rangeSize) {
+					return new ChunkedInputStream(this, length, connection.rangeSize, connection.parallelRanges) {
+						@Override
+						protected byte[] readChunk(long offset, int length) throws IOException {
+							return readRange(offset, length);
+						}
+					};
+				}
+			}
 			return smbFile.getInputStream();
 		} catch (IOException exc) {
 			throw new RuntimeIOException("Cannot open " + this + " for reading: " + exc.toString(), exc);
 		}
 	}
 
+	/**
+	 * Returns a stream that writes the file over a single SMB stream or, when {@link CifsConnectionBuilder#PARALLEL_RANGES} is greater than 1, one that
+	 * writes several ranges at the same time and checks the length of the file when it is closed.
+	 */
 	@Override
 	public OutputStream getOutputStream() {
+		clearCachedAttributes();
 		try {
+			if (connection.parallelRanges > 1) {
+				SmbRandomAccessFile raf = new SmbRandomAccessFile(newSmbFile(), "rw");
+				try {
+					raf.setLength(0);
+				} finally {
+					raf.close();
+				}
+				return new ChunkedOutputStream(this, connection.rangeSize, connection.parallelRanges) {
+					@Override
+					protected void writeChunk(long offset, byte[] chunk, int length) throws IOException {
+						writeRange(offset, chunk, length);
+					}
+
+					@Override
+					public void close() throws IOException {
+						super.close();
+						long length = newSmbFile().length();
+						if (length != getCount()) {
+							throw new IOException("Cannot write " + CifsFile.this + ": its length is " + length + " after writing " + getCount() + " bytes");
+						}
+					}
+				};
+			}
 			return smbFile.getOutputStream();
 		} catch (IOException exc) {
 			throw new RuntimeIOException("Cannot open " + this + " for writing: " + exc.toString(), exc);
 		}
 	}
 
+	private byte[] readRange(long offset, int length) throws IOException {
+		SmbRandomAccessFile raf = new SmbRandomAccessFile(newSmbFile(), "r");
+		try {
+			byte[] range = new byte[length];
+			raf.seek(offset);
+			raf.readFully(range);
+			return range;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void writeRange(long offset, byte[] range, int length) throws IOException {
+		SmbRandomAccessFile raf = new SmbRandomAccessFile(newSmbFile(), "rw");
+		try {
+			raf.seek(offset);
+			raf.write(range, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns a new {@link SmbFile} for this file, so that every range is transferred over its own file handle.
+	 */
+	private SmbFile newSmbFile() throws MalformedURLException {
+		return new SmbFile(smbFile.getPath(), connection.authentication);
+	}
+
+	/**
+	 * Caches the attributes of a file returned by {@link SmbFile#listFiles()}, which jcifs has filled in from the directory listing.
+	 */
+	private void cacheAttributes(SmbFile entry) throws SmbException {
+		if (connection.attributeExpirationPeriod <= 0) {
+			return;
+		}
+		attributes = entry.getAttributes();
+		length = entry.length();
+		lastModified = entry.lastModified();
+		attributesExpiration = System.currentTimeMillis() + connection.attributeExpirationPeriod;
+	}
+
+	private boolean hasCachedAttributes() {
+		return attributesExpiration > System.currentTimeMillis();
+	}
+
+	private void clearCachedAttributes() {
+		attributesExpiration = 0;
+	}
+
 	private void upgradeToDirectorySmbFile() throws MalformedURLException {
 		if (!smbFile.getPath().endsWith("/")) {
 			smbFile = new SmbFile(smbFile.getURL() + "/", connection.authentication);
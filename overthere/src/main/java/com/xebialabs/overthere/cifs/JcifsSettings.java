@@ -0,0 +1,81 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs;
+
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.MAX_MPX_COUNT;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.RECEIVE_BUFFER_SIZE;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.RESOLVE_ORDER;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.RESPONSE_TIMEOUT;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.SEND_BUFFER_SIZE;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.SOCKET_TIMEOUT;
+
+import java.util.Map;
+
+import jcifs.Config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.xebialabs.overthere.ConnectionOptions;
+
+/**
+ * Applies the {@link ConnectionOptions connection options} that tune the jcifs transport to the jcifs {@link Config}. jcifs reads these settings into
+ * static fields the first time it uses them and shares its transports, sessions and trees between all connections in the JVM, so the settings are
+ * taken from the first {@link CifsConnection} that is created. Different values requested by later connections are ignored with a warning.
+ */
+class JcifsSettings {
+
+	static final JcifsSettings INSTANCE = new JcifsSettings();
+
+	private static final Map<String, String> JCIFS_PROPERTIES = ImmutableMap.<String, String> builder()
+	        .put(SEND_BUFFER_SIZE, "jcifs.smb.client.snd_buf_size")
+	        .put(RECEIVE_BUFFER_SIZE, "jcifs.smb.client.rcv_buf_size")
+	        .put(MAX_MPX_COUNT, "jcifs.smb.client.maxMpxCount")
+	        .put(SOCKET_TIMEOUT, "jcifs.smb.client.soTimeout")
+	        .put(RESPONSE_TIMEOUT, "jcifs.smb.client.responseTimeout")
+	        .put(RESOLVE_ORDER, "jcifs.resolveOrder")
+	        .build();
+
+	private Map<String, String> applied;
+
+	synchronized void apply(ConnectionOptions options) {
+		boolean first = applied == null;
+		if (first) {
+			applied = Maps.newHashMap();
+		}
+		for (Map.Entry<String, String> property : JCIFS_PROPERTIES.entrySet()) {
+			Object value = options.getOptional(property.getKey());
+			if (value == null) {
+				continue;
+			}
+			if (first) {
+				logger.debug("Setting jcifs property {} to {}", property.getValue(), value);
+				Config.setProperty(property.getValue(), value.toString());
+				applied.put(property.getKey(), value.toString());
+			} else if (!value.toString().equals(applied.get(property.getKey()))) {
+				logger.warn("Ignoring connection option {}={} because jcifs has already been configured by an earlier CIFS connection to use {}", new Object[] {
+				        property.getKey(), value, applied.containsKey(property.getKey()) ? applied.get(property.getKey()) : "its default" });
+			}
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(JcifsSettings.class);
+
+}
@@ -23,23 +23,25 @@ import static java.util.regex.Pattern.quote;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.xebialabs.overthere.RuntimeIOException;
 
 /**
- * Conversions to/from UNC, SMB and Windows file paths
+ * Conversions to/from UNC, SMB and Windows file paths. The most recent conversions are cached, because every file that is accessed or listed is
+ * converted at least once.
  */
 class PathEncoder {
-	// "\\host-name\share" or "\\host-name\share\" or "\\host-name\share\path"
-	private static final Pattern UNC_PATH_PATTERN = Pattern.compile("\\\\\\\\[^\\\\]+\\\\([^\\\\]+(?:\\\\.*)?)");
 	private static final char WINDOWS_SEPARATOR = '\\';
 	private static final char SMB_URL_SEPARATOR = '/';
+	private static final int CACHE_SIZE = 4096;
 
 	private final String smbUrlPrefix;
 	private final PathMapper pathMapper;
+	private final Map<String, String> smbUrlsForHostPaths = newLruCache();
+	private final Map<String, String> hostPathsForUncPaths = newLruCache();
 
 	PathEncoder(String username, String password, String address, int cifsPort, Map<String, String> pathMappings) {
 		StringBuilder urlPrefix = new StringBuilder();
@@ -69,7 +71,25 @@ class PathEncoder {
 		}
 	}
 
+	private static Map<String, String> newLruCache() {
+		return Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		});
+	}
+
 	String toSmbUrl(String hostPath) {
+		String smbUrl = smbUrlsForHostPaths.get(hostPath);
+		if (smbUrl == null) {
+			smbUrl = buildSmbUrl(hostPath);
+			smbUrlsForHostPaths.put(hostPath, smbUrl);
+		}
+		return smbUrl;
+	}
+
+	private String buildSmbUrl(String hostPath) {
 		if (hostPath.length() < 2) {
 			throw new IllegalArgumentException(format("Host path '%s' is too short", hostPath));
 		}
@@ -98,11 +118,26 @@ class PathEncoder {
 	 * @return the Windows file path representing the UNC path
 	 */
 	final String fromUncPath(String uncPath) {
-		Matcher matcher = UNC_PATH_PATTERN.matcher(uncPath);
-		if (!matcher.matches()) {
-			throw new IllegalArgumentException(format("UNC path '%s' did not match expected expression '%s'", uncPath, UNC_PATH_PATTERN));
+		String hostPath = hostPathsForUncPaths.get(uncPath);
+		if (hostPath == null) {
+			hostPath = pathMapper.toLocalPath(getSharedPath(uncPath));
+			hostPathsForUncPaths.put(uncPath, hostPath);
+		}
+		return hostPath;
+	}
+
+	/**
+	 * Returns the part of a UNC path that starts with the share, i.e. <code>share</code>, <code>share\</code> or <code>share\path</code> for
+	 * <code>\\host-name\share</code>, <code>\\host-name\share\</code> or <code>\\host-name\share\path</code>.
+	 */
+	private static String getSharedPath(String uncPath) {
+		if (uncPath.length() > 2 && uncPath.charAt(0) == WINDOWS_SEPARATOR && uncPath.charAt(1) == WINDOWS_SEPARATOR && uncPath.charAt(2) != WINDOWS_SEPARATOR) {
+			int shareStart = uncPath.indexOf(WINDOWS_SEPARATOR, 3) + 1;
+			if (shareStart > 0 && shareStart < uncPath.length() && uncPath.charAt(shareStart) != WINDOWS_SEPARATOR) {
+				return uncPath.substring(shareStart);
+			}
 		}
-		return pathMapper.toLocalPath(matcher.group(1));
+		throw new IllegalArgumentException(format("UNC path '%s' is not of the form \\\\host-name\\share[\\path]", uncPath));
 	}
 
 }
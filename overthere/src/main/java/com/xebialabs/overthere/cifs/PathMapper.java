@@ -18,40 +18,28 @@
 package com.xebialabs.overthere.cifs;
 
 import static java.lang.String.format;
-import static java.util.regex.Pattern.quote;
 
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 
 class PathMapper {
-	private static final String DRIVE_DESIGNATOR = ":";
-	private static final String ADMIN_SHARE_DESIGNATOR = "$";
-	private static final Pattern ADMIN_SHARE_PATTERN = Pattern.compile("[a-zA-Z]" + quote(ADMIN_SHARE_DESIGNATOR));
+	private static final char DRIVE_DESIGNATOR = ':';
+	private static final char ADMIN_SHARE_DESIGNATOR = '$';
 
-	private final SortedMap<String, String> sharesForPaths;
-	private final Map<String, String> pathsForShares;
+	private final PrefixTrie sharesForPaths = new PrefixTrie();
+	private final PrefixTrie pathsForShares = new PrefixTrie();
 
 	@VisibleForTesting
 	PathMapper(final Map<String, String> mappings) {
-		// longest first, so reverse lexicographical order
-		ImmutableSortedMap.Builder<String, String> sharesForPath = ImmutableSortedMap.reverseOrder();
-		ImmutableMap.Builder<String, String> pathsForShare = ImmutableMap.builder();
 		for (Entry<String, String> mapping : mappings.entrySet()) {
 			String pathPrefixToMatch = mapping.getKey();
 			String shareForPathPrefix = mapping.getValue();
-			sharesForPath.put(pathPrefixToMatch.toLowerCase(), shareForPathPrefix);
-			pathsForShare.put(shareForPathPrefix.toLowerCase(), pathPrefixToMatch);
+			sharesForPaths.put(pathPrefixToMatch, shareForPathPrefix);
+			pathsForShares.put(shareForPathPrefix, pathPrefixToMatch);
 		}
-		this.sharesForPaths = sharesForPath.build();
-		this.pathsForShares = pathsForShare.build();
 	}
 
 	/**
@@ -66,17 +54,13 @@ class PathMapper {
 	 */
 	@VisibleForTesting
 	String toSharedPath(String path) {
-		final String lowerCasePath = path.toLowerCase();
 		// assumes correct format drive: or drive:\path
-		String mappedPathPrefix = Iterables.find(sharesForPaths.keySet(), new Predicate<String>() {
-			@Override
-			public boolean apply(String input) {
-				return lowerCasePath.startsWith(input);
-			}
-		}, null);
+		PrefixTrie mappedPathPrefix = sharesForPaths.findLongestPrefix(path);
 		// the share + the remainder of the path if found, otherwise the path with ':' replaced by '$'
-		return ((mappedPathPrefix != null) ? sharesForPaths.get(mappedPathPrefix) + path.substring(mappedPathPrefix.length()) : path.substring(0, 1) + ADMIN_SHARE_DESIGNATOR
-		        + path.substring(2));
+		if (mappedPathPrefix != null) {
+			return mappedPathPrefix.value + path.substring(mappedPathPrefix.depth);
+		}
+		return path.charAt(0) + String.valueOf(ADMIN_SHARE_DESIGNATOR) + path.substring(2);
 	}
 
 	/**
@@ -86,20 +70,68 @@ class PathMapper {
 	 */
 	@VisibleForTesting
 	String toLocalPath(String path) {
-		final String lowerCasePath = path.toLowerCase();
 		// assumes correct format share or share\path
-		String mappedShare = Iterables.find(pathsForShares.keySet(), new Predicate<String>() {
-			@Override
-			public boolean apply(String input) {
-				return lowerCasePath.startsWith(input);
-			}
-		}, null);
+		PrefixTrie mappedShare = pathsForShares.findLongestPrefix(path);
 		if (mappedShare != null) {
-			return pathsForShares.get(mappedShare) + path.substring(mappedShare.length());
-		} else if ((path.length() >= 2) && ADMIN_SHARE_PATTERN.matcher(path.substring(0, 2)).matches()) {
-			return path.substring(0, 1) + DRIVE_DESIGNATOR + path.substring(2);
+			return mappedShare.value + path.substring(mappedShare.depth);
+		} else if (path.length() >= 2 && isAsciiLetter(path.charAt(0)) && path.charAt(1) == ADMIN_SHARE_DESIGNATOR) {
+			return path.charAt(0) + String.valueOf(DRIVE_DESIGNATOR) + path.substring(2);
 		} else {
 			throw new IllegalArgumentException(format("Remote path name '%s' uses unrecognized (i.e. neither mapped nor administrative) share", path));
 		}
 	}
-}
\ No newline at end of file
+
+	private static boolean isAsciiLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * A trie of case-insensitive prefixes, so that the longest prefix of a path is found in one pass over its first characters, however many mappings
+	 * there are.
+	 */
+	private static class PrefixTrie {
+		private final Map<Character, PrefixTrie> children = Maps.newHashMap();
+		private final int depth;
+		private String value;
+
+		PrefixTrie() {
+			this(0);
+		}
+
+		private PrefixTrie(int depth) {
+			this.depth = depth;
+		}
+
+		void put(String prefix, String value) {
+			PrefixTrie node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				Character c = Character.toLowerCase(prefix.charAt(i));
+				PrefixTrie child = node.children.get(c);
+				if (child == null) {
+					child = new PrefixTrie(i + 1);
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			if (node.value != null) {
+				throw new IllegalArgumentException(format("Path mapping for '%s' conflicts with the mapping to '%s'", prefix, node.value));
+			}
+			node.value = value;
+		}
+
+		PrefixTrie findLongestPrefix(String path) {
+			PrefixTrie longest = value != null ? this : null;
+			PrefixTrie node = this;
+			for (int i = 0; i < path.length(); i++) {
+				node = node.children.get(Character.toLowerCase(path.charAt(i)));
+				if (node == null) {
+					break;
+				}
+				if (node.value != null) {
+					longest = node;
+				}
+			}
+			return longest;
+		}
+	}
+}
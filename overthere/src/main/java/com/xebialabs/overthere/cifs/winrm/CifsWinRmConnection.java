@@ -20,19 +20,34 @@ package com.xebialabs.overthere.cifs.winrm;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.cifs.CifsConnection;
 import com.xebialabs.overthere.cifs.CifsConnectionType;
+import com.xebialabs.overthere.cifs.winrm.connector.ApacheHttpConnector;
 import com.xebialabs.overthere.cifs.winrm.connector.JdkHttpConnector;
+import com.xebialabs.overthere.cifs.winrm.connector.LaxApacheHttpConnector;
 import com.xebialabs.overthere.cifs.winrm.connector.LaxJdkHttpConnector;
 import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
 import com.xebialabs.overthere.cifs.winrm.tokengenerator.BasicTokenGenerator;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.BatchOutputDemultiplexer;
 
+import java.io.Closeable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Charsets.UTF_16LE;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.io.Closeables.closeQuietly;
 import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
 import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
 import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
@@ -51,23 +66,39 @@ import static com.xebialabs.overthere.cifs.CifsConnectionType.WINRM_HTTP;
  */
 public class CifsWinRmConnection extends CifsConnection {
 
+	/**
+	 * The maximum length of a command line that <code>cmd.exe</code> runs.
+	 */
+	static final int MAX_COMMAND_LINE_LENGTH = 8191;
+
+	private final HttpConnector httpConnector;
+
 	private final WinRmClient winRmClient;
 
+	private final boolean fileTransferOverWinRm;
+
+	private final int fileTransferShells;
+
 	/**
 	 * Creates a {@link CifsWinRmConnection}. Don't invoke directly. Use {@link Overthere#getConnection(String, ConnectionOptions)} instead.
 	 */
 	public CifsWinRmConnection(String type, ConnectionOptions options, AddressPortMapper mapper) {
-		super(type, options, mapper, false);
+		super(type, options, mapper, true);
 		checkArgument(os == WINDOWS, "Cannot start a " + CIFS_PROTOCOL + ":%s connection to a non-Windows operating system", cifsConnectionType.toString().toLowerCase());
 
 		TokenGenerator tokenGenerator = getTokenGenerator(options);
 		URL targetURL = getTargetURL(options);
-		HttpConnector httpConnector = newHttpConnector(cifsConnectionType, targetURL, tokenGenerator);
+		httpConnector = newHttpConnector(options.get(HTTP_CONNECTOR, DEFAULT_HTTP_CONNECTOR), cifsConnectionType, targetURL, tokenGenerator);
 
 		winRmClient = new WinRmClient(httpConnector, targetURL);
 		winRmClient.setTimeout(options.get(TIMEMOUT, DEFAULT_TIMEOUT));
 		winRmClient.setEnvelopSize(options.get(ENVELOP_SIZE, DEFAULT_ENVELOP_SIZE));
 		winRmClient.setLocale(options.get(LOCALE, DEFAULT_LOCALE));
+		winRmClient.setMaxCommandsPerShell(options.get(MAX_COMMANDS_PER_SHELL, DEFAULT_MAX_COMMANDS_PER_SHELL));
+
+		fileTransferOverWinRm = options.get(FILE_TRANSFER_OVER_WINRM, DEFAULT_FILE_TRANSFER_OVER_WINRM);
+		fileTransferShells = options.get(FILE_TRANSFER_SHELLS, DEFAULT_FILE_TRANSFER_SHELLS);
+		checkArgument(fileTransferShells > 0, "Value for " + FILE_TRANSFER_SHELLS + " must be greater than 0");
 	}
 
 	private TokenGenerator getTokenGenerator(ConnectionOptions options) {
@@ -87,24 +118,145 @@ public class CifsWinRmConnection extends CifsConnection {
 	}
 
 	public static HttpConnector newHttpConnector(CifsConnectionType ccType, URL targetURL, TokenGenerator tokenGenerator) {
+		return newHttpConnector(HttpConnectorType.JDK, ccType, targetURL, tokenGenerator);
+	}
+
+	public static HttpConnector newHttpConnector(HttpConnectorType connectorType, CifsConnectionType ccType, URL targetURL, TokenGenerator tokenGenerator) {
+		boolean httpClient = connectorType == HttpConnectorType.HTTPCLIENT;
 		switch (ccType) {
 			case WINRM_HTTP:
-				return new JdkHttpConnector(targetURL, tokenGenerator);
+				return httpClient ? new ApacheHttpConnector(targetURL, tokenGenerator) : new JdkHttpConnector(targetURL, tokenGenerator);
 			case WINRM_HTTPS:
-				return new LaxJdkHttpConnector(targetURL, tokenGenerator);
+				return httpClient ? new LaxApacheHttpConnector(targetURL, tokenGenerator) : new LaxJdkHttpConnector(targetURL, tokenGenerator);
 		}
 		throw new IllegalArgumentException("Invalid CIFS connection type " + ccType);
 	}
 
 	@Override
-	public int execute(final OverthereProcessOutputHandler handler, final CmdLine commandLine) {
+	public void doClose() {
+		winRmClient.close();
+		if (httpConnector instanceof Closeable) {
+			closeQuietly((Closeable) httpConnector);
+		}
+		super.doClose();
+	}
+
+	@Override
+	public OverthereFile getFile(String hostPath) throws RuntimeIOException {
+		if (fileTransferOverWinRm) {
+			return new WinRmFile(this, hostPath);
+		}
+		return super.getFile(hostPath);
+	}
+
+	int getFileTransferShells() {
+		return fileTransferShells;
+	}
+
+	/**
+	 * Starts a PowerShell script. The script is passed base64 encoded, so that it does not have to be quoted for <code>cmd.exe</code>.
+	 */
+	OverthereProcess startPowerShell(String script) {
+		logger.debug("Executing PowerShell script {} on {}", script, this);
+		String encodedScript = Base64.encodeBase64String(script.getBytes(UTF_16LE)).trim();
+		return winRmClient.startCmd("powershell -NoProfile -NonInteractive -EncodedCommand " + encodedScript);
+	}
+
+	@Override
+	public OverthereProcess startProcess(final CmdLine commandLine) {
 		String cmd = commandLine.toCommandLine(getHostOperatingSystem(), false);
 		if(workingDirectory != null) {
 			cmd = "CD " + workingDirectory.getPath() + " & " + cmd;
 		}
-		winRmClient.runCmd(cmd, handler);
-		return winRmClient.getExitCode();
+		logger.info("Executing command {} on {}", commandLine, this);
+		return winRmClient.startCmd(cmd);
+	}
+
+	/**
+	 * Executes the batch as one command line, so that only one WinRM command is started. The exit value of each command is echoed with
+	 * <code>call echo %^errorlevel%</code>, which expands the variable after the command has run. When <code>continueOnFailure</code> is <code>false</code>,
+	 * each next command is chained with <code>&amp;&amp;</code>. A batch that does not fit in the {@link #MAX_COMMAND_LINE_LENGTH maximum length} of a
+	 * <code>cmd.exe</code> command line is split into several command lines, and a command that does not fit on its own is executed by itself.
+	 */
+	@Override
+	public List<Integer> executeBatch(final List<? extends OverthereProcessOutputHandler> handlers, final List<CmdLine> commandLines,
+	        final boolean continueOnFailure) {
+		checkBatch(handlers, commandLines);
+		List<Integer> exitValues = newArrayList();
+		int start = 0;
+		while (start < commandLines.size()) {
+			BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(handlers.subList(start, handlers.size()));
+			String batch = null;
+			int end = start;
+			while (end < commandLines.size()) {
+				String longerBatch = buildBatch(demultiplexer, commandLines.subList(start, end + 1), continueOnFailure);
+				if (longerBatch.length() > MAX_COMMAND_LINE_LENGTH) {
+					break;
+				}
+				batch = longerBatch;
+				end++;
+			}
+
+			List<Integer> runExitValues;
+			if (batch == null) {
+				logger.debug("Executing command {} of batch by itself on {} because it is too long to be batched", start, this);
+				runExitValues = newArrayList(execute(handlers.get(start), commandLines.get(start)));
+				end = start + 1;
+			} else {
+				logger.debug("Executing commands {} to {} of batch of {} commands on {}", new Object[] { start, end - 1, commandLines.size(), this });
+				runExitValues = demultiplexer.getExitValues(waitFor(startBatch(batch), demultiplexer));
+			}
+			exitValues.addAll(runExitValues);
+			if (runExitValues.size() < end - start || (!continueOnFailure && runExitValues.get(runExitValues.size() - 1) != 0)) {
+				break;
+			}
+			start = end;
+		}
+		return exitValues;
+	}
+
+	OverthereProcess startBatch(String batch) {
+		return winRmClient.startCmd(batch);
+	}
+
+	String buildBatch(BatchOutputDemultiplexer demultiplexer, List<CmdLine> commandLines, boolean continueOnFailure) {
+		return continueOnFailure ? buildBatch(demultiplexer, commandLines) : buildBatchStoppingOnFailure(demultiplexer, commandLines, 0);
+	}
+
+	private String buildBatch(BatchOutputDemultiplexer demultiplexer, List<CmdLine> commandLines) {
+		StringBuilder batch = new StringBuilder();
+		for (int i = 0; i < commandLines.size(); i++) {
+			if (i > 0) {
+				batch.append("& ");
+			}
+			appendBegin(batch, demultiplexer, commandLines, i);
+			batch.append("& call echo ").append(demultiplexer.getEndMarker(i)).append(" %^errorlevel%");
+		}
+		return batch.toString();
 	}
 
+	private String buildBatchStoppingOnFailure(BatchOutputDemultiplexer demultiplexer, List<CmdLine> commandLines, int i) {
+		StringBuilder batch = new StringBuilder();
+		appendBegin(batch, demultiplexer, commandLines, i);
+		batch.append(" && (echo ").append(demultiplexer.getEndMarker(i)).append(" 0");
+		if (i + 1 < commandLines.size()) {
+			batch.append("& ").append(buildBatchStoppingOnFailure(demultiplexer, commandLines, i + 1));
+		}
+		batch.append(") || call echo ").append(demultiplexer.getEndMarker(i)).append(" %^errorlevel%");
+		return batch.toString();
+	}
+
+	private void appendBegin(StringBuilder batch, BatchOutputDemultiplexer demultiplexer, List<CmdLine> commandLines, int i) {
+		batch.append("echo ").append(demultiplexer.getBeginMarker(i)).append("& ");
+		batch.append("(echo ").append(demultiplexer.getBeginMarker(i)).append(")1>&2& ");
+		batch.append("(");
+		if (workingDirectory != null) {
+			batch.append("CD ").append(workingDirectory.getPath()).append(" & ");
+		}
+		batch.append(commandLines.get(i).toCommandLine(getHostOperatingSystem(), false)).append(")");
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(CifsWinRmConnection.class);
+
 }
 
@@ -0,0 +1,130 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+
+import com.google.common.base.Charsets;
+import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * A serialized envelope with placeholders for the fields that change from message to message, such as the message, shell and command ids. Filling in
+ * a template only concatenates strings, whereas building the same envelope with dom4j creates a dozen elements that then have to be serialized.
+ */
+class EnvelopeTemplate {
+
+	private final String[] parts;
+
+	private final int[] fields;
+
+	private final int length;
+
+	/**
+	 * @param envelope
+	 *            the envelope, with the placeholders in place of the fields.
+	 * @param placeholders
+	 *            the placeholders, in the order in which {@link #fill(String...)} gets their values.
+	 */
+	EnvelopeTemplate(Document envelope, String... placeholders) {
+		String xml = toString(envelope);
+		List<String> partList = newArrayList();
+		List<Integer> fieldList = newArrayList();
+		int pos = 0;
+		for (;;) {
+			int next = -1;
+			int field = -1;
+			for (int i = 0; i < placeholders.length; i++) {
+				int found = xml.indexOf(placeholders[i], pos);
+				if (found >= 0 && (next < 0 || found < next)) {
+					next = found;
+					field = i;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			partList.add(xml.substring(pos, next));
+			fieldList.add(field);
+			pos = next + placeholders[field].length();
+		}
+		partList.add(xml.substring(pos));
+
+		parts = partList.toArray(new String[partList.size()]);
+		fields = new int[fieldList.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = fieldList.get(i);
+		}
+		length = xml.length();
+	}
+
+	/**
+	 * Returns the UTF-8 encoded envelope with the placeholders replaced by the XML escaped values.
+	 */
+	byte[] fill(String... values) {
+		StringBuilder envelope = new StringBuilder(length + 128);
+		for (int i = 0; i < fields.length; i++) {
+			envelope.append(parts[i]);
+			appendEscaped(envelope, values[fields[i]]);
+		}
+		envelope.append(parts[fields.length]);
+		return envelope.toString().getBytes(Charsets.UTF_8);
+	}
+
+	private static void appendEscaped(StringBuilder envelope, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				envelope.append("&amp;");
+				break;
+			case '<':
+				envelope.append("&lt;");
+				break;
+			case '>':
+				envelope.append("&gt;");
+				break;
+			case '"':
+				envelope.append("&quot;");
+				break;
+			default:
+				envelope.append(c);
+			}
+		}
+	}
+
+	private static String toString(Document doc) {
+		StringWriter stringWriter = new StringWriter();
+		XMLWriter xmlWriter = new XMLWriter(stringWriter, new OutputFormat());
+		try {
+			xmlWriter.write(doc);
+			xmlWriter.close();
+		} catch (IOException e) {
+			throw new WinRMRuntimeIOException("Cannot serialize envelope template", e);
+		}
+		return stringWriter.toString();
+	}
+
+}
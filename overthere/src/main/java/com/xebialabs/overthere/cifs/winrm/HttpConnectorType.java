@@ -0,0 +1,35 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+/**
+ * Enumeration of the HTTP connectors used to send WinRM messages.
+ */
+public enum HttpConnectorType {
+
+	/**
+	 * Sends every message over a new {@link java.net.HttpURLConnection}.
+	 */
+	JDK,
+
+	/**
+	 * Sends the messages over a pool of persistent connections managed by Apache HttpClient.
+	 */
+	HTTPCLIENT
+
+}
@@ -29,7 +29,8 @@ public enum ResponseExtractor {
 	SHELL_ID("Selector[@Name='ShellId']", Namespaces.NS_WSMAN_DMTF),
 	STDOUT("Stream[@Name='stdout']"),
 	STDERR("Stream[@Name='stderr']"),
-	STREAM_DONE("CommandState[@State='http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done']");
+	STREAM_DONE("CommandState[@State='http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done']"),
+	FAULT("Fault", Namespaces.NS_SOAP_ENV);
 
 	private final String expr;
 	private final Namespace ns;
@@ -0,0 +1,185 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dom4j.Document;
+import org.dom4j.Element;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * The parts of a response to a <code>Receive</code> or <code>Send</code> request that are used by {@link WinRmProcess}: the decoded output, the
+ * command state and exit code, and the fault if the request failed. Can be read from a dom4j document or, without building a DOM, with a StAX parser.
+ */
+class ShellResponse {
+
+	private static final String COMMAND_STATE_DONE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done";
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+	static {
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+
+	static final StreamingHttpConnector.ResponseParser<ShellResponse> PARSER = new StreamingHttpConnector.ResponseParser<ShellResponse>() {
+		@Override
+		public ShellResponse parse(InputStream responseBody) throws XMLStreamException {
+			return ShellResponse.parse(responseBody);
+		}
+	};
+
+	final List<byte[]> stdout = newArrayList();
+
+	final List<byte[]> stderr = newArrayList();
+
+	boolean done;
+
+	String exitCode;
+
+	String fault;
+
+	/**
+	 * Returns whether the request failed because no output was produced within the operation timeout.
+	 */
+	boolean isTimedOut() {
+		return fault != null && fault.contains(":TimedOut");
+	}
+
+	static ShellResponse fromDocument(Document doc) {
+		ShellResponse response = new ShellResponse();
+		addStreams(doc, ResponseExtractor.STDOUT, response.stdout);
+		addStreams(doc, ResponseExtractor.STDERR, response.stderr);
+		response.done = !ResponseExtractor.STREAM_DONE.getXPath().selectNodes(doc).isEmpty();
+		Element exitCode = (Element) ResponseExtractor.EXIT_CODE.getXPath().selectSingleNode(doc);
+		if (exitCode != null) {
+			response.exitCode = exitCode.getTextTrim();
+		}
+		Element fault = (Element) ResponseExtractor.FAULT.getXPath().selectSingleNode(doc);
+		if (fault != null) {
+			response.fault = fault.getStringValue().trim().replaceAll("\\s+", " ");
+		}
+		return response;
+	}
+
+	private static void addStreams(Document doc, ResponseExtractor stream, List<byte[]> chunks) {
+		@SuppressWarnings("unchecked")
+		List<Element> streams = (List<Element>) stream.getXPath().selectNodes(doc);
+		for (Element each : streams) {
+			addChunk(chunks, each.getText());
+		}
+	}
+
+	static ShellResponse parse(InputStream in) throws XMLStreamException {
+		ShellResponse response = new ShellResponse();
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String namespace = reader.getNamespaceURI();
+				String name = reader.getLocalName();
+				if (Namespaces.NS_WIN_SHELL.getURI().equals(namespace)) {
+					if (name.equals("Stream")) {
+						String streamName = reader.getAttributeValue(null, "Name");
+						byte[] chunk = readBase64(reader);
+						if (chunk.length > 0) {
+							if ("stdout".equals(streamName)) {
+								response.stdout.add(chunk);
+							} else if ("stderr".equals(streamName)) {
+								response.stderr.add(chunk);
+							}
+						}
+					} else if (name.equals("CommandState")) {
+						response.done |= COMMAND_STATE_DONE.equals(reader.getAttributeValue(null, "State"));
+					} else if (name.equals("ExitCode")) {
+						response.exitCode = reader.getElementText().trim();
+					}
+				} else if (Namespaces.NS_SOAP_ENV.getURI().equals(namespace) && name.equals("Fault")) {
+					response.fault = readText(reader);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return response;
+	}
+
+	/**
+	 * Decodes the base64 text of the current element straight from the character buffer of the parser, without building a string first.
+	 */
+	private static byte[] readBase64(XMLStreamReader reader) throws XMLStreamException {
+		byte[] encoded = new byte[1024];
+		int length = 0;
+		for (;;) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			}
+			if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+				char[] text = reader.getTextCharacters();
+				int start = reader.getTextStart();
+				int textLength = reader.getTextLength();
+				if (length + textLength > encoded.length) {
+					encoded = Arrays.copyOf(encoded, Math.max(encoded.length * 2, length + textLength));
+				}
+				for (int i = 0; i < textLength; i++) {
+					encoded[length++] = (byte) text[start + i];
+				}
+			}
+		}
+		return Base64.decodeBase64(length == encoded.length ? encoded : Arrays.copyOf(encoded, length));
+	}
+
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		for (int depth = 1; depth > 0;) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				text.append(reader.getText());
+				break;
+			}
+		}
+		return text.toString().trim().replaceAll("\\s+", " ");
+	}
+
+	private static void addChunk(List<byte[]> chunks, String base64) {
+		byte[] chunk = Base64.decodeBase64(base64);
+		if (chunk.length > 0) {
+			chunks.add(chunk);
+		}
+	}
+
+}
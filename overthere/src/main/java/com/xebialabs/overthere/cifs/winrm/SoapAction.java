@@ -19,7 +19,7 @@ package com.xebialabs.overthere.cifs.winrm;
 
 public enum SoapAction {
 
-	COMMAND_LINE("CommandLine"), RECEIVE("Receive"), SIGNAL("Signal"), SHELL("Shell");
+	COMMAND_LINE("CommandLine"), RECEIVE("Receive"), SEND("Send"), SIGNAL("Signal"), SHELL("Shell");
 
 	private final String value;
 
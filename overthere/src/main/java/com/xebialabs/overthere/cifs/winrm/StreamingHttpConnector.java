@@ -0,0 +1,40 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link HttpConnector} that can also send a message that has already been serialized and hand the response to a parser as it is read, so that no
+ * DOM has to be built for either.
+ */
+public interface StreamingHttpConnector extends HttpConnector {
+
+	<T> T sendMessage(byte[] requestMessage, SoapAction soapAction, ResponseParser<T> responseParser);
+
+	/**
+	 * Parses the body of a response.
+	 */
+	interface ResponseParser<T> {
+		T parse(InputStream responseBody) throws IOException, XMLStreamException;
+	}
+
+}
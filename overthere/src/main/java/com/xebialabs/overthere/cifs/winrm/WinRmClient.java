@@ -17,6 +17,7 @@
 
 package com.xebialabs.overthere.cifs.winrm;
 
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.OverthereProcessOutputHandler;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
@@ -30,14 +31,17 @@ import org.dom4j.io.XMLWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URL;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+
 public class WinRmClient {
 
 	private final URL targetURL;
@@ -47,139 +51,238 @@ public class WinRmClient {
 	private int envelopSize;
 	private String locale;
 
-	private String exitCode;
-	private String shellId;
-	private String commandId;
+	private int maxCommandsPerShell = 1;
+
+	private final Deque<Shell> idleShells = new ArrayDeque<Shell>();
+
+	private boolean closed;
 
-	private int chunk = 0;
+	private int exitCode;
+
+	private Templates templates;
 
 	public WinRmClient(HttpConnector connector, URL targetURL) {
 		this.connector = connector;
 		this.targetURL = targetURL;
 	}
 
-	public void runCmd(String command, OverthereProcessOutputHandler handler) {
+	/**
+	 * Starts a command in a shell taken from the pool of idle shells, or in a new shell if none is idle, and returns control to the caller. The output
+	 * of the command is fetched as its streams are read. When the command is done the shell is returned to the pool, unless it has run
+	 * {@link #getMaxCommandsPerShell() the maximum number of commands} or an error occurred, in which case it is deleted. When the host reports that a
+	 * reused shell no longer exists, e.g. because it has expired the shell, the command is retried once in a new shell.
+	 */
+	public OverthereProcess startCmd(String command) {
+		Shell shell = acquireShell();
+		String commandId;
 		try {
-			shellId = openShell();
-			commandId = runCommand(command);
-			getCommandOutput(handler);
+			commandId = runCommand(shell.id, command);
+		} catch (ShellNotFoundException exc) {
+			// the shell is gone, so there is nothing to delete
+			if (shell.commandsRun == 0) {
+				throw exc;
+			}
+			logger.debug("Reused shell {} no longer exists, retrying in a new shell", shell.id, exc);
+			shell = new Shell(openShell());
+			try {
+				commandId = runCommand(shell.id, command);
+			} catch (RuntimeException exc2) {
+				deleteShellQuietly(shell);
+				throw exc2;
+			}
+		} catch (RuntimeException exc) {
+			deleteShellQuietly(shell);
+			throw exc;
+		}
+
+		shell.commandsRun++;
+		return new WinRmProcess(this, shell, commandId);
+	}
+
+	/**
+	 * Runs a command and sends its output to a handler, first stdout and then stderr.
+	 *
+	 * @return the exit code of the command.
+	 */
+	public int runCmd(String command, OverthereProcessOutputHandler handler) {
+		OverthereProcess process = startCmd(command);
+		try {
+			stdoutPump(process.getStdout(), handler).run();
+			stderrPump(process.getStderr(), handler).run();
+			exitCode = process.waitFor();
+			return exitCode;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Execution interrupted", exc);
 		} finally {
-			cleanUp();
-			closeShell();
+			process.destroy();
 		}
 	}
 
+	/**
+	 * Deletes all idle shells. Shells that are running a command when this method is invoked are deleted when their command completes. No commands can be
+	 * started after this method has been invoked.
+	 */
+	public void close() {
+		synchronized (idleShells) {
+			closed = true;
+		}
+		for (;;) {
+			Shell shell;
+			synchronized (idleShells) {
+				shell = idleShells.pollFirst();
+			}
+			if (shell == null) {
+				break;
+			}
+			deleteShellQuietly(shell);
+		}
+	}
 
-	private void closeShell() {
-		if (shellId == null)
-			return;
+	private Shell acquireShell() {
+		synchronized (idleShells) {
+			if (closed) {
+				throw new WinRMRuntimeIOException("Cannot start a command in " + targetURL + ": the client has been closed");
+			}
+			Shell shell = idleShells.pollFirst();
+			if (shell != null) {
+				logger.debug("Reusing shell {} that has run {} commands", shell.id, shell.commandsRun);
+				return shell;
+			}
+		}
+		return new Shell(openShell());
+	}
+
+	void releaseShell(Shell shell, String commandId, boolean completed) {
+		boolean reusable = completed && shell.commandsRun < maxCommandsPerShell;
+		try {
+			cleanUp(shell.id, commandId);
+		} catch (RuntimeException exc) {
+			logger.warn("Cannot terminate command " + commandId + " in shell " + shell.id, exc);
+			reusable = false;
+		}
+
+		if (reusable) {
+			synchronized (idleShells) {
+				// a shell released after close() would never be deleted
+				if (!closed) {
+					idleShells.addFirst(shell);
+					return;
+				}
+			}
+		}
+		deleteShellQuietly(shell);
+	}
+
+	private void deleteShellQuietly(Shell shell) {
+		try {
+			closeShell(shell.id);
+		} catch (RuntimeException exc) {
+			logger.warn("Cannot delete shell " + shell.id, exc);
+		}
+	}
+
+	private void closeShell(String shellId) {
 		logger.debug("closeShell shellId {}", shellId);
 		final Document requestDocument = getRequestDocument(Action.WS_DELETE, ResourceURI.RESOURCE_URI_CMD, null, shellId, null);
-        sendMessage(requestDocument, null);
+		sendMessage(requestDocument, null);
 	}
 
-	private void cleanUp() {
-		if (commandId == null)
-			return;
+	private void cleanUp(String shellId, String commandId) {
 		logger.debug("cleanUp shellId {} commandId {} ", shellId, commandId);
 		final Element bodyContent = DocumentHelper.createElement(QName.get("Signal", Namespaces.NS_WIN_SHELL)).addAttribute("CommandId", commandId);
 		bodyContent.addElement(QName.get("Code", Namespaces.NS_WIN_SHELL)).addText("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/signal/terminate");
 		final Document requestDocument = getRequestDocument(Action.WS_SIGNAL, ResourceURI.RESOURCE_URI_CMD, null, shellId, bodyContent);
-        sendMessage(requestDocument, SoapAction.SIGNAL);
+		sendMessage(requestDocument, SoapAction.SIGNAL);
 	}
 
-	private void getCommandOutput(OverthereProcessOutputHandler handler) {
-		logger.debug("getCommandOutput shellId {} commandId {} ", shellId, commandId);
-		final Element bodyContent = DocumentHelper.createElement(QName.get("Receive", Namespaces.NS_WIN_SHELL));
-		bodyContent.addElement(QName.get("DesiredStream", Namespaces.NS_WIN_SHELL)).addAttribute("CommandId", commandId).addText("stdout stderr");
-		final Document requestDocument = getRequestDocument(Action.WS_RECEIVE, ResourceURI.RESOURCE_URI_CMD, null, shellId, bodyContent);
-
-		for (;;) {
-			Document responseDocument = sendMessage(requestDocument, SoapAction.RECEIVE);
-			String stdout = handleStream(responseDocument, ResponseExtractor.STDOUT);
-			BufferedReader stdoutReader = new BufferedReader(new StringReader(stdout));
-			try {
-				for(;;) {
-					String line = stdoutReader.readLine();
-					if(line == null) {
-						break;
-					}
-					handler.handleOutputLine(line);
-				}
-			} catch(IOException exc) {
-				throw new RuntimeIOException("Unexpected I/O exception while reading stdout", exc);
-			}
-
-			String stderr = handleStream(responseDocument, ResponseExtractor.STDERR);
-			BufferedReader stderrReader = new BufferedReader(new StringReader(stderr));
-			try {
-				for(;;) {
-					String line = stderrReader.readLine();
-					if(line == null) {
-						break;
-					}
-					handler.handleErrorLine(line);
-				}
-			} catch(IOException exc) {
-				throw new RuntimeIOException("Unexpected I/O exception while reading stderr", exc);
-			}
+	/**
+	 * Fetches output of a command. When the connector is a {@link StreamingHttpConnector}, the request is filled in from a template and the response is
+	 * parsed without building a DOM.
+	 */
+	ShellResponse receive(String shellId, String commandId) {
+		logger.debug("receive shellId {} commandId {} ", shellId, commandId);
+		ShellResponse response;
+		if (connector instanceof StreamingHttpConnector) {
+			byte[] request = getTemplates().receive.fill(getUUID(), shellId, commandId);
+			response = ((StreamingHttpConnector) connector).sendMessage(request, SoapAction.RECEIVE, ShellResponse.PARSER);
+		} else {
+			response = ShellResponse.fromDocument(sendMessage(getReceiveRequest(getUUID(), shellId, commandId), SoapAction.RECEIVE));
+		}
 
-			if (chunk == 0) {
-				try {
-					exitCode = getFirstElement(responseDocument, ResponseExtractor.EXIT_CODE);
-					logger.info("exit code {}", exitCode);
-				} catch (Exception e) {
-					logger.debug("not found");
-				}
-			}
-			chunk++;
-
-			/* We may need to get additional output if the stream has not finished.
-										The CommandState will change from Running to Done like so:
-										@example
-
-										 from...
-										 <rsp:CommandState CommandId="..." State="http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Running"/>
-										 to...
-										 <rsp:CommandState CommandId="..." State="http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done">
-											 <rsp:ExitCode>0</rsp:ExitCode>
-										 </rsp:CommandState>
-									 */
-			final List<?> list = ResponseExtractor.STREAM_DONE.getXPath().selectNodes(responseDocument);
-			if (!list.isEmpty()) {
-				exitCode = getFirstElement(responseDocument, ResponseExtractor.EXIT_CODE);
-				logger.info("exit code {}", exitCode);
-				break;
-			}
+		if (response.isTimedOut()) {
+			// No output was produced within the operation timeout, the command is still running
+			logger.debug("receive timed out, command {} is still running", commandId);
+			return new ShellResponse();
+		}
+		if (response.fault != null) {
+			throw new WinRMRuntimeIOException("Cannot receive output of command " + commandId + " in shell " + shellId + ": " + response.fault);
 		}
+		return response;
+	}
 
+	void send(String shellId, String commandId, byte[] data, int length, boolean end) {
+		logger.debug("send shellId {} commandId {} length {}", new Object[] { shellId, commandId, length });
+		byte[] chunk = new byte[length];
+		System.arraycopy(data, 0, chunk, 0, length);
+		String encoded = Base64.encodeBase64String(chunk).trim();
+
+		ShellResponse response;
+		if (connector instanceof StreamingHttpConnector) {
+			Templates templates = getTemplates();
+			byte[] request = (end ? templates.sendEnd : templates.send).fill(getUUID(), shellId, commandId, encoded);
+			response = ((StreamingHttpConnector) connector).sendMessage(request, SoapAction.SEND, ShellResponse.PARSER);
+		} else {
+			response = ShellResponse.fromDocument(sendMessage(getSendRequest(getUUID(), shellId, commandId, encoded, end), SoapAction.SEND));
+		}
 
-		logger.debug("all the command output has been fetched (chunk={})", chunk);
+		if (response.fault != null) {
+			throw new WinRMRuntimeIOException("Cannot send input to command " + commandId + " in shell " + shellId + ": " + response.fault);
+		}
+	}
 
+	private Document getReceiveRequest(String messageId, String shellId, String commandId) {
+		final Element bodyContent = DocumentHelper.createElement(QName.get("Receive", Namespaces.NS_WIN_SHELL));
+		bodyContent.addElement(QName.get("DesiredStream", Namespaces.NS_WIN_SHELL)).addAttribute("CommandId", commandId).addText("stdout stderr");
+		return getRequestDocument(Action.WS_RECEIVE, ResourceURI.RESOURCE_URI_CMD, null, messageId, shellId, bodyContent);
+	}
 
+	private Document getSendRequest(String messageId, String shellId, String commandId, String encoded, boolean end) {
+		final Element bodyContent = DocumentHelper.createElement(QName.get("Send", Namespaces.NS_WIN_SHELL));
+		final Element stream = bodyContent.addElement(QName.get("Stream", Namespaces.NS_WIN_SHELL)).addAttribute("Name", "stdin").addAttribute("CommandId", commandId);
+		if (end) {
+			stream.addAttribute("End", "true");
+		}
+		stream.addText(encoded);
+		return getRequestDocument(Action.WS_SEND, ResourceURI.RESOURCE_URI_CMD, null, messageId, shellId, bodyContent);
 	}
 
-	private String handleStream(Document responseDocument, ResponseExtractor stream) {
-		StringBuffer buffer = new StringBuffer();
-		@SuppressWarnings("unchecked")
-        final List<Element> streams = (List<Element>) stream.getXPath().selectNodes(responseDocument);
-		if (!streams.isEmpty()) {
-			final Base64 base64 = new Base64();
-			Iterator<Element> itStreams = streams.iterator();
-			while (itStreams.hasNext()) {
-				Element e = itStreams.next();
-				//TODO check performance with http://www.iharder.net/current/java/base64/
-				final byte[] decode = base64.decode(e.getText());
-				buffer.append(new String(decode));
-			}
+	private synchronized Templates getTemplates() {
+		if (templates == null) {
+			templates = new Templates();
 		}
-		logger.debug("handleStream {} buffer {}", stream, buffer);
-		return buffer.toString();
+		return templates;
+	}
 
+	private synchronized void resetTemplates() {
+		templates = null;
 	}
 
+	/**
+	 * Templates of the messages that are sent repeatedly while a command runs.
+	 */
+	private class Templates {
+		private static final String MESSAGE_ID = "$MESSAGE_ID$";
+		private static final String SHELL_ID = "$SHELL_ID$";
+		private static final String COMMAND_ID = "$COMMAND_ID$";
+		private static final String STDIN = "$STDIN$";
+
+		final EnvelopeTemplate receive = new EnvelopeTemplate(getReceiveRequest(MESSAGE_ID, SHELL_ID, COMMAND_ID), MESSAGE_ID, SHELL_ID, COMMAND_ID);
+		final EnvelopeTemplate send = new EnvelopeTemplate(getSendRequest(MESSAGE_ID, SHELL_ID, COMMAND_ID, STDIN, false), MESSAGE_ID, SHELL_ID, COMMAND_ID, STDIN);
+		final EnvelopeTemplate sendEnd = new EnvelopeTemplate(getSendRequest(MESSAGE_ID, SHELL_ID, COMMAND_ID, STDIN, true), MESSAGE_ID, SHELL_ID, COMMAND_ID, STDIN);
+	}
 
-	private String runCommand(String command) {
+	private String runCommand(String shellId, String command) {
 		logger.debug("runCommand shellId {} command {}", shellId, command);
 		final Element bodyContent = DocumentHelper.createElement(QName.get("CommandLine", Namespaces.NS_WIN_SHELL));
 
@@ -194,9 +297,32 @@ public class WinRmClient {
 		final Document requestDocument = getRequestDocument(Action.WS_COMMAND, ResourceURI.RESOURCE_URI_CMD, OptionSet.RUN_COMMAND, shellId, bodyContent);
 		Document responseDocument = sendMessage(requestDocument, SoapAction.COMMAND_LINE);
 
+		String fault = ShellResponse.fromDocument(responseDocument).fault;
+		if (fault != null) {
+			String message = "Cannot run command in shell " + shellId + ": " + fault;
+			throw isShellNotFound(fault) ? new ShellNotFoundException(message) : new WinRMRuntimeIOException(message);
+		}
 		return getFirstElement(responseDocument, ResponseExtractor.COMMAND_ID);
 	}
 
+	/**
+	 * Returns whether a fault reports that the shell does not exist (anymore). The host then answers with the <code>InvalidSelectors</code> subcode,
+	 * because the shell id is passed as a selector.
+	 */
+	static boolean isShellNotFound(String fault) {
+		return fault.contains(":InvalidSelectors") || fault.contains("shell was not found");
+	}
+
+	/**
+	 * Thrown when a command cannot be started because its shell does not exist (anymore).
+	 */
+	@SuppressWarnings("serial")
+	private static class ShellNotFoundException extends WinRMRuntimeIOException {
+		ShellNotFoundException(String message) {
+			super(message);
+		}
+	}
+
 
 	private String getFirstElement(Document doc, ResponseExtractor extractor) {
 		@SuppressWarnings("unchecked")
@@ -228,9 +354,13 @@ public class WinRmClient {
 	}
 
 	private Document getRequestDocument(Action action, ResourceURI resourceURI, OptionSet optionSet, String shelId, Element bodyContent) {
+		return getRequestDocument(action, resourceURI, optionSet, getUUID(), shelId, bodyContent);
+	}
+
+	private Document getRequestDocument(Action action, ResourceURI resourceURI, OptionSet optionSet, String messageId, String shelId, Element bodyContent) {
 		Document doc = DocumentHelper.createDocument();
 		final Element envelope = doc.addElement(QName.get("Envelope", Namespaces.NS_SOAP_ENV));
-		envelope.add(getHeader(action, resourceURI, optionSet, shelId));
+		envelope.add(getHeader(action, resourceURI, optionSet, messageId, shelId));
 
 		final Element body = envelope.addElement(QName.get("Body", Namespaces.NS_SOAP_ENV));
 
@@ -241,13 +371,13 @@ public class WinRmClient {
 	}
 
 
-	private Element getHeader(Action action, ResourceURI resourceURI, OptionSet optionSet, String shellId) {
+	private Element getHeader(Action action, ResourceURI resourceURI, OptionSet optionSet, String messageId, String shellId) {
 		final Element header = DocumentHelper.createElement(QName.get("Header", Namespaces.NS_SOAP_ENV));
 		header.addElement(QName.get("To", Namespaces.NS_ADDRESSING)).addText(targetURL.toString());
 		final Element replyTo = header.addElement(QName.get("ReplyTo", Namespaces.NS_ADDRESSING));
 		replyTo.addElement(QName.get("Address", Namespaces.NS_ADDRESSING)).addAttribute("mustUnderstand", "true").addText("http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous");
 		header.addElement(QName.get("MaxEnvelopeSize", Namespaces.NS_WSMAN_DMTF)).addAttribute("mustUnderstand", "true").addText("" + envelopSize);
-		header.addElement(QName.get("MessageID", Namespaces.NS_ADDRESSING)).addText(getUUID());
+		header.addElement(QName.get("MessageID", Namespaces.NS_ADDRESSING)).addText(messageId);
 		header.addElement(QName.get("Locale", Namespaces.NS_WSMAN_DMTF)).addAttribute("mustUnderstand", "false").addAttribute("xml:lang", locale);
 		header.addElement(QName.get("DataLocale", Namespaces.NS_WSMAN_MSFT)).addAttribute("mustUnderstand", "false").addAttribute("xml:lang", locale);
 		header.addElement(QName.get("OperationTimeout", Namespaces.NS_WSMAN_DMTF)).addText(timeout);
@@ -280,8 +410,11 @@ public class WinRmClient {
 		return "uuid:" + java.util.UUID.randomUUID().toString().toUpperCase();
 	}
 
+	/**
+	 * Returns the exit code of the last command that completed.
+	 */
 	public int getExitCode() {
-		return Integer.parseInt(exitCode);
+		return exitCode;
 	}
 
 	public String getTimeout() {
@@ -290,6 +423,7 @@ public class WinRmClient {
 
 	public void setTimeout(String timeout) {
 		this.timeout = timeout;
+		resetTemplates();
 	}
 
 	public int getEnvelopSize() {
@@ -298,6 +432,7 @@ public class WinRmClient {
 
 	public void setEnvelopSize(int envelopSize) {
 		this.envelopSize = envelopSize;
+		resetTemplates();
 	}
 
 	public String getLocale() {
@@ -306,12 +441,31 @@ public class WinRmClient {
 
 	public void setLocale(String locale) {
 		this.locale = locale;
+		resetTemplates();
+	}
+
+	public int getMaxCommandsPerShell() {
+		return maxCommandsPerShell;
+	}
+
+	public void setMaxCommandsPerShell(int maxCommandsPerShell) {
+		checkArgument(maxCommandsPerShell > 0, "Maximum number of commands per shell must be positive");
+		this.maxCommandsPerShell = maxCommandsPerShell;
 	}
 
 	public URL getTargetURL() {
 		return targetURL;
 	}
 
+	static class Shell {
+		final String id;
+		int commandsRun;
+
+		private Shell(String id) {
+			this.id = id;
+		}
+	}
+
 	private static Logger logger = LoggerFactory.getLogger(WinRmClient.class);
 
 
@@ -0,0 +1,391 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.util.ChunkedInputStream;
+import com.xebialabs.overthere.util.ChunkedOutputStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * A file on a Windows host that is accessed by running PowerShell scripts over WinRM, for hosts that cannot be reached over CIFS/SMB. Every operation
+ * is one command. Contents are moved as raw bytes through the stdin and stdout of the commands in chunks of {@link #CHUNK_SIZE}, with several chunks
+ * being transferred at the same time in different shells.
+ */
+class WinRmFile extends BaseOverthereFile<CifsWinRmConnection> {
+
+	/**
+	 * Number of bytes transferred by one command.
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+
+	static final String STAT_SCRIPT = "if ([IO.Directory]::Exists($path)) { $i = New-Object IO.DirectoryInfo $path; $type = 'directory'; $length = 0 }"
+	        + " elseif ([IO.File]::Exists($path)) { $i = New-Object IO.FileInfo $path; $type = 'file'; $length = $i.Length }"
+	        + " else { 'none'; exit 0 };"
+	        + " '{0} {1} {2} {3}' -f $type, $length, [long](($i.LastWriteTimeUtc.Ticks - 621355968000000000) / 10000), [int]$i.Attributes";
+
+	static final String LIST_SCRIPT = "$w = New-Object IO.StreamWriter([Console]::OpenStandardOutput(), (New-Object Text.UTF8Encoding $false));"
+	        + " foreach ($i in (New-Object IO.DirectoryInfo $path).GetFileSystemInfos()) { $w.WriteLine($i.Name) }; $w.Flush()";
+
+	static final String MKDIR_SCRIPT = "if ([IO.Directory]::Exists($path) -or [IO.File]::Exists($path)) { throw 'it already exists' };"
+	        + " if (-not [IO.Directory]::Exists([IO.Path]::GetDirectoryName($path))) { throw 'its parent directory does not exist' };"
+	        + " [void][IO.Directory]::CreateDirectory($path)";
+
+	static final String MKDIRS_SCRIPT = "[void][IO.Directory]::CreateDirectory($path)";
+
+	static final String DELETE_SCRIPT = "if ([IO.Directory]::Exists($path)) { [IO.Directory]::Delete($path, $recursive) }"
+	        + " elseif ([IO.File]::Exists($path)) { [IO.File]::Delete($path) } else { throw 'it does not exist' }";
+
+	static final String RENAME_SCRIPT = "if ([IO.Directory]::Exists($path)) { [IO.Directory]::Move($path, $target) } else { [IO.File]::Move($path, $target) }";
+
+	static final String CREATE_SCRIPT = "$f = [IO.File]::Open($path, 'Create', 'Write', 'ReadWrite'); $f.Close()";
+
+	static final String WRITE_CHUNK_SCRIPT = "$f = [IO.File]::Open($path, 'Open', 'Write', 'ReadWrite');"
+	        + " try { $f.Position = $offset; $in = [Console]::OpenStandardInput(); $buf = New-Object byte[] 65536;"
+	        + " $written = 0; while (($n = $in.Read($buf, 0, $buf.Length)) -gt 0) { $f.Write($buf, 0, $n); $written += $n };"
+	        + " if ($written -ne $length) { throw ('got {0} of {1} bytes on stdin' -f $written, $length) } } finally { $f.Close() }";
+
+	static final String READ_CHUNK_SCRIPT = "$f = [IO.File]::Open($path, 'Open', 'Read', 'ReadWrite');"
+	        + " try { $f.Position = $offset; $out = [Console]::OpenStandardOutput(); $buf = New-Object byte[] 65536; $remaining = $length;"
+	        + " while ($remaining -gt 0) { $n = $f.Read($buf, 0, [Math]::Min($buf.Length, $remaining)); if ($n -le 0) { break };"
+	        + " $out.Write($buf, 0, $n); $remaining -= $n }; $out.Flush() } finally { $f.Close() }";
+
+	private static final int ATTRIBUTE_READ_ONLY = 0x1;
+
+	private static final int ATTRIBUTE_HIDDEN = 0x2;
+
+	private final String path;
+
+	WinRmFile(CifsWinRmConnection connection, String path) {
+		super(connection);
+		this.path = normalize(path);
+	}
+
+	private static String normalize(String path) {
+		String normalized = path.replace('/', '\\');
+		while (normalized.length() > 3 && normalized.endsWith("\\")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		return normalized;
+	}
+
+	@Override
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String getName() {
+		return path.substring(path.lastIndexOf('\\') + 1);
+	}
+
+	@Override
+	public OverthereFile getParentFile() {
+		int lastSeparator = path.lastIndexOf('\\');
+		if (lastSeparator < 0 || lastSeparator == path.length() - 1) {
+			return null;
+		}
+		return new WinRmFile(connection, lastSeparator == 2 ? path.substring(0, 3) : path.substring(0, lastSeparator));
+	}
+
+	@Override
+	public boolean exists() {
+		return stat().exists;
+	}
+
+	@Override
+	public boolean canRead() {
+		return stat().exists;
+	}
+
+	@Override
+	public boolean canWrite() {
+		Stat stat = stat();
+		return stat.exists && (stat.attributes & ATTRIBUTE_READ_ONLY) == 0;
+	}
+
+	@Override
+	public boolean canExecute() {
+		return stat().exists;
+	}
+
+	@Override
+	public boolean isFile() {
+		Stat stat = stat();
+		return stat.exists && !stat.directory;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return stat().directory;
+	}
+
+	@Override
+	public boolean isHidden() {
+		return (stat().attributes & ATTRIBUTE_HIDDEN) != 0;
+	}
+
+	@Override
+	public long lastModified() {
+		return stat().lastModified;
+	}
+
+	@Override
+	public long length() {
+		return stat().length;
+	}
+
+	private Stat stat() {
+		String output = run("determine the attributes of", STAT_SCRIPT).trim();
+		Stat stat = new Stat();
+		if (!output.equals("none")) {
+			String[] fields = output.split(" ");
+			stat.exists = true;
+			stat.directory = fields[0].equals("directory");
+			stat.length = Long.parseLong(fields[1]);
+			stat.lastModified = Long.parseLong(fields[2]);
+			stat.attributes = Integer.parseInt(fields[3]);
+		}
+		return stat;
+	}
+
+	@Override
+	public List<OverthereFile> listFiles() {
+		List<OverthereFile> files = newArrayList();
+		for (String name : run("list directory", LIST_SCRIPT).split("\r?\n")) {
+			if (name.length() > 0) {
+				files.add(getFile(name));
+			}
+		}
+		return files;
+	}
+
+	@Override
+	public void mkdir() {
+		run("create directory", MKDIR_SCRIPT);
+	}
+
+	@Override
+	public void mkdirs() {
+		run("create directories", MKDIRS_SCRIPT);
+	}
+
+	@Override
+	public void renameTo(OverthereFile dest) {
+		if (!(dest instanceof WinRmFile) || dest.getConnection() != connection) {
+			throw new RuntimeIOException("Cannot move/rename " + this + " to " + dest + " because it is not on the same connection");
+		}
+		run("move/rename", RENAME_SCRIPT, "target", dest.getPath());
+	}
+
+	@Override
+	public void setExecutable(boolean executable) {
+		// the execute permission does not exist on Windows
+	}
+
+	@Override
+	public void delete() {
+		if (isDirectory() && !listFiles().isEmpty()) {
+			throw new RuntimeIOException("Cannot delete non-empty directory " + this);
+		}
+		run("delete", DELETE_SCRIPT, "recursive", false);
+	}
+
+	@Override
+	public void deleteRecursively() {
+		run("delete", DELETE_SCRIPT, "recursive", true);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		Stat stat = stat();
+		if (!stat.exists || stat.directory) {
+			throw new RuntimeIOException("Cannot open " + this + " for reading because it is not a file");
+		}
+		return new ChunkedInputStream(this, stat.length, CHUNK_SIZE, connection.getFileTransferShells()) {
+			@Override
+			protected byte[] readChunk(long offset, int length) {
+				return WinRmFile.this.readChunk(offset, length);
+			}
+		};
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		run("open for writing", CREATE_SCRIPT);
+		return new ChunkedOutputStream(this, CHUNK_SIZE, connection.getFileTransferShells()) {
+			@Override
+			protected void writeChunk(long offset, byte[] chunk, int length) {
+				WinRmFile.this.writeChunk(offset, chunk, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				long length = WinRmFile.this.length();
+				if (length != getCount()) {
+					throw new IOException("Cannot write " + WinRmFile.this + ": its length is " + length + " after writing " + getCount() + " bytes");
+				}
+			}
+		};
+	}
+
+	private byte[] readChunk(long offset, int length) {
+		OverthereProcess process = start(READ_CHUNK_SCRIPT, "offset", offset, "length", length);
+		try {
+			byte[] chunk = ByteStreams.toByteArray(process.getStdout());
+			complete(process, "read", chunk);
+			if (chunk.length != length) {
+				throw new RuntimeIOException("Cannot read " + length + " bytes at offset " + offset + " of " + this + ": got " + chunk.length + " bytes");
+			}
+			return chunk;
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot read " + this, exc);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	private void writeChunk(long offset, byte[] chunk, int length) {
+		OverthereProcess process = startReadingStdin(WRITE_CHUNK_SCRIPT, "offset", offset, "length", length);
+		try {
+			OutputStream stdin = process.getStdin();
+			stdin.write(chunk, 0, length);
+			stdin.close();
+			complete(process, "write", ByteStreams.toByteArray(process.getStdout()));
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot write " + this, exc);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Runs a script and returns its stdout.
+	 */
+	private String run(String operation, String body, Object... parameters) {
+		OverthereProcess process = start(body, parameters);
+		try {
+			byte[] stdout = ByteStreams.toByteArray(process.getStdout());
+			complete(process, operation, stdout);
+			return new String(stdout, Charsets.UTF_8);
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot " + operation + " " + this, exc);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Starts a script that does not read stdin. Its stdin is closed straight away, because powershell does not run a script before the stdin it was given
+	 * has ended.
+	 */
+	private OverthereProcess start(String body, Object... parameters) {
+		OverthereProcess process = startReadingStdin(body, parameters);
+		try {
+			process.getStdin().close();
+		} catch (IOException exc) {
+			process.destroy();
+			throw new RuntimeIOException("Cannot close stdin of script for " + this, exc);
+		}
+		return process;
+	}
+
+	private OverthereProcess startReadingStdin(String body, Object... parameters) {
+		return connection.startPowerShell(script(path, body, parameters));
+	}
+
+	private void complete(OverthereProcess process, String operation, byte[] stdout) throws IOException {
+		String stderr = new String(ByteStreams.toByteArray(process.getStderr()), Charsets.UTF_8).trim();
+		int exitCode;
+		try {
+			exitCode = process.waitFor();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Cannot " + operation + " " + this + ": interrupted", exc);
+		}
+		if (exitCode != 0) {
+			throw new RuntimeIOException("Cannot " + operation + " " + this + ": " + (stderr.length() > 0 ? stderr : "exit code " + exitCode));
+		}
+	}
+
+	/**
+	 * Builds a script that sets <code>$path</code> and the given parameters, and runs the body. An exception thrown by the body is written to stderr and
+	 * makes the script exit with code 1.
+	 */
+	static String script(String path, String body, Object... parameters) {
+		StringBuilder script = new StringBuilder("$ErrorActionPreference = 'Stop'; ");
+		appendParameter(script, "path", path);
+		for (int i = 0; i < parameters.length; i += 2) {
+			appendParameter(script, (String) parameters[i], parameters[i + 1]);
+		}
+		script.append("try { ").append(body).append(" } catch { [Console]::Error.WriteLine($_.Exception.Message); exit 1 }");
+		return script.toString();
+	}
+
+	private static void appendParameter(StringBuilder script, String name, Object value) {
+		script.append('$').append(name).append(" = ");
+		if (value instanceof Boolean) {
+			script.append((Boolean) value ? "$true" : "$false");
+		} else if (value instanceof Number) {
+			script.append(value);
+		} else {
+			script.append('\'').append(value.toString().replace("'", "''")).append('\'');
+		}
+		script.append("; ");
+	}
+
+	private static class Stat {
+		boolean exists;
+		boolean directory;
+		long length;
+		long lastModified;
+		int attributes;
+	}
+
+	@Override
+	public boolean equals(Object that) {
+		if (!(that instanceof WinRmFile)) {
+			return false;
+		}
+
+		return path.equalsIgnoreCase(((WinRmFile) that).path);
+	}
+
+	@Override
+	public int hashCode() {
+		return path.toLowerCase().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return getConnection() + "/" + path;
+	}
+
+}
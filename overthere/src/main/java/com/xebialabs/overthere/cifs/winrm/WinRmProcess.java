@@ -0,0 +1,307 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * A command running in a WinRM shell. Its output is fetched with a <code>Receive</code> request whenever a reader finds its stream empty, so at most one
+ * response is buffered per stream while the streams are being read. Data written to stdin is forwarded with <code>Send</code> requests. When the command
+ * is done, it is terminated and its shell is handed back to the {@link WinRmClient}.
+ */
+class WinRmProcess implements OverthereProcess {
+
+	/**
+	 * Number of bytes of unread output above which {@link #waitFor()} stops fetching output and waits for the streams to be read instead.
+	 */
+	static final int MAX_BUFFERED_OUTPUT = 256 * 1024;
+
+	private final WinRmClient client;
+
+	private final WinRmClient.Shell shell;
+
+	private final String commandId;
+
+	private final ReceivedStream stdout = new ReceivedStream();
+
+	private final ReceivedStream stderr = new ReceivedStream();
+
+	private final StdinStream stdin;
+
+	private boolean receiving;
+
+	private boolean done;
+
+	private int exitCode = -1;
+
+	private RuntimeException failure;
+
+	WinRmProcess(WinRmClient client, WinRmClient.Shell shell, String commandId) {
+		this.client = client;
+		this.shell = shell;
+		this.commandId = commandId;
+		this.stdin = new StdinStream(Math.max(1024, (client.getEnvelopSize() - 4096) / 4 * 3));
+	}
+
+	@Override
+	public OutputStream getStdin() {
+		return stdin;
+	}
+
+	@Override
+	public InputStream getStdout() {
+		return stdout;
+	}
+
+	@Override
+	public InputStream getStderr() {
+		return stderr;
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException {
+		for (;;) {
+			synchronized (this) {
+				if (done) {
+					if (failure != null) {
+						throw new RuntimeIOException("Cannot fetch output of command " + commandId + " in shell " + shell.id, failure);
+					}
+					return exitCode;
+				}
+				if (receiving || stdout.available + stderr.available > MAX_BUFFERED_OUTPUT) {
+					wait();
+					continue;
+				}
+			}
+			receive(null);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+			notifyAll();
+		}
+		logger.debug("Destroying command {} in shell {}", commandId, shell.id);
+		client.releaseShell(shell, commandId, false);
+	}
+
+	/**
+	 * Sends one <code>Receive</code> request unless another thread is already doing so, in which case this method waits for that request to complete.
+	 * Returns without sending a request when <code>reader</code> already has data to read.
+	 */
+	private void receive(ReceivedStream reader) throws InterruptedException {
+		synchronized (this) {
+			if (done || (reader != null && reader.available > 0)) {
+				return;
+			}
+			if (receiving) {
+				wait();
+				return;
+			}
+			receiving = true;
+		}
+
+		boolean completed = false;
+		boolean failed = false;
+		try {
+			ShellResponse response = client.receive(shell.id, commandId);
+			synchronized (this) {
+				if (!done) {
+					stdout.append(response.stdout);
+					stderr.append(response.stderr);
+					if (response.done) {
+						exitCode = Integer.parseInt(response.exitCode);
+						logger.debug("Command {} in shell {} returned {}", new Object[] { commandId, shell.id, exitCode });
+						done = completed = true;
+					}
+				}
+			}
+		} catch (RuntimeException exc) {
+			synchronized (this) {
+				if (!done) {
+					failure = exc;
+					done = failed = true;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				receiving = false;
+				notifyAll();
+			}
+		}
+
+		if (completed || failed) {
+			client.releaseShell(shell, commandId, completed);
+		}
+	}
+
+	private class ReceivedStream extends InputStream {
+
+		private final List<byte[]> chunks = new LinkedList<byte[]>();
+
+		private int position;
+
+		private int available;
+
+		private void append(List<byte[]> received) {
+			for (byte[] chunk : received) {
+				chunks.add(chunk);
+				available += chunk.length;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			for (;;) {
+				synchronized (WinRmProcess.this) {
+					if (available > 0) {
+						byte[] chunk = chunks.get(0);
+						int n = Math.min(len, chunk.length - position);
+						System.arraycopy(chunk, position, b, off, n);
+						position += n;
+						available -= n;
+						if (position == chunk.length) {
+							chunks.remove(0);
+							position = 0;
+						}
+						WinRmProcess.this.notifyAll();
+						return n;
+					}
+					if (done) {
+						if (failure != null) {
+							throw new IOException("Cannot fetch output of command " + commandId + " in shell " + shell.id, failure);
+						}
+						return -1;
+					}
+				}
+				try {
+					receive(this);
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while fetching output of command " + commandId + " in shell " + shell.id);
+				}
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (WinRmProcess.this) {
+				return available;
+			}
+		}
+	}
+
+	private class StdinStream extends OutputStream {
+
+		private final byte[] buffer;
+
+		private int count;
+
+		private boolean closed;
+
+		private StdinStream(int bufferSize) {
+			buffer = new byte[bufferSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			while (len > 0) {
+				if (count == buffer.length) {
+					send(false);
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+			if (count > 0) {
+				send(false);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			synchronized (WinRmProcess.this) {
+				if (done) {
+					return;
+				}
+			}
+			send(true);
+		}
+
+		private void checkOpen() throws IOException {
+			if (closed) {
+				throw new IOException("Cannot write to stdin of command " + commandId + " in shell " + shell.id + " because it has been closed");
+			}
+		}
+
+		private void send(boolean end) throws IOException {
+			try {
+				client.send(shell.id, commandId, buffer, count, end);
+				count = 0;
+			} catch (RuntimeException exc) {
+				throw new IOException("Cannot write to stdin of command " + commandId + " in shell " + shell.id, exc);
+			}
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(WinRmProcess.class);
+
+}
@@ -0,0 +1,168 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.util.EntityUtils;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.cifs.winrm.StreamingHttpConnector;
+import com.xebialabs.overthere.cifs.winrm.SoapAction;
+import com.xebialabs.overthere.cifs.winrm.TokenGenerator;
+import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
+
+/**
+ * HTTP connector that sends the messages over a pool of persistent connections managed by Apache HttpClient. Requests are serialized without
+ * indentation straight to bytes and responses are parsed as they are read from the connection. All HTTPS connections share one SSL context, so TLS
+ * sessions are resumed when a new connection has to be opened.
+ */
+public class ApacheHttpConnector implements StreamingHttpConnector, Closeable {
+
+	/**
+	 * Maximum number of connections kept open to the host.
+	 */
+	public static final int MAX_CONNECTIONS = 16;
+
+	private final URL targetURL;
+
+	private final TokenGenerator tokenGenerator;
+
+	private final DefaultHttpClient client;
+
+	public ApacheHttpConnector(URL targetURL, TokenGenerator tokenGenerator) {
+		this.targetURL = targetURL;
+		this.tokenGenerator = tokenGenerator;
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+		schemeRegistry.register(new Scheme("https", 443, createSSLSocketFactory()));
+		ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(schemeRegistry);
+		connectionManager.setMaxTotal(MAX_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+		this.client = new DefaultHttpClient(connectionManager);
+	}
+
+	/**
+	 * Creates the socket factory used for HTTPS connections. This implementation verifies the certificate and the host name of the host.
+	 */
+	protected SSLSocketFactory createSSLSocketFactory() {
+		return SSLSocketFactory.getSocketFactory();
+	}
+
+	@Override
+	public Document sendMessage(Document requestDocument, SoapAction soapAction) {
+		byte[] requestMessage;
+		try {
+			requestMessage = toBytes(requestDocument);
+		} catch (IOException exc) {
+			throw new WinRMRuntimeIOException("Cannot serialize message for " + targetURL, requestDocument, null, exc);
+		}
+		return sendMessage(requestMessage, soapAction, DOCUMENT_PARSER);
+	}
+
+	@Override
+	public <T> T sendMessage(byte[] requestMessage, SoapAction soapAction, ResponseParser<T> responseParser) {
+		HttpPost post = new HttpPost(targetURL.toString());
+		try {
+			ByteArrayEntity requestEntity = new ByteArrayEntity(requestMessage);
+			requestEntity.setContentType("application/soap+xml; charset=UTF-8");
+			post.setEntity(requestEntity);
+
+			final String authToken = tokenGenerator.generateToken();
+			if (authToken != null) {
+				post.addHeader("Authorization", authToken);
+			}
+			if (soapAction != null) {
+				post.addHeader("SOAPAction", soapAction.getValue());
+			}
+
+			logger.trace("Sending request to {}", targetURL);
+			HttpResponse response = client.execute(post);
+			HttpEntity responseEntity = response.getEntity();
+			if (responseEntity == null) {
+				throw new WinRMRuntimeIOException("Send message on " + targetURL + " error: " + response.getStatusLine());
+			}
+
+			InputStream is = responseEntity.getContent();
+			try {
+				T parsed = responseParser.parse(is);
+				logger.trace("Response {} from {}", response.getStatusLine(), targetURL);
+				return parsed;
+			} finally {
+				// consuming the rest of the entity releases the connection back to the pool
+				EntityUtils.consume(responseEntity);
+			}
+		} catch (WinRMRuntimeIOException exc) {
+			post.abort();
+			throw exc;
+		} catch (Exception exc) {
+			post.abort();
+			throw new WinRMRuntimeIOException("Send message on " + targetURL + " error ", exc);
+		}
+	}
+
+	private static final ResponseParser<Document> DOCUMENT_PARSER = new ResponseParser<Document>() {
+		@Override
+		public Document parse(InputStream responseBody) throws IOException {
+			try {
+				return new SAXReader().read(responseBody);
+			} catch (DocumentException exc) {
+				throw new IOException("Cannot parse response", exc);
+			}
+		}
+	};
+
+	private static byte[] toBytes(Document doc) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XMLWriter xmlWriter = new XMLWriter(bytes, new OutputFormat());
+		xmlWriter.write(doc);
+		xmlWriter.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Closes all connections to the host.
+	 */
+	@Override
+	public void close() {
+		client.getConnectionManager().shutdown();
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(ApacheHttpConnector.class);
+}
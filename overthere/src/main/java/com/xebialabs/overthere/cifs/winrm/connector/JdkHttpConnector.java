@@ -18,7 +18,7 @@
 package com.xebialabs.overthere.cifs.winrm.connector;
 
 import com.google.common.io.Closeables;
-import com.xebialabs.overthere.cifs.winrm.HttpConnector;
+import com.xebialabs.overthere.cifs.winrm.StreamingHttpConnector;
 import com.xebialabs.overthere.cifs.winrm.SoapAction;
 import com.xebialabs.overthere.cifs.winrm.TokenGenerator;
 import com.xebialabs.overthere.cifs.winrm.exception.BlankValueRuntimeException;
@@ -38,7 +38,7 @@ import java.net.URLConnection;
 
 /**
  */
-public class JdkHttpConnector implements HttpConnector {
+public class JdkHttpConnector implements StreamingHttpConnector {
 
 	private final URL targetURL;
 
@@ -52,21 +52,7 @@ public class JdkHttpConnector implements HttpConnector {
 	@Override
 	public Document sendMessage(Document requestDocument, SoapAction soapAction) {
 		try {
-			final URLConnection urlConnection = targetURL.openConnection();
-			HttpURLConnection con = (HttpURLConnection) urlConnection;
-
-			con.setDoInput(true);
-			con.setDoOutput(true);
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/soap+xml; charset=UTF-8");
-
-			final String authToken = tokenGenerator.generateToken();
-			if (authToken != null)
-				con.addRequestProperty("Authorization", authToken);
-
-			if (soapAction != null) {
-				con.setRequestProperty("SOAPAction", soapAction.getValue());
-			}
+			HttpURLConnection con = openConnection(soapAction);
 
 			final String requestDocAsString = toString(requestDocument);
 			logger.trace("Sending request to {}", targetURL);
@@ -80,14 +66,7 @@ public class JdkHttpConnector implements HttpConnector {
                 Closeables.closeQuietly(bw);
             }
 
-			InputStream is = null;
-			if (con.getResponseCode() >= 400) {
-			    is = con.getErrorStream();
-			}
-			if(is == null) {
-			    is = con.getInputStream();
-			}
-			
+			InputStream is = getResponseStream(con);
 			Writer writer = new StringWriter();
             Reader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
 			try {
@@ -120,6 +99,60 @@ public class JdkHttpConnector implements HttpConnector {
 		}
 	}
 
+	@Override
+	public <T> T sendMessage(byte[] requestMessage, SoapAction soapAction, ResponseParser<T> responseParser) {
+		try {
+			HttpURLConnection con = openConnection(soapAction);
+			con.setFixedLengthStreamingMode(requestMessage.length);
+
+			logger.trace("Sending request to {}", targetURL);
+			OutputStream os = con.getOutputStream();
+			try {
+				os.write(requestMessage);
+			} finally {
+				Closeables.closeQuietly(os);
+			}
+
+			InputStream is = getResponseStream(con);
+			try {
+				return responseParser.parse(new BufferedInputStream(is));
+			} finally {
+				Closeables.closeQuietly(is);
+			}
+		} catch (Exception e) {
+			throw new WinRMRuntimeIOException("Send message on " + targetURL + " error ", e);
+		}
+	}
+
+	private HttpURLConnection openConnection(SoapAction soapAction) throws IOException {
+		final URLConnection urlConnection = targetURL.openConnection();
+		HttpURLConnection con = (HttpURLConnection) urlConnection;
+
+		con.setDoInput(true);
+		con.setDoOutput(true);
+		con.setRequestMethod("POST");
+		con.setRequestProperty("Content-Type", "application/soap+xml; charset=UTF-8");
+
+		final String authToken = tokenGenerator.generateToken();
+		if (authToken != null)
+			con.addRequestProperty("Authorization", authToken);
+
+		if (soapAction != null) {
+			con.setRequestProperty("SOAPAction", soapAction.getValue());
+		}
+		return con;
+	}
+
+	private static InputStream getResponseStream(HttpURLConnection con) throws IOException {
+		InputStream is = null;
+		if (con.getResponseCode() >= 400) {
+		    is = con.getErrorStream();
+		}
+		if(is == null) {
+		    is = con.getInputStream();
+		}
+		return is;
+	}
 
 	private String toString(Document doc) {
 		StringWriter stringWriter = new StringWriter();
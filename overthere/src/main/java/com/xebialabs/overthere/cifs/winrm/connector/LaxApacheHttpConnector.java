@@ -0,0 +1,52 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm.connector;
+
+import java.net.URL;
+import java.security.SecureRandom;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+import com.xebialabs.overthere.cifs.winrm.TokenGenerator;
+import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
+
+/**
+ * Lax HTTPS connector that accepts any certificate and host name. Unlike {@link LaxJdkHttpConnector}, this only affects the connections of this
+ * connector.
+ */
+public class LaxApacheHttpConnector extends ApacheHttpConnector {
+
+	public LaxApacheHttpConnector(URL targetURL, TokenGenerator tokenGenerator) {
+		super(targetURL, tokenGenerator);
+	}
+
+	@Override
+	protected SSLSocketFactory createSSLSocketFactory() {
+		try {
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, new TrustManager[] { new LaxTrustManager() }, new SecureRandom());
+			return new SSLSocketFactory(sslContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+		} catch (Exception exc) {
+			throw new WinRMRuntimeIOException("Cannot set up lax SSL context", exc);
+		}
+	}
+
+}
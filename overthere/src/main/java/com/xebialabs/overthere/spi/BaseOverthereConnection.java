@@ -17,21 +17,30 @@
 
 package com.xebialabs.overthere.spi;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.xebialabs.overthere.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.io.Closeables.closeQuietly;
 import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
 import static com.xebialabs.overthere.util.OverthereUtils.getBaseName;
 import static com.xebialabs.overthere.util.OverthereUtils.getExtension;
 
@@ -104,6 +113,16 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
 	 */
 	protected abstract void doClose();
 
+	/**
+	 * Checks whether this connection is still usable. Used, for instance, by the {@link OverthereConnectionPool} to validate a connection before handing it
+	 * out again. Connection implementations that hold on to a network connection should override this method.
+	 * 
+	 * @return <code>true</code> if the connection is still usable, <code>false</code> otherwise.
+	 */
+	public boolean isConnected() {
+		return true;
+	}
+
 	/**
 	 * Creates a reference to a temporary file on the host. This file has a unique name and will be automatically removed when this connection is closed.
 	 * <b>N.B.:</b> The file is not actually created until a put method is invoked.
@@ -253,104 +272,125 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
 	 */
 	@Override
 	public int execute(final OverthereProcessOutputHandler handler, final CmdLine commandLine) {
-		final OverthereProcess process = startProcess(commandLine);
-		Thread stdoutReaderThread = null;
-		Thread stderrReaderThread = null;
-		final CountDownLatch latch = new CountDownLatch(2);
-		try {
-			stdoutReaderThread = new Thread("Stdout reader thread for command " + commandLine + " on " + this) {
-				public void run() {
-					StringBuilder lineBuffer = new StringBuilder();
-					InputStreamReader stdoutReader = new InputStreamReader(process.getStdout());
-					latch.countDown();
-					try {
-						int cInt = stdoutReader.read();
-						while (cInt > -1) {
-							char c = (char) cInt;
-							handler.handleOutput(c);
-							if (c != '\r' && c != '\n') {
-								lineBuffer.append(c);
-							}
-							if (c == '\n') {
-								handler.handleOutputLine(lineBuffer.toString());
-								lineBuffer.setLength(0);
-							}
-							cInt = stdoutReader.read();
-						}
-					} catch (Exception exc) {
-						logger.error("An exception occured while reading from stdout", exc);
-					} finally {
-						closeQuietly(stdoutReader);
-						if(lineBuffer.length() > 0) {
-							handler.handleOutputLine(lineBuffer.toString());
-						}
-					}
-				}
-			};
-			stdoutReaderThread.start();
-
-			stderrReaderThread = new Thread("Stderr reader thread for command " + commandLine + " on " + this) {
-				public void run() {
-					StringBuilder lineBuffer = new StringBuilder();
-					InputStreamReader stderrReader = new InputStreamReader(process.getStderr());
-					latch.countDown();
-					try {
-						int readInt = stderrReader.read();
-						while (readInt > -1) {
-							char c = (char) readInt;
-							if (c != '\r' && c != '\n') {
-								lineBuffer.append(c);
-							}
-							if (c == '\n') {
-								handler.handleErrorLine(lineBuffer.toString());
-								lineBuffer.setLength(0);
-							}
-							readInt = stderrReader.read();
-						}
-					} catch (Exception exc) {
-						logger.error("An exception occured while reading from stderr", exc);
-					} finally {
-						closeQuietly(stderrReader);
-						if(lineBuffer.length() > 0) {
-							handler.handleErrorLine(lineBuffer.toString());
-						}
-					}
-				}
-			};
-			stderrReaderThread.start();
+		return waitFor(startProcess(commandLine), handler);
+	}
 
-			try {
-				latch.await();
-				return process.waitFor();
-			} catch (InterruptedException exc) {
-				Thread.currentThread().interrupt();
-
-				logger.info("Execution interrupted, destroying the process.");
-				process.destroy();
-				
-				throw new RuntimeIOException("Execution interrupted", exc);
-			}
+	/**
+	 * Sends the output of a started process to a handler and waits for the process to complete. Destroys the process when the current thread is interrupted.
+	 * 
+	 * @param process
+	 *            the process.
+	 * @param handler
+	 *            the handler that will be invoked when the process generated output.
+	 * @return the exit value of the process.
+	 */
+	protected final int waitFor(final OverthereProcess process, final OverthereProcessOutputHandler handler) {
+		Future<?> stdoutPump = null;
+		Future<?> stderrPump = null;
+		try {
+			ExecutorService executor = getSharedExecutor();
+			stdoutPump = executor.submit(stdoutPump(process.getStdout(), handler));
+			stderrPump = executor.submit(stderrPump(process.getStderr(), handler));
+
+			int exitValue = process.waitFor();
+			stdoutPump.get();
+			stderrPump.get();
+			return exitValue;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+
+			logger.info("Execution interrupted, destroying the process.");
+			process.destroy();
+
+			throw new RuntimeIOException("Execution interrupted", exc);
+		} catch (ExecutionException exc) {
+			throw new RuntimeIOException("Cannot read output of command on " + this, exc.getCause());
 		} finally {
-			if (stdoutReaderThread != null) {
-				try {
-					// interrupt the stdout reader thread in case it is stuck waiting for output that will never come
-					stdoutReaderThread.interrupt();
-					stdoutReaderThread.join();
-				} catch (InterruptedException ignored) {
-					Thread.currentThread().interrupt();
-				}
+			// cancel the pumps in case they are stuck waiting for output that will never come
+			if (stdoutPump != null) {
+				stdoutPump.cancel(true);
+			}
+			if (stderrPump != null) {
+				stderrPump.cancel(true);
 			}
-			if (stderrReaderThread != null) {
-				try {
-					// interrupt the stdout reader thread in case it is stuck waiting for output that will never come
-					stderrReaderThread.interrupt();
-					stderrReaderThread.join();
-				} catch (InterruptedException ignored) {
-					Thread.currentThread().interrupt();
-				}
+		}
+	}
+
+	/**
+	 * Executes a batch of commands. This implementation executes the commands one by one; connection implementations that can execute all commands in one
+	 * round trip override this method.
+	 * 
+	 * @param handlers
+	 *            the handlers that will be invoked when the executed commands generated output, one for each command.
+	 * @param commandLines
+	 *            the command lines to execute.
+	 * @param continueOnFailure
+	 *            <code>true</code> to execute all commands, <code>false</code> to stop after the first command that returns a non-zero exit value.
+	 * @return the exit values of the commands that were executed.
+	 */
+	@Override
+	public List<Integer> executeBatch(final List<? extends OverthereProcessOutputHandler> handlers, final List<CmdLine> commandLines,
+	        final boolean continueOnFailure) {
+		checkBatch(handlers, commandLines);
+		List<Integer> exitValues = newArrayList();
+		for (int i = 0; i < commandLines.size(); i++) {
+			int exitValue = execute(handlers.get(i), commandLines.get(i));
+			exitValues.add(exitValue);
+			if (exitValue != 0 && !continueOnFailure) {
+				break;
 			}
 		}
+		return exitValues;
+	}
 
+	protected static void checkBatch(final List<? extends OverthereProcessOutputHandler> handlers, final List<CmdLine> commandLines) {
+		checkArgument(!commandLines.isEmpty(), "Cannot execute an empty batch");
+		checkArgument(handlers.size() == commandLines.size(), "Cannot execute a batch of %s commands with %s handlers", commandLines.size(), handlers.size());
+	}
+
+	/**
+	 * Executes a command with its arguments without waiting for it to complete. If this connection can start a process, the output of the process is pumped
+	 * on the shared thread pool and cancelling the returned future destroys the process. Otherwise {@link #execute(OverthereProcessOutputHandler, CmdLine)}
+	 * is invoked on a thread of the shared thread pool and cancelling the returned future interrupts that thread.
+	 * 
+	 * @param handler
+	 *            the handler that will be invoked when the executed command generated output.
+	 * @param commandLine
+	 *            the command line to execute.
+	 * @return a future of the exit value of the executed command.
+	 */
+	@Override
+	public ListenableFuture<Integer> executeAsync(final OverthereProcessOutputHandler handler, final CmdLine commandLine) {
+		return startExecution(handler, commandLine);
+	}
+
+	/**
+	 * Executes a command with its arguments without waiting for it to complete, aborting it when it has not completed within the given time.
+	 * 
+	 * @param handler
+	 *            the handler that will be invoked when the executed command generated output.
+	 * @param commandLine
+	 *            the command line to execute.
+	 * @param timeout
+	 *            the maximum time the command may take.
+	 * @param unit
+	 *            the unit of <code>timeout</code>.
+	 * @return a future of the exit value of the executed command.
+	 */
+	@Override
+	public ListenableFuture<Integer> executeAsync(final OverthereProcessOutputHandler handler, final CmdLine commandLine, final long timeout, final TimeUnit unit) {
+		checkArgument(timeout > 0, "Cannot execute a command with a timeout of %s", timeout);
+		ExecutionFuture future = startExecution(handler, commandLine);
+		future.setDeadline(timeout, unit, "Command " + commandLine + " on " + this);
+		return future;
+	}
+
+	private ExecutionFuture startExecution(final OverthereProcessOutputHandler handler, final CmdLine commandLine) {
+		if (canStartProcess) {
+			return ExecutionFuture.forProcess(startProcess(commandLine), handler);
+		} else {
+			return ExecutionFuture.forBlockingExecute(this, handler, commandLine);
+		}
 	}
 
 	/**
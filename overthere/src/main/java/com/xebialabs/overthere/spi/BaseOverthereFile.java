@@ -21,7 +21,11 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.util.OverthereFileCopier;
 
+import java.io.OutputStream;
+import java.util.List;
+
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * A file system object (file, directory, etc.) on a remote system that is accessible through an {@link com.xebialabs.overthere.OverthereConnection}.
@@ -48,6 +52,22 @@ public abstract class BaseOverthereFile<C extends BaseOverthereConnection> imple
 		return getConnection().getFile(this, child);
 	}
 
+	/**
+	 * Lists the files recursively by {@link #listFiles() listing} every directory. Subclasses that can list a whole tree in one round trip should override
+	 * this method.
+	 */
+	@Override
+	public List<OverthereFile> listFilesRecursively() throws RuntimeIOException {
+		List<OverthereFile> files = newArrayList();
+		for (OverthereFile each : listFiles()) {
+			files.add(each);
+			if (each.isDirectory()) {
+				files.addAll(each.listFilesRecursively());
+			}
+		}
+		return files;
+	}
+
 	@Override
 	public void deleteRecursively() throws RuntimeIOException {
 		if (isDirectory()) {
@@ -59,11 +79,38 @@ public abstract class BaseOverthereFile<C extends BaseOverthereConnection> imple
 		delete();
 	}
 
+	/**
+	 * Opens an output stream to write contents of which the length is known up front. Subclasses can override this method to send the contents to the host
+	 * while they are written, instead of buffering them first. This implementation invokes {@link #getOutputStream()}.
+	 * 
+	 * @param length
+	 *            the number of bytes that will be written to the stream, or <code>-1</code> if it is not known.
+	 * @return the output stream.
+	 */
+	public OutputStream getOutputStream(long length) throws RuntimeIOException {
+		return getOutputStream();
+	}
+
 	@Override
 	public final void copyTo(final OverthereFile dest) {
 		checkArgument(dest instanceof BaseOverthereFile<?>, "dest is not a subclass of BaseOverthereFile");
 
-		((BaseOverthereFile<?>) dest).copyFrom(this);
+		BaseOverthereFile<?> baseDest = (BaseOverthereFile<?>) dest;
+		if (!copyDirectoryTo(baseDest)) {
+			baseDest.copyFrom(this);
+		}
+	}
+
+	/**
+	 * Copies this file to the destination if it is a directory that this implementation can transfer in bulk more efficiently than the destination can copy
+	 * it with {@link #copyFrom(OverthereFile)}. This implementation does nothing.
+	 * 
+	 * @param dest
+	 *            the destination to copy to.
+	 * @return <code>true</code> if this file was copied, <code>false</code> if the destination has to copy it.
+	 */
+	protected boolean copyDirectoryTo(BaseOverthereFile<?> dest) {
+		return false;
 	}
 
 	protected void copyFrom(OverthereFile source) {
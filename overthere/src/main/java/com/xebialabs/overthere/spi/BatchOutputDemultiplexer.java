@@ -0,0 +1,161 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+
+/**
+ * Splits the output of a batch of commands that has been executed as one script into the output of the separate commands. The script must write a
+ * {@link #getBeginMarker(int) begin marker} line to both stdout and stderr before each command and an {@link #getEndMarker(int) end marker} followed by the
+ * exit value of the command to stdout after each command. The markers contain a random nonce so that they will not be confused with the output of the
+ * commands. Output that does not end with a newline before a marker is sent as a separate line, just like the last line of output of a single command.
+ * <p>
+ * Characters are sent to {@link OverthereProcessOutputHandler#handleOutput(char)} once the line they are in is complete, so that marker lines can be left
+ * out.
+ */
+public class BatchOutputDemultiplexer implements OverthereProcessOutputHandler {
+
+	private static final String BEGIN = "B";
+
+	private static final String END = "E";
+
+	private final List<OverthereProcessOutputHandler> handlers;
+
+	private final String nonce;
+
+	private final Integer[] exitValues;
+
+	private final StringBuilder pendingOutput = new StringBuilder();
+
+	private int pendingStart;
+
+	private volatile int lastStarted = -1;
+
+	private int currentOutputHandler;
+
+	private int currentErrorHandler;
+
+	public BatchOutputDemultiplexer(List<? extends OverthereProcessOutputHandler> handlers) {
+		checkArgument(!handlers.isEmpty(), "Cannot execute an empty batch");
+		this.handlers = Collections.<OverthereProcessOutputHandler> unmodifiableList(handlers);
+		this.nonce = "OVERTHERE-BATCH-" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+		this.exitValues = new Integer[handlers.size()];
+	}
+
+	/**
+	 * Returns the line to write to both stdout and stderr before executing the command with the given index.
+	 */
+	public String getBeginMarker(int index) {
+		return nonce + " " + BEGIN + " " + index;
+	}
+
+	/**
+	 * Returns the line to write to stdout after the command with the given index, followed by a space and the exit value of that command.
+	 */
+	public String getEndMarker(int index) {
+		return nonce + " " + END + " " + index;
+	}
+
+	@Override
+	public void handleOutput(char c) {
+		pendingOutput.append(c);
+	}
+
+	@Override
+	public void handleOutputLine(String line) {
+		int charsEnd = pendingOutput.indexOf("\n", pendingStart);
+		charsEnd = charsEnd < 0 ? pendingOutput.length() : charsEnd + 1;
+		OverthereProcessOutputHandler handler = handlers.get(currentOutputHandler);
+
+		int markerPos = line.indexOf(nonce);
+		if (markerPos < 0) {
+			sendPendingOutput(handler, charsEnd, charsEnd);
+			handler.handleOutputLine(line);
+			return;
+		}
+
+		int charsMarkerPos = pendingOutput.indexOf(nonce, pendingStart);
+		sendPendingOutput(handler, charsMarkerPos < 0 || charsMarkerPos > charsEnd ? charsEnd : charsMarkerPos, charsEnd);
+		if (markerPos > 0) {
+			handler.handleOutputLine(line.substring(0, markerPos));
+		}
+
+		String[] marker = line.substring(markerPos + nonce.length()).trim().split(" ");
+		int index = Integer.parseInt(marker[1]);
+		if (marker[0].equals(BEGIN)) {
+			currentOutputHandler = index;
+			lastStarted = index;
+		} else if (exitValues[index] == null) {
+			exitValues[index] = Integer.valueOf(marker[2]);
+		}
+	}
+
+	@Override
+	public void handleErrorLine(String line) {
+		int markerPos = line.indexOf(nonce);
+		if (markerPos < 0) {
+			handlers.get(currentErrorHandler).handleErrorLine(line);
+			return;
+		}
+
+		if (markerPos > 0) {
+			handlers.get(currentErrorHandler).handleErrorLine(line.substring(0, markerPos));
+		}
+		String[] marker = line.substring(markerPos + nonce.length()).trim().split(" ");
+		if (marker[0].equals(BEGIN)) {
+			currentErrorHandler = Integer.parseInt(marker[1]);
+		}
+	}
+
+	private void sendPendingOutput(OverthereProcessOutputHandler handler, int sendEnd, int consumeEnd) {
+		for (int i = pendingStart; i < sendEnd; i++) {
+			handler.handleOutput(pendingOutput.charAt(i));
+		}
+		if (consumeEnd >= pendingOutput.length()) {
+			pendingOutput.setLength(0);
+			pendingStart = 0;
+		} else {
+			pendingStart = consumeEnd;
+		}
+	}
+
+	/**
+	 * Returns the exit values of the commands that were started, in order. A command that was started but for which no end marker was received, for instance
+	 * because the script was aborted, gets the exit value of the script.
+	 * 
+	 * @param scriptExitValue
+	 *            the exit value of the script.
+	 * @return the exit values.
+	 */
+	public List<Integer> getExitValues(int scriptExitValue) {
+		List<Integer> values = newArrayList();
+		for (int i = 0; i <= lastStarted; i++) {
+			values.add(exitValues[i] != null ? exitValues[i] : scriptExitValue);
+		}
+		return values;
+	}
+
+}
+
@@ -0,0 +1,182 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedScheduler;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+
+/**
+ * Future of the exit value of an asynchronously executed command. Cancelling the future, or letting its deadline pass, aborts the command.
+ */
+abstract class ExecutionFuture extends AbstractFuture<Integer> {
+
+	/**
+	 * Starts pumping the output of a process that has already been started and completes the future with its exit value.
+	 */
+	static ExecutionFuture forProcess(OverthereProcess process, OverthereProcessOutputHandler handler) {
+		ProcessExecutionFuture future = new ProcessExecutionFuture(process);
+		future.start(handler);
+		return future;
+	}
+
+	/**
+	 * Invokes {@link OverthereConnection#execute(OverthereProcessOutputHandler, CmdLine)} on a thread of the shared thread pool. Used for connections that
+	 * cannot start a process.
+	 */
+	static ExecutionFuture forBlockingExecute(OverthereConnection connection, OverthereProcessOutputHandler handler, CmdLine commandLine) {
+		BlockingExecuteFuture future = new BlockingExecuteFuture();
+		future.start(connection, handler, commandLine);
+		return future;
+	}
+
+	/**
+	 * Aborts the command if it has not completed within the given time.
+	 */
+	void setDeadline(final long timeout, final TimeUnit unit, final String description) {
+		final ScheduledFuture<?> deadline = getSharedScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (setException(new TimeoutException(description + " did not complete within " + timeout + " " + unit.toString().toLowerCase()))) {
+					logger.info("{} did not complete within {} {}, aborting it", new Object[] { description, timeout, unit.toString().toLowerCase() });
+					abort();
+				}
+			}
+		}, timeout, unit);
+
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				deadline.cancel(false);
+			}
+		}, sameThreadExecutor());
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (super.cancel(mayInterruptIfRunning)) {
+			abort();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the running command.
+	 */
+	protected abstract void abort();
+
+	private static class ProcessExecutionFuture extends ExecutionFuture {
+
+		private final OverthereProcess process;
+
+		private final AtomicInteger runningPumps = new AtomicInteger(2);
+
+		private ProcessExecutionFuture(OverthereProcess process) {
+			this.process = process;
+		}
+
+		private void start(OverthereProcessOutputHandler handler) {
+			getSharedExecutor().execute(whenDone(stdoutPump(process.getStdout(), handler)));
+			getSharedExecutor().execute(whenDone(stderrPump(process.getStderr(), handler)));
+		}
+
+		private Runnable whenDone(final Runnable pump) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						pump.run();
+					} finally {
+						if (runningPumps.decrementAndGet() == 0) {
+							complete();
+						}
+					}
+				}
+			};
+		}
+
+		private void complete() {
+			if (isDone()) {
+				return;
+			}
+			try {
+				set(process.waitFor());
+			} catch (Throwable t) {
+				setException(t);
+			}
+		}
+
+		@Override
+		protected void abort() {
+			process.destroy();
+		}
+
+	}
+
+	private static class BlockingExecuteFuture extends ExecutionFuture {
+
+		private volatile Future<?> task;
+
+		private void start(final OverthereConnection connection, final OverthereProcessOutputHandler handler, final CmdLine commandLine) {
+			task = getSharedExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone()) {
+						return;
+					}
+					try {
+						set(connection.execute(handler, commandLine));
+					} catch (Throwable t) {
+						setException(t);
+					}
+				}
+			});
+		}
+
+		@Override
+		protected void abort() {
+			Future<?> t = task;
+			if (t != null) {
+				t.cancel(true);
+			}
+		}
+
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(ExecutionFuture.class);
+
+}
+
@@ -0,0 +1,38 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import java.io.Closeable;
+
+/**
+ * Implemented by {@link com.xebialabs.overthere.OverthereConnection connections} that can spread concurrent file transfers over several channels. The
+ * {@link com.xebialabs.overthere.util.OverthereFileCopier} uses it when copying files in parallel.
+ */
+public interface ParallelTransferSupport {
+
+	/**
+	 * Prepares the connection for a number of concurrent transfers, for example by opening extra channels to the host. Until the returned handle is closed,
+	 * the input and output streams of the files of this connection are spread over those channels.
+	 * 
+	 * @param parallelism
+	 *            the number of transfers that will run concurrently.
+	 * @return a handle that releases the extra channels when it is closed. All streams opened while the handle was open must have been closed before.
+	 */
+	Closeable openTransferChannels(int parallelism);
+
+}
@@ -0,0 +1,147 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.google.common.io.Closeables.closeQuietly;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+
+/**
+ * Reads the stdout or stderr of a process and sends it to an {@link OverthereProcessOutputHandler}. The output is read in blocks and split into lines within
+ * those blocks, so that a string is created once per line. Carriage returns and line feeds are not included in the lines.
+ * <p>
+ * Instances are meant to be run on a thread pool such as {@link com.xebialabs.overthere.util.OverthereExecutors#getSharedExecutor()}.
+ */
+public class ProcessOutputPump implements Runnable {
+
+	/**
+	 * Number of characters read from the stream at a time.
+	 */
+	public static final int BUFFER_SIZE = 8192;
+
+	private final InputStream in;
+
+	private final OverthereProcessOutputHandler handler;
+
+	private final boolean stderr;
+
+	private final StringBuilder partialLine = new StringBuilder();
+
+	private ProcessOutputPump(InputStream in, OverthereProcessOutputHandler handler, boolean stderr) {
+		this.in = in;
+		this.handler = handler;
+		this.stderr = stderr;
+	}
+
+	/**
+	 * Creates a pump that sends the characters and lines read to {@link OverthereProcessOutputHandler#handleOutput(char)} and
+	 * {@link OverthereProcessOutputHandler#handleOutputLine(String)}.
+	 */
+	public static ProcessOutputPump stdoutPump(InputStream stdout, OverthereProcessOutputHandler handler) {
+		return new ProcessOutputPump(stdout, handler, false);
+	}
+
+	/**
+	 * Creates a pump that sends the lines read to {@link OverthereProcessOutputHandler#handleErrorLine(String)}.
+	 */
+	public static ProcessOutputPump stderrPump(InputStream stderr, OverthereProcessOutputHandler handler) {
+		return new ProcessOutputPump(stderr, handler, true);
+	}
+
+	@Override
+	public void run() {
+		Reader reader = new InputStreamReader(in);
+		try {
+			char[] buffer = new char[BUFFER_SIZE];
+			int length;
+			while ((length = reader.read(buffer)) > -1) {
+				handle(buffer, length);
+			}
+		} catch (Exception exc) {
+			logger.error("An exception occured while reading from " + (stderr ? "stderr" : "stdout"), exc);
+		} finally {
+			closeQuietly(reader);
+			if (partialLine.length() > 0) {
+				handleLine(partialLine.toString());
+				partialLine.setLength(0);
+			}
+		}
+	}
+
+	private void handle(char[] buffer, int length) {
+		if (!stderr) {
+			for (int i = 0; i < length; i++) {
+				handler.handleOutput(buffer[i]);
+			}
+		}
+
+		int lineStart = 0;
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == '\n') {
+				if (partialLine.length() == 0 && !containsCarriageReturn(buffer, lineStart, i)) {
+					handleLine(new String(buffer, lineStart, i - lineStart));
+				} else {
+					appendWithoutCarriageReturns(buffer, lineStart, i);
+					handleLine(partialLine.toString());
+					partialLine.setLength(0);
+				}
+				lineStart = i + 1;
+			}
+		}
+		appendWithoutCarriageReturns(buffer, lineStart, length);
+	}
+
+	private static boolean containsCarriageReturn(char[] buffer, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void appendWithoutCarriageReturns(char[] buffer, int start, int end) {
+		int runStart = start;
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\r') {
+				partialLine.append(buffer, runStart, i - runStart);
+				runStart = i + 1;
+			}
+		}
+		partialLine.append(buffer, runStart, end - runStart);
+	}
+
+	private void handleLine(String line) {
+		if (stderr) {
+			handler.handleErrorLine(line);
+		} else {
+			handler.handleOutputLine(line);
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(ProcessOutputPump.class);
+
+}
+
@@ -0,0 +1,93 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffers the data written to the output stream of an sshj channel and passes it on one packet at a time. The channel output stream of sshj 0.7.0 loops
+ * forever when it is written to from a non-zero offset or with more bytes than fit in the current packet, so every write it receives starts at offset zero,
+ * fits in one packet and is flushed straight away.
+ */
+class SshChannelOutputStream extends OutputStream {
+
+	private final OutputStream out;
+
+	private final byte[] packet;
+
+	private int count;
+
+	private boolean closed;
+
+	public SshChannelOutputStream(OutputStream out, int maxPacketSize) {
+		this.out = out;
+		this.packet = new byte[maxPacketSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == packet.length) {
+			writePacket();
+		}
+		packet[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == packet.length) {
+				writePacket();
+			}
+			int n = Math.min(len, packet.length - count);
+			System.arraycopy(b, off, packet, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			writePacket();
+		} else {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writePacket() throws IOException {
+		out.write(packet, 0, count);
+		out.flush();
+		count = 0;
+	}
+
+}
@@ -24,13 +24,18 @@ import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
 import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
 import static com.xebialabs.overthere.ConnectionOptions.PORT;
 import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_DEFAULT_PTY;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_DEFAULT_PTY_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_PTY;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_PTY_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.DELTA_TRANSFER;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.DELTA_TRANSFER_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.INTERACTIVE_KEYBOARD_AUTH_PROMPT_REGEX;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.INTERACTIVE_KEYBOARD_AUTH_PROMPT_REGEX_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MAX_CONCURRENT_SESSIONS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MAX_CONCURRENT_SESSIONS_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PASSPHRASE;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PRIVATE_KEY_FILE;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PORT_DEFAULT;
@@ -39,12 +44,15 @@ import static java.net.InetSocketAddress.createUnresolved;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.xebialabs.overthere.*;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 import com.xebialabs.overthere.spi.BaseOverthereConnection;
+import com.xebialabs.overthere.spi.BatchOutputDemultiplexer;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.common.Factory;
 import net.schmizz.sshj.common.SSHException;
@@ -66,6 +74,10 @@ import com.google.common.annotations.VisibleForTesting;
 
 /**
  * Base class for host connections using SSH.
+ * <p>
+ * Processes can be started from multiple threads at the same time; each one gets its own session (channel) on the one SSH transport. The number of sessions
+ * open at the same time can be capped with the {@link SshConnectionBuilder#MAX_CONCURRENT_SESSIONS} connection option, in which case threads wait in line
+ * for a session to become available.
  */
 abstract class SshConnection extends BaseOverthereConnection {
 
@@ -93,7 +105,13 @@ abstract class SshConnection extends BaseOverthereConnection {
 
     protected final String allocatePty;
 
-    protected SSHClient sshClient;
+    protected final int maxConcurrentSessions;
+
+    protected final boolean deltaTransfer;
+
+    protected volatile SSHClient sshClient;
+
+    private final Semaphore sessionPermits;
 
     private static final Pattern ptyPattern = Pattern.compile(PTY_PATTERN);
 
@@ -118,8 +136,20 @@ abstract class SshConnection extends BaseOverthereConnection {
         this.passphrase = options.getOptional(PASSPHRASE);
         this.allocateDefaultPty = options.get(ALLOCATE_DEFAULT_PTY, ALLOCATE_DEFAULT_PTY_DEFAULT);
         this.allocatePty = options.get(ALLOCATE_PTY, ALLOCATE_PTY_DEFAULT);
+        this.maxConcurrentSessions = options.get(MAX_CONCURRENT_SESSIONS, MAX_CONCURRENT_SESSIONS_DEFAULT);
+        checkArgument(maxConcurrentSessions >= 0, "Value for " + MAX_CONCURRENT_SESSIONS + " [%s] must not be negative", maxConcurrentSessions);
+        this.sessionPermits = maxConcurrentSessions > 0 ? new Semaphore(maxConcurrentSessions, true) : null;
+        this.deltaTransfer = options.get(DELTA_TRANSFER, DELTA_TRANSFER_DEFAULT);
     }
 
+	/**
+	 * Returns whether a file copied over an existing file may be transferred as a delta. The delta is streamed through the stdin of a command, which needs a
+	 * binary clean channel, so it is not possible when a pty is allocated.
+	 */
+	boolean canTransferDelta() {
+		return deltaTransfer && !allocateDefaultPty && allocatePty == null;
+	}
+
     protected void connect() {
         try {
             SSHClient client = sshClientFactory.create();
@@ -185,11 +215,73 @@ abstract class SshConnection extends BaseOverthereConnection {
         }
     }
 
+    @Override
+    public boolean isConnected() {
+        SSHClient client = sshClient;
+        return client != null && client.isConnected() && client.isAuthenticated();
+    }
+
     protected SSHClient getSshClient() {
         checkState(sshClient != null, "Not (yet) connected");
         return sshClient;
     }
 
+    /**
+     * Opens a new session on this connection. If the {@link SshConnectionBuilder#MAX_CONCURRENT_SESSIONS} connection option has been set and that number of
+     * sessions is already open, this method blocks until one of them is closed. Every session opened with this method must be closed with
+     * {@link #closeSession(Session)}.
+     */
+    protected Session openSession() throws SSHException {
+        acquireSessionPermit();
+        try {
+            return getSshClient().startSession();
+        } catch (SSHException e) {
+            releaseSessionPermit();
+            throw e;
+        } catch (RuntimeException e) {
+            releaseSessionPermit();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a session opened with {@link #openSession()} and allows the next thread waiting for a session to continue. Must be invoked exactly once per
+     * session.
+     */
+    protected void closeSession(Session session) {
+        try {
+            if (session.isOpen()) {
+                session.close();
+            }
+        } catch (SSHException e) {
+            throw new RuntimeIOException("Could not close the SSH session", e);
+        } finally {
+            releaseSessionPermit();
+        }
+    }
+
+    private void acquireSessionPermit() {
+        if (sessionPermits == null) {
+            return;
+        }
+
+        if (!sessionPermits.tryAcquire()) {
+            logger.debug("All {} sessions on {} are in use, waiting for one to become available", maxConcurrentSessions, this);
+            try {
+                sessionPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException("Interrupted while waiting for a session on " + this, e);
+            }
+        }
+    }
+
+    private void releaseSessionPermit() {
+        if (sessionPermits != null) {
+            sessionPermits.release();
+        }
+    }
+
     public final OverthereFile getFile(String hostPath) throws RuntimeIOException {
         return getFile(hostPath, false);
     }
@@ -219,9 +311,17 @@ abstract class SshConnection extends BaseOverthereConnection {
 		checkNotNull(commandLine, "Cannot execute null command line");
 		checkArgument(commandLine.getArguments().size() > 0, "Cannot execute empty command line");
 
-		CmdLine cmd = processCommandLine(commandLine);
+		return doStartProcess(processCommandLine(commandLine));
+    }
+
+    /**
+     * Starts a command line that has already been {@link #processCommandLine(CmdLine) processed}.
+     */
+    protected OverthereProcess doStartProcess(final CmdLine cmd) {
+        Session session = null;
+        boolean started = false;
         try {
-        	Session session = getSshClient().startSession();
+        	session = openSession();
         	if(allocatePty != null && !allocatePty.isEmpty()) {
         		if(allocateDefaultPty) {
 					logger.warn("The " + ALLOCATE_PTY + " and " + ALLOCATE_DEFAULT_PTY + " connection options have both been set for the connection {}. Ignoring "
@@ -241,11 +341,64 @@ abstract class SshConnection extends BaseOverthereConnection {
         		logger.debug("Allocating default PTY");
         		session.allocateDefaultPTY();
         	}
-			return createProcess(session, cmd);
+			SshProcess process = createProcess(session, cmd);
+			started = true;
+			return process;
         } catch (SSHException e) {
             throw new RuntimeIOException("Cannot execute remote command \"" + cmd.toCommandLine(getHostOperatingSystem(), true) + "\" on " + this, e);
+        } finally {
+            if (!started && session != null) {
+                closeSessionQuietly(session);
+            }
+        }
+
+    }
+
+    /**
+     * Closes a session opened with {@link #openSession()} after a failure, logging rather than throwing an exception if that fails too.
+     */
+    void closeSessionQuietly(Session session) {
+        try {
+            closeSession(session);
+        } catch (RuntimeIOException e) {
+            logger.warn("Could not close the SSH session on " + this + " after a failure", e);
+        }
+    }
+
+    /**
+     * Executes the batch as one <code>sh -c</code> script, each command in its own subshell, when the host is a Unix host and no pty is allocated. Otherwise
+     * the commands are executed one by one.
+     */
+    @Override
+    public List<Integer> executeBatch(final List<? extends OverthereProcessOutputHandler> handlers, final List<CmdLine> commandLines,
+            final boolean continueOnFailure) {
+        if (os != UNIX || allocateDefaultPty || allocatePty != null) {
+            logger.debug("Not executing batch as one script on {} because it is not a Unix host or a pty is allocated", this);
+            return super.executeBatch(handlers, commandLines, continueOnFailure);
         }
 
+        checkBatch(handlers, commandLines);
+        BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(handlers);
+        String script = buildBatchScript(demultiplexer, commandLines, continueOnFailure);
+        CmdLine batch = new CmdLine().addArgument("sh").addArgument("-c").addRaw(quoteForShell(script));
+        logger.debug("Executing batch of {} commands on {}", commandLines.size(), this);
+        int exitValue = waitFor(doStartProcess(batch), demultiplexer);
+        return demultiplexer.getExitValues(exitValue);
+    }
+
+    String buildBatchScript(BatchOutputDemultiplexer demultiplexer, List<CmdLine> commandLines, boolean continueOnFailure) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commandLines.size(); i++) {
+            script.append("echo ").append(demultiplexer.getBeginMarker(i)).append('\n');
+            script.append("echo ").append(demultiplexer.getBeginMarker(i)).append(" >&2\n");
+            script.append("( ").append(processCommandLine(commandLines.get(i)).toCommandLine(os, false)).append(" )\n");
+            script.append("rc=$?\n");
+            script.append("echo ").append(demultiplexer.getEndMarker(i)).append(" $rc\n");
+            if (!continueOnFailure) {
+                script.append("[ $rc -eq 0 ] || exit $rc\n");
+            }
+        }
+        return script.toString();
     }
 
     protected CmdLine processCommandLine(final CmdLine commandLine) {
@@ -291,6 +444,13 @@ abstract class SshConnection extends BaseOverthereConnection {
 		return new CmdLine().add(commandLine.getArguments().subList(1, commandLine.getArguments().size()));
 	}
 
+	/**
+	 * Quotes a string so that a Unix shell passes it on as one argument.
+	 */
+	protected static String quoteForShell(final String str) {
+		return "'" + str.replace("'", "'\\''") + "'";
+	}
+
 	protected static CmdLine prefixWithPseudoCommand(final CmdLine commandLine, final String pseudoCommand) {
 	    CmdLine nosudoCommandLine = new CmdLine();
 		nosudoCommandLine.addArgument(pseudoCommand);
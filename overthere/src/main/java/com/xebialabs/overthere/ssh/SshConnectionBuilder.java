@@ -153,6 +153,88 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
 	 */
 	public static final int PORT_ALLOCATION_RANGE_START_DEFAULT = 1025;
 
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the maximum number of sessions (channels) that can be open at the same time on
+	 * one SSH connection. When that number has been reached, threads that want to start a process wait in line until another process has finished. A value of
+	 * <code>0</code> means no limit.
+	 */
+	public static final String MAX_CONCURRENT_SESSIONS = "maxConcurrentSessions";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify the maximum number of sessions (channels) that can be open at the same
+	 * time on one SSH connection.
+	 */
+	public static final int MAX_CONCURRENT_SESSIONS_DEFAULT = 0;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify for how many milliseconds the attributes of a file (whether it exists, its type,
+	 * permissions, length and modification time) are cached. For SFTP connections the attributes sent along with a directory listing are cached as well. The
+	 * cached attributes are discarded as soon as the file is changed through Overthere or a command is executed on the connection. A value of <code>0</code>
+	 * disables the cache.
+	 */
+	public static final String FILE_ATTRIBUTES_CACHE_MILLIS = "fileAttributesCacheMillis";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify for how many milliseconds the attributes of a file are cached.
+	 */
+	public static final int FILE_ATTRIBUTES_CACHE_MILLIS_DEFAULT = 1000;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify whether directories are copied to and from Unix hosts as one tar archive
+	 * streamed over a single command instead of with one transfer per file. Only applicable when no pty is allocated. File modes are kept when the source is a
+	 * directory on a Unix host connected through SSH w/ SFTP, or through SSH w/ SCP with this option enabled. Otherwise directories and executable files get
+	 * mode <code>0755</code> and other files get mode <code>0644</code>. When the destination is not on a host connected through SSH w/ SCP or SFTP, only the
+	 * owner execute bit is applied.
+	 */
+	public static final String TAR_TRANSFER = "tarTransfer";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify whether directories are copied as one tar archive.
+	 */
+	public static final boolean TAR_TRANSFER_DEFAULT = true;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify whether the tar archive used to copy directories is compressed with gzip.
+	 */
+	public static final String TAR_COMPRESSION = "tarCompression";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify whether the tar archive used to copy directories is compressed.
+	 */
+	public static final boolean TAR_COMPRESSION_DEFAULT = false;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify the number of bytes read or written with one SFTP request.
+	 */
+	public static final String SFTP_CHUNK_SIZE = "sftpChunkSize";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify the number of bytes read or written with one SFTP request.
+	 */
+	public static final int SFTP_CHUNK_SIZE_DEFAULT = 32768;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify how many SFTP read or write requests for one file can be outstanding at the
+	 * same time. A value of <code>1</code> waits for the response to every request before sending the next one.
+	 */
+	public static final String SFTP_MAX_OUTSTANDING_REQUESTS = "sftpMaxOutstandingRequests";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify how many SFTP requests for one file can be outstanding.
+	 */
+	public static final int SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT = 16;
+
+	/**
+	 * Name of the {@link ConnectionOptions connection option} used to specify whether a file copied over an existing file on a Unix host is transferred as a
+	 * delta, sending only the blocks that changed. See {@link com.xebialabs.overthere.util.OverthereFileDeltaCopier}.
+	 */
+	public static final String DELTA_TRANSFER = "deltaTransfer";
+
+	/**
+	 * Default value of the {@link ConnectionOptions connection option} used to specify whether a file copied over an existing file is transferred as a delta.
+	 */
+	public static final boolean DELTA_TRANSFER_DEFAULT = false;
+
 	protected SshConnection connection;
 
 	public SshConnectionBuilder(String type, ConnectionOptions options, AddressPortMapper mapper) {
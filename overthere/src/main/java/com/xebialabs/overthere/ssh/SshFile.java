@@ -24,6 +24,7 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.OverthereProcessOutputHandler;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.util.OverthereFileDeltaCopier;
 
 /**
  * A file on a host connected through SSH.
@@ -101,6 +102,18 @@ abstract class SshFile<C extends SshConnection> extends BaseOverthereFile<C> {
 
 	protected abstract void deleteDirectory();
 
+	/**
+	 * Copies the source file over this file by sending only the blocks that changed, if that is enabled for the connection.
+	 * 
+	 * @return <code>true</code> if the file was copied, <code>false</code> if it has to be copied in full.
+	 */
+	protected boolean copyFromAsDelta(OverthereFile source) {
+		if (!connection.canTransferDelta() || !source.isFile()) {
+			return false;
+		}
+		return OverthereFileDeltaCopier.tryCopy(source, this, OverthereFileDeltaCopier.DEFAULT_BLOCK_SIZE);
+	}
+
 	protected int executeCommand(OverthereProcessOutputHandler handler, CmdLine commandLine) {
 		return connection.execute(handler, commandLine);
 	}
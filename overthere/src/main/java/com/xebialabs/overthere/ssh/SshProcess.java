@@ -23,7 +23,6 @@ import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OperatingSystemFamily;
 import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
-import net.schmizz.sshj.common.SSHException;
 import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Signal;
@@ -33,12 +32,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class SshProcess implements OverthereProcess {
     private SshConnection connection;
     private final Session session;
     private final String encodedCommandLine;
     private final Session.Command command;
+    private OutputStream stdin;
+    private final AtomicBoolean sessionClosed = new AtomicBoolean(false);
 
     SshProcess(final SshConnection connection, final OperatingSystemFamily os, final Session session, final CmdLine commandLine) throws TransportException, ConnectionException {
         this.connection = connection;
@@ -49,8 +51,11 @@ class SshProcess implements OverthereProcess {
     }
 
     @Override
-    public OutputStream getStdin() {
-        return command.getOutputStream();
+    public synchronized OutputStream getStdin() {
+        if (stdin == null) {
+            stdin = new SshChannelOutputStream(command.getOutputStream(), command.getRemoteMaxPacketSize());
+        }
+        return stdin;
     }
 
     @Override
@@ -69,7 +74,6 @@ class SshProcess implements OverthereProcess {
             command.join();
             Integer exitStatus = command.getExitStatus();
             logger.info("Command {} on {} returned {}", new Object[] { encodedCommandLine, connection, exitStatus });
-	        closeSession();
 	        if(exitStatus == null) {
 				logger.warn("Command {} on {} could not be started. This may be caused by the connection option " + ALLOCATE_DEFAULT_PTY + " being set to true.", new Object[] {
 				        encodedCommandLine, connection });
@@ -79,6 +83,8 @@ class SshProcess implements OverthereProcess {
 	        }
         } catch (ConnectionException e) {
             throw new RuntimeIOException("Caught exception while awaiting end of process", e);
+        } finally {
+            closeSession();
         }
     }
 
@@ -94,12 +100,8 @@ class SshProcess implements OverthereProcess {
     }
 
 	private void closeSession() {
-		if (session.isOpen()) {
-		    try {
-		        session.close();
-		    } catch (SSHException e) {
-		        throw new RuntimeIOException("Could not close the SSH session", e);
-		    }
+		if (sessionClosed.compareAndSet(false, true)) {
+			connection.closeSession(session);
 		}
 	}
 
@@ -0,0 +1,229 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.ssh.SshScpFile.FileAttributes;
+
+/**
+ * Parses the output of the scripts with which {@link SshScpFile} retrieves the attributes of one file or of a whole directory tree.
+ */
+class SshScpAttributesParser {
+
+	private static final Pattern FLAGS_PATTERN = Pattern.compile("n|e[fdrwx]*");
+
+	private static final Pattern MTIME_PATTERN = Pattern.compile("\\d+");
+
+	private static final Pattern LS_ENTRY_PATTERN = Pattern.compile("([-a-zA-Z?])([-rwxsStT]{9})\\S*\\s+\\d+\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)(,\\s*\\d+)?\\s+\\S+\\s+\\S+\\s+\\S+\\s(.+)");
+
+	/**
+	 * Parses the output of the file attributes script: the flags line, the <code>ls -ldL</code> line and the modification time in seconds.
+	 * 
+	 * @param file
+	 *            the file, used in error messages.
+	 */
+	static FileAttributes parseFileAttributes(Object file, List<String> lines, long generation) {
+		FileAttributes results = new FileAttributes(generation);
+		int flagsLine = 0;
+		while (flagsLine < lines.size() && !FLAGS_PATTERN.matcher(lines.get(flagsLine)).matches()) {
+			flagsLine++;
+		}
+		if (flagsLine == lines.size()) {
+			throw new RuntimeIOException("Cannot get attributes of " + file + " from output: " + lines);
+		}
+
+		String flags = lines.get(flagsLine);
+		results.exists = flags.charAt(0) == 'e';
+		if (results.exists) {
+			results.isFile = flags.indexOf('f') >= 0;
+			results.isDirectory = flags.indexOf('d') >= 0;
+			results.canRead = flags.indexOf('r') >= 0;
+			results.canWrite = flags.indexOf('w') >= 0;
+			results.canExecute = flags.indexOf('x') >= 0;
+
+			if (flagsLine + 1 < lines.size()) {
+				String lsLine = lines.get(flagsLine + 1);
+				StringTokenizer lsTokens = new StringTokenizer(lsLine);
+				if (lsTokens.countTokens() < 5) {
+					throw new RuntimeIOException("ls -ldL of " + file + " returned output that contains less than the expected 5 tokens: " + lsLine);
+				}
+				for (int i = 0; i < 4; i++) {
+					lsTokens.nextToken(); // permissions, inodelinks, owner, group
+				}
+				String size = lsTokens.nextToken();
+				try {
+					results.length = Long.parseLong(size);
+				} catch (NumberFormatException exc) {
+					logger.warn("Cannot parse length of " + file + " from ls output: " + lsLine + ". Length will be reported as -1.", exc);
+				}
+			}
+
+			for (int i = flagsLine + 2; i < lines.size(); i++) {
+				if (MTIME_PATTERN.matcher(lines.get(i)).matches()) {
+					results.lastModified = Long.parseLong(lines.get(i)) * 1000;
+					break;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Parses the output of the recursive listing script: the <code>ids</code> line, the format line and either one <code>find -printf</code> line per file
+	 * or the output of <code>ls -lRLn</code>.
+	 * 
+	 * @param directory
+	 *            the listed directory, used in error messages.
+	 * @param directoryPath
+	 *            the path of the listed directory, which <code>ls</code> prints in the headers of its blocks.
+	 * @return the attributes of the listed files by their path relative to the directory, in the order in which they were listed, or <code>null</code> if the
+	 *         output does not contain a format line.
+	 */
+	static Map<String, FileAttributes> parseRecursiveListing(Object directory, String directoryPath, List<String> lines, long generation) {
+		int uid = -1;
+		Set<Integer> gids = newHashSet();
+		String format = null;
+		String lsDirectory = "";
+		boolean atBlockStart = true;
+		Map<String, FileAttributes> entries = newLinkedHashMap();
+		for (String line : lines) {
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+
+			if (format == null) {
+				if (line.startsWith("ids ")) {
+					String[] ids = line.substring(4).trim().split("\\s+");
+					uid = Integer.parseInt(ids[0]);
+					for (int i = 1; i < ids.length; i++) {
+						gids.add(Integer.parseInt(ids[i]));
+					}
+				} else if (line.equals("find") || line.equals("ls")) {
+					format = line;
+				}
+				continue;
+			}
+
+			String relativePath;
+			FileAttributes attributes = new FileAttributes(generation);
+			attributes.listed = true;
+			attributes.exists = true;
+			if (format.equals("find")) {
+				String[] fields = line.split(" ", 7);
+				if (fields.length < 7 || fields[6].length() == 0) {
+					logger.warn("Ignoring unexpected line in the recursive listing of {}: {}", directory, line);
+					continue;
+				}
+				attributes.isFile = fields[0].equals("f");
+				attributes.isDirectory = fields[0].equals("d");
+				attributes.length = Long.parseLong(fields[4]);
+				int dot = fields[5].indexOf('.');
+				attributes.lastModified = Long.parseLong(dot >= 0 ? fields[5].substring(0, dot) : fields[5]) * 1000;
+				setPermissions(attributes, Integer.parseInt(fields[3], 8), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), uid, gids);
+				relativePath = fields[6];
+			} else {
+				if (line.trim().length() == 0) {
+					atBlockStart = true;
+					continue;
+				}
+				boolean blockStart = atBlockStart;
+				atBlockStart = false;
+				Matcher entry = LS_ENTRY_PATTERN.matcher(line);
+				if (!entry.matches()) {
+					if (blockStart && line.endsWith(":")) {
+						lsDirectory = getRelativePath(directory, directoryPath, line.substring(0, line.length() - 1));
+					} else if (!line.startsWith("total ")) {
+						logger.warn("Ignoring unexpected line in the recursive listing of {}: {}", directory, line);
+					}
+					continue;
+				}
+				attributes.isFile = entry.group(1).equals("-");
+				attributes.isDirectory = entry.group(1).equals("d");
+				if (entry.group(6) == null) {
+					attributes.length = Long.parseLong(entry.group(5));
+				}
+				setPermissions(attributes, parsePermissions(entry.group(2)), Integer.parseInt(entry.group(3)), Integer.parseInt(entry.group(4)), uid, gids);
+				relativePath = lsDirectory.length() == 0 ? entry.group(7) : lsDirectory + "/" + entry.group(7);
+			}
+			entries.put(relativePath, attributes);
+		}
+
+		return format == null ? null : entries;
+	}
+
+	private static String getRelativePath(Object directory, String directoryPath, String lsDirectoryPath) {
+		if (lsDirectoryPath.equals(directoryPath)) {
+			return "";
+		}
+		String prefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+		if (!lsDirectoryPath.startsWith(prefix)) {
+			throw new RuntimeIOException("Cannot list directory " + directory + " recursively: unexpected directory " + lsDirectoryPath + " in ls output");
+		}
+		return lsDirectoryPath.substring(prefix.length());
+	}
+
+	private static int parsePermissions(String permissions) {
+		int mode = 0;
+		for (int i = 0; i < 9; i++) {
+			char c = permissions.charAt(i);
+			if (c != '-' && c != 'S' && c != 'T') {
+				mode |= 0400 >> i;
+			}
+		}
+		return mode;
+	}
+
+	/**
+	 * Sets the permissions of the user that listed the file in the same way as <code>test -r</code>, <code>test -w</code> and <code>test -x</code> do,
+	 * disregarding access control lists.
+	 */
+	private static void setPermissions(FileAttributes attributes, int mode, int owner, int group, int uid, Set<Integer> gids) {
+		int permissions;
+		if (uid == 0) {
+			attributes.canRead = true;
+			attributes.canWrite = true;
+			attributes.canExecute = attributes.isDirectory || (mode & 0111) != 0;
+			return;
+		} else if (owner == uid) {
+			permissions = mode >> 6;
+		} else if (gids.contains(group)) {
+			permissions = mode >> 3;
+		} else {
+			permissions = mode;
+		}
+		attributes.canRead = (permissions & 04) != 0;
+		attributes.canWrite = (permissions & 02) != 0;
+		attributes.canExecute = (permissions & 01) != 0;
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(SshScpAttributesParser.class);
+
+}
@@ -17,23 +17,72 @@
 
 package com.xebialabs.overthere.ssh;
 
+import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.FILE_ATTRIBUTES_CACHE_MILLIS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.FILE_ATTRIBUTES_CACHE_MILLIS_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TAR_COMPRESSION;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TAR_COMPRESSION_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TAR_TRANSFER;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TAR_TRANSFER_DEFAULT;
 
 /**
  * A connection to a Unix host using SSH w/ SCP.
  */
 class SshScpConnection extends SshConnection {
 
+	protected final int fileAttributesCacheMillis;
+
+	protected final boolean tarTransfer;
+
+	protected final boolean tarCompression;
+
+	private final AtomicLong fileAttributesGeneration = new AtomicLong();
+
 	public SshScpConnection(String type, ConnectionOptions options, AddressPortMapper mapper) {
 		super(type, options, mapper);
 		checkArgument(os != WINDOWS, "Cannot start a " + SSH_PROTOCOL + ":%s connection to a Windows operating system", sshConnectionType.toString().toLowerCase());
+		this.fileAttributesCacheMillis = options.get(FILE_ATTRIBUTES_CACHE_MILLIS, FILE_ATTRIBUTES_CACHE_MILLIS_DEFAULT);
+		this.tarTransfer = options.get(TAR_TRANSFER, TAR_TRANSFER_DEFAULT);
+		this.tarCompression = options.get(TAR_COMPRESSION, TAR_COMPRESSION_DEFAULT);
+	}
+
+	/**
+	 * Returns whether directories can be copied as a tar archive streamed through the stdin or stdout of a command. That needs a binary clean channel, so it
+	 * is not possible when a pty is allocated.
+	 */
+	boolean canTransferWithTar() {
+		return tarTransfer && !allocateDefaultPty && allocatePty == null;
+	}
+
+	/**
+	 * Any command may change files on the host, so file attributes cached before it was started can no longer be trusted.
+	 */
+	@Override
+	protected OverthereProcess doStartProcess(CmdLine cmd) {
+		fileAttributesChanged();
+		return super.doStartProcess(cmd);
+	}
+
+	/**
+	 * Invalidates the file attributes cached by all {@link SshScpFile files} of this connection.
+	 */
+	void fileAttributesChanged() {
+		fileAttributesGeneration.incrementAndGet();
+	}
+
+	long getFileAttributesGeneration() {
+		return fileAttributesGeneration.get();
 	}
 
 	@Override
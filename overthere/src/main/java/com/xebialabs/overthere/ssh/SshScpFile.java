@@ -18,20 +18,30 @@
 package com.xebialabs.overthere.ssh;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
 import static com.xebialabs.overthere.CmdLine.build;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
 import static com.xebialabs.overthere.ssh.SshConnection.NOCD_PSEUDO_COMMAND;
+import static com.xebialabs.overthere.ssh.SshConnection.quoteForShell;
 import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
 import static com.xebialabs.overthere.util.LoggingOverthereProcessOutputHandler.loggingHandler;
 import static com.xebialabs.overthere.util.MultipleOverthereProcessOutputHandler.multiHandler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import net.schmizz.sshj.xfer.LocalFileFilter;
 import net.schmizz.sshj.xfer.LocalSourceFile;
@@ -41,9 +51,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.ssh.TarArchiveInputStream.TarArchiveEntry;
 import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
 
 /**
@@ -51,6 +66,46 @@ import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
  */
 class SshScpFile extends SshFile<SshScpConnection> {
 
+	/**
+	 * Script that prints the flags of the file passed as its first argument (<code>n</code> if it does not exist, <code>e</code> followed by the letters
+	 * <code>fdrwx</code> as applicable if it does), the <code>ls -ldL</code> output and the modification time in seconds since the epoch. Errors of the
+	 * <code>stat</code> variants that are not supported on the host are written to stderr and ignored. The script contains no redirections, so that it can
+	 * be quoted once more by the <code>sudoQuoteCommand</code> connection option.
+	 */
+	private static final String FILE_ATTRIBUTES_SCRIPT = "f=$1; if [ -e \"$f\" ]; then t=e; [ -f \"$f\" ] && t=${t}f; [ -d \"$f\" ] && t=${t}d;"
+	        + " [ -r \"$f\" ] && t=${t}r; [ -w \"$f\" ] && t=${t}w; [ -x \"$f\" ] && t=${t}x; echo $t; ls -ldL \"$f\";"
+	        + " stat -c %Y \"$f\" || stat -f %m \"$f\" || perl -e \"print((stat shift)[9])\" \"$f\"; echo; else echo n; fi";
+
+	/**
+	 * Maximum number of bytes {@link #getOutputStream()} keeps in memory before it stores the contents in a local temporary file.
+	 */
+	static final int UPLOAD_MEMORY_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Script that lists the directory passed as its first argument recursively, skipping hidden files like <code>ls</code> does. It prints the user and group
+	 * ids of the user that executes it, followed by <code>find</code> and one line per file if <code>find</code> supports <code>-printf</code>, or by
+	 * <code>ls</code> and the output of <code>ls -lRLn</code> otherwise.
+	 */
+	private static final String LIST_FILES_RECURSIVELY_SCRIPT = "echo ids $(id -u) $(id -G); if find \"$1\" -maxdepth 0 -printf \"\"; then echo find;"
+	        + " find -L \"$1\" -mindepth 1 -name \".*\" -prune -o -printf \"%y %U %G %m %s %T@ %P\\n\"; else echo ls; LC_ALL=C ls -lRLn \"$1\"; fi";
+
+	/**
+	 * Script that extracts the tar archive read from stdin into the directory passed as its first argument, creating the directory if needed. The owner
+	 * recorded in the archive is ignored, so the files belong to the user that executes the script.
+	 */
+	private static final String TAR_EXTRACT_SCRIPT = "mkdir -p \"$1\" && cd \"$1\" && exec tar x%sopf -";
+
+	/**
+	 * Script that writes a tar archive of the contents of the directory passed as its first argument to stdout. Symbolic links are followed; files that are
+	 * hard linked to each other are archived once, followed by hard link entries. Unlike {@link #listFiles()} and {@link #listFilesRecursively()}, the
+	 * archive includes hidden files.
+	 */
+	private static final String TAR_CREATE_SCRIPT = "cd \"$1\" && exec tar c%shf - .";
+
+	private static final int TAR_BUFFER_SIZE = 64 * 1024;
+
+	private volatile FileAttributes cachedAttributes;
+
 	/**
 	 * Constructs an SshScpOverthereFile
 	 * 
@@ -95,8 +150,21 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
 	@Override
 	public long lastModified() {
-		// FIXME: Implement by parsing the date output of `ls -l`
-		throw new UnsupportedOperationException();
+		FileAttributes attributes = getFileInfo();
+		if (!attributes.exists) {
+			return 0;
+		}
+		if (attributes.lastModified < 0 && attributes.listed) {
+			// The attributes were listed with ls, which does not print the exact modification time
+			attributes = retrieveFileInfo();
+			if (connection.fileAttributesCacheMillis > 0) {
+				cachedAttributes = attributes;
+			}
+		}
+		if (attributes.lastModified < 0) {
+			throw new UnsupportedOperationException("Cannot determine the modification time of " + this + ": stat and perl are not available on the host");
+		}
+		return attributes.lastModified;
 	}
 
 	@Override
@@ -105,126 +173,190 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	}
 
 	/**
-	 * Gets information about the file by executing "ls -ld" on it.
+	 * Gets information about the file. The information is retrieved with one command and cached for the number of milliseconds specified by the
+	 * {@link SshConnectionBuilder#FILE_ATTRIBUTES_CACHE_MILLIS} connection option, or until this file is changed or a command is executed on the connection.
 	 * 
 	 * @return the information about the file, never <code>null</code>.
 	 * @throws RuntimeIOException
 	 *             if an I/O exception occurs
 	 */
-	public LsResults getFileInfo() throws RuntimeIOException {
-		LsResults results = new LsResults();
+	public FileAttributes getFileInfo() throws RuntimeIOException {
+		FileAttributes attributes = cachedAttributes;
+		if (attributes != null && attributes.generation == connection.getFileAttributesGeneration()
+		        && System.currentTimeMillis() - attributes.retrievedAt < connection.fileAttributesCacheMillis) {
+			logger.trace("Using cached attributes of {}", this);
+			return attributes;
+		}
+
+		attributes = retrieveFileInfo();
+		if (connection.fileAttributesCacheMillis > 0) {
+			cachedAttributes = attributes;
+		}
+		return attributes;
+	}
+
+	/**
+	 * Discards the cached information about this file and about all other files of the connection.
+	 */
+	protected void invalidateFileInfo() {
+		cachedAttributes = null;
+		connection.fileAttributesChanged();
+	}
+
+	private FileAttributes retrieveFileInfo() {
 		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
-		int errno = executeCommand(capturedOutput, CmdLine.build(NOCD_PSEUDO_COMMAND, "ls", "-ld", getPath()));
-		if (errno == 0) {
-			results.exists = true;
-			if (capturedOutput.getOutputLines().size() > 0) {
-				// parse ls results
-				String outputLine = capturedOutput.getOutputLines().get(capturedOutput.getOutputLines().size() - 1);
-				if (logger.isDebugEnabled())
-					logger.debug("ls output = " + outputLine);
-				StringTokenizer outputTokens = new StringTokenizer(outputLine);
-				if (outputTokens.countTokens() < 5) {
-					throw new RuntimeIOException("ls -ld " + getPath() + " returned output that contains less than the expected 5 tokens: " + outputLine);
-				}
-				String permissions = outputTokens.nextToken();
-				outputTokens.nextToken(); // inodelinks
-				outputTokens.nextToken(); // owner
-				outputTokens.nextToken(); // group
-				String size = outputTokens.nextToken();
-
-				results.isFile = permissions.length() >= 1 && permissions.charAt(0) == '-';
-				results.isDirectory = permissions.length() >= 1 && permissions.charAt(0) == 'd';
-				results.canRead = permissions.length() >= 2 && permissions.charAt(1) == 'r';
-				results.canWrite = permissions.length() >= 3 && permissions.charAt(2) == 'w';
-				results.canExecute = permissions.length() >= 4 && permissions.charAt(3) == 'x';
-				try {
-					results.length = Integer.parseInt(size);
-				} catch (NumberFormatException exc) {
-					logger.warn("Cannot parse length of " + this.getPath() + " from ls output: " + outputLine + ". Length will be reported as -1.", exc);
-				}
-			}
-		} else {
-			results.exists = false;
+		int errno = executeCommand(capturedOutput, CmdLine.build(NOCD_PSEUDO_COMMAND, "sh", "-c").addRaw(quoteForShell(FILE_ATTRIBUTES_SCRIPT))
+		        .addArgument("sh").addArgument(getPath()));
+		// Executing the command has invalidated all cached attributes, so the attributes are valid for the generation after it.
+		long generation = connection.getFileAttributesGeneration();
+		if (errno != 0) {
+			throw new RuntimeIOException("Cannot get attributes of " + this + ": " + capturedOutput.getError() + " (errno=" + errno + ")");
 		}
 
+		FileAttributes results = SshScpAttributesParser.parseFileAttributes(this, capturedOutput.getOutputLines(), generation);
 		if (logger.isDebugEnabled())
 			logger.debug("Listed file " + this + ": exists=" + results.exists + ", isDirectory=" + results.isDirectory + ", length=" + results.length
-			        + ", canRead=" + results.canRead + ", canWrite=" + results.canWrite + ", canExecute=" + results.canExecute);
+			        + ", lastModified=" + results.lastModified + ", canRead=" + results.canRead + ", canWrite=" + results.canWrite + ", canExecute="
+			        + results.canExecute);
 		return results;
 	}
 
 	/**
-	 * Holds results of an ls call
+	 * Snapshot of the attributes of a file. Permissions are those of the user that executes the commands, so they take the sudo user into account.
 	 */
-	public static class LsResults {
+	public static class FileAttributes {
 		public boolean exists;
 		public boolean isFile;
 		public boolean isDirectory;
 		public long length = -1;
+		public long lastModified = -1;
 
 		public boolean canRead;
 		public boolean canWrite;
 		public boolean canExecute;
+
+		final long retrievedAt = System.currentTimeMillis();
+		final long generation;
+		boolean listed;
+
+		FileAttributes(long generation) {
+			this.generation = generation;
+		}
 	}
 
+	/**
+	 * Opens a stream that reads straight from an <code>scp -f</code> command. Closing the stream before all contents have been read aborts the transfer.
+	 */
 	@Override
 	public InputStream getInputStream() throws RuntimeIOException {
-
-        try {
-            final File tempFile = File.createTempFile("scp_download", ".tmp");
-            tempFile.deleteOnExit();
-
-            logger.debug("Downloading contents of {} to temporary file {}", this, tempFile);
-            connection.getSshClient().newSCPFileTransfer().download(getPath(), tempFile.getPath());
-
-            logger.debug("Opening input stream to temporary file {} to retrieve contents download from {}. Temporary file will be deleted when the stream is closed", tempFile, this);
-            return new FileInputStream(tempFile) {
-                @Override
-                public void close() throws IOException {
-                    try {
-                        super.close();
-                    } finally {
-                    	logger.debug("Removing temporary file {}", tempFile);
-                        tempFile.delete();
-                    }
-
-                }
-            };
-        } catch (IOException e) {
-            throw new RuntimeIOException("Cannot open " + this + " for reading: " + e.toString(), e);
-        }
+		logger.debug("Opening scp input stream to read from {}", this);
+		try {
+			return new SshScpInputStream(this);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Cannot open " + this + " for reading: " + e.toString(), e);
+		}
 	}
 
+	/**
+	 * Opens a stream that collects the contents in memory, or in a local temporary file once there are more than {@link #UPLOAD_MEMORY_BUFFER_SIZE} bytes,
+	 * and uploads them when the stream is closed. Use {@link #getOutputStream(long)} to upload contents of a known length without buffering them.
+	 */
 	@Override
 	public OutputStream getOutputStream() throws RuntimeIOException {
-        try {
-            final File tempFile = File.createTempFile("scp_upload", ".tmp");
-            tempFile.deleteOnExit();
-
-            logger.debug("Opening output stream to temporary file {} to store contents to be uploaded to {} when the stream is closed", tempFile, this);
-            return new FileOutputStream(tempFile) {
-                @Override
-                public void close() throws IOException {
-                    try {
-                        super.close();
-                    } finally {
-                        uploadAndDelete(tempFile);
-                    }
-                }
+		logger.debug("Opening buffered scp output stream to write to {}", this);
+		return new BufferedUploadOutputStream();
+	}
 
-                private void uploadAndDelete(File tempFile) throws IOException {
-                    logger.debug("Uploading contents of temporary file {} to to {}", tempFile, this);
-                    try {
-                        connection.getSshClient().newSCPFileTransfer().upload(tempFile.getPath(), getPath());
-                    } finally {
-                    	logger.debug("Removing temporary file {}", tempFile);
-                        tempFile.delete();
-                    }
-                }
-            };
-        } catch (IOException e) {
-            throw new RuntimeIOException("Cannot open " + this + " for reading: " + e.toString(), e);
-        }
+	/**
+	 * Opens a stream that writes straight to an <code>scp -t</code> command. Closing the stream before exactly <code>length</code> bytes have been written
+	 * fails.
+	 */
+	@Override
+	public OutputStream getOutputStream(long length) throws RuntimeIOException {
+		if (length < 0) {
+			return getOutputStream();
+		}
+
+		logger.debug("Opening scp output stream to write {} bytes to {}", length, this);
+		invalidateFileInfo();
+		try {
+			return new SshScpOutputStream(this, length);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Cannot open " + this + " for writing: " + e.toString(), e);
+		}
+	}
+
+	/**
+	 * Buffers contents of which the length is not known up front.
+	 */
+	private class BufferedUploadOutputStream extends OutputStream {
+
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private File spillFile;
+
+		private OutputStream spillStream;
+
+		private long length;
+
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (spillStream == null && buffer.size() + len > UPLOAD_MEMORY_BUFFER_SIZE) {
+				spillFile = File.createTempFile("scp_upload", ".tmp");
+				spillFile.deleteOnExit();
+				logger.debug("Contents to be uploaded to {} exceed {} bytes, storing them in temporary file {}", new Object[] { SshScpFile.this,
+				        UPLOAD_MEMORY_BUFFER_SIZE, spillFile });
+				spillStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+				buffer.writeTo(spillStream);
+				buffer = null;
+			}
+			if (spillStream != null) {
+				spillStream.write(b, off, len);
+			} else {
+				buffer.write(b, off, len);
+			}
+			length += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			InputStream contents = null;
+			try {
+				if (spillStream != null) {
+					spillStream.close();
+					contents = new FileInputStream(spillFile);
+				} else {
+					contents = new ByteArrayInputStream(buffer.toByteArray());
+				}
+
+				OutputStream upload = getOutputStream(length);
+				boolean threw = true;
+				try {
+					ByteStreams.copy(contents, upload);
+					threw = false;
+				} finally {
+					Closeables.close(upload, threw);
+				}
+			} finally {
+				Closeables.closeQuietly(contents);
+				if (spillFile != null) {
+					logger.debug("Removing temporary file {}", spillFile);
+					spillFile.delete();
+				}
+			}
+		}
 	}
 
 	@Override
@@ -247,6 +379,38 @@ class SshScpFile extends SshFile<SshScpConnection> {
 		return files;
 	}
 
+	/**
+	 * Lists the whole tree with one <code>find</code> command, or with <code>ls -lR</code> if <code>find</code> does not support <code>-printf</code>. The
+	 * attributes of the listed files are cached like those retrieved by {@link #getFileInfo()}. Hidden files are skipped, like in {@link #listFiles()}.
+	 */
+	@Override
+	public List<OverthereFile> listFilesRecursively() {
+		logger.debug("Listing directory {} recursively", this);
+
+		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
+		int errno = executeCommand(capturedOutput, CmdLine.build(NOCD_PSEUDO_COMMAND, "sh", "-c").addRaw(quoteForShell(LIST_FILES_RECURSIVELY_SCRIPT))
+		        .addArgument("sh").addArgument(getPath()));
+		long generation = connection.getFileAttributesGeneration();
+		if (errno != 0) {
+			throw new RuntimeIOException("Cannot list directory " + this + " recursively: " + capturedOutput.getError() + " (errno=" + errno + ")");
+		}
+
+		Map<String, FileAttributes> entries = SshScpAttributesParser.parseRecursiveListing(this, getPath(), capturedOutput.getOutputLines(), generation);
+		if (entries == null) {
+			throw new RuntimeIOException("Cannot list directory " + this + " recursively from output: " + capturedOutput.getOutput());
+		}
+
+		List<OverthereFile> files = newArrayList();
+		for (Map.Entry<String, FileAttributes> entry : entries.entrySet()) {
+			SshScpFile file = (SshScpFile) getFile(entry.getKey());
+			if (connection.fileAttributesCacheMillis > 0) {
+				file.cachedAttributes = entry.getValue();
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
 	public void mkdir() {
 		logger.debug("Creating directory {}", this);
 
@@ -260,6 +424,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	}
 
 	protected void mkdir(String... mkdirOptions) throws RuntimeIOException {
+		invalidateFileInfo();
 		CmdLine commandLine = CmdLine.build(NOCD_PSEUDO_COMMAND, "mkdir");
 		for (String opt : mkdirOptions) {
 			commandLine.addArgument(opt);
@@ -284,6 +449,8 @@ class SshScpFile extends SshFile<SshScpConnection> {
 		if (dest instanceof SshScpFile) {
 			SshScpFile sshScpDestFile = (SshScpFile) dest;
 			if (sshScpDestFile.getConnection() == getConnection()) {
+				invalidateFileInfo();
+				sshScpDestFile.invalidateFileInfo();
 				CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
 				int errno = executeCommand(multiHandler(loggingHandler(logger), capturedOutput), CmdLine.build(NOCD_PSEUDO_COMMAND, "mv", getPath(), sshScpDestFile.getPath()));
 				if (errno != 0) {
@@ -303,6 +470,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	public void setExecutable(boolean executable) {
 		logger.debug("Setting execute permission on {} to {}", this, executable);
  
+		invalidateFileInfo();
 		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
 		int errno = executeCommand(multiHandler(loggingHandler(logger), capturedOutput), CmdLine.build(NOCD_PSEUDO_COMMAND, "chmod", executable ? "a+x" : "a-x", getPath()));
 		if (errno != 0) {
@@ -313,6 +481,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	@Override
 	protected void deleteDirectory() {
 		logger.debug("Deleting directory {}", this);
+		invalidateFileInfo();
 
 		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
 		int errno = executeCommand(multiHandler(loggingHandler(logger), capturedOutput), CmdLine.build(NOCD_PSEUDO_COMMAND, "rmdir", getPath()));
@@ -324,6 +493,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	@Override
 	protected void deleteFile() {
 		logger.debug("Deleting file {}", this);
+		invalidateFileInfo();
 
 		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
 		int errno = executeCommand(multiHandler(loggingHandler(logger), capturedOutput), CmdLine.build(NOCD_PSEUDO_COMMAND, "rm", "-f", getPath()));
@@ -335,6 +505,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 	@Override
 	public void deleteRecursively() throws RuntimeIOException {
 		logger.debug("Recursively deleting file or directory {}", this);
+		invalidateFileInfo();
 
 			CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
 		int errno = executeCommand(multiHandler(loggingHandler(logger), capturedOutput), CmdLine.build(NOCD_PSEUDO_COMMAND, "rm", "-rf", getPath()));
@@ -345,6 +516,15 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
 	@Override
     protected void copyFrom(OverthereFile source) {
+		if (canCopyFromWithTar(source)) {
+			copyFromWithTar(source);
+			return;
+		}
+		if (copyFromAsDelta(source)) {
+			invalidateFileInfo();
+			return;
+		}
+
 		logger.debug("Copying file or directory {} to {}", source, this);
 
         SCPUploadClient uploadClient = connection.getSshClient().newSCPFileTransfer().newSCPUploadClient();
@@ -359,15 +539,262 @@ class SshScpFile extends SshFile<SshScpConnection> {
             }
         } catch (IOException e) {
         	throw new RuntimeIOException("Cannot copy " + source + " to " + this + ": " + e.toString(), e);
+        } finally {
+            invalidateFileInfo();
         }
     }
 
+	/**
+	 * Returns whether the source directory can be copied into this directory as one tar archive. That is not possible when the source is on this connection
+	 * and the connection allows only one session, because the extract command holds that session while the source would have to be read through it.
+	 */
+	protected boolean canCopyFromWithTar(OverthereFile source) {
+		if (!connection.canTransferWithTar()) {
+			return false;
+		}
+		if (source instanceof SshScpFile && ((SshScpFile) source).getConnection() == connection && connection.maxConcurrentSessions == 1) {
+			return false;
+		}
+		return source.isDirectory();
+	}
+
+	/**
+	 * Copies the contents of the source directory into this directory as one tar archive extracted by a single command. When the source is a directory on a
+	 * Unix host connected through SSH w/ SCP as well, the archive is created by a tar command on that host and piped through; otherwise it is written here.
+	 */
+	void copyFromWithTar(OverthereFile source) {
+		logger.debug("Copying directory {} to {} as a tar archive", source, this);
+
+		boolean compress = connection.tarCompression;
+		SshStreamProcess extract = new SshStreamProcess(startProcess(build(NOCD_PSEUDO_COMMAND, "sh", "-c")
+		        .addRaw(quoteForShell(String.format(TAR_EXTRACT_SCRIPT, compress ? "z" : ""))).addArgument("sh").addArgument(getPath())), false);
+		try {
+			if (canPipeTarFrom(source)) {
+				SshScpFile sourceDir = (SshScpFile) source;
+				SshStreamProcess create = sourceDir.startTarCreate(compress);
+				try {
+					ByteStreams.copy(create.getStdout(), extract.getStdin());
+					create.complete("Cannot create tar archive of " + sourceDir);
+				} finally {
+					create.destroyUnlessCompleted();
+				}
+			} else {
+				OutputStream out = compress ? new GZIPOutputStream(extract.getStdin(), TAR_BUFFER_SIZE) : new BufferedOutputStream(extract.getStdin(),
+				        TAR_BUFFER_SIZE);
+				TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+				writeTarEntries(source, tar);
+				tar.close();
+			}
+			extract.complete("Cannot extract tar archive into " + this);
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot copy " + source + " to " + this + ": " + exc.toString(), exc);
+		} finally {
+			extract.destroyUnlessCompleted();
+			invalidateFileInfo();
+		}
+	}
+
+	/**
+	 * Copies the contents of this directory into a destination that is not on a host connected through SSH w/ SCP by extracting a tar archive created by a
+	 * single command. Destinations that are on such a host copy the directory themselves in {@link #copyFrom(OverthereFile)}.
+	 */
+	@Override
+	protected boolean copyDirectoryTo(BaseOverthereFile<?> dest) {
+		if (dest instanceof SshScpFile || !connection.canTransferWithTar() || !isDirectory()) {
+			return false;
+		}
+
+		logger.debug("Copying directory {} to {} as a tar archive", this, dest);
+
+		boolean compress = connection.tarCompression;
+		SshStreamProcess create = startTarCreate(compress);
+		try {
+			InputStream in = compress ? new GZIPInputStream(create.getStdout(), TAR_BUFFER_SIZE) : new BufferedInputStream(create.getStdout(), TAR_BUFFER_SIZE);
+			extractTarEntries(new TarArchiveInputStream(in), dest);
+			create.complete("Cannot create tar archive of " + this);
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot copy " + this + " to " + dest + ": " + exc.toString(), exc);
+		} finally {
+			create.destroyUnlessCompleted();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether a tar archive of the source directory can be created by a command on its host. {@link #canCopyFromWithTar(OverthereFile)} has already
+	 * ruled out that this command would have to wait for the only session of this connection.
+	 */
+	private boolean canPipeTarFrom(OverthereFile source) {
+		return source instanceof SshScpFile && ((SshScpFile) source).getConnection().canTransferWithTar();
+	}
+
+	private SshStreamProcess startTarCreate(boolean compress) {
+		return new SshStreamProcess(startProcess(build(NOCD_PSEUDO_COMMAND, "sh", "-c").addRaw(quoteForShell(String.format(TAR_CREATE_SCRIPT, compress ? "z" : "")))
+		        .addArgument("sh").addArgument(getPath())), true);
+	}
+
+	/**
+	 * Starts a process on the host of this file. Subclasses can override this method to change the command line of the process.
+	 */
+	protected OverthereProcess startProcess(CmdLine commandLine) {
+		return connection.startProcess(commandLine);
+	}
+
+	/**
+	 * Writes the files in the source directory and its subdirectories to the tar archive, with the modes returned by {@link #getTarMode(OverthereFile)}.
+	 */
+	private static void writeTarEntries(OverthereFile sourceDir, TarArchiveOutputStream tar) throws IOException {
+		Map<String, String> entryNames = newHashMap();
+		entryNames.put(sourceDir.getPath(), "");
+		for (OverthereFile f : sourceDir.listFilesRecursively()) {
+			String parentName = entryNames.get(f.getParentFile().getPath());
+			if (parentName == null) {
+				throw new IOException("Cannot determine the path of " + f + " relative to " + sourceDir);
+			}
+			String name = parentName + f.getName();
+			long mtime = f.lastModified() / 1000;
+			if (f.isDirectory()) {
+				entryNames.put(f.getPath(), name + "/");
+				tar.putDirectory(name, getTarMode(f), mtime);
+			} else {
+				long length = f.length();
+				tar.putFile(name, getTarMode(f), length, mtime);
+				InputStream in = f.getInputStream();
+				try {
+					byte[] buf = new byte[TAR_BUFFER_SIZE];
+					for (long remaining = length; remaining > 0;) {
+						int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+						if (n == -1) {
+							throw new IOException("Cannot add " + f + " to tar archive: the file is shorter than its length of " + length + " bytes");
+						}
+						tar.write(buf, 0, n);
+						remaining -= n;
+					}
+				} finally {
+					Closeables.closeQuietly(in);
+				}
+				tar.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Extracts the entries of the tar archive into the destination directory, creating it if needed. The modes in the archive are applied with
+	 * {@link #setTarMode(OverthereFile, int, boolean)}, to directories after all entries have been extracted so that a read-only directory can still be
+	 * filled. Hard links are extracted as copies of the files they link to, which precede them in the archive.
+	 */
+	static void extractTarEntries(TarArchiveInputStream tar, OverthereFile destDir) throws IOException {
+		if (destDir.exists()) {
+			if (!destDir.isDirectory()) {
+				throw new IOException("Destination directory " + destDir + " exists but is not a directory");
+			}
+		} else {
+			destDir.mkdir();
+		}
+
+		List<OverthereFile> dirs = newArrayList();
+		List<Integer> dirModes = newArrayList();
+		for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+			OverthereFile dest = resolveTarEntry(destDir, entry.getName());
+			if (dest == destDir) {
+				continue;
+			}
+
+			if (entry.isDirectory()) {
+				if (!dest.exists()) {
+					dest.mkdir();
+				}
+				dirs.add(dest);
+				dirModes.add(entry.getMode());
+			} else if (entry.isFile()) {
+				OutputStream out = ((BaseOverthereFile<?>) dest).getOutputStream(entry.getSize());
+				boolean threw = true;
+				try {
+					ByteStreams.copy(tar, out);
+					threw = false;
+				} finally {
+					Closeables.close(out, threw);
+				}
+				setTarMode(dest, entry.getMode(), false);
+			} else if (entry.isHardLink()) {
+				OverthereFile target = resolveTarEntry(destDir, entry.getLinkName());
+				if (target == destDir || !target.isFile()) {
+					logger.warn("Skipping tar entry {} because the file {} it links to has not been extracted", entry.getName(), entry.getLinkName());
+					continue;
+				}
+				target.copyTo(dest);
+				setTarMode(dest, entry.getMode(), false);
+			} else {
+				logger.warn("Skipping tar entry {} because it is neither a file, a directory nor a hard link", entry.getName());
+			}
+		}
+
+		// children before their parents
+		for (int i = dirs.size() - 1; i >= 0; i--) {
+			setTarMode(dirs.get(i), dirModes.get(i), true);
+		}
+	}
+
+	/**
+	 * Returns the mode to record in a tar archive for a file. Files on Unix hosts connected through SSH w/ SFTP keep their permission bits. Other files do not
+	 * expose them, so directories and executable files get mode <code>0755</code> and other files get mode <code>0644</code>.
+	 */
+	static int getTarMode(OverthereFile f) {
+		if (f instanceof SshSftpFile && f.getConnection().getHostOperatingSystem() == UNIX) {
+			return ((SshSftpFile) f).getPermissionsMask() & 07777;
+		}
+		return f.isDirectory() || f.canExecute() ? 0755 : 0644;
+	}
+
+	/**
+	 * Applies the mode of a tar entry to an extracted file or directory. Files on Unix hosts connected through SSH w/ SFTP get all its permission bits. Other
+	 * files can only be made executable, which is done when the owner execute bit is set.
+	 */
+	static void setTarMode(OverthereFile dest, int mode, boolean directory) {
+		if (dest instanceof SshSftpFile && dest.getConnection().getHostOperatingSystem() == UNIX) {
+			((SshSftpFile) dest).setPermissionsMask(mode & 07777);
+		} else if (!directory && (mode & 0100) != 0) {
+			dest.setExecutable(true);
+		}
+	}
+
+	private static OverthereFile resolveTarEntry(OverthereFile destDir, String name) throws IOException {
+		OverthereFile dest = destDir;
+		for (String part : name.split("/")) {
+			if (part.equals("..")) {
+				throw new IOException("Cannot extract tar entry " + name + " outside of " + destDir);
+			} else if (part.length() > 0 && !part.equals(".")) {
+				dest = dest.getFile(part);
+			}
+		}
+		return dest;
+	}
+
 	protected static class OverthereFileLocalSourceFile implements LocalSourceFile {
 
 		private OverthereFile f;
 
+		private final boolean isFile;
+
+		private final boolean isDirectory;
+
+		private final long length;
+
+		/**
+		 * The files in each directory of the tree by path, listed when the children of the root of the tree are first requested.
+		 */
+		private Map<String, List<LocalSourceFile>> listedFiles;
+
 		public OverthereFileLocalSourceFile(OverthereFile f) {
+			this(f, null);
+		}
+
+		private OverthereFileLocalSourceFile(OverthereFile f, Map<String, List<LocalSourceFile>> listedFiles) {
 			this.f = f;
+			this.isFile = f.isFile();
+			this.isDirectory = f.isDirectory();
+			this.length = isFile ? f.length() : 0;
+			this.listedFiles = listedFiles;
 		}
 
 		@Override
@@ -377,7 +804,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
 		@Override
         public long getLength() {
-	        return f.length();
+	        return length;
         }
 
 		@Override
@@ -387,28 +814,57 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
 		@Override
         public int getPermissions() throws IOException {
-	        return f.isDirectory() ? 0755 : 0644;
+	        return isDirectory ? 0755 : 0644;
         }
 
 		@Override
         public boolean isFile() {
-	        return f.isFile();
+	        return isFile;
         }
 
 		@Override
         public boolean isDirectory() {
-	        return f.isDirectory();
+	        return isDirectory;
         }
 
 		@Override
         public Iterable<? extends LocalSourceFile> getChildren(LocalFileFilter filter) throws IOException {
-	         List<LocalSourceFile> files = newArrayList();
-	         for(OverthereFile each: f.listFiles()) {
-	        	 files.add(new OverthereFileLocalSourceFile(each));
-	         }
-	         return files;
+			if (listedFiles == null) {
+				listedFiles = listFilesRecursively(f);
+			}
+			List<LocalSourceFile> files = listedFiles.get(f.getPath());
+			if (files == null) {
+				files = newArrayList();
+				for (OverthereFile each : f.listFiles()) {
+					files.add(new OverthereFileLocalSourceFile(each, listedFiles));
+				}
+			}
+			return files;
         }
 
+		/**
+		 * Lists the tree under a directory in one go and wraps the files while their attributes are fresh. Directories whose files cannot be arranged
+		 * by path are left out, so that they are listed separately.
+		 */
+		private static Map<String, List<LocalSourceFile>> listFilesRecursively(OverthereFile directory) {
+			Map<String, List<LocalSourceFile>> listedFiles = newHashMap();
+			listedFiles.put(directory.getPath(), new ArrayList<LocalSourceFile>());
+			for (OverthereFile each : directory.listFilesRecursively()) {
+				OverthereFileLocalSourceFile file = new OverthereFileLocalSourceFile(each, listedFiles);
+				if (file.isDirectory) {
+					listedFiles.put(each.getPath(), new ArrayList<LocalSourceFile>());
+				}
+				OverthereFile parent = each.getParentFile();
+				List<LocalSourceFile> siblings = parent == null ? null : listedFiles.get(parent.getPath());
+				if (siblings == null) {
+					listedFiles.clear();
+					return listedFiles;
+				}
+				siblings.add(file);
+			}
+			return listedFiles;
+		}
+
 		@Override
         public boolean providesAtimeMtime() {
 	        return false;
@@ -426,7 +882,7 @@ class SshScpFile extends SshFile<SshScpConnection> {
 		
 	}
 
-	private Logger logger = LoggerFactory.getLogger(SshScpFile.class);
+	private static Logger logger = LoggerFactory.getLogger(SshScpFile.class);
 
 }
 
@@ -0,0 +1,170 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * An input stream that reads the contents of a file on a host connected through SSH straight from an <code>scp -f</code> command, without storing it in a
+ * local temporary file first.
+ */
+class SshScpInputStream extends InputStream {
+
+	private final SshScpFile file;
+
+	private final Session session;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private long remaining;
+
+	private boolean closed;
+
+	public SshScpInputStream(SshScpFile file) throws IOException {
+		this.file = file;
+		SshScpConnection connection = file.getConnection();
+		session = connection.openSession();
+		boolean opened = false;
+		try {
+			Session.Command command = session.exec(CmdLine.build("scp", "-f", file.getPath()).toCommandLine(connection.getHostOperatingSystem(), false));
+			in = command.getInputStream();
+			out = command.getOutputStream();
+			sendAck(out);
+			for (;;) {
+				int c = in.read();
+				if (c == 'T') {
+					// Modification and access times, only sent when scp is started with -p
+					readLine(in);
+					sendAck(out);
+				} else if (c == 'C') {
+					String[] header = readLine(in).split(" ", 3);
+					if (header.length < 3) {
+						throw new IOException("Cannot parse the scp header of " + file);
+					}
+					remaining = Long.parseLong(header[1]);
+					sendAck(out);
+					break;
+				} else {
+					checkAck(c, in);
+					throw new IOException("Unexpected acknowledgement from scp for " + file);
+				}
+			}
+			opened = true;
+		} finally {
+			if (!opened) {
+				connection.closeSessionQuietly(session);
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("Unexpected end of the scp stream of " + file + " with " + remaining + " bytes left");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	/**
+	 * Completes the transfer if all contents have been read and aborts it otherwise.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			if (remaining == 0) {
+				checkAck(in.read(), in);
+				sendAck(out);
+			}
+		} finally {
+			file.getConnection().closeSession(session);
+		}
+	}
+
+	static void sendAck(OutputStream out) throws IOException {
+		out.write(0);
+		out.flush();
+	}
+
+	static void checkAck(InputStream in) throws IOException {
+		checkAck(in.read(), in);
+	}
+
+	/**
+	 * Checks a response code of the scp protocol: <code>0</code> is OK, <code>1</code> and <code>2</code> are followed by an error message.
+	 */
+	private static void checkAck(int c, InputStream in) throws IOException {
+		switch (c) {
+		case 0:
+			return;
+		case -1:
+			throw new EOFException("Unexpected end of the scp stream");
+		case 1:
+		case 2:
+			throw new IOException("scp: " + readLine(in));
+		default:
+			throw new IOException("Unexpected response '" + (char) c + readLine(in) + "' from scp");
+		}
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (;;) {
+			int c = in.read();
+			if (c < 0 || c == '\n') {
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.xebialabs.overthere.ssh.SshScpInputStream.checkAck;
+import static com.xebialabs.overthere.ssh.SshScpInputStream.sendAck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * An output stream that writes the contents of a file on a host connected through SSH straight to an <code>scp -t</code> command. The length of the
+ * contents has to be known up front, because the scp protocol announces it before the contents.
+ */
+class SshScpOutputStream extends OutputStream {
+
+	private final SshScpFile file;
+
+	private final long length;
+
+	private final Session session;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private long written;
+
+	private boolean closed;
+
+	public SshScpOutputStream(SshScpFile file, long length) throws IOException {
+		this.file = file;
+		this.length = length;
+		SshScpConnection connection = file.getConnection();
+		session = connection.openSession();
+		boolean opened = false;
+		try {
+			Session.Command command = session.exec(CmdLine.build("scp", "-t", file.getPath()).toCommandLine(connection.getHostOperatingSystem(), false));
+			in = command.getInputStream();
+			out = new SshChannelOutputStream(command.getOutputStream(), command.getRemoteMaxPacketSize());
+			checkAck(in);
+			out.write(("C0644 " + length + " " + file.getName() + "\n").getBytes("UTF-8"));
+			out.flush();
+			checkAck(in);
+			opened = true;
+		} finally {
+			if (!opened) {
+				connection.closeSessionQuietly(session);
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > length - written) {
+			throw new IOException("Cannot write more than the announced " + length + " bytes to " + file);
+		}
+		out.write(b, off, len);
+		written += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Completes the transfer if all announced bytes have been written and aborts it otherwise.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			if (written != length) {
+				throw new IOException("Cannot complete upload to " + file + ": only " + written + " of the announced " + length + " bytes were written");
+			}
+			sendAck(out);
+			checkAck(in);
+		} finally {
+			file.invalidateFileInfo();
+			file.getConnection().closeSession(session);
+		}
+	}
+
+}
@@ -17,27 +17,77 @@
 
 package com.xebialabs.overthere.ssh;
 
+import com.google.common.io.Closeables;
+import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.ParallelTransferSupport;
+import net.schmizz.sshj.sftp.FileAttributes;
 import net.schmizz.sshj.sftp.SFTPClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.FILE_ATTRIBUTES_CACHE_MILLIS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.FILE_ATTRIBUTES_CACHE_MILLIS_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_CHUNK_SIZE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_CHUNK_SIZE_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT;
 
 /**
  * Base class for connections to a remote host using SSH w/ SFTP.
  */
-abstract class SshSftpConnection extends SshConnection {
+abstract class SshSftpConnection extends SshConnection implements ParallelTransferSupport {
+
+	/**
+	 * The maximum number of entries in the file attributes cache of a connection; the least recently used entries are evicted first.
+	 */
+	static final int FILE_ATTRIBUTES_CACHE_SIZE = 10000;
 
 	private SFTPClient sharedSftpClient;
 
+	protected final int fileAttributesCacheMillis;
+
+	protected final int sftpChunkSize;
+
+	protected final int sftpMaxOutstandingRequests;
+
+	private final Map<String, CachedFileAttributes> fileAttributesCache = new LinkedHashMap<String, CachedFileAttributes>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedFileAttributes> eldest) {
+			return size() > FILE_ATTRIBUTES_CACHE_SIZE;
+		}
+	};
+
+	private final AtomicLong fileAttributesGeneration = new AtomicLong();
+
+	private final List<SFTPClient> transferSftpClients = new CopyOnWriteArrayList<SFTPClient>();
+
+	private final AtomicInteger nextTransferSftpClient = new AtomicInteger();
+
 	public SshSftpConnection(String type, ConnectionOptions options, AddressPortMapper mapper) {
 		super(type, options, mapper);
+		this.fileAttributesCacheMillis = options.get(FILE_ATTRIBUTES_CACHE_MILLIS, FILE_ATTRIBUTES_CACHE_MILLIS_DEFAULT);
+		this.sftpChunkSize = options.get(SFTP_CHUNK_SIZE, SFTP_CHUNK_SIZE_DEFAULT);
+		checkArgument(sftpChunkSize > 0, "Value for " + SFTP_CHUNK_SIZE + " [%s] must be positive", sftpChunkSize);
+		this.sftpMaxOutstandingRequests = options.get(SFTP_MAX_OUTSTANDING_REQUESTS, SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT);
+		checkArgument(sftpMaxOutstandingRequests > 0, "Value for " + SFTP_MAX_OUTSTANDING_REQUESTS + " [%s] must be positive", sftpMaxOutstandingRequests);
 	}
 
 	@Override
@@ -46,7 +96,7 @@ abstract class SshSftpConnection extends SshConnection {
 		
 	    logger.debug("Opening SFTP client to {}", this);
 	    try {
-	        sharedSftpClient = getSshClient().newSFTPClient();
+	        sharedSftpClient = newSftpClient();
 	    } catch (IOException e) {
 	        throw new RuntimeIOException("Cannot make SFTP connection to " + this, e);
 	    }
@@ -67,17 +117,182 @@ abstract class SshSftpConnection extends SshConnection {
         super.doClose();
 	}
 
+	/**
+	 * Opens an SFTP client of which the files are read and written with several requests outstanding at the same time.
+	 */
+	private SFTPClient newSftpClient() throws IOException {
+		return new SFTPClient(new SshSftpEngine(getSshClient()).init());
+	}
+
     protected SFTPClient getSharedSftpClient() {
 		return sharedSftpClient;
 	}
 
+	/**
+	 * Returns the SFTP client to transfer the contents of a file with. While {@link #openTransferChannels(int) transfer channels} are open, the transfers
+	 * are spread over those and the shared SFTP client.
+	 */
+	protected SFTPClient getTransferSftpClient() {
+		List<SFTPClient> clients = newArrayList(transferSftpClients);
+		if (clients.isEmpty()) {
+			return sharedSftpClient;
+		}
+		int i = (nextTransferSftpClient.getAndIncrement() & Integer.MAX_VALUE) % (clients.size() + 1);
+		return i == 0 ? sharedSftpClient : clients.get(i - 1);
+	}
+
+	/**
+	 * Opens an extra SFTP client for each transfer but the first, limited by the {@link SshConnectionBuilder#MAX_CONCURRENT_SESSIONS maximum number of
+	 * concurrent sessions} if one is set.
+	 */
+	@Override
+	public Closeable openTransferChannels(int parallelism) {
+		int extraClients = parallelism - 1;
+		if (maxConcurrentSessions > 0) {
+			extraClients = Math.min(extraClients, maxConcurrentSessions - 1);
+		}
+
+		final List<SFTPClient> opened = newArrayList();
+		for (int i = 0; i < extraClients; i++) {
+			try {
+				opened.add(newSftpClient());
+			} catch (IOException e) {
+				logger.warn("Cannot open extra SFTP client to " + this + ", continuing with " + (i + 1) + " SFTP clients", e);
+				break;
+			}
+		}
+		logger.debug("Opened {} extra SFTP clients to {}", opened.size(), this);
+		transferSftpClients.addAll(opened);
+
+		return new Closeable() {
+			@Override
+			public void close() {
+				transferSftpClients.removeAll(opened);
+				logger.debug("Closing {} extra SFTP clients to {}", opened.size(), SshSftpConnection.this);
+				for (SFTPClient client : opened) {
+					Closeables.closeQuietly(client);
+				}
+			}
+		};
+	}
+
 	@Override
 	public OverthereFile getFile(String hostPath, boolean isTempFile) throws RuntimeIOException {
 		return new SshSftpFile(this, hostPath);
 	}
 
+	@Override
+	protected OverthereProcess doStartProcess(CmdLine cmd) {
+		invalidateAllFileAttributes();
+		return super.doStartProcess(cmd);
+	}
+
+	/**
+	 * Returns the cached attributes of a file if they are still valid.
+	 *
+	 * @param sftpPath
+	 *            the SFTP path of the file.
+	 * @return the cached attributes or <code>null</code> if no valid attributes are cached for the file.
+	 */
+	CachedFileAttributes getCachedFileAttributes(String sftpPath) {
+		synchronized (fileAttributesCache) {
+			CachedFileAttributes cached = fileAttributesCache.get(sftpPath);
+			if (cached != null && System.currentTimeMillis() - cached.retrievedAt >= fileAttributesCacheMillis) {
+				fileAttributesCache.remove(sftpPath);
+				return null;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Caches the attributes of a file.
+	 *
+	 * @param sftpPath
+	 *            the SFTP path of the file.
+	 * @param attributes
+	 *            the attributes of the file or <code>null</code> if the file does not exist.
+	 * @return the cache entry, which can be kept by the file and checked with {@link #isValid(CachedFileAttributes)}.
+	 */
+	CachedFileAttributes cacheFileAttributes(String sftpPath, FileAttributes attributes) {
+		CachedFileAttributes cached = new CachedFileAttributes(attributes, fileAttributesGeneration.get());
+		if (fileAttributesCacheMillis > 0) {
+			synchronized (fileAttributesCache) {
+				fileAttributesCache.put(sftpPath, cached);
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Checks whether attributes kept by a file are still valid, i.e. they have not expired and no file has been changed since they were retrieved.
+	 */
+	boolean isValid(CachedFileAttributes cached) {
+		return cached.generation == fileAttributesGeneration.get() && System.currentTimeMillis() - cached.retrievedAt < fileAttributesCacheMillis;
+	}
+
+	/**
+	 * Discards the cached attributes of a file and of its parent directories, because those change when the file is created, modified or deleted.
+	 *
+	 * @param sftpPath
+	 *            the SFTP path of the file.
+	 * @param recursive
+	 *            <code>true</code> to also discard the cached attributes of the files in the directory, if the file is a directory.
+	 */
+	void invalidateFileAttributes(String sftpPath, boolean recursive) {
+		fileAttributesGeneration.incrementAndGet();
+		synchronized (fileAttributesCache) {
+			if (fileAttributesCache.isEmpty()) {
+				return;
+			}
+
+			if (recursive) {
+				String prefix = sftpPath.endsWith("/") ? sftpPath : sftpPath + "/";
+				for (Iterator<String> it = fileAttributesCache.keySet().iterator(); it.hasNext();) {
+					if (it.next().startsWith(prefix)) {
+						it.remove();
+					}
+				}
+			}
+
+			String path = sftpPath;
+			for (;;) {
+				fileAttributesCache.remove(path);
+				int lastSlash = path.lastIndexOf('/', path.length() - 2);
+				if (lastSlash < 0) {
+					break;
+				}
+				path = path.substring(0, lastSlash == 0 ? 1 : lastSlash);
+			}
+		}
+	}
+
+	/**
+	 * Discards all cached file attributes. Invoked when a command is executed, because that may change any file.
+	 */
+	void invalidateAllFileAttributes() {
+		fileAttributesGeneration.incrementAndGet();
+		synchronized (fileAttributesCache) {
+			fileAttributesCache.clear();
+		}
+	}
+
 	protected abstract String pathToSftpPath(String path);
 
+	/**
+	 * The attributes of a file as retrieved at a certain time.
+	 */
+	static class CachedFileAttributes {
+		final FileAttributes attributes;
+		final long retrievedAt = System.currentTimeMillis();
+		final long generation;
+
+		CachedFileAttributes(FileAttributes attributes, long generation) {
+			this.attributes = attributes;
+			this.generation = generation;
+		}
+	}
+
     private Logger logger = LoggerFactory.getLogger(SshSftpConnection.class);
 
 }
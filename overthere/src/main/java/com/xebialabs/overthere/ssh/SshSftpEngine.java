@@ -0,0 +1,79 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.common.SSHException;
+import net.schmizz.sshj.connection.channel.direct.SessionFactory;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+import net.schmizz.sshj.sftp.SFTPPacket;
+
+/**
+ * An SFTP engine that can send a request without waiting for its response, so that several reads or writes of a file can be outstanding at the same time.
+ * The files it opens are {@link SshSftpRemoteFile}s.
+ */
+class SshSftpEngine extends SFTPEngine {
+
+	private final OutputStream channelOut;
+
+	public SshSftpEngine(SessionFactory sessionFactory) throws SSHException {
+		super(sessionFactory);
+		channelOut = new SshChannelOutputStream(out, sub.getRemoteMaxPacketSize());
+	}
+
+	/**
+	 * Sends the request and returns the promise of its response.
+	 */
+	public Promise<Response, SFTPException> sendRequest(Request request) throws IOException {
+		reader.expectResponseTo(request);
+		transmit(request);
+		return request.getResponsePromise();
+	}
+
+	/**
+	 * Writes the packet through an {@link SshChannelOutputStream}, because packets of large writes do not fit in one packet of the channel.
+	 */
+	@Override
+	protected synchronized void transmit(SFTPPacket<Request> payload) throws IOException {
+		int len = payload.available();
+		channelOut.write(len >>> 24 & 0xff);
+		channelOut.write(len >>> 16 & 0xff);
+		channelOut.write(len >>> 8 & 0xff);
+		channelOut.write(len & 0xff);
+		channelOut.write(payload.array(), payload.rpos(), len);
+		channelOut.flush();
+	}
+
+	@Override
+	public SshSftpRemoteFile open(String path, Set<OpenMode> modes, FileAttributes fa) throws IOException {
+		Request request = newRequest(PacketType.OPEN).putString(path).putUInt32(OpenMode.toMask(modes)).putFileAttributes(fa);
+		String handle = doRequest(request).ensurePacketTypeIs(PacketType.HANDLE).readString();
+		return new SshSftpRemoteFile(this, path, handle);
+	}
+
+}
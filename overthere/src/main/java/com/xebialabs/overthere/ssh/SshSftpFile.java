@@ -17,9 +17,9 @@
 
 package com.xebialabs.overthere.ssh;
 
-import com.google.common.io.Closeables;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.ssh.SshSftpConnection.CachedFileAttributes;
 import net.schmizz.sshj.sftp.*;
 import net.schmizz.sshj.xfer.FilePermission;
 import org.slf4j.Logger;
@@ -38,6 +38,8 @@ import static com.google.common.collect.Sets.newHashSet;
  */
 class SshSftpFile extends SshFile<SshSftpConnection> {
 
+	private CachedFileAttributes cachedAttributes;
+
 	public SshSftpFile(SshSftpConnection connection, String path) {
 		super(connection, path);
 	}
@@ -47,10 +49,18 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 	}
 
 	public boolean exists() {
+		CachedFileAttributes cached = getCachedAttributes();
+		if (cached != null) {
+			return cached.attributes != null;
+		}
+
 		logger.debug("Checking file " + this + " for existence");
 
 		try {
-            return connection.getSharedSftpClient().statExistence(getSftpPath()) != null;
+			String sftpPath = getSftpPath();
+			FileAttributes attributes = connection.getSharedSftpClient().statExistence(sftpPath);
+			cachedAttributes = connection.cacheFileAttributes(sftpPath, attributes);
+			return attributes != null;
         } catch (IOException e) {
 			throw new RuntimeIOException("Cannot check existence of file " + getPath(), e);
 		}
@@ -68,7 +78,7 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 
 	@Override
 	public long lastModified() {
-		return stat().getMtime();
+		return stat().getMtime() * 1000;
 	}
 
 	@Override
@@ -96,15 +106,38 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     }
 
 	protected FileAttributes stat() {
+		CachedFileAttributes cached = getCachedAttributes();
+		if (cached != null && cached.attributes != null) {
+			return cached.attributes;
+		}
+
 		logger.debug("Statting file " + this);
 
 		try {
-            return connection.getSharedSftpClient().stat(getSftpPath());
+			String sftpPath = getSftpPath();
+			FileAttributes attributes = connection.getSharedSftpClient().stat(sftpPath);
+			cachedAttributes = connection.cacheFileAttributes(sftpPath, attributes);
+			return attributes;
 		} catch (IOException e) {
             throw new RuntimeIOException("Cannot stat file " + this, e);
         }
     }
 
+	private CachedFileAttributes getCachedAttributes() {
+		if (cachedAttributes == null || !connection.isValid(cachedAttributes)) {
+			cachedAttributes = connection.getCachedFileAttributes(getSftpPath());
+		}
+		return cachedAttributes;
+	}
+
+	/**
+	 * Discards the cached attributes of this file, of its parent directories and, if <code>recursive</code> is <code>true</code>, of the files in it.
+	 */
+	protected void invalidateAttributes(boolean recursive) {
+		cachedAttributes = null;
+		connection.invalidateFileAttributes(getSftpPath(), recursive);
+	}
+
 	@Override
 	public List<OverthereFile> listFiles() {
 		logger.debug("Listing files in {}", this);
@@ -120,7 +153,13 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 				if (filename.equals(".") || filename.equals("..")) {
 					continue;
 				}
-				files.add(getFile(filename));
+				SshSftpFile file = (SshSftpFile) getFile(filename);
+				// The listing contains the attributes of symbolic links themselves, while stat() follows them
+				FileAttributes attributes = l.getAttributes();
+				if (attributes.has(FileAttributes.Flag.MODE) && attributes.getType() != FileMode.Type.SYMKLINK) {
+					file.cachedAttributes = connection.cacheFileAttributes(file.getSftpPath(), attributes);
+				}
+				files.add(file);
 			}
 
 			return files;
@@ -137,7 +176,9 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
             connection.getSharedSftpClient().mkdir(getSftpPath());
 		} catch (IOException e) {
             throw new RuntimeIOException("Cannot create directory " + this, e);
-        }
+        } finally {
+			invalidateAttributes(false);
+		}
     }
 
 	@Override
@@ -147,7 +188,9 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
             connection.getSharedSftpClient().mkdirs(getSftpPath());
         } catch (IOException e) {
             throw new RuntimeIOException("Cannot create directories " + this, e);
-        }
+        } finally {
+			invalidateAttributes(false);
+		}
 	}
 
 	@Override
@@ -161,7 +204,10 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 					connection.getSharedSftpClient().rename(getSftpPath(), sftpDest.getSftpPath());
 				} catch (IOException e) {
                     throw new RuntimeIOException("Cannot move/rename file/directory " + this + " to " + dest, e);
-                }
+                } finally {
+					invalidateAttributes(true);
+					sftpDest.invalidateAttributes(true);
+				}
             } else {
 				throw new RuntimeIOException("Cannot move/rename ssh:" + connection.sshConnectionType.toString().toLowerCase() + ": file/directory " + this + " to file/directory "
 				        + dest + " because it is in a different connection");
@@ -172,6 +218,28 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 		}
 	}
 
+	/**
+	 * Returns the permission bits of this file as stored on the host, including the setuid, setgid and sticky bits.
+	 */
+	int getPermissionsMask() {
+		return stat().getMode().getPermissionsMask();
+	}
+
+	/**
+	 * Sets the permission bits of this file.
+	 */
+	void setPermissionsMask(int permissionsMask) {
+		logger.debug("Setting permissions of {} to {}", this, Integer.toOctalString(permissionsMask));
+
+		try {
+			connection.getSharedSftpClient().chmod(getSftpPath(), permissionsMask);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Cannot set permissions of file " + this, e);
+		} finally {
+			invalidateAttributes(false);
+		}
+	}
+
 	@Override
 	public void setExecutable(boolean executable) {
 		logger.debug("Setting execute permission on {} to {}", this, executable);
@@ -186,7 +254,9 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 			connection.getSharedSftpClient().chmod(path, permissionsMask);
 		} catch (IOException e) {
             throw new RuntimeIOException("Cannot delete file " + this, e);
-        }
+        } finally {
+			invalidateAttributes(false);
+		}
 	}
 
 	@Override
@@ -197,7 +267,9 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
             connection.getSharedSftpClient().rm(getSftpPath());
 		} catch (IOException e) {
             throw new RuntimeIOException("Cannot delete file " + this, e);
-        }
+        } finally {
+			invalidateAttributes(false);
+		}
     }
 
 	@Override
@@ -208,7 +280,9 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
             connection.getSharedSftpClient().rmdir(getSftpPath());
 		} catch (IOException e) {
             throw new RuntimeIOException("Cannot delete directory " + this, e);
-        }
+        } finally {
+			invalidateAttributes(true);
+		}
     }
 
 	@Override
@@ -216,59 +290,10 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 		logger.debug("Opening SFTP input stream to read from file {}", this);
 
         try {
-	        final RemoteFile remoteFile = connection.getSharedSftpClient().open(getSftpPath(), newHashSet(OpenMode.READ));
-	        final RemoteFile.RemoteFileInputStream stream = remoteFile.getInputStream();
-	        return new InputStream() {
-
-		        @Override
-		        public int read() throws IOException {
-			        return stream.read();
-		        }
-
-		        @Override
-		        public int read(byte[] b) throws IOException {
-			        return stream.read(b);
-		        }
-
-		        @Override
-		        public int read(byte[] b, int off, int len) throws IOException {
-			        return stream.read(b, off, len);
-		        }
-
-		        @Override
-		        public long skip(long n) throws IOException {
-			        return stream.skip(n);
-		        }
-
-		        @Override
-		        public int available() throws IOException {
-			        return stream.available();
-		        }
-
-		        @Override
-		        public void close() throws IOException {
-			        try {
-			            super.close();
-			        } finally {
-				        Closeables.closeQuietly(remoteFile);
-			        }
-		        }
-
-		        @Override
-		        public void mark(int readlimit) {
-			        stream.mark(readlimit);
-		        }
-
-		        @Override
-		        public void reset() throws IOException {
-			        stream.reset();
-		        }
-
-		        @Override
-		        public boolean markSupported() {
-			        return stream.markSupported();
-		        }
-	        };
+	        SFTPClient sftpClient = connection.getTransferSftpClient();
+	        SshSftpRemoteFile remoteFile = (SshSftpRemoteFile) sftpClient.open(getSftpPath(), newHashSet(OpenMode.READ));
+	        return new SshSftpInputStream(this, remoteFile, connection.sftpChunkSize, connection.sftpMaxOutstandingRequests, sftpClient.getSFTPEngine()
+	                .getTimeout());
         } catch (IOException e) {
             throw new RuntimeIOException("Cannot read from file " + this, e);
         }
@@ -278,46 +303,26 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 	public OutputStream getOutputStream() {
 		logger.debug("Opening SFTP ouput stream to write to file {}", this);
 
+        invalidateAttributes(false);
         try {
-	        final RemoteFile remoteFile = connection.getSharedSftpClient().open(getSftpPath(), newHashSet(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
-	        final OutputStream wrapped = remoteFile.getOutputStream();
-
-	        return new OutputStream() {
-
-		        @Override
-		        public void write(int b) throws IOException {
-			        wrapped.write(b);
-		        }
-
-		        @Override
-		        public void write(byte[] b) throws IOException {
-			        wrapped.write(b);
-		        }
-
-		        @Override
-		        public void write(byte[] b, int off, int len) throws IOException {
-			        wrapped.write(b, off, len);
-		        }
-
-		        @Override
-		        public void flush() throws IOException {
-			        wrapped.flush();
-		        }
-
-		        @Override
-		        public void close() throws IOException {
-			        try {
-				        wrapped.close();
-			        } finally {
-				        Closeables.closeQuietly(remoteFile);
-			        }
-		        }
-	        };
+	        SFTPClient sftpClient = connection.getTransferSftpClient();
+	        SshSftpRemoteFile remoteFile = (SshSftpRemoteFile) sftpClient.open(getSftpPath(), newHashSet(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
+	        return new SshSftpOutputStream(this, remoteFile, connection.sftpChunkSize, connection.sftpMaxOutstandingRequests, sftpClient.getSFTPEngine()
+	                .getTimeout());
         } catch (IOException e) {
             throw new RuntimeIOException("Cannot write to file " + this, e);
         }
 	}
 
+	@Override
+	protected void copyFrom(OverthereFile source) {
+		if (copyFromAsDelta(source)) {
+			invalidateAttributes(false);
+		} else {
+			super.copyFrom(source);
+		}
+	}
+
     private static Logger logger = LoggerFactory.getLogger(SshSftpFile.class);
 
 }
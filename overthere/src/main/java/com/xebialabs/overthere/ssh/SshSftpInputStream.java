@@ -0,0 +1,170 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+/**
+ * An input stream that reads a file on a host connected through SSH w/ SFTP while keeping several read requests outstanding, so that the throughput is not
+ * limited to one chunk per round trip.
+ */
+class SshSftpInputStream extends InputStream {
+
+	private final SshSftpFile file;
+
+	private final SshSftpRemoteFile remoteFile;
+
+	private final int chunkSize;
+
+	private final int maxOutstandingRequests;
+
+	private final int timeout;
+
+	private final LinkedList<ReadRequest> requests = new LinkedList<ReadRequest>();
+
+	private long nextOffset;
+
+	private boolean eof;
+
+	private byte[] data;
+
+	private int dataPos;
+
+	private int dataEnd;
+
+	private boolean closed;
+
+	public SshSftpInputStream(SshSftpFile file, SshSftpRemoteFile remoteFile, int chunkSize, int maxOutstandingRequests, int timeout) {
+		this.file = file;
+		this.remoteFile = remoteFile;
+		this.chunkSize = chunkSize;
+		this.maxOutstandingRequests = maxOutstandingRequests;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (dataPos == dataEnd && !receiveData()) {
+			return -1;
+		}
+		return data[dataPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (dataPos == dataEnd && !receiveData()) {
+			return -1;
+		}
+		int n = Math.min(len, dataEnd - dataPos);
+		System.arraycopy(data, dataPos, b, off, n);
+		dataPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return dataEnd - dataPos;
+	}
+
+	/**
+	 * Waits for the response to the oldest read request, sending new requests to keep the pipeline full.
+	 * 
+	 * @return <code>true</code> if data was received, <code>false</code> if the end of the file was reached.
+	 */
+	private boolean receiveData() throws IOException {
+		if (closed) {
+			throw new IOException("Cannot read from " + file + ": the stream is closed");
+		}
+
+		for (;;) {
+			while (!eof && requests.size() < maxOutstandingRequests) {
+				requests.addLast(new ReadRequest(nextOffset, chunkSize));
+				nextOffset += chunkSize;
+			}
+			if (requests.isEmpty()) {
+				return false;
+			}
+
+			ReadRequest request = requests.removeFirst();
+			Response response = request.response.retrieve(timeout, TimeUnit.SECONDS);
+			switch (response.getType()) {
+			case DATA:
+				int n = response.readUInt32AsInt();
+				if (n < request.length) {
+					// The server may return less than requested before the end of the file, so the rest is requested before anything that follows it
+					requests.addFirst(new ReadRequest(request.offset + n, request.length - n));
+				}
+				if (n > 0) {
+					data = response.array();
+					dataPos = response.rpos();
+					dataEnd = dataPos + n;
+					return true;
+				}
+				break;
+			case STATUS:
+				Response.StatusCode status = response.readStatusCode();
+				if (status != Response.StatusCode.EOF) {
+					throw new SFTPException(status, response.readString());
+				}
+				// The later requests are beyond the end of the file as well
+				eof = true;
+				requests.clear();
+				return false;
+			default:
+				throw new SFTPException("Unexpected response to read request: " + response.getType());
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		requests.clear();
+		remoteFile.close();
+	}
+
+	private class ReadRequest {
+
+		final long offset;
+
+		final int length;
+
+		final Promise<Response, SFTPException> response;
+
+		ReadRequest(long offset, int length) throws IOException {
+			this.offset = offset;
+			this.length = length;
+			this.response = remoteFile.sendRead(offset, length);
+		}
+
+	}
+
+}
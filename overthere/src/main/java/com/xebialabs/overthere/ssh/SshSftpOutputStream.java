@@ -0,0 +1,137 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+/**
+ * An output stream that writes a file on a host connected through SSH w/ SFTP in chunks while keeping several write requests outstanding, so that the
+ * throughput is not limited to one chunk per round trip. Failed writes are reported by a later write, by {@link #flush()} or by {@link #close()}.
+ */
+class SshSftpOutputStream extends OutputStream {
+
+	private final SshSftpFile file;
+
+	private final SshSftpRemoteFile remoteFile;
+
+	private final int maxOutstandingRequests;
+
+	private final int timeout;
+
+	private final byte[] chunk;
+
+	private int count;
+
+	private long fileOffset;
+
+	private final LinkedList<Promise<Response, SFTPException>> responses = new LinkedList<Promise<Response, SFTPException>>();
+
+	private boolean closed;
+
+	public SshSftpOutputStream(SshSftpFile file, SshSftpRemoteFile remoteFile, int chunkSize, int maxOutstandingRequests, int timeout) {
+		this.file = file;
+		this.remoteFile = remoteFile;
+		this.maxOutstandingRequests = maxOutstandingRequests;
+		this.timeout = timeout;
+		this.chunk = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkNotClosed();
+		if (count == chunk.length) {
+			sendChunk();
+		}
+		chunk[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkNotClosed();
+		while (len > 0) {
+			if (count == chunk.length) {
+				sendChunk();
+			}
+			int n = Math.min(len, chunk.length - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends what has been written and waits until all writes have been acknowledged.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkNotClosed();
+		sendChunk();
+		while (!responses.isEmpty()) {
+			receiveResponse();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			responses.clear();
+			try {
+				remoteFile.close();
+			} finally {
+				file.invalidateAttributes(false);
+			}
+		}
+	}
+
+	private void sendChunk() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		responses.addLast(remoteFile.sendWrite(fileOffset, chunk, 0, count));
+		fileOffset += count;
+		count = 0;
+		while (responses.size() >= maxOutstandingRequests) {
+			receiveResponse();
+		}
+	}
+
+	private void receiveResponse() throws IOException {
+		responses.removeFirst().retrieve(timeout, TimeUnit.SECONDS).ensureStatusPacketIsOK();
+	}
+
+	private void checkNotClosed() throws IOException {
+		if (closed) {
+			throw new IOException("Cannot write to " + file + ": the stream is closed");
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+/**
+ * A file opened by an {@link SshSftpEngine}, which can send reads and writes without waiting for their responses.
+ */
+class SshSftpRemoteFile extends RemoteFile {
+
+	private final SshSftpEngine engine;
+
+	public SshSftpRemoteFile(SshSftpEngine engine, String path, String handle) {
+		super(engine, path, handle);
+		this.engine = engine;
+	}
+
+	/**
+	 * Sends a request to read at most <code>len</code> bytes at the offset. The response is a <code>DATA</code> packet, or a <code>STATUS</code> packet when
+	 * the offset is at or beyond the end of the file or the read failed.
+	 */
+	public Promise<Response, SFTPException> sendRead(long offset, int len) throws IOException {
+		return engine.sendRequest(newRequest(PacketType.READ).putUInt64(offset).putUInt32(len));
+	}
+
+	/**
+	 * Sends a request to write <code>len</code> bytes of the buffer, starting at <code>off</code>, at the offset in the file. The bytes are copied into the
+	 * request, so the buffer can be reused straight away.
+	 */
+	public Promise<Response, SFTPException> sendWrite(long offset, byte[] b, int off, int len) throws IOException {
+		return engine.sendRequest(newRequest(PacketType.WRITE).putUInt64(offset).putUInt32(len).putRawBytes(b, off, len));
+	}
+
+}
@@ -0,0 +1,147 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static com.xebialabs.overthere.util.LoggingOverthereProcessOutputHandler.loggingHandler;
+import static com.xebialabs.overthere.util.MultipleOverthereProcessOutputHandler.multiHandler;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
+
+/**
+ * A command that reads binary data from its stdin or writes it to its stdout, such as a tar command that extracts or creates an archive. Its other output is
+ * pumped in the background and logged, so that it is available when the command fails.
+ */
+class SshStreamProcess {
+
+	private final OverthereProcess process;
+
+	private final boolean dataOnStdout;
+
+	private final CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
+
+	private final Future<?> stdoutPump;
+
+	private final Future<?> stderrPump;
+
+	private boolean completed;
+
+	/**
+	 * @param dataOnStdout
+	 *            <code>true</code> if the command writes the data to its stdout, <code>false</code> if it reads the data from its stdin.
+	 */
+	SshStreamProcess(OverthereProcess process, boolean dataOnStdout) {
+		this(process, dataOnStdout, true);
+	}
+
+	/**
+	 * @param dataOnStdout
+	 *            <code>true</code> if the command writes the data to its stdout, <code>false</code> if it reads the data from its stdin.
+	 * @param logOutput
+	 *            <code>false</code> if the other output of the command is only to be included in the message of the exception thrown when it fails, e.g. for
+	 *            commands that report statistics on their stderr.
+	 */
+	SshStreamProcess(OverthereProcess process, boolean dataOnStdout, boolean logOutput) {
+		this.process = process;
+		this.dataOnStdout = dataOnStdout;
+		OverthereProcessOutputHandler handler = logOutput ? multiHandler(loggingHandler(logger), capturedOutput) : capturedOutput;
+		stdoutPump = dataOnStdout ? null : getSharedExecutor().submit(stdoutPump(process.getStdout(), handler));
+		stderrPump = getSharedExecutor().submit(stderrPump(process.getStderr(), handler));
+	}
+
+	OutputStream getStdin() {
+		return process.getStdin();
+	}
+
+	InputStream getStdout() {
+		return process.getStdout();
+	}
+
+	/**
+	 * Closes the stdin of a command that reads the data or reads what is left of the stdout of a command that writes it, and waits for the command to
+	 * complete.
+	 * 
+	 * @param errorMessage
+	 *            the message of the exception thrown when the command fails.
+	 */
+	void complete(String errorMessage) throws IOException {
+		if (dataOnStdout) {
+			// e.g. tar pads an archive to a whole number of records, which is not read by the archive reader
+			InputStream stdout = process.getStdout();
+			byte[] buf = new byte[8192];
+			while (stdout.read(buf) != -1) {
+				continue;
+			}
+		} else {
+			// the command may already have exited after reading the end of the data, in which case its exit code tells whether it succeeded
+			Closeables.close(process.getStdin(), true);
+		}
+
+		int errno;
+		try {
+			errno = process.waitFor();
+			if (stdoutPump != null) {
+				stdoutPump.get();
+			}
+			stderrPump.get();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Interrupted while waiting for command to complete", exc);
+		} catch (ExecutionException exc) {
+			throw new IOException("Cannot read output of command: " + exc.getCause(), exc.getCause());
+		}
+		completed = true;
+
+		if (errno != 0) {
+			throw new RuntimeIOException(errorMessage + ": " + capturedOutput.getError() + " (errno=" + errno + ")");
+		}
+	}
+
+	/**
+	 * Aborts the command if it has not completed.
+	 */
+	void destroyUnlessCompleted() {
+		if (completed) {
+			return;
+		}
+		process.destroy();
+		if (stdoutPump != null) {
+			stdoutPump.cancel(true);
+		}
+		stderrPump.cancel(true);
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(SshStreamProcess.class);
+
+}
@@ -109,6 +109,14 @@ class SshSudoConnection extends SshScpConnection {
 		}
 	}
 
+	/**
+	 * Returns whether the contents of files can be streamed through the stdin or stdout of a command run as the sudo user. That needs a binary clean channel,
+	 * so it is not possible when a pty is allocated.
+	 */
+	boolean canStreamFiles() {
+		return !allocateDefaultPty && allocatePty == null;
+	}
+
 	@Override
 	protected OverthereFile getFile(String hostPath, boolean isTempFile) throws RuntimeIOException {
 		return new SshSudoFile(this, hostPath, isTempFile);
@@ -19,9 +19,11 @@ package com.xebialabs.overthere.ssh;
 
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.OverthereProcessOutputHandler;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
+import com.xebialabs.overthere.util.OverthereFileCopier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +33,7 @@ import java.io.OutputStream;
 
 import static com.xebialabs.overthere.CmdLine.build;
 import static com.xebialabs.overthere.ssh.SshConnection.NOCD_PSEUDO_COMMAND;
+import static com.xebialabs.overthere.ssh.SshConnection.quoteForShell;
 import static com.xebialabs.overthere.ssh.SshSudoConnection.NOSUDO_PSEUDO_COMMAND;
 import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
 import static com.xebialabs.overthere.util.LoggingOverthereProcessOutputHandler.loggingHandler;
@@ -41,6 +44,18 @@ import static com.xebialabs.overthere.util.MultipleOverthereProcessOutputHandler
  */
 class SshSudoFile extends SshScpFile {
 
+	/**
+	 * Script that writes its stdin to the file passed as its first argument. It uses <code>dd</code> instead of a redirection because the script is escaped
+	 * once more when {@link SshConnectionBuilder#SUDO_QUOTE_COMMAND the command is quoted}, and the escaping of nested commands leaves <code>&gt;</code> as
+	 * is, so that the shell of the connecting user would redirect the output of the sudo command instead.
+	 */
+	private static final String WRITE_SCRIPT = "dd of=\"$1\" bs=65536";
+
+	/**
+	 * Script that writes its stdin to the file passed as its first argument and makes the file readable by group and other.
+	 */
+	private static final String WRITE_OVERRIDE_UMASK_SCRIPT = WRITE_SCRIPT + " && chmod go+rX \"$1\"";
+
 	private boolean isTempFile;
 
 	/**
@@ -66,6 +81,14 @@ class SshSudoFile extends SshScpFile {
 		return super.executeCommand(handler, commandLine);
 	}
 
+	@Override
+	protected OverthereProcess startProcess(CmdLine commandLine) {
+		if (isTempFile) {
+			commandLine = SshConnection.prefixWithPseudoCommand(commandLine, NOSUDO_PSEUDO_COMMAND);
+		}
+		return super.startProcess(commandLine);
+	}
+
 	@Override
 	public OverthereFile getFile(String name) {
 		SshSudoFile f = (SshSudoFile) super.getFile(name);
@@ -84,6 +107,9 @@ class SshSudoFile extends SshScpFile {
 	public InputStream getInputStream() throws RuntimeIOException {
 		if (isTempFile) {
 			return super.getInputStream();
+		} else if (((SshSudoConnection) connection).canStreamFiles()) {
+			logger.debug("Opening ssh:sudo: input stream to read from file {}", this);
+			return new SshSudoStreamingInputStream(this, new SshStreamProcess(startProcess(build(NOCD_PSEUDO_COMMAND, "cat", getPath())), true));
 		} else {
 			OverthereFile tempFile = connection.getTempFile(getName());
 			copyToTempFile(tempFile);
@@ -97,10 +123,22 @@ class SshSudoFile extends SshScpFile {
 			return super.getOutputStream();
 		} else {
 			logger.debug("Opening ssh:sudo: output stream to write to file {}", this);
+			if (((SshSudoConnection) connection).canStreamFiles()) {
+				return startWrite();
+			}
             return new SshSudoOutputStream(this, connection.getTempFile(getName()));
 		}
 	}
 
+	@Override
+	public OutputStream getOutputStream(long length) throws RuntimeIOException {
+		if (isTempFile) {
+			return super.getOutputStream(length);
+		} else {
+			return getOutputStream();
+		}
+	}
+
 	@Override
 	public void mkdir() throws RuntimeIOException {
 		if (isTempFile) {
@@ -134,6 +172,15 @@ class SshSudoFile extends SshScpFile {
 		if (isTempFile) {
 			super.copyFrom(source);
 			overrideUmask(this);
+		} else if (canCopyFromWithTar(source)) {
+			// the files are extracted with the permissions recorded in the archive, so they need not be copied through a temporary directory
+			copyFromWithTar(source);
+		} else if (copyFromAsDelta(source)) {
+			// the file is rebuilt in place by a command run as the sudo user, so it keeps its owner and permissions
+			invalidateFileInfo();
+		} else if (((SshSudoConnection) connection).canStreamFiles() && source.isFile()) {
+			// the contents are streamed to a command run as the sudo user, so they need not be copied through a temporary file
+			OverthereFileCopier.copy(source, this);
 		} else {
 			logger.debug("Copying file or directory {} to {}", source, this);
 			OverthereFile tempFile = getConnection().getTempFile(getName());
@@ -147,6 +194,21 @@ class SshSudoFile extends SshScpFile {
 		}
 	}
 
+	/**
+	 * Starts a command run as the sudo user that writes its stdin to this file, setting the permissions in the same command if the umask is to be overridden.
+	 */
+	private OutputStream startWrite() {
+		// dd reports the number of records copied on stderr, which is only included in the message of the exception thrown when the command fails
+		SshStreamProcess write = new SshStreamProcess(startProcess(getWriteCommandLine()), false, false);
+		invalidateFileInfo();
+		return new SshSudoStreamingOutputStream(this, write);
+	}
+
+	CmdLine getWriteCommandLine() {
+		String script = ((SshSudoConnection) connection).sudoOverrideUmask ? WRITE_OVERRIDE_UMASK_SCRIPT : WRITE_SCRIPT;
+		return build(NOCD_PSEUDO_COMMAND, "sh", "-c").addRaw(quoteForShell(script)).addArgument("sh").addArgument(getPath());
+	}
+
 	private void overrideUmask(OverthereFile remoteFile) {
 		if (((SshSudoConnection) connection).sudoOverrideUmask) {
 			logger.debug("Overriding umask by recursively setting permissions on files and/or directories copied with scp to be readable and executable (if needed) by group and other");
@@ -0,0 +1,87 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reads the contents of a file on a host connected through SSH w/ SUDO straight from the stdout of a <code>cat</code> command run as
+ * the sudo user, so that the file is not copied to a temporary file first. Whether the command succeeded is checked when the end of the stream is reached.
+ */
+class SshSudoStreamingInputStream extends InputStream {
+
+	private final SshSudoFile file;
+
+	private final SshStreamProcess process;
+
+	private final InputStream in;
+
+	private boolean endReached;
+
+	private boolean closed;
+
+	public SshSudoStreamingInputStream(SshSudoFile file, SshStreamProcess process) {
+		this.file = file;
+		this.process = process;
+		this.in = process.getStdout();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			endReached();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n == -1) {
+			endReached();
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	private void endReached() throws IOException {
+		if (!endReached) {
+			endReached = true;
+			// an empty stdout can also mean that the file could not be read
+			process.complete("Cannot read file " + file);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		// when the stream is closed before the end, the rest of the file is not worth reading
+		process.destroyUnlessCompleted();
+	}
+
+}
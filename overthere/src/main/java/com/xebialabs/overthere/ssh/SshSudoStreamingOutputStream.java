@@ -0,0 +1,73 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes the contents of a file on a host connected through SSH w/ SUDO straight to the stdin of a command run as the sudo user, so
+ * that the contents are not stored in a temporary file first.
+ */
+class SshSudoStreamingOutputStream extends OutputStream {
+
+	private final SshSudoFile file;
+
+	private final SshStreamProcess process;
+
+	private final OutputStream out;
+
+	private boolean closed;
+
+	public SshSudoStreamingOutputStream(SshSudoFile file, SshStreamProcess process) {
+		this.file = file;
+		this.process = process;
+		this.out = process.getStdin();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			process.complete("Cannot write to file " + file);
+		} finally {
+			process.destroyUnlessCompleted();
+			file.invalidateFileInfo();
+		}
+	}
+
+}
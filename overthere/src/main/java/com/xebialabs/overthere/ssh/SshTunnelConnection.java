@@ -15,6 +15,7 @@ import java.net.ServerSocket;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.connection.ConnectionException;
@@ -26,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Monitor;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
@@ -162,6 +164,21 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
 		throw new UnsupportedOperationException("Cannot execute a command on the tunnel.");
 	}
 
+	@Override
+	public List<Integer> executeBatch(List<? extends OverthereProcessOutputHandler> handlers, List<CmdLine> commandLines, boolean continueOnFailure) {
+		throw new UnsupportedOperationException("Cannot execute a command on the tunnel.");
+	}
+
+	@Override
+	public ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine) {
+		throw new UnsupportedOperationException("Cannot execute a command on the tunnel.");
+	}
+
+	@Override
+	public ListenableFuture<Integer> executeAsync(OverthereProcessOutputHandler handler, CmdLine commandLine, long timeout, TimeUnit unit) {
+		throw new UnsupportedOperationException("Cannot execute a command on the tunnel.");
+	}
+
 	private static final Logger logger = LoggerFactory.getLogger(SshTunnelConnection.class);
 
 	private static class PortForwarder extends Thread implements Closeable {
@@ -0,0 +1,298 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.xebialabs.overthere.ssh.TarArchiveOutputStream.BLOCK_SIZE;
+import static com.xebialabs.overthere.ssh.TarArchiveOutputStream.TYPE_DIRECTORY;
+import static com.xebialabs.overthere.ssh.TarArchiveOutputStream.TYPE_FILE;
+import static com.xebialabs.overthere.ssh.TarArchiveOutputStream.TYPE_GNU_LONG_NAME;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads a tar archive in the ustar, GNU or pax format as written by GNU tar, BSD tar and busybox tar. Long names in GNU long name entries and pax extended
+ * headers are supported, as are GNU base-256 encoded sizes. Global pax headers are skipped. Hard links are returned as entries without contents that
+ * name the entry they link to.
+ */
+class TarArchiveInputStream extends InputStream {
+
+	private static final char TYPE_HARD_LINK = '1';
+
+	private static final char TYPE_GNU_LONG_LINK_NAME = 'K';
+
+	private static final char TYPE_PAX_HEADER = 'x';
+
+	private static final char TYPE_PAX_GLOBAL_HEADER = 'g';
+
+	private final InputStream in;
+
+	private final byte[] header = new byte[BLOCK_SIZE];
+
+	private long remaining;
+
+	private long padding;
+
+	private boolean finished;
+
+	public TarArchiveInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Skips the rest of the current entry and reads the header of the next one.
+	 *
+	 * @return the next entry, or <code>null</code> if the end of the archive has been reached.
+	 */
+	public TarArchiveEntry getNextEntry() throws IOException {
+		String longName = null;
+		String longLinkName = null;
+		Long longSize = null;
+		for (;;) {
+			skipCurrentEntry();
+			if (finished || !readHeader()) {
+				finished = true;
+				return null;
+			}
+
+			String name = parseName();
+			int mode = (int) parseNumber(100, 8);
+			long size = parseNumber(124, 12);
+			char type = (char) header[156];
+			remaining = size;
+			padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+			if (type == TYPE_GNU_LONG_NAME) {
+				longName = trimNul(new String(readEntryData(), "UTF-8"));
+			} else if (type == TYPE_GNU_LONG_LINK_NAME) {
+				longLinkName = trimNul(new String(readEntryData(), "UTF-8"));
+			} else if (type == TYPE_PAX_HEADER) {
+				String records = new String(readEntryData(), "UTF-8");
+				String path = parsePaxRecord(records, "path");
+				if (path != null) {
+					longName = path;
+				}
+				String linkPath = parsePaxRecord(records, "linkpath");
+				if (linkPath != null) {
+					longLinkName = linkPath;
+				}
+				String paxSize = parsePaxRecord(records, "size");
+				if (paxSize != null) {
+					longSize = Long.parseLong(paxSize);
+				}
+			} else if (type != TYPE_PAX_GLOBAL_HEADER) {
+				if (longSize != null) {
+					size = longSize;
+					remaining = size;
+					padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+				}
+				String linkName = longLinkName != null ? longLinkName : parseString(157, 100);
+				return new TarArchiveEntry(longName != null ? longName : name, mode, size, type, linkName);
+			}
+		}
+	}
+
+	private boolean readHeader() throws IOException {
+		int n = ByteStreams.read(in, header, 0, BLOCK_SIZE);
+		if (n == 0) {
+			return false;
+		}
+		if (n < BLOCK_SIZE) {
+			throw new EOFException("Cannot read tar entry header: the archive is truncated");
+		}
+		boolean empty = true;
+		for (byte b : header) {
+			if (b != 0) {
+				empty = false;
+				break;
+			}
+		}
+		if (empty) {
+			return false;
+		}
+
+		long checksum = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			checksum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+		}
+		if (checksum != parseNumber(148, 8)) {
+			throw new IOException("Cannot read tar entry header: the checksum does not match");
+		}
+		return true;
+	}
+
+	private String parseName() throws IOException {
+		String name = parseString(0, 100);
+		if (parseString(257, 6).startsWith("ustar")) {
+			String prefix = parseString(345, 155);
+			if (prefix.length() > 0) {
+				name = prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private String parseString(int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, "UTF-8");
+	}
+
+	private long parseNumber(int offset, int length) {
+		if ((header[offset] & 0x80) != 0) {
+			long value = 0;
+			for (int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (header[i] & 0xff);
+			}
+			return value;
+		}
+
+		int i = offset;
+		while (i < offset + length && header[i] == ' ') {
+			i++;
+		}
+		long value = 0;
+		for (; i < offset + length && header[i] >= '0' && header[i] <= '7'; i++) {
+			value = (value << 3) + (header[i] - '0');
+		}
+		return value;
+	}
+
+	private byte[] readEntryData() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteStreams.copy(this, data);
+		return data.toByteArray();
+	}
+
+	private static String parsePaxRecord(String records, String key) {
+		// Each record reads "<length> <key>=<value>\n", where the length includes the whole record
+		int pos = 0;
+		while (pos < records.length()) {
+			int space = records.indexOf(' ', pos);
+			int newline = records.indexOf('\n', pos);
+			if (space < 0 || newline < 0) {
+				break;
+			}
+			String record = records.substring(space + 1, newline);
+			if (record.startsWith(key + "=")) {
+				return record.substring(key.length() + 1);
+			}
+			pos = newline + 1;
+		}
+		return null;
+	}
+
+	private static String trimNul(String s) {
+		int nul = s.indexOf('\0');
+		return nul >= 0 ? s.substring(0, nul) : s;
+	}
+
+	private void skipCurrentEntry() throws IOException {
+		ByteStreams.skipFully(in, remaining + padding);
+		remaining = 0;
+		padding = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1) {
+			throw new EOFException("Cannot read tar entry: the archive is truncated");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * An entry read from a tar archive.
+	 */
+	static class TarArchiveEntry {
+
+		private final String name;
+
+		private final int mode;
+
+		private final long size;
+
+		private final char type;
+
+		private final String linkName;
+
+		TarArchiveEntry(String name, int mode, long size, char type, String linkName) {
+			this.name = name;
+			this.mode = mode;
+			this.size = size;
+			this.type = type;
+			this.linkName = linkName;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMode() {
+			return mode;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the name of the entry this entry links to, or an empty string if it is not a link.
+		 */
+		public String getLinkName() {
+			return linkName;
+		}
+
+		public boolean isDirectory() {
+			return type == TYPE_DIRECTORY || (type == TYPE_FILE || type == 0) && name.endsWith("/");
+		}
+
+		public boolean isFile() {
+			return (type == TYPE_FILE || type == 0 || type == '7') && !name.endsWith("/");
+		}
+
+		public boolean isHardLink() {
+			return type == TYPE_HARD_LINK;
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a tar archive in the ustar format as understood by GNU tar, BSD tar and busybox tar. Only directories and regular files are supported. Names that do
+ * not fit in a ustar header are written as GNU long name entries.
+ */
+class TarArchiveOutputStream extends OutputStream {
+
+	static final int BLOCK_SIZE = 512;
+
+	static final char TYPE_FILE = '0';
+
+	static final char TYPE_DIRECTORY = '5';
+
+	static final char TYPE_GNU_LONG_NAME = 'L';
+
+	private static final String GNU_LONG_NAME_ENTRY = "././@LongLink";
+
+	private static final int NAME_LENGTH = 100;
+
+	private static final int PREFIX_LENGTH = 155;
+
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	private final OutputStream out;
+
+	private long remaining;
+
+	private long entrySize;
+
+	private boolean finished;
+
+	public TarArchiveOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the header of a directory entry.
+	 *
+	 * @param name
+	 *            the path of the directory relative to the root of the archive, using forward slashes.
+	 */
+	public void putDirectory(String name, int mode, long mtime) throws IOException {
+		putEntry(name.endsWith("/") ? name : name + "/", mode, 0, mtime, TYPE_DIRECTORY);
+		closeEntry();
+	}
+
+	/**
+	 * Writes the header of a file entry. Exactly <code>size</code> bytes have to be written before the next entry is put or the archive is finished.
+	 *
+	 * @param name
+	 *            the path of the file relative to the root of the archive, using forward slashes.
+	 */
+	public void putFile(String name, int mode, long size, long mtime) throws IOException {
+		putEntry(name, mode, size, mtime, TYPE_FILE);
+	}
+
+	private void putEntry(String name, int mode, long size, long mtime, char type) throws IOException {
+		closeEntry();
+
+		byte[] nameBytes = name.getBytes("UTF-8");
+		byte[] header = new byte[BLOCK_SIZE];
+		int split = findPrefixSplit(nameBytes);
+		if (nameBytes.length <= NAME_LENGTH) {
+			System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		} else if (split >= 0) {
+			System.arraycopy(nameBytes, split + 1, header, 0, nameBytes.length - split - 1);
+			System.arraycopy(nameBytes, 0, header, 345, split);
+		} else {
+			writeGnuLongName(nameBytes);
+			System.arraycopy(nameBytes, 0, header, 0, NAME_LENGTH);
+		}
+		fillHeader(header, mode, size, mtime, type);
+		out.write(header);
+
+		entrySize = size;
+		remaining = size;
+	}
+
+	private void writeGnuLongName(byte[] nameBytes) throws IOException {
+		byte[] header = new byte[BLOCK_SIZE];
+		byte[] longLink = GNU_LONG_NAME_ENTRY.getBytes("US-ASCII");
+		System.arraycopy(longLink, 0, header, 0, longLink.length);
+		fillHeader(header, 0, nameBytes.length + 1, 0, TYPE_GNU_LONG_NAME);
+		out.write(header);
+		out.write(nameBytes);
+		out.write(0);
+		pad(nameBytes.length + 1);
+	}
+
+	/**
+	 * Returns the index of the slash at which the name can be split into a ustar prefix and name, or <code>-1</code> if there is none.
+	 */
+	private static int findPrefixSplit(byte[] nameBytes) {
+		for (int i = Math.min(nameBytes.length - 2, PREFIX_LENGTH); i > 0; i--) {
+			if (nameBytes[i] == '/') {
+				return nameBytes.length - i - 1 <= NAME_LENGTH ? i : -1;
+			}
+		}
+		return -1;
+	}
+
+	private static void fillHeader(byte[] header, int mode, long size, long mtime, char type) {
+		writeOctal(header, 100, 8, mode);
+		writeOctal(header, 108, 8, 0);
+		writeOctal(header, 116, 8, 0);
+		if (size <= MAX_OCTAL_SIZE) {
+			writeOctal(header, 124, 12, size);
+		} else {
+			// GNU base-256 encoding for files of 8 GB and larger
+			header[124] = (byte) 0x80;
+			for (int i = 135; i > 124; i--) {
+				header[i] = (byte) size;
+				size >>>= 8;
+			}
+		}
+		writeOctal(header, 136, 12, mtime);
+		header[156] = (byte) type;
+		writeAscii(header, 257, "ustar\0");
+		writeAscii(header, 263, "00");
+
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		writeOctal(header, 148, 7, checksum);
+	}
+
+	private static void writeOctal(byte[] header, int offset, int length, long value) {
+		String octal = Long.toOctalString(value);
+		StringBuilder field = new StringBuilder();
+		for (int i = octal.length(); i < length - 1; i++) {
+			field.append('0');
+		}
+		writeAscii(header, offset, field.append(octal).toString());
+		header[offset + length - 1] = 0;
+	}
+
+	private static void writeAscii(byte[] header, int offset, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			header[offset + i] = (byte) value.charAt(i);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > remaining) {
+			throw new IOException("Cannot write more than the " + entrySize + " bytes announced in the tar entry header");
+		}
+		out.write(b, off, len);
+		remaining -= len;
+	}
+
+	/**
+	 * Pads the contents of the current entry to a whole number of blocks.
+	 */
+	public void closeEntry() throws IOException {
+		checkEntryComplete();
+		pad(entrySize);
+		entrySize = 0;
+	}
+
+	private void checkEntryComplete() throws IOException {
+		if (remaining != 0) {
+			throw new IOException("Cannot complete tar entry: only " + (entrySize - remaining) + " of the announced " + entrySize + " bytes were written");
+		}
+	}
+
+	private void pad(long size) throws IOException {
+		int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+		out.write(new byte[padding]);
+	}
+
+	/**
+	 * Writes the end of archive marker without closing the underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		out.write(new byte[2 * BLOCK_SIZE]);
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
+
+/**
+ * Reads a file of a known length in chunks that are each read by a separate task on the {@link OverthereExecutors#getSharedExecutor() shared executor},
+ * keeping up to <code>parallelism</code> chunks being read ahead of the chunk that is returned. Used for protocols on which one request at a time is
+ * too slow to transfer large files over high-latency links.
+ */
+public abstract class ChunkedInputStream extends InputStream {
+
+	private final Object file;
+
+	private final long length;
+
+	private final int chunkSize;
+
+	private final int parallelism;
+
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private long nextOffset;
+
+	private byte[] chunk = new byte[0];
+
+	private int position;
+
+	private boolean closed;
+
+	/**
+	 * @param file
+	 *            the file being read, used in error messages.
+	 * @param length
+	 *            the number of bytes to read.
+	 * @param chunkSize
+	 *            the number of bytes read by one task.
+	 * @param parallelism
+	 *            the maximum number of chunks being read at the same time.
+	 */
+	protected ChunkedInputStream(Object file, long length, int chunkSize, int parallelism) {
+		this.file = file;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes at <code>offset</code>. Called from several threads at the same time.
+	 */
+	protected abstract byte[] readChunk(long offset, int length) throws IOException;
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return chunk[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return chunk.length - position;
+	}
+
+	/**
+	 * Makes sure there are bytes left in the current chunk, returning <code>false</code> at the end of the file.
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Cannot read from " + file + ": stream has been closed");
+		}
+		if (position < chunk.length) {
+			return true;
+		}
+		while (pending.size() < parallelism && nextOffset < length) {
+			final long offset = nextOffset;
+			final int size = (int) Math.min(chunkSize, length - offset);
+			pending.add(getSharedExecutor().submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return readChunk(offset, size);
+				}
+			}));
+			nextOffset += size;
+		}
+		if (pending.isEmpty()) {
+			return false;
+		}
+		try {
+			chunk = pending.removeFirst().get();
+			position = 0;
+			return true;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + file);
+		} catch (ExecutionException exc) {
+			throw new IOException("Cannot read " + file, exc.getCause());
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		for (Future<byte[]> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+	}
+
+}
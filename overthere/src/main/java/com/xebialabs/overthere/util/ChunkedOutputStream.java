@@ -0,0 +1,171 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
+
+/**
+ * Writes a file in chunks that are each written at their own offset by a separate task on the {@link OverthereExecutors#getSharedExecutor() shared
+ * executor}, with up to <code>parallelism</code> chunks being written at the same time. The file must already exist and be empty. A failure to write a
+ * chunk is thrown from a later call to {@link #write(byte[], int, int)} or from {@link #close()}.
+ */
+public abstract class ChunkedOutputStream extends OutputStream {
+
+	private final Object file;
+
+	private final int chunkSize;
+
+	private final Semaphore slots;
+
+	private final List<Future<?>> writes = newArrayList();
+
+	private byte[] chunk;
+
+	private int count;
+
+	private long offset;
+
+	private boolean closed;
+
+	/**
+	 * @param file
+	 *            the file being written, used in error messages.
+	 * @param chunkSize
+	 *            the number of bytes written by one task.
+	 * @param parallelism
+	 *            the maximum number of chunks being written at the same time.
+	 */
+	protected ChunkedOutputStream(Object file, int chunkSize, int parallelism) {
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.slots = new Semaphore(parallelism);
+		this.chunk = new byte[chunkSize];
+	}
+
+	/**
+	 * Writes the first <code>length</code> bytes of <code>chunk</code> at <code>offset</code>. Called from several threads at the same time.
+	 */
+	protected abstract void writeChunk(long offset, byte[] chunk, int length) throws IOException;
+
+	/**
+	 * Returns the number of bytes written to this stream so far.
+	 */
+	public long getCount() {
+		return offset + count;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Cannot write to " + file + ": stream has been closed");
+		}
+		while (len > 0) {
+			int n = Math.min(len, chunkSize - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == chunkSize) {
+				submit();
+			}
+		}
+	}
+
+	private void submit() throws IOException {
+		checkCompletedWrites();
+		try {
+			slots.acquire();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing " + file);
+		}
+
+		final long chunkOffset = offset;
+		final byte[] chunkData = chunk;
+		final int chunkLength = count;
+		writes.add(getSharedExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					writeChunk(chunkOffset, chunkData, chunkLength);
+					return null;
+				} finally {
+					slots.release();
+				}
+			}
+		}));
+		offset += count;
+		chunk = new byte[chunkSize];
+		count = 0;
+	}
+
+	private void checkCompletedWrites() throws IOException {
+		for (Iterator<Future<?>> it = writes.iterator(); it.hasNext();) {
+			Future<?> f = it.next();
+			if (f.isDone()) {
+				waitFor(f);
+				it.remove();
+			}
+		}
+	}
+
+	private void waitFor(Future<?> write) throws IOException {
+		try {
+			write.get();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing " + file);
+		} catch (ExecutionException exc) {
+			throw new IOException("Cannot write " + file, exc.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (count > 0) {
+				submit();
+			}
+			for (Future<?> f : writes) {
+				waitFor(f);
+			}
+		} finally {
+			closed = true;
+		}
+	}
+
+}
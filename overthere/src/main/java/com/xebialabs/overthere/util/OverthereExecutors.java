@@ -0,0 +1,90 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Holds the thread pools that Overthere uses for background work, such as pumping the output of executed commands to an
+ * {@link com.xebialabs.overthere.OverthereProcessOutputHandler} and enforcing deadlines of asynchronously executed commands.
+ */
+public class OverthereExecutors {
+
+	/**
+	 * Maximum number of threads in the shared thread pool. When all of them are busy, tasks are run on a newly created thread instead of being queued, so that
+	 * a task never has to wait for another task to finish.
+	 */
+	public static final int MAX_SHARED_THREADS = 64;
+
+	/**
+	 * Number of seconds an idle thread in the shared thread pool is kept around before it is stopped.
+	 */
+	public static final long SHARED_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+	private static final ThreadFactory overflowThreadFactory = new ThreadFactoryBuilder().setNameFormat("overthere-overflow-%d").setDaemon(true).build();
+
+	private static final ThreadPoolExecutor sharedExecutor = new ThreadPoolExecutor(0, MAX_SHARED_THREADS, SHARED_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+	        new SynchronousQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("overthere-%d").setDaemon(true).build(), new RejectedExecutionHandler() {
+		        @Override
+		        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			        logger.debug("All {} shared threads are busy, running task on a separate thread", MAX_SHARED_THREADS);
+			        overflowThreadFactory.newThread(task).start();
+		        }
+	        });
+
+	private static final ScheduledExecutorService sharedScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+	        .setNameFormat("overthere-scheduler-%d").setDaemon(true).build());
+
+	private OverthereExecutors() {
+	}
+
+	/**
+	 * Returns the thread pool shared by all connections. Its threads are daemon threads and are reused for subsequent tasks. Tasks submitted to this pool must
+	 * not be long-lived background tasks that never finish.
+	 * 
+	 * @return the shared thread pool.
+	 */
+	public static ExecutorService getSharedExecutor() {
+		return sharedExecutor;
+	}
+
+	/**
+	 * Returns the scheduler shared by all connections. It has one daemon thread, so tasks scheduled on it must be short.
+	 * 
+	 * @return the shared scheduler.
+	 */
+	public static ScheduledExecutorService getSharedScheduler() {
+		return sharedScheduler;
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(OverthereExecutors.class);
+
+}
+
@@ -18,20 +18,37 @@
 package com.xebialabs.overthere.util;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.OutputSupplier;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.spi.ParallelTransferSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * OverthereFile copy utility that uses only the input and output streams exposed by the OverthereFile to perform the copying action.
+ * <p>
+ * Directories can be copied in parallel: the directories are created first, in the order in which they are walked, after which the files are copied by a
+ * number of workers. Connections that implement {@link ParallelTransferSupport} are asked to spread the transfers over several channels.
  * 
  * FIXME: Move to its proper place
  */
@@ -40,12 +57,29 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 	private static final String SOURCE = "Source";
 	private static final String DESTINATION = "Destination";
 
+	/**
+	 * Default maximum number of bytes of the files that are being copied at the same time when copying in parallel.
+	 */
+	public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+	/**
+	 * Maximum number of failed files that are described in the message of the exception thrown when copying in parallel fails.
+	 */
+	private static final int MAX_REPORTED_FAILURES = 10;
+
 	private Stack<OverthereFile> dstDirStack = new Stack<OverthereFile>();
 	private OverthereFile srcDir;
+	private OverthereFile dstDir;
+
+	/**
+	 * The files to copy once all directories have been created, or <code>null</code> if files are copied while walking.
+	 */
+	private List<FileCopy> pendingCopies;
 
 	private OverthereFileCopier(OverthereFile srcDir, OverthereFile dstDir) {
 		dstDirStack.push(dstDir);
 		this.srcDir = srcDir;
+		this.dstDir = dstDir;
 		OverthereFileCopier.checkDirectoryExists(srcDir, SOURCE);
 	}
 
@@ -82,7 +116,12 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 
 	protected void handleFile(OverthereFile srcFile, int depth) throws IOException {
 		OverthereFile dstFile = getCurrentDestinationDir().getFile(srcFile.getName());
-		OverthereFileCopier.copyFile(srcFile, dstFile);
+		if (pendingCopies != null) {
+			pendingCopies.add(new FileCopy(srcFile, dstFile, srcFile.length()));
+		} else {
+			// The walker has just listed the source file, so there is no need to check it again
+			OverthereFileCopier.copyListedFile(srcFile, dstFile, srcFile.length());
+		}
 	}
 
 	protected void handleDirectoryEnd(OverthereFile directory, int depth) throws IOException {
@@ -109,6 +148,52 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 		}
 	}
 
+	/**
+	 * Copies a file or directory, copying the files in a directory in parallel with at most {@link #DEFAULT_MAX_BYTES_IN_FLIGHT} bytes in flight.
+	 * 
+	 * @param src
+	 *            the source file or directory.
+	 * @param dst
+	 *            the destination file or directory. If it exists it must be of the same type as the source. Its parent directory must exist.
+	 * @param workers
+	 *            the maximum number of files that are copied at the same time. With <code>1</code> files are copied one after another.
+	 * @throws RuntimeIOException
+	 *             if an I/O error occurred. When copying a directory, the files that can be copied are copied and the failures are reported together.
+	 */
+	public static void copy(OverthereFile src, OverthereFile dst, int workers) {
+		copy(src, dst, workers, DEFAULT_MAX_BYTES_IN_FLIGHT);
+	}
+
+	/**
+	 * Copies a file or directory, copying the files in a directory in parallel.
+	 * 
+	 * @param src
+	 *            the source file or directory.
+	 * @param dst
+	 *            the destination file or directory. If it exists it must be of the same type as the source. Its parent directory must exist.
+	 * @param workers
+	 *            the maximum number of files that are copied at the same time. With <code>1</code> files are copied one after another.
+	 * @param maxBytesInFlight
+	 *            the maximum total length of the files that are copied at the same time. A file that is larger is copied on its own.
+	 * @throws RuntimeIOException
+	 *             if an I/O error occurred. When copying a directory, the files that can be copied are copied and the failures are reported together.
+	 */
+	public static void copy(OverthereFile src, OverthereFile dst, int workers, long maxBytesInFlight) {
+		checkArgument(workers > 0, "workers must be positive");
+		checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be positive");
+
+		if (!src.isDirectory()) {
+			copyFile(src, dst);
+		} else if (workers == 1) {
+			copyDirectory(src, dst);
+		} else {
+			OverthereFileCopier dirCopier = new OverthereFileCopier(src, dst);
+			dirCopier.pendingCopies = newArrayList();
+			dirCopier.startCopy();
+			dirCopier.copyPendingFiles(workers, maxBytesInFlight);
+		}
+	}
+
 	/**
 	 * Copies a directory recursively.
 	 * 
@@ -136,6 +221,22 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 	 */
 	private static void copyFile(final OverthereFile srcFile, final OverthereFile dstFile) throws RuntimeIOException {
 		checkFileExists(srcFile, SOURCE);
+		copyListedFile(srcFile, dstFile, srcFile.length());
+	}
+
+	/**
+	 * Copies a regular file that is known to exist.
+	 * 
+	 * @param srcFile
+	 *            the source file. Must exists and must not be a directory.
+	 * @param dstFile
+	 *            the destination file. May exists but must not be a directory. Its parent directory must exist.
+	 * @param length
+	 *            the length of the source file, or <code>-1</code> if it is not known.
+	 * @throws RuntimeIOException
+	 *             if an I/O error occurred
+	 */
+	private static void copyListedFile(final OverthereFile srcFile, final OverthereFile dstFile, final long length) throws RuntimeIOException {
 		checkReallyIsAFile(dstFile, DESTINATION);
 
 		if (logger.isDebugEnabled()) {
@@ -151,6 +252,9 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 	            }
 	        }, new OutputSupplier<OutputStream>() {
 	            public OutputStream getOutput() throws IOException {
+	                if (dstFile instanceof BaseOverthereFile<?>) {
+	                    return ((BaseOverthereFile<?>) dstFile).getOutputStream(length);
+	                }
 	                return dstFile.getOutputStream();
 	            }
 	        });
@@ -159,6 +263,81 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
         }
 	}
 
+	private void copyPendingFiles(int workers, long maxBytesInFlight) {
+		int n = Math.min(workers, pendingCopies.size());
+		if (n == 0) {
+			return;
+		}
+
+		logger.debug("Copying {} files from {} to {} with {} workers", new Object[] { pendingCopies.size(), srcDir, dstDir, n });
+		final Queue<FileCopy> queue = new ConcurrentLinkedQueue<FileCopy>(pendingCopies);
+		final ByteBudget budget = new ByteBudget(maxBytesInFlight);
+		final List<FileCopy> failures = Collections.synchronizedList(new ArrayList<FileCopy>());
+		final CountDownLatch done = new CountDownLatch(n);
+		Closeable srcChannels = openTransferChannels(srcDir, n);
+		// both ends on one connection share the channels, so opening them twice would only double the sessions
+		Closeable dstChannels = srcDir.getConnection() == dstDir.getConnection() ? null : openTransferChannels(dstDir, n);
+		try {
+			for (int i = 0; i < n; i++) {
+				OverthereExecutors.getSharedExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							FileCopy copy;
+							while ((copy = queue.poll()) != null) {
+								try {
+									budget.acquire(Math.max(copy.length, 0));
+									try {
+										copyListedFile(copy.src, copy.dst, copy.length);
+									} finally {
+										budget.release(Math.max(copy.length, 0));
+									}
+								} catch (RuntimeException exc) {
+									copy.failure = exc;
+									failures.add(copy);
+								}
+							}
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+
+			try {
+				done.await();
+			} catch (InterruptedException exc) {
+				queue.clear();
+				Uninterruptibles.awaitUninterruptibly(done);
+				Thread.currentThread().interrupt();
+				throw new RuntimeIOException("Interrupted while copying " + srcDir + " to " + dstDir, exc);
+			}
+		} finally {
+			Closeables.closeQuietly(srcChannels);
+			Closeables.closeQuietly(dstChannels);
+		}
+
+		if (!failures.isEmpty()) {
+			StringBuilder message = new StringBuilder("Cannot copy ").append(failures.size()).append(" of ").append(pendingCopies.size())
+			        .append(" files from ").append(srcDir).append(" to ").append(dstDir).append(":");
+			for (int i = 0; i < failures.size() && i < MAX_REPORTED_FAILURES; i++) {
+				FileCopy failure = failures.get(i);
+				message.append("\n  ").append(failure.src).append(": ").append(failure.failure.getMessage());
+			}
+			if (failures.size() > MAX_REPORTED_FAILURES) {
+				message.append("\n  and ").append(failures.size() - MAX_REPORTED_FAILURES).append(" more");
+			}
+			throw new RuntimeIOException(message.toString(), failures.get(0).failure);
+		}
+	}
+
+	private static Closeable openTransferChannels(OverthereFile file, int parallelism) {
+		if (file.getConnection() instanceof ParallelTransferSupport) {
+			return ((ParallelTransferSupport) file.getConnection()).openTransferChannels(parallelism);
+		}
+		return null;
+	}
+
 	/**
 	 * Assert that the file must exist and it is not a directory.
 	 * 
@@ -225,6 +404,48 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
 		}
 	}
 
+	private static class FileCopy {
+		final OverthereFile src;
+		final OverthereFile dst;
+		final long length;
+		RuntimeException failure;
+
+		FileCopy(OverthereFile src, OverthereFile dst, long length) {
+			this.src = src;
+			this.dst = dst;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Limits the total length of the files that are copied at the same time. A file that is larger than the limit may be copied when no other file is.
+	 */
+	private static class ByteBudget {
+		private final long max;
+		private long inFlight;
+
+		ByteBudget(long max) {
+			this.max = max;
+		}
+
+		synchronized void acquire(long bytes) {
+			while (inFlight > 0 && inFlight + bytes > max) {
+				try {
+					wait();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeIOException("Interrupted while waiting to copy", exc);
+				}
+			}
+			inFlight += bytes;
+		}
+
+		synchronized void release(long bytes) {
+			inFlight -= bytes;
+			notifyAll();
+		}
+	}
+
 	private static Logger logger = LoggerFactory.getLogger(OverthereFileCopier.class);
 
 }
@@ -0,0 +1,416 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static com.xebialabs.overthere.util.LoggingOverthereProcessOutputHandler.loggingHandler;
+import static com.xebialabs.overthere.util.MultipleOverthereProcessOutputHandler.multiHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Copies a file over an existing file on a Unix host by sending only the parts that changed, in the way rsync does. The host computes an Adler-32 and an MD5
+ * checksum of every block of the existing file with <code>perl</code>. The source file is scanned for those blocks with a rolling Adler-32 checksum, and a
+ * <code>perl</code> script on the host rebuilds the file from the blocks that were found and the bytes in between that were sent. The result is written to a
+ * temporary file that only replaces the existing file when its MD5 checksum matches that of the source file.
+ * <p>
+ * When the destination does not exist, is on a host where no process can be started or that is not a Unix host, or when <code>perl</code> or its
+ * <code>Digest::MD5</code> and <code>Compress::Zlib</code> modules are missing, the whole file is copied instead.
+ */
+public final class OverthereFileDeltaCopier {
+
+	/**
+	 * Default size of the blocks of the existing file that are looked for in the source file.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of bytes sent in one literal instruction.
+	 */
+	private static final int MAX_LITERAL_SIZE = 1024 * 1024;
+
+	private static final int ADLER_MODULUS = 65521;
+
+	/**
+	 * Script that prints <code>blocks</code> followed by the Adler-32 checksum, the MD5 checksum and the length of every block of the file passed as its first
+	 * argument.
+	 */
+	static final String BLOCK_CHECKSUMS_SCRIPT = "use Digest::MD5; use Compress::Zlib; my $p = shift; my $bs = shift;"
+	        + " open(I, chr(60), $p) or die \"Cannot open $p: $!\\n\"; binmode I; print \"blocks\\n\"; my $d;"
+	        + " while (read(I, $d, $bs)) { print Compress::Zlib::adler32($d), \" \", Digest::MD5::md5_hex($d), \" \", length($d), \"\\n\"; } close(I);";
+
+	/**
+	 * Script that rebuilds the file passed as its first argument from the instructions that follow it on stdin: <code>C</code> copies a number of blocks from the
+	 * existing file, <code>L</code> writes the bytes that follow and <code>E</code> ends the file, checks its MD5 checksum and moves it into place.
+	 */
+	static final String RECONSTRUCT_SCRIPT = "use Digest::MD5; my $p = shift; my $bs = shift; my $t = \"$p.overthere-delta-$$\";"
+	        + " $SIG{__DIE__} = sub { close(O); unlink($t); };"
+	        + " open(I, chr(60), $p) or die \"Cannot open $p: $!\\n\"; binmode I; open(O, chr(62), $t) or die \"Cannot create $t: $!\\n\"; binmode O;"
+	        + " binmode DATA; my $c = Digest::MD5::new(\"Digest::MD5\");"
+	        + " sub rd { my $n = shift; my $d = \"\"; while (length($d) != $n) { read(DATA, $d, $n - length($d), length($d)) or die \"Unexpected end of instructions\\n\"; } return $d; }"
+	        + " sub wr { my $d = shift; print O $d or die \"Cannot write $t: $!\\n\"; Digest::MD5::add($c, $d); }"
+	        + " while (1) { my ($k, $x, $y) = unpack(\"aNN\", rd(9));"
+	        + " if ($k eq \"C\") { seek(I, $x * $bs, 0) or die \"Cannot seek in $p: $!\\n\"; for (1 .. $y) { my $d; read(I, $d, $bs) == $bs or die \"Cannot read block of $p\\n\"; wr($d); } }"
+	        + " elsif ($k eq \"L\") { wr(rd($x)); }"
+	        + " elsif ($k eq \"E\") { my $m = rd(32); close(O) or die \"Cannot write $t: $!\\n\"; Digest::MD5::hexdigest($c) eq $m or die \"Checksum of $t does not match\\n\";"
+	        + " my ($dev, $ino, $mode, $nlink, $uid, $gid) = stat(I); chmod($mode & 07777, $t); chown($uid, $gid, $t);"
+	        + " rename($t, $p) or die \"Cannot rename $t to $p: $!\\n\"; exit 0; }"
+	        + " else { die \"Unknown instruction $k\\n\"; } }";
+
+	private OverthereFileDeltaCopier() {
+	}
+
+	/**
+	 * Copies the source file to the destination file, sending only the blocks that changed if the destination exists and the whole file otherwise.
+	 * 
+	 * @param src
+	 *            the file to copy.
+	 * @param dst
+	 *            the file to copy to.
+	 */
+	public static void copy(OverthereFile src, OverthereFile dst) {
+		if (!tryCopy(src, dst, DEFAULT_BLOCK_SIZE)) {
+			src.copyTo(dst);
+		}
+	}
+
+	/**
+	 * Copies the source file over the existing destination file, sending only the blocks that changed.
+	 * 
+	 * @param src
+	 *            the file to copy.
+	 * @param dst
+	 *            the existing file to copy over.
+	 * @param blockSize
+	 *            the size of the blocks of the destination file that are looked for in the source file.
+	 * @return <code>true</code> if the file was copied, <code>false</code> if it cannot be copied this way and has not been changed.
+	 */
+	public static boolean tryCopy(OverthereFile src, OverthereFile dst, int blockSize) {
+		checkArgument(blockSize > 0, "Block size [%s] must be positive", blockSize);
+
+		OverthereConnection connection = dst.getConnection();
+		if (connection.getHostOperatingSystem() != UNIX || !connection.canStartProcess()) {
+			logger.debug("Not copying {} to {} as a delta because the destination is not on a Unix host that can start a process", src, dst);
+			return false;
+		}
+		if (!src.isFile() || !dst.isFile() || dst.length() < blockSize) {
+			logger.debug("Not copying {} to {} as a delta because the destination does not exist or is smaller than one block", src, dst);
+			return false;
+		}
+
+		try {
+			List<BlockChecksum> blocks = readBlockChecksums(dst, blockSize);
+			if (blocks == null) {
+				return false;
+			}
+			reconstruct(src, dst, blocks, blockSize);
+			return true;
+		} catch (RuntimeIOException exc) {
+			logger.warn("Cannot copy " + src + " to " + dst + " as a delta, copying the whole file", exc);
+			return false;
+		}
+	}
+
+	private static List<BlockChecksum> readBlockChecksums(OverthereFile dst, int blockSize) {
+		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
+		PerlProcess perl = new PerlProcess(dst.getConnection(), BLOCK_CHECKSUMS_SCRIPT, capturedOutput, dst.getPath(), Integer.toString(blockSize));
+		int errno;
+		try {
+			perl.closeStdin();
+			errno = perl.waitFor();
+		} finally {
+			perl.destroyUnlessCompleted();
+		}
+		List<String> lines = capturedOutput.getOutputLines();
+		if (errno != 0 || lines.isEmpty() || !lines.get(0).trim().equals("blocks")) {
+			logger.debug("Not copying to {} as a delta because its block checksums cannot be computed: {} (errno={})", new Object[] { dst,
+			        capturedOutput.getError(), errno });
+			return null;
+		}
+
+		List<BlockChecksum> blocks = new ArrayList<BlockChecksum>();
+		for (int i = 1; i < lines.size(); i++) {
+			String[] fields = lines.get(i).trim().split(" ");
+			if (fields.length != 3) {
+				logger.debug("Not copying to {} as a delta because the block checksum line [{}] cannot be parsed", dst, lines.get(i));
+				return null;
+			}
+			// only whole blocks can be found in the source file
+			if (Integer.parseInt(fields[2]) == blockSize) {
+				blocks.add(new BlockChecksum(i - 1, (int) Long.parseLong(fields[0]), fields[1]));
+			}
+		}
+		return blocks;
+	}
+
+	private static void reconstruct(OverthereFile src, OverthereFile dst, List<BlockChecksum> blocks, int blockSize) {
+		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
+		PerlProcess perl = new PerlProcess(dst.getConnection(), RECONSTRUCT_SCRIPT, multiHandler(loggingHandler(logger), capturedOutput), dst.getPath(),
+		        Integer.toString(blockSize));
+		try {
+			DeltaEncoder encoder = new DeltaEncoder(blocks, blockSize, new DataOutputStream(new BufferedOutputStream(perl.getStdin(), MAX_LITERAL_SIZE)));
+			InputStream in = src.getInputStream();
+			try {
+				encoder.encode(in);
+			} catch (IOException exc) {
+				throw new RuntimeIOException("Cannot send delta of " + src + " to " + dst, exc);
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+			logger.debug("Sent {} bytes of {} and reused {} bytes of {}", new Object[] { encoder.literalBytes, src, encoder.copiedBytes, dst });
+
+			int errno = perl.waitFor();
+			if (errno != 0) {
+				throw new RuntimeIOException("Cannot rebuild " + dst + ": " + capturedOutput.getError() + " (errno=" + errno + ")");
+			}
+		} finally {
+			perl.destroyUnlessCompleted();
+		}
+	}
+
+	/**
+	 * Scans a file for the blocks of the existing file and writes the instructions to rebuild it.
+	 */
+	static class DeltaEncoder {
+
+		private final Map<Integer, List<BlockChecksum>> blocksByWeakChecksum = newHashMap();
+
+		private final int blockSize;
+
+		private final DataOutputStream out;
+
+		private final MessageDigest fileDigest;
+
+		private final MessageDigest blockDigest;
+
+		private int copyStart = -1;
+
+		private int copyCount;
+
+		long literalBytes;
+
+		long copiedBytes;
+
+		DeltaEncoder(List<BlockChecksum> blocks, int blockSize, DataOutputStream out) {
+			for (BlockChecksum block : blocks) {
+				List<BlockChecksum> sameWeakChecksum = blocksByWeakChecksum.get(block.weak);
+				if (sameWeakChecksum == null) {
+					sameWeakChecksum = new ArrayList<BlockChecksum>();
+					blocksByWeakChecksum.put(block.weak, sameWeakChecksum);
+				}
+				sameWeakChecksum.add(block);
+			}
+			this.blockSize = blockSize;
+			this.out = out;
+			this.fileDigest = newMd5();
+			this.blockDigest = newMd5();
+		}
+
+		/**
+		 * Writes the instructions to rebuild the contents of the stream and closes the output.
+		 */
+		void encode(InputStream in) throws IOException {
+			byte[] buf = new byte[MAX_LITERAL_SIZE + 2 * blockSize];
+			int literalStart = 0;
+			int pos = 0;
+			int end = 0;
+			boolean eof = false;
+			boolean rolling = false;
+			long a = 0;
+			long b = 0;
+
+			for (;;) {
+				if (end - pos <= blockSize && !eof) {
+					// keep the pending literal bytes and the window, and read as much as fits after them
+					System.arraycopy(buf, literalStart, buf, 0, end - literalStart);
+					pos -= literalStart;
+					end -= literalStart;
+					literalStart = 0;
+					while (end < buf.length) {
+						int n = in.read(buf, end, buf.length - end);
+						if (n == -1) {
+							eof = true;
+							break;
+						}
+						end += n;
+					}
+				}
+				if (end - pos < blockSize) {
+					break;
+				}
+
+				if (!rolling) {
+					Adler32 adler = new Adler32();
+					adler.update(buf, pos, blockSize);
+					long value = adler.getValue();
+					a = value & 0xffff;
+					b = value >>> 16;
+					rolling = true;
+				}
+
+				BlockChecksum match = findBlock((int) ((b << 16) | a), buf, pos);
+				if (match != null) {
+					writeLiteral(buf, literalStart, pos - literalStart);
+					writeCopy(match, buf, pos);
+					pos += blockSize;
+					literalStart = pos;
+					rolling = false;
+					continue;
+				}
+
+				if (pos - literalStart >= MAX_LITERAL_SIZE) {
+					writeLiteral(buf, literalStart, pos - literalStart);
+					literalStart = pos;
+				}
+				if (end - pos == blockSize) {
+					// the window is at the end of the file
+					break;
+				}
+
+				int removed = buf[pos] & 0xff;
+				int added = buf[pos + blockSize] & 0xff;
+				a = mod(a - removed + added);
+				b = mod(b - (long) blockSize * removed + a - 1);
+				pos++;
+			}
+
+			writeLiteral(buf, literalStart, end - literalStart);
+			flushCopy();
+			out.writeByte('E');
+			out.writeInt(0);
+			out.writeInt(0);
+			out.write(toHex(fileDigest.digest()).getBytes("US-ASCII"));
+			out.close();
+		}
+
+		private BlockChecksum findBlock(int weak, byte[] buf, int pos) {
+			List<BlockChecksum> candidates = blocksByWeakChecksum.get(weak);
+			if (candidates == null) {
+				return null;
+			}
+			blockDigest.reset();
+			blockDigest.update(buf, pos, blockSize);
+			String strong = toHex(blockDigest.digest());
+			BlockChecksum match = null;
+			for (BlockChecksum candidate : candidates) {
+				if (candidate.strong.equals(strong)) {
+					// prefer the block that follows the previous match, so that the copy instructions can be merged
+					if (match == null || candidate.index == copyStart + copyCount) {
+						match = candidate;
+					}
+				}
+			}
+			return match;
+		}
+
+		private void writeCopy(BlockChecksum block, byte[] buf, int pos) throws IOException {
+			fileDigest.update(buf, pos, blockSize);
+			copiedBytes += blockSize;
+			if (copyCount > 0 && block.index == copyStart + copyCount) {
+				copyCount++;
+				return;
+			}
+			flushCopy();
+			copyStart = block.index;
+			copyCount = 1;
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyCount > 0) {
+				out.writeByte('C');
+				out.writeInt(copyStart);
+				out.writeInt(copyCount);
+				copyCount = 0;
+			}
+		}
+
+		private void writeLiteral(byte[] buf, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			flushCopy();
+			out.writeByte('L');
+			out.writeInt(len);
+			out.writeInt(0);
+			out.write(buf, off, len);
+			fileDigest.update(buf, off, len);
+			literalBytes += len;
+		}
+
+		private static long mod(long value) {
+			long m = value % ADLER_MODULUS;
+			return m < 0 ? m + ADLER_MODULUS : m;
+		}
+
+	}
+
+	static class BlockChecksum {
+
+		final int index;
+
+		final int weak;
+
+		final String strong;
+
+		BlockChecksum(int index, int weak, String strong) {
+			this.index = index;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException exc) {
+			throw new IllegalStateException("MD5 is not supported", exc);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte each : bytes) {
+			hex.append(Character.forDigit((each >> 4) & 0xf, 16)).append(Character.forDigit(each & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(OverthereFileDeltaCopier.class);
+
+}
@@ -22,7 +22,11 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
 /**
  * Abstract class that walks through a directory hierarchy and provides
  * subclasses with convenient hooks to add specific behaviour.
@@ -73,6 +77,10 @@ import java.util.List;
  *  }
  * </pre>
  *
+ * When the depth is unlimited, the whole hierarchy is listed up front with
+ * {@link OverthereFile#listFilesRecursively()}, so that connections that can
+ * list a tree in one round trip do not need a round trip per directory or file.
+ * <p>
  * Adapted from the DirectoryWalker class in Common IO.
  * 
  * FIXME: Move to its proper place
@@ -89,6 +97,11 @@ public abstract class OverthereFileDirectoryWalker {
      */
     private final int depthLimit;
 
+    /**
+     * The files in each directory by path, when the hierarchy has been listed up front.
+     */
+    private Map<String, List<OverthereFile>> listedFiles;
+
     /**
      * Construct an instance with unlimited <i>depth</i>.
      */
@@ -131,6 +144,8 @@ public abstract class OverthereFileDirectoryWalker {
             handleEnd();
         } catch (IOException e) {
             throw new RuntimeIOException(e);
+        } finally {
+            listedFiles = null;
         }
 
     }
@@ -147,12 +162,15 @@ public abstract class OverthereFileDirectoryWalker {
             handleDirectoryStart(directory, depth);
             int childDepth = depth + 1;
             if (depthLimit < 0 || childDepth <= depthLimit) {
+                if (depth == ROOT && depthLimit < 0) {
+                    listedFiles = listFilesRecursively(directory);
+                }
                 List<OverthereFile> childFiles = listFiles(directory);
                 if (childFiles == null) {
                     handleRestricted(directory, childDepth);
                 } else {
                     for (OverthereFile childFile : childFiles) {
-                        if (childFile.isDirectory()) {
+                        if (isDirectory(childFile)) {
                             walk(childFile, childDepth);
                         } else {
                             handleFile(childFile, childDepth);
@@ -172,9 +190,49 @@ public abstract class OverthereFileDirectoryWalker {
      * @return all the files in the directory as filtering.
      */
     protected List<OverthereFile> listFiles(OverthereFile directory) {
+        if (listedFiles != null) {
+            List<OverthereFile> files = listedFiles.get(directory.getPath());
+            if (files != null) {
+                return files;
+            }
+        }
         return directory.listFiles();
     }
 
+    private boolean isDirectory(OverthereFile file) {
+        if (listedFiles != null) {
+            return listedFiles.containsKey(file.getPath());
+        }
+        return file.isDirectory();
+    }
+
+    /**
+     * Lists the hierarchy under the start directory.
+     *
+     * @return the files in each directory by path, or <code>null</code> if the listing cannot be arranged by directory.
+     */
+    private static Map<String, List<OverthereFile>> listFilesRecursively(OverthereFile startDirectory) {
+        Map<String, List<OverthereFile>> filesByDirectory = newHashMap();
+        filesByDirectory.put(startDirectory.getPath(), new ArrayList<OverthereFile>());
+        List<OverthereFile> files = startDirectory.listFilesRecursively();
+        // Determine the directories first, so that the attributes of the files are used while they are fresh
+        for (OverthereFile file : files) {
+            if (file.isDirectory()) {
+                filesByDirectory.put(file.getPath(), new ArrayList<OverthereFile>());
+            }
+        }
+        for (OverthereFile file : files) {
+            OverthereFile parent = file.getParentFile();
+            List<OverthereFile> siblings = parent == null ? null : filesByDirectory.get(parent.getPath());
+            if (siblings == null) {
+                // The paths do not line up, so fall back to listing each directory
+                return null;
+            }
+            siblings.add(file);
+        }
+        return filesByDirectory;
+    }
+
     /**
      * Overridable callback method invoked at the start of processing.
      * <p/>
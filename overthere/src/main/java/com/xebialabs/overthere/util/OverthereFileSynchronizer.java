@@ -0,0 +1,382 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static java.util.Collections.unmodifiableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Synchronizes a destination directory with a source directory by copying only the files that are new or have changed, and optionally deleting the files
+ * that are not in the source directory. Both trees are {@link OverthereFile#listFilesRecursively() listed recursively}, so that connections that can list a
+ * whole tree in one round trip only need one per tree to find out what to copy. When listing a tree takes longer than a connection caches file attributes,
+ * the attributes of the files listed first are retrieved again one by one. When the destination directory does not exist, the source directory is copied
+ * as a whole.
+ * <p>
+ * By default a file is considered to be changed when its length differs from that of the destination file or when it was modified in a later second than
+ * the destination file. That relies on the clocks of the hosts being in sync. Alternatively, the MD5 checksums of files of the same length can be compared.
+ * On Unix hosts these are computed on the host with <code>perl</code>, otherwise the files are read.
+ * <p>
+ * Files are copied with {@link OverthereFile#copyTo(OverthereFile)}, so that the optimizations of the connections are used.
+ */
+public final class OverthereFileSynchronizer {
+
+	/**
+	 * Script that prints the MD5 checksum of every file whose path is on a line after it, or <code>-</code> if the file cannot be read.
+	 */
+	static final String MD5_SCRIPT = "use Digest::MD5;\n" //
+	        + "while (my $p = <DATA>) {\n" //
+	        + "  chomp $p;\n" //
+	        + "  if (open(F, '<', $p)) { binmode F; print Digest::MD5->new->addfile(*F)->hexdigest, \"\\n\"; close(F); } else { print \"-\\n\"; }\n" //
+	        + "}\n";
+
+	private OverthereFileSynchronizer() {
+	}
+
+	/**
+	 * Copies the files in the source directory that are not in the destination directory or that have a different length or a later modification time.
+	 * Files in the destination directory that are not in the source directory are kept.
+	 * 
+	 * @param srcDir
+	 *            the source directory. Must exist.
+	 * @param dstDir
+	 *            the destination directory. May exist but must be a directory. Its parent directory must exist.
+	 * @return what was changed in the destination directory.
+	 * @throws RuntimeIOException
+	 *             if an I/O error occurred
+	 */
+	public static Changes sync(OverthereFile srcDir, OverthereFile dstDir) {
+		return sync(srcDir, dstDir, false, false);
+	}
+
+	/**
+	 * Copies the files in the source directory that are not in the destination directory or that have changed.
+	 * 
+	 * @param srcDir
+	 *            the source directory. Must exist.
+	 * @param dstDir
+	 *            the destination directory. May exist but must be a directory. Its parent directory must exist.
+	 * @param compareContents
+	 *            if <code>true</code>, files of the same length are compared by their MD5 checksums instead of by their modification times.
+	 * @param deleteExtraneous
+	 *            if <code>true</code>, the files and directories in the destination directory that are not in the source directory are deleted.
+	 * @return what was changed in the destination directory.
+	 * @throws RuntimeIOException
+	 *             if an I/O error occurred
+	 */
+	public static Changes sync(OverthereFile srcDir, OverthereFile dstDir, boolean compareContents, boolean deleteExtraneous) {
+		if (!srcDir.exists() || !srcDir.isDirectory()) {
+			throw new RuntimeIOException("Source directory " + srcDir + " does not exist or is not a directory");
+		}
+
+		Changes changes = new Changes();
+		Map<String, ListedFile> srcFiles = listFilesRecursively(srcDir);
+		if (!dstDir.exists()) {
+			// nothing to compare with, so the whole tree is copied in one go
+			for (Map.Entry<String, ListedFile> each : srcFiles.entrySet()) {
+				(each.getValue().directory ? changes.createdDirectories : changes.copiedFiles).add(each.getKey());
+			}
+			srcDir.copyTo(dstDir);
+			logger.info("Synchronized {} with {}: {}", new Object[] { dstDir, srcDir, changes });
+			return changes;
+		}
+		if (!dstDir.isDirectory()) {
+			throw new RuntimeIOException("Destination directory " + dstDir + " exists but is not a directory");
+		}
+		Map<String, ListedFile> dstFiles = listFilesRecursively(dstDir);
+
+		List<String> sameLength = newArrayList();
+		for (Map.Entry<String, ListedFile> each : srcFiles.entrySet()) {
+			String path = each.getKey();
+			ListedFile src = each.getValue();
+			ListedFile dst = dstFiles.get(path);
+			if (src.directory) {
+				if (dst == null) {
+					getFile(dstDir, path).mkdir();
+					changes.createdDirectories.add(path);
+				} else if (!dst.directory) {
+					throw new RuntimeIOException("Cannot synchronize directory " + src.file + " because " + dst.file + " exists but is not a directory");
+				}
+			} else if (dst == null) {
+				changes.copiedFiles.add(path);
+			} else if (dst.directory) {
+				throw new RuntimeIOException("Cannot synchronize file " + src.file + " because " + dst.file + " exists but is a directory");
+			} else if (src.length != dst.length) {
+				changes.updatedFiles.add(path);
+			} else if (compareContents) {
+				sameLength.add(path);
+			} else if (src.lastModified / 1000 > dst.lastModified / 1000) {
+				changes.updatedFiles.add(path);
+			} else {
+				changes.unchangedFiles++;
+			}
+		}
+
+		if (!sameLength.isEmpty()) {
+			List<String> srcChecksums = md5(srcDir, srcFiles, sameLength);
+			List<String> dstChecksums = md5(dstDir, dstFiles, sameLength);
+			for (int i = 0; i < sameLength.size(); i++) {
+				if (srcChecksums.get(i) == null || !srcChecksums.get(i).equals(dstChecksums.get(i))) {
+					changes.updatedFiles.add(sameLength.get(i));
+				} else {
+					changes.unchangedFiles++;
+				}
+			}
+		}
+
+		for (String path : changes.copiedFiles) {
+			srcFiles.get(path).file.copyTo(getFile(dstDir, path));
+		}
+		for (String path : changes.updatedFiles) {
+			srcFiles.get(path).file.copyTo(dstFiles.get(path).file);
+		}
+
+		if (deleteExtraneous) {
+			List<String> deletedDirs = newArrayList();
+			for (Map.Entry<String, ListedFile> each : dstFiles.entrySet()) {
+				String path = each.getKey();
+				if (srcFiles.containsKey(path) || isInAny(path, deletedDirs)) {
+					continue;
+				}
+				OverthereFile dst = each.getValue().file;
+				if (each.getValue().directory) {
+					dst.deleteRecursively();
+					deletedDirs.add(path + "/");
+				} else {
+					dst.delete();
+				}
+				changes.deletedFiles.add(path);
+			}
+		}
+
+		logger.info("Synchronized {} with {}: {}", new Object[] { dstDir, srcDir, changes });
+		return changes;
+	}
+
+	/**
+	 * Lists the files in a directory recursively by their paths relative to that directory, using <code>/</code> as the separator. The attributes are read
+	 * right after listing, while the connection may still have them cached.
+	 */
+	private static Map<String, ListedFile> listFilesRecursively(OverthereFile dir) {
+		String separator = dir.getConnection().getHostOperatingSystem().getFileSeparator();
+		String prefix = dir.getPath();
+		if (!prefix.endsWith(separator)) {
+			prefix += separator;
+		}
+
+		Map<String, ListedFile> files = newLinkedHashMap();
+		for (OverthereFile each : dir.listFilesRecursively()) {
+			String path = each.getPath();
+			if (!path.startsWith(prefix)) {
+				throw new RuntimeIOException("Cannot synchronize " + each + " because it is not in " + dir);
+			}
+			files.put(path.substring(prefix.length()).replace(separator, "/"), new ListedFile(each));
+		}
+		return files;
+	}
+
+	private static boolean isInAny(String path, List<String> dirs) {
+		for (String dir : dirs) {
+			if (path.startsWith(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static OverthereFile getFile(OverthereFile dir, String path) {
+		OverthereFile file = dir;
+		for (String name : path.split("/")) {
+			file = file.getFile(name);
+		}
+		return file;
+	}
+
+	/**
+	 * Computes the MD5 checksums of some of the files in a directory.
+	 * 
+	 * @return the checksums, in the same order as the paths. A checksum is <code>null</code> if the file cannot be read.
+	 */
+	private static List<String> md5(OverthereFile dir, Map<String, ListedFile> files, List<String> paths) {
+		OverthereConnection connection = dir.getConnection();
+		if (connection.getHostOperatingSystem() == UNIX && connection.canStartProcess()) {
+			List<String> checksums = md5WithPerl(connection, files, paths);
+			if (checksums != null) {
+				return checksums;
+			}
+		}
+
+		List<String> checksums = newArrayList();
+		for (String path : paths) {
+			checksums.add(md5(files.get(path).file));
+		}
+		return checksums;
+	}
+
+	private static List<String> md5WithPerl(OverthereConnection connection, Map<String, ListedFile> files, List<String> paths) {
+		CapturingOverthereProcessOutputHandler capturedOutput = capturingHandler();
+		try {
+			PerlProcess perl = new PerlProcess(connection, MD5_SCRIPT, capturedOutput);
+			int errno;
+			try {
+				OutputStream stdin = perl.getStdin();
+				for (String path : paths) {
+					stdin.write((files.get(path).file.getPath() + "\n").getBytes("UTF-8"));
+				}
+				perl.closeStdin();
+				errno = perl.waitFor();
+			} finally {
+				perl.destroyUnlessCompleted();
+			}
+
+			List<String> lines = capturedOutput.getOutputLines();
+			if (errno != 0 || lines.size() != paths.size()) {
+				logger.debug("Cannot compute checksums with perl on {}, reading the files instead: {} (errno={})", new Object[] { connection,
+				        capturedOutput.getError(), errno });
+				return null;
+			}
+			List<String> checksums = newArrayList();
+			for (String line : lines) {
+				checksums.add(line.trim().equals("-") ? null : line.trim());
+			}
+			return checksums;
+		} catch (IOException exc) {
+			logger.debug("Cannot compute checksums with perl on " + connection + ", reading the files instead", exc);
+			return null;
+		} catch (RuntimeIOException exc) {
+			logger.debug("Cannot compute checksums with perl on " + connection + ", reading the files instead", exc);
+			return null;
+		}
+	}
+
+	private static String md5(OverthereFile file) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException exc) {
+			throw new IllegalStateException("MD5 is not supported", exc);
+		}
+
+		InputStream in = file.getInputStream();
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				md5.update(buffer, 0, n);
+			}
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot read " + file, exc);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte each : md5.digest()) {
+			hex.append(String.format("%02x", each & 0xff));
+		}
+		return hex.toString();
+	}
+
+	private static class ListedFile {
+		final OverthereFile file;
+		final boolean directory;
+		final long length;
+		final long lastModified;
+
+		ListedFile(OverthereFile file) {
+			this.file = file;
+			this.directory = file.isDirectory();
+			this.length = directory ? 0 : file.length();
+			this.lastModified = directory ? 0 : file.lastModified();
+		}
+	}
+
+	/**
+	 * What was changed in the destination directory by a synchronization. All paths are relative to the destination directory and use <code>/</code> as
+	 * the separator.
+	 */
+	public static class Changes {
+		private final List<String> createdDirectories = newArrayList();
+		private final List<String> copiedFiles = newArrayList();
+		private final List<String> updatedFiles = newArrayList();
+		private final List<String> deletedFiles = newArrayList();
+		private int unchangedFiles;
+
+		/**
+		 * @return the directories that were created.
+		 */
+		public List<String> getCreatedDirectories() {
+			return unmodifiableList(createdDirectories);
+		}
+
+		/**
+		 * @return the files that did not exist and were copied.
+		 */
+		public List<String> getCopiedFiles() {
+			return unmodifiableList(copiedFiles);
+		}
+
+		/**
+		 * @return the files that had changed and were overwritten.
+		 */
+		public List<String> getUpdatedFiles() {
+			return unmodifiableList(updatedFiles);
+		}
+
+		/**
+		 * @return the files and directories that were not in the source directory and were deleted. The contents of deleted directories are not listed.
+		 */
+		public List<String> getDeletedFiles() {
+			return unmodifiableList(deletedFiles);
+		}
+
+		/**
+		 * @return the number of files that had not changed and were not copied.
+		 */
+		public int getUnchangedFiles() {
+			return unchangedFiles;
+		}
+
+		@Override
+		public String toString() {
+			return createdDirectories.size() + " directories created, " + copiedFiles.size() + " files copied, " + updatedFiles.size() + " updated, "
+			        + deletedFiles.size() + " deleted and " + unchangedFiles + " unchanged";
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(OverthereFileSynchronizer.class);
+
+}
@@ -0,0 +1,103 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+import static com.xebialabs.overthere.util.OverthereExecutors.getSharedExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Runs a script with <code>perl</code> on a host. The script is sent on stdin, followed by <code>__END__</code>, instead of on the command line, so that it
+ * does not depend on how the connection quotes arguments. Anything written to stdin after that can be read by the script from <code>DATA</code>.
+ */
+class PerlProcess {
+
+	private final OverthereConnection connection;
+
+	private final OverthereProcess process;
+
+	private final Future<?> stdoutPump;
+
+	private final Future<?> stderrPump;
+
+	private boolean completed;
+
+	PerlProcess(OverthereConnection connection, String script, OverthereProcessOutputHandler handler, String... args) {
+		this.connection = connection;
+		CmdLine commandLine = CmdLine.build("perl", "-");
+		for (String arg : args) {
+			commandLine.addArgument(arg);
+		}
+		this.process = connection.startProcess(commandLine);
+		this.stdoutPump = getSharedExecutor().submit(stdoutPump(process.getStdout(), handler));
+		this.stderrPump = getSharedExecutor().submit(stderrPump(process.getStderr(), handler));
+		try {
+			process.getStdin().write((script + "\n__END__\n").getBytes("US-ASCII"));
+		} catch (IOException exc) {
+			destroyUnlessCompleted();
+			throw new RuntimeIOException("Cannot send script to perl on " + connection, exc);
+		}
+	}
+
+	OutputStream getStdin() {
+		return process.getStdin();
+	}
+
+	void closeStdin() {
+		try {
+			process.getStdin().close();
+		} catch (IOException exc) {
+			throw new RuntimeIOException("Cannot send input to perl on " + connection, exc);
+		}
+	}
+
+	int waitFor() {
+		try {
+			int errno = process.waitFor();
+			stdoutPump.get();
+			stderrPump.get();
+			completed = true;
+			return errno;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Interrupted while waiting for perl on " + connection, exc);
+		} catch (ExecutionException exc) {
+			throw new RuntimeIOException("Cannot read output of perl on " + connection, exc.getCause());
+		}
+	}
+
+	void destroyUnlessCompleted() {
+		if (!completed) {
+			process.destroy();
+			stdoutPump.cancel(true);
+			stderrPump.cancel(true);
+		}
+	}
+
+}
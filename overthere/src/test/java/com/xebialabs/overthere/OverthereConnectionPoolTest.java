@@ -0,0 +1,105 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere;
+
+import static com.xebialabs.overthere.ConnectionOptions.TEMPORARY_DIRECTORY_PATH;
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OverthereConnectionPoolTest {
+
+	private OverthereConnectionPool pool;
+
+	private ConnectionOptions options;
+
+	@BeforeMethod
+	public void init() {
+		pool = new OverthereConnectionPool(1, 60000, 100);
+		options = new ConnectionOptions();
+		options.set(TEMPORARY_DIRECTORY_PATH, System.getProperty("java.io.tmpdir"));
+	}
+
+	@AfterMethod
+	public void close() {
+		pool.close();
+	}
+
+	@Test
+	public void shouldReuseReturnedConnection() {
+		OverthereConnection first = pool.getConnection(LOCAL_PROTOCOL, options);
+		String firstTemporaryDirectory = first.getTempFile("pooled.txt").getParentFile().getPath();
+		first.setWorkingDirectory(first.getFile(System.getProperty("java.io.tmpdir")));
+		first.close();
+
+		OverthereConnection second = pool.getConnection(LOCAL_PROTOCOL, options);
+		assertThat(second.getTempFile("pooled.txt").getParentFile().getPath(), equalTo(firstTemporaryDirectory));
+		assertThat(second.getWorkingDirectory(), nullValue());
+		second.close();
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void shouldNotAllowUseOfReturnedConnection() {
+		OverthereConnection connection = pool.getConnection(LOCAL_PROTOCOL, options);
+		connection.close();
+		connection.getFile("/");
+	}
+
+	@Test(expectedExceptions = RuntimeIOException.class)
+	public void shouldCapConnectionsPerHost() {
+		OverthereConnection connection = pool.getConnection(LOCAL_PROTOCOL, options);
+		try {
+			pool.getConnection(LOCAL_PROTOCOL, options);
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void shouldEvictIdleConnectionWithOtherOptionsToMakeRoom() {
+		pool.getConnection(LOCAL_PROTOCOL, options).close();
+
+		ConnectionOptions otherOptions = new ConnectionOptions(options);
+		otherOptions.set("someOption", "someValue");
+		OverthereConnection other = pool.getConnection(LOCAL_PROTOCOL, otherOptions);
+		assertThat(other, not(nullValue()));
+		other.close();
+	}
+
+	@Test
+	public void shouldEvictConnectionsThatHaveBeenIdleTooLong() {
+		OverthereConnectionPool shortLivedPool = new OverthereConnectionPool(1, 0, 100);
+		try {
+			OverthereConnection connection = shortLivedPool.getConnection(LOCAL_PROTOCOL, options);
+			connection.close();
+			shortLivedPool.evictIdleConnections();
+
+			OverthereConnection other = shortLivedPool.getConnection(LOCAL_PROTOCOL, options);
+			other.close();
+		} finally {
+			shortLivedPool.close();
+		}
+	}
+
+}
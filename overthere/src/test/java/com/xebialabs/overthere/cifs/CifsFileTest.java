@@ -0,0 +1,117 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import jcifs.smb.SmbFile;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereFile;
+
+/**
+ * Unit tests for the attributes that a {@link CifsFile} caches when it is returned by {@link CifsFile#listFiles()}.
+ */
+public class CifsFileTest {
+
+	private CifsConnection connection;
+
+	private SmbFile fileSmbFile;
+
+	private SmbFile subdirSmbFile;
+
+	private CifsFile dir;
+
+	@BeforeMethod
+	public void setupDirectory() throws Exception {
+		connection = mock(CifsConnection.class);
+		connection.attributeExpirationPeriod = 5000;
+
+		SmbFile fileEntry = mock(SmbFile.class);
+		when(fileEntry.getName()).thenReturn("file.txt");
+		when(fileEntry.getAttributes()).thenReturn(SmbFile.ATTR_ARCHIVE | SmbFile.ATTR_READONLY);
+		when(fileEntry.length()).thenReturn(1234L);
+		when(fileEntry.lastModified()).thenReturn(42L);
+		SmbFile subdirEntry = mock(SmbFile.class);
+		when(subdirEntry.getName()).thenReturn("subdir/");
+		when(subdirEntry.getAttributes()).thenReturn(SmbFile.ATTR_DIRECTORY | SmbFile.ATTR_HIDDEN);
+
+		SmbFile dirSmbFile = mock(SmbFile.class);
+		when(dirSmbFile.getPath()).thenReturn("smb://host/C$/dir/");
+		when(dirSmbFile.listFiles()).thenReturn(new SmbFile[] { fileEntry, subdirEntry });
+		dir = new CifsFile(connection, dirSmbFile);
+
+		fileSmbFile = mock(SmbFile.class);
+		subdirSmbFile = mock(SmbFile.class);
+		when(connection.getFile(any(OverthereFile.class), eq("file.txt"))).thenReturn(new CifsFile(connection, fileSmbFile));
+		when(connection.getFile(any(OverthereFile.class), eq("subdir"))).thenReturn(new CifsFile(connection, subdirSmbFile));
+	}
+
+	@Test
+	public void listedFilesAnswerFromCachedAttributes() {
+		List<OverthereFile> files = dir.listFiles();
+
+		OverthereFile file = files.get(0);
+		assertThat(file.exists(), is(true));
+		assertThat(file.isFile(), is(true));
+		assertThat(file.isDirectory(), is(false));
+		assertThat(file.canWrite(), is(false));
+		assertThat(file.isHidden(), is(false));
+		assertThat(file.length(), is(1234L));
+		assertThat(file.lastModified(), is(42L));
+
+		OverthereFile subdir = files.get(1);
+		assertThat(subdir.isDirectory(), is(true));
+		assertThat(subdir.isFile(), is(false));
+		assertThat(subdir.isHidden(), is(true));
+		assertThat(subdir.canWrite(), is(true));
+
+		verifyZeroInteractions(fileSmbFile, subdirSmbFile);
+	}
+
+	@Test
+	public void attributesAreNotCachedWhenExpirationPeriodIsZero() throws Exception {
+		connection.attributeExpirationPeriod = 0;
+		when(fileSmbFile.length()).thenReturn(99L);
+
+		assertThat(dir.listFiles().get(0).length(), is(99L));
+	}
+
+	@Test
+	public void modifyingFileClearsCachedAttributes() throws Exception {
+		OverthereFile file = dir.listFiles().get(0);
+
+		file.mkdirs();
+		when(fileSmbFile.isDirectory()).thenReturn(true);
+
+		assertThat(file.isDirectory(), is(true));
+		verify(fileSmbFile).isDirectory();
+	}
+
+}
@@ -0,0 +1,78 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs;
+
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.MAX_MPX_COUNT;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.SEND_BUFFER_SIZE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import jcifs.Config;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+
+/**
+ * Unit tests for the {@link JcifsSettings}, which are taken from the first connection only.
+ */
+public class JcifsSettingsTest {
+
+	private Properties savedConfig;
+
+	/**
+	 * The jcifs {@link Config} is global, so it is restored after each test. It has no way to remove a property, so all properties are saved.
+	 */
+	@BeforeMethod
+	public void saveJcifsConfig() throws IOException {
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		Config.store(stored, null);
+		savedConfig = new Properties();
+		savedConfig.load(new ByteArrayInputStream(stored.toByteArray()));
+	}
+
+	@AfterMethod
+	public void restoreJcifsConfig() {
+		Config.setProperties(savedConfig);
+	}
+
+	@Test
+	public void appliesSettingsOfFirstConnectionOnly() {
+		JcifsSettings settings = new JcifsSettings();
+
+		ConnectionOptions first = new ConnectionOptions();
+		first.set(MAX_MPX_COUNT, 10);
+		settings.apply(first);
+
+		ConnectionOptions second = new ConnectionOptions();
+		second.set(MAX_MPX_COUNT, 50);
+		second.set(SEND_BUFFER_SIZE, 65536);
+		settings.apply(second);
+
+		assertThat(Config.getProperty("jcifs.smb.client.maxMpxCount"), is("10"));
+		assertThat(Config.getProperty("jcifs.smb.client.snd_buf_size") == null, is(true));
+	}
+
+}
@@ -0,0 +1,80 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Microbenchmark guarding that the time the {@link PathMapper} takes to translate a path does not grow with the number of share mappings.
+ */
+public class PathMapperBenchmarkItest {
+
+	private static final int PATHS = 10000;
+
+	private static final int ROUNDS = 10;
+
+	@Test
+	public void translationTimeDoesNotGrowWithNumberOfMappings() {
+		bestNanosPerTranslation(1);
+		long few = bestNanosPerTranslation(1);
+		long many = bestNanosPerTranslation(2000);
+		logger.info("Translating a path takes {} ns with 1 share mapping and {} ns with 2000 share mappings", few, many);
+
+		assertThat("Translating with 2000 mappings takes " + many + " ns, with 1 mapping " + few + " ns", many < 3 * few + 100, is(true));
+	}
+
+	private static long bestNanosPerTranslation(int mappings) {
+		Map<String, String> sharesForPaths = Maps.newHashMap();
+		for (int i = 0; i < mappings; i++) {
+			sharesForPaths.put("d:\\mapped\\dir" + i, "share" + i);
+		}
+		PathMapper mapper = new PathMapper(sharesForPaths);
+
+		String[] localPaths = new String[PATHS];
+		String[] sharedPaths = new String[PATHS];
+		for (int i = 0; i < PATHS; i++) {
+			localPaths[i] = "c:\\Program Files\\dir" + (i % 100) + "\\file" + i + ".txt";
+			sharedPaths[i] = "c$\\Program Files\\dir" + (i % 100) + "\\file" + i + ".txt";
+		}
+
+		long best = Long.MAX_VALUE;
+		int checksum = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < PATHS; i++) {
+				checksum += mapper.toSharedPath(localPaths[i]).length();
+				checksum += mapper.toLocalPath(sharedPaths[i]).length();
+			}
+			best = Math.min(best, (System.nanoTime() - start) / (2 * PATHS));
+		}
+		assertThat(checksum > 0, is(true));
+		return best;
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(PathMapperBenchmarkItest.class);
+
+}
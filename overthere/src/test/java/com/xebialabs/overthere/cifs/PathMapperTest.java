@@ -20,7 +20,11 @@ package com.xebialabs.overthere.cifs;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
+import java.util.Map;
+import java.util.Map.Entry;
+
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import org.testng.annotations.Test;
 
 /**
@@ -84,9 +88,63 @@ public class PathMapperTest {
         assertThat(mapper.toLocalPath("Windows-Share\\Temp"), is("c:\\Windows\\Temp"));
     }
     
+    @Test
+    public void usesLongestExplicitMappingInSharedPath() {
+        mapper = new PathMapper(ImmutableMap.of("c:\\Windows", "w", "c:\\Data", "windows-share"));
+        assertThat(mapper.toLocalPath("windows-share\\Temp"), is("c:\\Data\\Temp"));
+    }
+
     @Test
     public void handlesAdminSharesInSharedPath() {
         mapper = new PathMapper(ImmutableMap.of("c:\\Windows\\Temp", "temp-share"));
         assertThat(mapper.toLocalPath("c$\\Windows"), is("c:\\Windows"));
     }
+
+    @Test
+    public void usesLongestMappingAmongManyMappings() {
+        Map<String, String> mappings = Maps.newHashMap();
+        for (int i = 0; i < 1000; i++) {
+            mappings.put("d:\\mapped\\dir" + i, "share" + i);
+            mappings.put("d:\\mapped\\dir" + i + "\\sub", "sub" + i);
+        }
+        mapper = new PathMapper(mappings);
+
+        for (int i = 0; i < 1100; i++) {
+            for (String path : new String[] { "d:\\mapped\\dir" + i + "\\file", "D:\\Mapped\\DIR" + i + "\\Sub\\file",
+                    "d:\\mapped\\dir" + i + "\\subdir\\file", "c:\\Program Files\\dir" + i }) {
+                assertThat(path, mapper.toSharedPath(path), is(linearToSharedPath(mappings, path)));
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            for (String path : new String[] { "share" + i + "\\file", "SUB" + i + "\\file" }) {
+                assertThat(path, mapper.toLocalPath(path), is(linearToLocalPath(mappings, path)));
+            }
+        }
+        assertThat(mapper.toSharedPath("d:\\mapped\\dir10\\sub\\file"), is("sub10\\file"));
+        assertThat(mapper.toLocalPath("sub100\\file"), is("d:\\mapped\\dir100\\sub\\file"));
+    }
+
+    /**
+     * Finds the longest mapping by comparing the path with every mapping.
+     */
+    private static String linearToSharedPath(Map<String, String> mappings, String path) {
+        Entry<String, String> longest = null;
+        for (Entry<String, String> mapping : mappings.entrySet()) {
+            if (path.toLowerCase().startsWith(mapping.getKey().toLowerCase()) && (longest == null || mapping.getKey().length() > longest.getKey().length())) {
+                longest = mapping;
+            }
+        }
+        return longest != null ? longest.getValue() + path.substring(longest.getKey().length()) : path.charAt(0) + "$" + path.substring(2);
+    }
+
+    private static String linearToLocalPath(Map<String, String> mappings, String path) {
+        Entry<String, String> longest = null;
+        for (Entry<String, String> mapping : mappings.entrySet()) {
+            if (path.toLowerCase().startsWith(mapping.getValue().toLowerCase())
+                    && (longest == null || mapping.getValue().length() > longest.getValue().length())) {
+                longest = mapping;
+            }
+        }
+        return longest.getKey() + path.substring(longest.getValue().length());
+    }
 }
@@ -0,0 +1,239 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.cifs.CifsConnectionType.WINRM_HTTP;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.spi.BatchOutputDemultiplexer;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+/**
+ * Unit tests for the batches executed by a {@link CifsWinRmConnection}, running them in a stand-in that emulates <code>cmd.exe</code> for commands that
+ * succeed unless their name is <code>fail</code>.
+ */
+public class CifsWinRmConnectionTest {
+
+	private static final Pattern BATCH_COMMAND = Pattern.compile("echo (\\S+) B (\\d+)& \\(echo \\S+ B \\d+\\)1>&2& \\(([^)]*)\\)");
+
+	private StandInConnection connection;
+
+	@BeforeMethod
+	public void connect() {
+		ConnectionOptions options = new ConnectionOptions();
+		options.set(CONNECTION_TYPE, WINRM_HTTP);
+		options.set(OPERATING_SYSTEM, WINDOWS);
+		options.set(ADDRESS, "localhost");
+		options.set(USERNAME, "user");
+		options.set(PASSWORD, "secret");
+		connection = new StandInConnection(options);
+	}
+
+	@Test
+	public void buildsBatchThatContinuesOnFailure() {
+		BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(handlers(2));
+		String batch = connection.buildBatch(demultiplexer, newArrayList(CmdLine.build("dir"), CmdLine.build("echo", "a")), true);
+
+		assertThat(batch, is("echo " + demultiplexer.getBeginMarker(0) + "& (echo " + demultiplexer.getBeginMarker(0) + ")1>&2& (dir)"
+		        + "& call echo " + demultiplexer.getEndMarker(0) + " %^errorlevel%"
+		        + "& echo " + demultiplexer.getBeginMarker(1) + "& (echo " + demultiplexer.getBeginMarker(1) + ")1>&2& (echo a)"
+		        + "& call echo " + demultiplexer.getEndMarker(1) + " %^errorlevel%"));
+	}
+
+	@Test
+	public void buildsBatchThatStopsOnFailure() {
+		BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(handlers(2));
+		String batch = connection.buildBatch(demultiplexer, newArrayList(CmdLine.build("dir"), CmdLine.build("echo", "a")), false);
+
+		assertThat(batch, is("echo " + demultiplexer.getBeginMarker(0) + "& (echo " + demultiplexer.getBeginMarker(0) + ")1>&2& (dir)"
+		        + " && (echo " + demultiplexer.getEndMarker(0) + " 0"
+		        + "& echo " + demultiplexer.getBeginMarker(1) + "& (echo " + demultiplexer.getBeginMarker(1) + ")1>&2& (echo a)"
+		        + " && (echo " + demultiplexer.getEndMarker(1) + " 0) || call echo " + demultiplexer.getEndMarker(1) + " %^errorlevel%)"
+		        + " || call echo " + demultiplexer.getEndMarker(0) + " %^errorlevel%"));
+	}
+
+	@Test
+	public void splitsBatchThatIsTooLongForCmdExe() {
+		List<CmdLine> commandLines = commandLines(30, 500);
+
+		List<Integer> exitValues = connection.executeBatch(handlers(30), commandLines, true);
+
+		assertThat(exitValues, is(Collections.nCopies(30, 0)));
+		assertThat(connection.batches.size() > 1, is(true));
+		for (String batch : connection.batches) {
+			assertThat(batch.length() <= CifsWinRmConnection.MAX_COMMAND_LINE_LENGTH, is(true));
+		}
+		assertThat(connection.executed, is(toCommands(commandLines)));
+	}
+
+	@Test
+	public void stopsSplitBatchAfterFailure() {
+		List<CmdLine> commandLines = commandLines(30, 500);
+		commandLines.set(20, CmdLine.build("fail"));
+
+		List<Integer> exitValues = connection.executeBatch(handlers(30), commandLines, false);
+
+		assertThat(exitValues.size(), is(21));
+		assertThat(exitValues.get(19), is(0));
+		assertThat(exitValues.get(20), is(1));
+		assertThat(connection.executed, is(toCommands(commandLines.subList(0, 21))));
+	}
+
+	@Test
+	public void executesCommandThatIsTooLongForBatchByItself() {
+		List<CmdLine> commandLines = commandLines(3, 10);
+		commandLines.set(1, CmdLine.build("echo", Strings.repeat("x", CifsWinRmConnection.MAX_COMMAND_LINE_LENGTH)));
+
+		List<Integer> exitValues = connection.executeBatch(handlers(3), commandLines, false);
+
+		assertThat(exitValues, is(Collections.nCopies(3, 0)));
+		assertThat(connection.batches.size(), is(2));
+		assertThat(connection.startedProcesses, is(toCommands(commandLines.subList(1, 2))));
+		assertThat(connection.executed, is(toCommands(newArrayList(commandLines.get(0), commandLines.get(2)))));
+	}
+
+	private static List<OverthereProcessOutputHandler> handlers(int count) {
+		List<OverthereProcessOutputHandler> handlers = newArrayList();
+		for (int i = 0; i < count; i++) {
+			handlers.add(capturingHandler());
+		}
+		return handlers;
+	}
+
+	private static List<CmdLine> commandLines(int count, int length) {
+		List<CmdLine> commandLines = newArrayList();
+		for (int i = 0; i < count; i++) {
+			commandLines.add(CmdLine.build("echo", Strings.padEnd(Integer.toString(i), length, 'x')));
+		}
+		return commandLines;
+	}
+
+	private static List<String> toCommands(List<CmdLine> commandLines) {
+		List<String> commands = newArrayList();
+		for (CmdLine commandLine : commandLines) {
+			commands.add(commandLine.toCommandLine(WINDOWS, false));
+		}
+		return commands;
+	}
+
+	/**
+	 * A connection that runs batches in a stand-in for <code>cmd.exe</code> instead of over WinRM, and records the commands it runs.
+	 */
+	private static class StandInConnection extends CifsWinRmConnection {
+
+		final List<String> batches = newArrayList();
+
+		final List<String> executed = newArrayList();
+
+		final List<String> startedProcesses = newArrayList();
+
+		StandInConnection(ConnectionOptions options) {
+			super("cifs", options, new DefaultAddressPortMapper());
+		}
+
+		@Override
+		OverthereProcess startBatch(String batch) {
+			batches.add(batch);
+			boolean stopOnFailure = batch.contains(" && (echo ");
+			StringBuilder stdout = new StringBuilder();
+			int exitValue = 0;
+			Matcher m = BATCH_COMMAND.matcher(batch);
+			while (m.find()) {
+				String command = m.group(3);
+				executed.add(command);
+				exitValue = command.equals("fail") ? 1 : 0;
+				stdout.append(m.group(1)).append(" B ").append(m.group(2)).append("\r\n");
+				stdout.append(m.group(1)).append(" E ").append(m.group(2)).append(" ").append(exitValue).append("\r\n");
+				if (stopOnFailure && exitValue != 0) {
+					break;
+				}
+			}
+			return new StandInProcess(stdout.toString(), exitValue);
+		}
+
+		@Override
+		public OverthereProcess startProcess(CmdLine commandLine) {
+			startedProcesses.add(commandLine.toCommandLine(WINDOWS, false));
+			return new StandInProcess("", 0);
+		}
+	}
+
+	private static class StandInProcess implements OverthereProcess {
+
+		private final String stdout;
+
+		private final int exitValue;
+
+		StandInProcess(String stdout, int exitValue) {
+			this.stdout = stdout;
+			this.exitValue = exitValue;
+		}
+
+		@Override
+		public OutputStream getStdin() {
+			return new ByteArrayOutputStream();
+		}
+
+		@Override
+		public InputStream getStdout() {
+			return new ByteArrayInputStream(stdout.getBytes(UTF_8));
+		}
+
+		@Override
+		public InputStream getStderr() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public int waitFor() {
+			return exitValue;
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import java.io.ByteArrayInputStream;
+
+import org.dom4j.DocumentHelper;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the {@link ShellResponse}, checking that the StAX parser and the dom4j path agree.
+ */
+public class ShellResponseTest {
+
+	private static final String ENVELOPE = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+	        + " xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\"><s:Header/><s:Body>%s</s:Body></s:Envelope>";
+
+	private static final String STATE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/";
+
+	@Test
+	public void readsStreamsOfRunningCommand() throws Exception {
+		String body = "<rsp:ReceiveResponse><rsp:Stream Name=\"stdout\" CommandId=\"C\">aGVsbG8K</rsp:Stream><rsp:Stream Name=\"stderr\" CommandId=\"C\">b29wcw==</rsp:Stream>"
+		        + "<rsp:Stream Name=\"stdout\" CommandId=\"C\">d29ybGQK</rsp:Stream><rsp:Stream Name=\"stderr\" CommandId=\"C\"></rsp:Stream>"
+		        + "<rsp:CommandState CommandId=\"C\" State=\"" + STATE + "Running\"/></rsp:ReceiveResponse>";
+
+		for (ShellResponse response : parseBothWays(body)) {
+			assertThat(response.stdout.size(), is(2));
+			assertThat(new String(response.stdout.get(0), "US-ASCII"), is("hello\n"));
+			assertThat(new String(response.stdout.get(1), "US-ASCII"), is("world\n"));
+			assertThat(response.stderr.size(), is(1));
+			assertThat(new String(response.stderr.get(0), "US-ASCII"), is("oops"));
+			assertThat(response.done, is(false));
+			assertThat(response.fault, nullValue());
+		}
+	}
+
+	@Test
+	public void readsExitCodeOfCompletedCommand() throws Exception {
+		String body = "<rsp:ReceiveResponse><rsp:CommandState CommandId=\"C\" State=\"" + STATE + "Done\"><rsp:ExitCode> 3 </rsp:ExitCode></rsp:CommandState></rsp:ReceiveResponse>";
+
+		for (ShellResponse response : parseBothWays(body)) {
+			assertThat(response.stdout.isEmpty(), is(true));
+			assertThat(response.done, is(true));
+			assertThat(response.exitCode, is("3"));
+		}
+	}
+
+	@Test
+	public void recognizesOperationTimeout() throws Exception {
+		String body = "<s:Fault><s:Code><s:Value>s:Receiver</s:Value><s:Subcode><s:Value>w:TimedOut</s:Value></s:Subcode></s:Code>"
+		        + "<s:Reason><s:Text xml:lang=\"en-US\">The WS-Management service cannot complete the operation within the time specified in OperationTimeout.</s:Text></s:Reason></s:Fault>";
+
+		for (ShellResponse response : parseBothWays(body)) {
+			assertThat(response.isTimedOut(), is(true));
+		}
+	}
+
+	@Test
+	public void readsOtherFaults() throws Exception {
+		String body = "<s:Fault><s:Code><s:Value>s:Sender</s:Value><s:Subcode><s:Value>w:InvalidSelectors</s:Value></s:Subcode></s:Code>"
+		        + "<s:Reason><s:Text xml:lang=\"en-US\">The shell was not found.</s:Text></s:Reason></s:Fault>";
+
+		for (ShellResponse response : parseBothWays(body)) {
+			assertThat(response.isTimedOut(), is(false));
+			assertThat(response.fault, is("s:Senderw:InvalidSelectorsThe shell was not found."));
+		}
+	}
+
+	private static ShellResponse[] parseBothWays(String body) throws Exception {
+		String xml = String.format(ENVELOPE, body);
+		return new ShellResponse[] { ShellResponse.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))), ShellResponse.fromDocument(DocumentHelper.parseText(xml)) };
+	}
+
+}
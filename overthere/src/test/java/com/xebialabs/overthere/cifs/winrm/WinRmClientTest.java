@@ -0,0 +1,280 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.cifs.winrm.exception.WinRMRuntimeIOException;
+
+/**
+ * Unit tests for the {@link WinRmClient}, checking that the messages filled in from templates are the same as the ones built with dom4j.
+ */
+public class WinRmClientTest {
+
+	private static final String EMPTY_RESPONSE = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"><s:Body/></s:Envelope>";
+
+	private CapturingConnector domConnector;
+
+	private CapturingStreamingConnector streamingConnector;
+
+	@BeforeMethod
+	public void setupConnectors() {
+		domConnector = new CapturingConnector();
+		streamingConnector = new CapturingStreamingConnector();
+	}
+
+	@Test
+	public void receiveFromTemplateMatchesDom4j() throws Exception {
+		newClient(domConnector).receive("SHELL-1", "COMMAND-1");
+		newClient(streamingConnector).receive("SHELL-1", "COMMAND-1");
+
+		assertSameMessage(streamingConnector.request, domConnector.request);
+	}
+
+	@Test
+	public void sendFromTemplateMatchesDom4j() throws Exception {
+		byte[] data = "some input & more".getBytes("UTF-8");
+		for (boolean end : new boolean[] { false, true }) {
+			newClient(domConnector).send("SHELL-1", "COMMAND-1", data, data.length, end);
+			newClient(streamingConnector).send("SHELL-1", "COMMAND-1", data, data.length, end);
+
+			assertSameMessage(streamingConnector.request, domConnector.request);
+		}
+	}
+
+	@Test
+	public void templateIsRebuiltWhenSettingsChange() throws Exception {
+		WinRmClient client = newClient(streamingConnector);
+		client.receive("SHELL-1", "COMMAND-1");
+		client.setTimeout("PT5.000S");
+		client.receive("SHELL-1", "COMMAND-1");
+
+		assertThat(streamingConnector.request.asXML().contains("PT5.000S"), is(true));
+	}
+
+	@Test
+	public void escapesFields() throws Exception {
+		newClient(streamingConnector).receive("SHELL<&>\"1", "COMMAND-1");
+
+		Element selector = (Element) streamingConnector.request.selectSingleNode("//*[local-name()='Selector']");
+		assertThat(selector.getText(), is("SHELL<&>\"1"));
+	}
+
+	@Test
+	public void shouldRetryInNewShellWhenReusedShellNoLongerExists() throws Exception {
+		ShellConnector connector = new ShellConnector();
+		WinRmClient client = newClient(connector);
+		client.setMaxCommandsPerShell(10);
+		assertThat(client.runCmd("echo 1", null), is(0));
+		connector.faults.add("SHELL-1");
+
+		assertThat(client.runCmd("echo 2", null), is(0));
+		assertThat(connector.requests, is((List<String>) Lists.newArrayList("Shell", "CommandLine SHELL-1", "Receive SHELL-1", "Signal SHELL-1",
+		        "CommandLine SHELL-1", "Shell", "CommandLine SHELL-2", "Receive SHELL-2", "Signal SHELL-2")));
+	}
+
+	@Test
+	public void shouldNotRetryWhenCommandFailsForOtherReason() throws Exception {
+		ShellConnector connector = new ShellConnector();
+		connector.fault = QUOTA_FAULT;
+		WinRmClient client = newClient(connector);
+		client.setMaxCommandsPerShell(10);
+		assertThat(client.runCmd("echo 1", null), is(0));
+		connector.faults.add("SHELL-1");
+
+		try {
+			client.runCmd("echo 2", null);
+			fail("Expected command to fail");
+		} catch (WinRMRuntimeIOException expected) {
+			assertThat(expected.getMessage().contains("QuotaLimit"), is(true));
+		}
+		assertThat(connector.requests, is((List<String>) Lists.newArrayList("Shell", "CommandLine SHELL-1", "Receive SHELL-1", "Signal SHELL-1",
+		        "CommandLine SHELL-1", "Delete SHELL-1")));
+	}
+
+	@Test
+	public void shouldNotRetryInNewShellWhenNewShellNoLongerExists() throws Exception {
+		ShellConnector connector = new ShellConnector();
+		connector.faults.add("SHELL-1");
+
+		try {
+			newClient(connector).startCmd("echo 1");
+			fail("Expected command to fail");
+		} catch (WinRMRuntimeIOException expected) {
+			assertThat(expected.getMessage().contains("InvalidSelectors"), is(true));
+		}
+		assertThat(connector.requests, is((List<String>) Lists.newArrayList("Shell", "CommandLine SHELL-1")));
+	}
+
+	@Test
+	public void shouldDeleteShellOfCommandRunningWhenClosedAndRefuseNewCommands() throws Exception {
+		ShellConnector connector = new ShellConnector();
+		WinRmClient client = newClient(connector);
+		client.setMaxCommandsPerShell(10);
+		OverthereProcess process = client.startCmd("echo 1");
+
+		client.close();
+		ByteStreams.toByteArray(process.getStdout());
+		assertThat(process.waitFor(), is(0));
+		process.destroy();
+
+		try {
+			client.startCmd("echo 2");
+			fail("Expected command not to be started after close");
+		} catch (WinRMRuntimeIOException expected) {
+			assertThat(expected.getMessage().contains("closed"), is(true));
+		}
+		assertThat(connector.requests, is((List<String>) Lists.newArrayList("Shell", "CommandLine SHELL-1", "Receive SHELL-1", "Signal SHELL-1",
+		        "Delete SHELL-1")));
+	}
+
+	private static WinRmClient newClient(HttpConnector connector) throws Exception {
+		WinRmClient client = new WinRmClient(connector, new URL("http://windows-box:5985/wsman"));
+		client.setTimeout("PT60.000S");
+		client.setEnvelopSize(153600);
+		client.setLocale("en-US");
+		return client;
+	}
+
+	private static void assertSameMessage(Document actual, Document expected) {
+		assertThat(withoutMessageId(actual), is(withoutMessageId(expected)));
+	}
+
+	private static String withoutMessageId(Document message) {
+		Document copy = (Document) message.clone();
+		Element messageId = (Element) copy.selectSingleNode("//*[local-name()='MessageID']");
+		assertThat(messageId.getText().startsWith("uuid:"), is(true));
+		messageId.setText("uuid:MESSAGE-ID");
+		StringBuilder description = new StringBuilder();
+		describe(copy.getRootElement(), description);
+		return description.toString();
+	}
+
+	/**
+	 * Describes an element by namespace URI and name, so that it does not matter on which element a namespace is declared.
+	 */
+	private static void describe(Element element, StringBuilder description) {
+		description.append('{').append(element.getNamespaceURI()).append('}').append(element.getName());
+		for (Object each : element.attributes()) {
+			Attribute attribute = (Attribute) each;
+			description.append(' ').append(attribute.getQualifiedName()).append("=").append(attribute.getValue());
+		}
+		description.append('[').append(element.getTextTrim());
+		for (Object each : element.elements()) {
+			describe((Element) each, description);
+		}
+		description.append(']');
+	}
+
+	private static final String SHELL_NOT_FOUND_FAULT = "<s:Fault><s:Code><s:Value>s:Sender</s:Value><s:Subcode><s:Value>w:InvalidSelectors</s:Value>"
+	        + "</s:Subcode></s:Code><s:Reason><s:Text xml:lang=\"en-US\">The WS-Management service cannot process the request because the request"
+	        + " contained invalid selectors for the resource.</s:Text></s:Reason><s:Detail><f:WSManFault Code=\"2150858843\"><f:Message>The request for"
+	        + " the Windows Remote Shell with ShellId $SHELL$ failed because the shell was not found on the server.</f:Message></f:WSManFault></s:Detail>"
+	        + "</s:Fault>";
+
+	private static final String QUOTA_FAULT = "<s:Fault><s:Code><s:Value>s:Receiver</s:Value><s:Subcode><s:Value>w:QuotaLimit</s:Value></s:Subcode>"
+	        + "</s:Code><s:Reason><s:Text xml:lang=\"en-US\">The WS-Management service cannot process the request. This user is allowed a maximum"
+	        + " number of 5 concurrent shells, which has been exceeded.</s:Text></s:Reason></s:Fault>";
+
+	/**
+	 * Answers requests like a host that runs every command to completion without output, except that commands in the shells listed in
+	 * {@link #faults} fail with {@link #fault}. Records the requests it gets.
+	 */
+	private static class ShellConnector implements HttpConnector {
+		final List<String> requests = Lists.newArrayList();
+
+		final Set<String> faults = Sets.newHashSet();
+
+		String fault = SHELL_NOT_FOUND_FAULT;
+
+		private int shells;
+
+		@Override
+		public Document sendMessage(Document requestDocument, SoapAction soapAction) {
+			Element selector = (Element) requestDocument.selectSingleNode("//*[local-name()='Selector']");
+			String shellId = selector != null ? selector.getText() : null;
+			requests.add(soapAction == null ? "Delete " + shellId : soapAction.getValue() + (shellId != null ? " " + shellId : ""));
+
+			String header = "";
+			String body = "";
+			if (soapAction == SoapAction.SHELL) {
+				header = "<w:SelectorSet><w:Selector Name=\"ShellId\">SHELL-" + ++shells + "</w:Selector></w:SelectorSet>";
+			} else if (soapAction == SoapAction.COMMAND_LINE) {
+				body = faults.contains(shellId) ? fault.replace("$SHELL$", shellId)
+				        : "<rsp:CommandResponse><rsp:CommandId>COMMAND-1</rsp:CommandId></rsp:CommandResponse>";
+			} else if (soapAction == SoapAction.RECEIVE) {
+				body = "<rsp:ReceiveResponse><rsp:CommandState CommandId=\"COMMAND-1\""
+				        + " State=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done\"><rsp:ExitCode>0</rsp:ExitCode>"
+				        + "</rsp:CommandState></rsp:ReceiveResponse>";
+			}
+			try {
+				return DocumentHelper.parseText("<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
+				        + " xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\" xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\""
+				        + " xmlns:f=\"http://schemas.microsoft.com/wbem/wsman/1/wsmanfault\"><s:Header>" + header + "</s:Header><s:Body>" + body
+				        + "</s:Body></s:Envelope>");
+			} catch (Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+	}
+
+	private static class CapturingConnector implements HttpConnector {
+		Document request;
+
+		@Override
+		public Document sendMessage(Document requestDocument, SoapAction soapAction) {
+			request = requestDocument;
+			try {
+				return DocumentHelper.parseText(EMPTY_RESPONSE);
+			} catch (Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+	}
+
+	private static class CapturingStreamingConnector extends CapturingConnector implements StreamingHttpConnector {
+		@Override
+		public <T> T sendMessage(byte[] requestMessage, SoapAction soapAction, ResponseParser<T> responseParser) {
+			try {
+				request = DocumentHelper.parseText(new String(requestMessage, "UTF-8"));
+				return responseParser.parse(new ByteArrayInputStream(EMPTY_RESPONSE.getBytes("UTF-8")));
+			} catch (Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,405 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.cifs.CifsConnectionBuilder.FILE_TRANSFER_OVER_WINRM;
+import static com.xebialabs.overthere.cifs.CifsConnectionType.WINRM_HTTP;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+/**
+ * Unit tests for the {@link WinRmFile}, running its PowerShell scripts against a stand-in that emulates them on a local folder, in which
+ * <code>C:\dir</code> is <code>C/dir</code>.
+ */
+public class WinRmFileTest {
+
+	private static final Pattern PARAMETER = Pattern.compile("\\$(\\w+) = ('(?:[^']|'')*'|\\$true|\\$false|-?\\d+); ");
+
+	private TemporaryFolder temp;
+
+	private StandInConnection connection;
+
+	@BeforeMethod
+	public void connect() throws IOException {
+		temp = new TemporaryFolder();
+		temp.create();
+		temp.newFolder("C");
+
+		ConnectionOptions options = new ConnectionOptions();
+		options.set(CONNECTION_TYPE, WINRM_HTTP);
+		options.set(OPERATING_SYSTEM, WINDOWS);
+		options.set(ADDRESS, "localhost");
+		options.set(USERNAME, "user");
+		options.set(PASSWORD, "secret");
+		options.set(FILE_TRANSFER_OVER_WINRM, true);
+		connection = new StandInConnection(options, temp.getRoot());
+	}
+
+	@AfterMethod
+	public void disconnect() {
+		connection.close();
+		temp.delete();
+	}
+
+	@Test
+	public void writesAndReadsFileInParallelChunks() throws IOException {
+		byte[] contents = new byte[3 * WinRmFile.CHUNK_SIZE + 12345];
+		new Random(42).nextBytes(contents);
+
+		OverthereFile file = connection.getFile("C:\\data.bin");
+		OutputStream out = file.getOutputStream();
+		out.write(contents);
+		out.close();
+
+		assertThat(Arrays.equals(Files.toByteArray(new File(temp.getRoot(), "C/data.bin")), contents), is(true));
+		assertThat(file.length(), is((long) contents.length));
+		assertThat(connection.maxConcurrentChunks.get() > 1, is(true));
+
+		connection.maxConcurrentChunks.set(0);
+		InputStream in = file.getInputStream();
+		byte[] read = ByteStreams.toByteArray(in);
+		in.close();
+
+		assertThat(Arrays.equals(read, contents), is(true));
+		assertThat(connection.maxConcurrentChunks.get() > 1, is(true));
+	}
+
+	@Test
+	public void writesEmptyFile() throws IOException {
+		Files.write("old contents", new File(temp.getRoot(), "C/empty.txt"), UTF_8);
+
+		OverthereFile file = connection.getFile("C:\\empty.txt");
+		file.getOutputStream().close();
+
+		assertThat(file.exists(), is(true));
+		assertThat(file.length(), is(0L));
+		assertThat(ByteStreams.toByteArray(file.getInputStream()).length, is(0));
+	}
+
+	@Test
+	public void failsWhenChunkScriptGetsShortStdin() throws IOException {
+		connection.stdinShortBy = 1;
+
+		OutputStream out = connection.getFile("C:\\short.bin").getOutputStream();
+		out.write(new byte[1000]);
+		try {
+			out.close();
+			fail("Expected write of chunk with short stdin to fail");
+		} catch (IOException expected) {
+			assertThat(expected.getCause().getMessage(), containsString("got 999 of 1000 bytes on stdin"));
+		}
+	}
+
+	@Test
+	public void failsWhenFileHasWrongLengthAfterClose() throws IOException {
+		connection.stdinShortBy = 1;
+		connection.chunkScriptChecksLength = false;
+
+		OutputStream out = connection.getFile("C:\\short.bin").getOutputStream();
+		out.write(new byte[1000]);
+		try {
+			out.close();
+			fail("Expected file with wrong length to fail the close");
+		} catch (IOException expected) {
+			assertThat(expected.getMessage(), containsString("its length is 999 after writing 1000 bytes"));
+		}
+	}
+
+	@Test
+	public void managesDirectories() {
+		OverthereFile dir = connection.getFile("C:\\it's a dir");
+		assertThat(dir.exists(), is(false));
+
+		dir.mkdir();
+		assertThat(dir.isDirectory(), is(true));
+		dir.getFile("file1").getOutputStream();
+		dir.getFile("file2").getOutputStream();
+
+		assertThat(dir.listFiles().size(), is(2));
+		assertThat(dir.getFile("file1").getPath(), is("C:\\it's a dir\\file1"));
+		assertThat(dir.getFile("file1").getParentFile(), is(dir));
+		assertThat(dir.getParentFile().getPath(), is("C:\\"));
+		assertThat(dir.getParentFile().getParentFile() == null, is(true));
+
+		try {
+			dir.delete();
+			fail("Expected non-empty directory not to be deleted");
+		} catch (RuntimeIOException expected) {
+		}
+
+		dir.deleteRecursively();
+		assertThat(dir.exists(), is(false));
+	}
+
+	@Test
+	public void createsAndRenamesFiles() {
+		connection.getFile("C:\\a\\b").mkdirs();
+		OverthereFile file = connection.getFile("C:/a/b/file.txt");
+		file.getOutputStream();
+		OverthereFile renamed = connection.getFile("C:\\a\\renamed.txt");
+
+		file.renameTo(renamed);
+
+		assertThat(file.exists(), is(false));
+		assertThat(renamed.isFile(), is(true));
+	}
+
+	@Test
+	public void reportsErrorFromScript() {
+		try {
+			connection.getFile("C:\\missing\\dir").mkdir();
+			fail("Expected directory without parent not to be created");
+		} catch (RuntimeIOException expected) {
+			assertThat(expected.getMessage(), containsString("its parent directory does not exist"));
+		}
+	}
+
+	/**
+	 * A connection that runs the scripts of a {@link WinRmFile} in a {@link StandInProcess} instead of over WinRM.
+	 */
+	private static class StandInConnection extends CifsWinRmConnection {
+
+		final File root;
+
+		final AtomicInteger concurrentChunks = new AtomicInteger();
+
+		final AtomicInteger maxConcurrentChunks = new AtomicInteger();
+
+		volatile int stdinShortBy;
+
+		volatile boolean chunkScriptChecksLength = true;
+
+		StandInConnection(ConnectionOptions options, File root) {
+			super("cifs", options, new DefaultAddressPortMapper());
+			this.root = root;
+		}
+
+		@Override
+		OverthereProcess startPowerShell(String script) {
+			return new StandInProcess(this, script);
+		}
+	}
+
+	private static class StandInProcess implements OverthereProcess {
+
+		private final StandInConnection connection;
+
+		private final String body;
+
+		private final Map<String, String> parameters = Maps.newHashMap();
+
+		private boolean stdinClosed;
+
+		private final ByteArrayOutputStream stdin = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				stdinClosed = true;
+			}
+		};
+
+		private byte[] stdout = new byte[0];
+
+		private byte[] stderr = new byte[0];
+
+		private Integer exitCode;
+
+		StandInProcess(StandInConnection connection, String script) {
+			this.connection = connection;
+			int bodyStart = script.indexOf("try { ");
+			body = script.substring(bodyStart + 6, script.lastIndexOf(" } catch { "));
+			Matcher m = PARAMETER.matcher(script.substring(0, bodyStart));
+			while (m.find()) {
+				String value = m.group(2);
+				parameters.put(m.group(1), value.startsWith("'") ? value.substring(1, value.length() - 1).replace("''", "'") : value);
+			}
+		}
+
+		private synchronized void run() {
+			if (exitCode != null) {
+				return;
+			}
+			// powershell would wait for the end of stdin forever
+			if (!stdinClosed) {
+				throw new AssertionError("Script waits for the end of its stdin: " + body);
+			}
+			try {
+				String output = execute();
+				if (output != null) {
+					stdout = output.getBytes(UTF_8);
+				}
+				exitCode = 0;
+			} catch (Exception exc) {
+				stderr = exc.getMessage().getBytes(UTF_8);
+				exitCode = 1;
+			}
+		}
+
+		private String execute() throws Exception {
+			File file = toLocalFile(parameters.get("path"));
+			if (body.equals(WinRmFile.STAT_SCRIPT)) {
+				if (file.isDirectory()) {
+					return "directory 0 " + file.lastModified() + " 16\r\n";
+				} else if (file.isFile()) {
+					return "file " + file.length() + " " + file.lastModified() + " 32\r\n";
+				}
+				return "none\r\n";
+			} else if (body.equals(WinRmFile.LIST_SCRIPT)) {
+				StringBuilder names = new StringBuilder();
+				for (String name : file.list()) {
+					names.append(name).append("\r\n");
+				}
+				return names.toString();
+			} else if (body.equals(WinRmFile.MKDIR_SCRIPT)) {
+				check(!file.exists(), "it already exists");
+				check(file.getParentFile().isDirectory(), "its parent directory does not exist");
+				file.mkdir();
+			} else if (body.equals(WinRmFile.MKDIRS_SCRIPT)) {
+				file.mkdirs();
+			} else if (body.equals(WinRmFile.DELETE_SCRIPT)) {
+				check(file.exists(), "it does not exist");
+				check(parameters.get("recursive").equals("$true") || !file.isDirectory() || file.list().length == 0, "the directory is not empty");
+				deleteRecursively(file);
+			} else if (body.equals(WinRmFile.RENAME_SCRIPT)) {
+				check(file.renameTo(toLocalFile(parameters.get("target"))), "cannot move it");
+			} else if (body.equals(WinRmFile.CREATE_SCRIPT)) {
+				Files.write(new byte[0], file);
+			} else if (body.equals(WinRmFile.WRITE_CHUNK_SCRIPT) || body.equals(WinRmFile.READ_CHUNK_SCRIPT)) {
+				return transferChunk(file);
+			} else {
+				throw new IllegalArgumentException("unknown script " + body);
+			}
+			return "";
+		}
+
+		private String transferChunk(File file) throws Exception {
+			int concurrent = connection.concurrentChunks.incrementAndGet();
+			try {
+				synchronized (connection.maxConcurrentChunks) {
+					connection.maxConcurrentChunks.set(Math.max(concurrent, connection.maxConcurrentChunks.get()));
+				}
+				Thread.sleep(50);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.seek(Long.parseLong(parameters.get("offset")));
+					if (body.equals(WinRmFile.WRITE_CHUNK_SCRIPT)) {
+						// emulates a chunk of which the end did not arrive on stdin
+						byte[] chunk = stdin.toByteArray();
+						int written = Math.max(0, chunk.length - connection.stdinShortBy);
+						raf.write(chunk, 0, written);
+						long length = Long.parseLong(parameters.get("length"));
+						check(!connection.chunkScriptChecksLength || written == length, "got " + written + " of " + length + " bytes on stdin");
+						return "";
+					}
+					byte[] chunk = new byte[Integer.parseInt(parameters.get("length"))];
+					raf.readFully(chunk);
+					stdout = chunk;
+					return null;
+				} finally {
+					raf.close();
+				}
+			} finally {
+				connection.concurrentChunks.decrementAndGet();
+			}
+		}
+
+		private void deleteRecursively(File file) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					deleteRecursively(child);
+				}
+			}
+			file.delete();
+		}
+
+		private void check(boolean condition, String message) {
+			if (!condition) {
+				throw new IllegalStateException(message);
+			}
+		}
+
+		private File toLocalFile(String path) {
+			return new File(connection.root, path.replace(":", "").replace('\\', '/'));
+		}
+
+		@Override
+		public OutputStream getStdin() {
+			return stdin;
+		}
+
+		@Override
+		public InputStream getStdout() {
+			run();
+			return new ByteArrayInputStream(stdout);
+		}
+
+		@Override
+		public InputStream getStderr() {
+			run();
+			return new ByteArrayInputStream(stderr);
+		}
+
+		@Override
+		public int waitFor() {
+			run();
+			return exitCode;
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.cifs.winrm;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+
+/**
+ * Measures the CPU time and the bytes allocated per Receive and Send message by the {@link WinRmClient}, once through the dom4j path and once through the
+ * template and StAX path. The connectors do what the {@link com.xebialabs.overthere.cifs.winrm.connector.JdkHttpConnector} does with a message, except for
+ * the HTTP exchange itself, which costs the same on both paths.
+ */
+public class WinRmMessageBenchmarkItest {
+
+	private static final int WARMUP_MESSAGES = 5000;
+
+	private static final int MEASURED_MESSAGES = 5000;
+
+	private static final String ENVELOPE = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+	        + " xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\"><s:Header/><s:Body>%s</s:Body></s:Envelope>";
+
+	private static final String RUNNING = "<rsp:CommandState CommandId=\"COMMAND-1\" State=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Running\"/>";
+
+	@Test
+	public void measureReceiveOfEmptyPoll() throws Exception {
+		measureReceive("empty poll", receiveResponse(0));
+	}
+
+	@Test
+	public void measureReceiveOf8KbOutput() throws Exception {
+		measureReceive("8 KB output", receiveResponse(1));
+	}
+
+	@Test
+	public void measureReceiveOf64KbOutput() throws Exception {
+		measureReceive("64 KB output", receiveResponse(8));
+	}
+
+	@Test
+	public void measureSendOf8KbInput() throws Exception {
+		final byte[] data = new byte[8192];
+		new Random(42).nextBytes(data);
+		String response = String.format(ENVELOPE, "<rsp:SendResponse/>");
+
+		for (boolean streaming : new boolean[] { false, true }) {
+			final WinRmClient client = newClient(response, streaming);
+			measure("send of 8 KB input", streaming, new Runnable() {
+				@Override
+				public void run() {
+					client.send("SHELL-1", "COMMAND-1", data, data.length, false);
+				}
+			});
+		}
+	}
+
+	private static void measureReceive(String description, String response) throws Exception {
+		for (boolean streaming : new boolean[] { false, true }) {
+			final WinRmClient client = newClient(response, streaming);
+			measure("receive of " + description, streaming, new Runnable() {
+				@Override
+				public void run() {
+					ShellResponse shellResponse = client.receive("SHELL-1", "COMMAND-1");
+					assertThat(shellResponse.done, is(false));
+				}
+			});
+		}
+	}
+
+	private static void measure(String description, boolean streaming, Runnable message) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		for (int i = 0; i < WARMUP_MESSAGES; i++) {
+			message.run();
+		}
+
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		long allocatedStart = getAllocatedBytes(threads);
+		for (int i = 0; i < MEASURED_MESSAGES; i++) {
+			message.run();
+		}
+		long cpuNanos = (threads.getCurrentThreadCpuTime() - cpuStart) / MEASURED_MESSAGES;
+		long allocated = allocatedStart < 0 ? -1 : (getAllocatedBytes(threads) - allocatedStart) / MEASURED_MESSAGES;
+
+		logger.info("{} on {} path: {} us CPU and {} KB allocated per message", new Object[] { description, streaming ? "template" : "dom4j", cpuNanos / 1000,
+		        allocated < 0 ? "?" : Long.toString(allocated / 1024) });
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread, or <code>-1</code> if the JVM does not report it.
+	 */
+	private static long getAllocatedBytes(ThreadMXBean threads) {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String receiveResponse(int streams) {
+		StringBuilder body = new StringBuilder("<rsp:ReceiveResponse>");
+		Random random = new Random(42);
+		for (int i = 0; i < streams; i++) {
+			byte[] chunk = new byte[8192];
+			random.nextBytes(chunk);
+			body.append("<rsp:Stream Name=\"stdout\" CommandId=\"COMMAND-1\">").append(Base64.encodeBase64String(chunk).trim()).append("</rsp:Stream>");
+		}
+		body.append(RUNNING).append("</rsp:ReceiveResponse>");
+		return String.format(ENVELOPE, body);
+	}
+
+	private static WinRmClient newClient(String response, boolean streaming) throws Exception {
+		HttpConnector connector = streaming ? new StreamingConnector(response) : new DomConnector(response);
+		WinRmClient client = new WinRmClient(connector, new URL("http://windows-box:5985/wsman"));
+		client.setTimeout("PT60.000S");
+		client.setEnvelopSize(153600);
+		client.setLocale("en-US");
+		return client;
+	}
+
+	/**
+	 * Serializes the request and parses the response like the Document path of the JDK connector does.
+	 */
+	private static class DomConnector implements HttpConnector {
+
+		private final byte[] response;
+
+		DomConnector(String response) {
+			this.response = response.getBytes(Charsets.UTF_8);
+		}
+
+		@Override
+		public Document sendMessage(Document requestDocument, SoapAction soapAction) {
+			try {
+				StringWriter request = new StringWriter();
+				XMLWriter xmlWriter = new XMLWriter(request, OutputFormat.createPrettyPrint());
+				xmlWriter.write(requestDocument);
+				xmlWriter.close();
+				// the connector encodes the request as it writes it to the connection
+				request.toString().getBytes(Charsets.UTF_8);
+
+				String text = CharStreams.toString(new InputStreamReader(new ByteArrayInputStream(response), Charsets.UTF_8));
+				return DocumentHelper.parseText(text);
+			} catch (Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+	}
+
+	/**
+	 * Hands the response to the parser like the streaming path of the JDK connector does.
+	 */
+	private static class StreamingConnector extends DomConnector implements StreamingHttpConnector {
+
+		private final byte[] response;
+
+		StreamingConnector(String response) {
+			super(response);
+			this.response = response.getBytes(Charsets.UTF_8);
+		}
+
+		@Override
+		public <T> T sendMessage(byte[] requestMessage, SoapAction soapAction, ResponseParser<T> responseParser) {
+			try {
+				return responseParser.parse(new BufferedInputStream(new ByteArrayInputStream(response)));
+			} catch (Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(WinRmMessageBenchmarkItest.class);
+
+}
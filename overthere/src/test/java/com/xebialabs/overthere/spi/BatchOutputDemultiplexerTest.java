@@ -0,0 +1,79 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
+
+/**
+ * Unit tests for the {@link BatchOutputDemultiplexer}
+ */
+public class BatchOutputDemultiplexerTest {
+
+	private CapturingOverthereProcessOutputHandler first;
+
+	private CapturingOverthereProcessOutputHandler second;
+
+	private BatchOutputDemultiplexer demultiplexer;
+
+	@BeforeMethod
+	public void init() {
+		first = capturingHandler();
+		second = capturingHandler();
+		demultiplexer = new BatchOutputDemultiplexer(Arrays.asList(first, second));
+	}
+
+	@Test
+	public void shouldSplitOutputPerCommand() {
+		String stdout = demultiplexer.getBeginMarker(0) + "\none\npartial" + demultiplexer.getEndMarker(0) + " 0\n" + demultiplexer.getBeginMarker(1) + "\ntwo\n"
+		        + demultiplexer.getEndMarker(1) + " 3\n";
+		String stderr = demultiplexer.getBeginMarker(0) + "\n" + demultiplexer.getBeginMarker(1) + "\nerror\n";
+
+		ProcessOutputPump.stdoutPump(new ByteArrayInputStream(stdout.getBytes()), demultiplexer).run();
+		ProcessOutputPump.stderrPump(new ByteArrayInputStream(stderr.getBytes()), demultiplexer).run();
+
+		assertThat(first.getOutputLines(), contains("one", "partial"));
+		assertThat(first.getErrorLines().isEmpty(), is(true));
+		assertThat(second.getOutputLines(), contains("two"));
+		assertThat(second.getErrorLines(), contains("error"));
+		assertThat(demultiplexer.getExitValues(0), contains(0, 3));
+	}
+
+	@Test
+	public void shouldUseScriptExitValueForCommandWithoutEndMarker() {
+		String stdout = demultiplexer.getBeginMarker(0) + "\n" + demultiplexer.getEndMarker(0) + " 0\n" + demultiplexer.getBeginMarker(1) + "\n";
+
+		ProcessOutputPump.stdoutPump(new ByteArrayInputStream(stdout.getBytes()), demultiplexer).run();
+
+		List<Integer> exitValues = demultiplexer.getExitValues(137);
+		assertThat(exitValues, contains(0, 137));
+	}
+
+}
+
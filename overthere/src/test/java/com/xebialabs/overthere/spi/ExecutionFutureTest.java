@@ -0,0 +1,135 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
+
+/**
+ * Unit tests for the {@link ExecutionFuture}
+ */
+public class ExecutionFutureTest {
+
+	@Test
+	public void shouldCompleteWithExitValueAfterOutputHasBeenPumped() throws Exception {
+		CapturingOverthereProcessOutputHandler handler = capturingHandler();
+		StubProcess process = new StubProcess(new ByteArrayInputStream("out\n".getBytes()), new ByteArrayInputStream("err\n".getBytes()), 3);
+
+		ExecutionFuture future = ExecutionFuture.forProcess(process, handler);
+
+		assertThat(future.get(5, TimeUnit.SECONDS), is(3));
+		assertThat(handler.getOutputLines(), contains("out"));
+		assertThat(handler.getErrorLines(), contains("err"));
+	}
+
+	@Test
+	public void shouldDestroyProcessWhenCancelled() throws Exception {
+		StubProcess process = StubProcess.neverEnding();
+
+		ExecutionFuture future = ExecutionFuture.forProcess(process, capturingHandler());
+		future.cancel(false);
+
+		assertThat(future.isCancelled(), is(true));
+		assertThat(process.destroyed.await(5, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void shouldFailAndDestroyProcessWhenDeadlinePasses() throws Exception {
+		StubProcess process = StubProcess.neverEnding();
+
+		ExecutionFuture future = ExecutionFuture.forProcess(process, capturingHandler());
+		future.setDeadline(50, TimeUnit.MILLISECONDS, "Stub process");
+
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected the deadline to pass");
+		} catch (ExecutionException expected) {
+			assertThat(expected.getCause(), instanceOf(TimeoutException.class));
+		}
+		assertThat(process.destroyed.await(5, TimeUnit.SECONDS), is(true));
+	}
+
+	private static class StubProcess implements OverthereProcess {
+		private final InputStream stdout;
+		private final InputStream stderr;
+		private final int exitValue;
+		private final CountDownLatch destroyed = new CountDownLatch(1);
+		private final PipedOutputStream[] writers;
+
+		StubProcess(InputStream stdout, InputStream stderr, int exitValue, PipedOutputStream... writers) {
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.exitValue = exitValue;
+			this.writers = writers;
+		}
+
+		static StubProcess neverEnding() throws Exception {
+			PipedOutputStream stdoutWriter = new PipedOutputStream();
+			PipedOutputStream stderrWriter = new PipedOutputStream();
+			return new StubProcess(new PipedInputStream(stdoutWriter), new PipedInputStream(stderrWriter), -1, stdoutWriter, stderrWriter);
+		}
+
+		public OutputStream getStdin() {
+			return new ByteArrayOutputStream();
+		}
+
+		public InputStream getStdout() {
+			return stdout;
+		}
+
+		public InputStream getStderr() {
+			return stderr;
+		}
+
+		public int waitFor() {
+			return exitValue;
+		}
+
+		public void destroy() {
+			for (PipedOutputStream w : writers) {
+				try {
+					w.close();
+				} catch (Exception ignored) {
+				}
+			}
+			destroyed.countDown();
+		}
+	}
+
+}
+
@@ -0,0 +1,82 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.spi;
+
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stderrPump;
+import static com.xebialabs.overthere.spi.ProcessOutputPump.stdoutPump;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler;
+
+/**
+ * Unit tests for the {@link ProcessOutputPump}
+ */
+public class ProcessOutputPumpTest {
+
+	@Test
+	public void shouldSplitOutputIntoLinesWithoutLineTerminators() {
+		CapturingOverthereProcessOutputHandler handler = capturingHandler();
+		stdoutPump(stream("one\ntwo\r\n\nthree"), handler).run();
+
+		assertThat(handler.getOutputLines(), contains("one", "two", "", "three"));
+		assertThat(handler.getErrorLines().isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldJoinLinesSpanningMultipleBlocks() {
+		String longLine = Strings.repeat("x", ProcessOutputPump.BUFFER_SIZE + 10);
+		CapturingOverthereProcessOutputHandler handler = capturingHandler();
+		stderrPump(stream("first\r\n" + longLine + "\nlast\n"), handler).run();
+
+		assertThat(handler.getErrorLines(), contains("first", longLine, "last"));
+		assertThat(handler.getOutputLines().isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldSendEveryCharacterOfStdout() {
+		final StringBuilder chars = new StringBuilder();
+		stdoutPump(stream("a\r\nb"), new OverthereProcessOutputHandler() {
+			public void handleOutput(char c) {
+				chars.append(c);
+			}
+
+			public void handleOutputLine(String line) {
+			}
+
+			public void handleErrorLine(String line) {
+			}
+		}).run();
+
+		assertThat(chars.toString(), is("a\r\nb"));
+	}
+
+	private static ByteArrayInputStream stream(String s) {
+		return new ByteArrayInputStream(s.getBytes());
+	}
+
+}
+
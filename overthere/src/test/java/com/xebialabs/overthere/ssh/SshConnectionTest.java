@@ -17,6 +17,7 @@
 
 package com.xebialabs.overthere.ssh;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
 import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
 import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
@@ -25,22 +26,31 @@ import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_DEFAULT_PTY;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.ALLOCATE_PTY;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MAX_CONCURRENT_SESSIONS;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PRIVATE_KEY_FILE;
 import static com.xebialabs.overthere.ssh.SshConnectionType.SFTP;
+import static com.xebialabs.overthere.util.CapturingOverthereProcessOutputHandler.capturingHandler;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.schmizz.sshj.MockitoFriendlySSHClient;
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import net.schmizz.sshj.userauth.method.AuthMethod;
@@ -51,6 +61,9 @@ import org.mockito.MockitoAnnotations;
 
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.BatchOutputDemultiplexer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -157,6 +170,107 @@ public class SshConnectionTest {
 		verify(session, times(0)).allocateDefaultPTY();
 	}
 
+	@Test
+	public void shouldWaitForSessionWhenMaxConcurrentSessionsReached() throws Exception {
+		Session session = mock(Session.class);
+		Session.Command command = mock(Session.Command.class);
+		when(session.exec(anyString())).thenReturn(command);
+		when(client.startSession()).thenReturn(session);
+		connectionOptions.set(MAX_CONCURRENT_SESSIONS, 1);
+
+		final SshConnection connection = newConnectionWithClient(client);
+		connection.connect();
+		OverthereProcess first = connection.startProcess(CmdLine.build("dummy"));
+
+		final CountDownLatch secondStarted = new CountDownLatch(1);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				connection.startProcess(CmdLine.build("dummy"));
+				secondStarted.countDown();
+			}
+		};
+		second.start();
+
+		assertEquals(secondStarted.await(200, TimeUnit.MILLISECONDS), false);
+		verify(client, times(1)).startSession();
+
+		first.destroy();
+		assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+		verify(client, times(2)).startSession();
+	}
+
+	@Test
+	public void shouldReleaseSessionWhenWaitingForProcessFails() throws Exception {
+		Session session = mock(Session.class);
+		Session.Command command = mock(Session.Command.class);
+		when(session.exec(anyString())).thenReturn(command);
+		doThrow(new ConnectionException("connection dropped")).when(command).join();
+		when(client.startSession()).thenReturn(session);
+		connectionOptions.set(MAX_CONCURRENT_SESSIONS, 1);
+
+		final SshConnection connection = newConnectionWithClient(client);
+		connection.connect();
+		OverthereProcess first = connection.startProcess(CmdLine.build("dummy"));
+		try {
+			first.waitFor();
+			fail("Expected failing join to be reported");
+		} catch (RuntimeIOException expected) {
+		}
+
+		final CountDownLatch secondStarted = new CountDownLatch(1);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				connection.startProcess(CmdLine.build("dummy"));
+				secondStarted.countDown();
+			}
+		};
+		second.setDaemon(true);
+		second.start();
+
+		assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+		verify(client, times(2)).startSession();
+	}
+
+	@Test
+	public void shouldBuildBatchScriptThatContinuesOnFailure() {
+		BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(newArrayList(capturingHandler(), capturingHandler()));
+		String script = newConnectionWithClient(client).buildBatchScript(demultiplexer,
+		        newArrayList(CmdLine.build("ls", "/tmp"), CmdLine.build("echo", "a b")), true);
+
+		assertEquals(script, "echo " + demultiplexer.getBeginMarker(0) + "\n"
+		        + "echo " + demultiplexer.getBeginMarker(0) + " >&2\n"
+		        + "( ls /tmp )\n"
+		        + "rc=$?\n"
+		        + "echo " + demultiplexer.getEndMarker(0) + " $rc\n"
+		        + "echo " + demultiplexer.getBeginMarker(1) + "\n"
+		        + "echo " + demultiplexer.getBeginMarker(1) + " >&2\n"
+		        + "( echo a\\ b )\n"
+		        + "rc=$?\n"
+		        + "echo " + demultiplexer.getEndMarker(1) + " $rc\n");
+	}
+
+	@Test
+	public void shouldBuildBatchScriptThatStopsOnFailure() {
+		BatchOutputDemultiplexer demultiplexer = new BatchOutputDemultiplexer(newArrayList(capturingHandler(), capturingHandler()));
+		String script = newConnectionWithClient(client).buildBatchScript(demultiplexer,
+		        newArrayList(CmdLine.build("ls", "/tmp"), CmdLine.build("false")), false);
+
+		assertEquals(script, "echo " + demultiplexer.getBeginMarker(0) + "\n"
+		        + "echo " + demultiplexer.getBeginMarker(0) + " >&2\n"
+		        + "( ls /tmp )\n"
+		        + "rc=$?\n"
+		        + "echo " + demultiplexer.getEndMarker(0) + " $rc\n"
+		        + "[ $rc -eq 0 ] || exit $rc\n"
+		        + "echo " + demultiplexer.getBeginMarker(1) + "\n"
+		        + "echo " + demultiplexer.getBeginMarker(1) + " >&2\n"
+		        + "( false )\n"
+		        + "rc=$?\n"
+		        + "echo " + demultiplexer.getEndMarker(1) + " $rc\n"
+		        + "[ $rc -eq 0 ] || exit $rc\n");
+	}
+
     private SshConnection newConnectionWithClient(SSHClient client) {
         return new PresetClientSshConnection(connectionOptions, client);
     }
@@ -0,0 +1,165 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.ssh.SshScpFile.FileAttributes;
+
+/**
+ * Unit tests for the {@link SshScpAttributesParser} with canned output of the scripts.
+ */
+public class SshScpAttributesParserTest {
+
+	@Test
+	public void shouldParseAttributesOfExistingFile() {
+		FileAttributes attributes = SshScpAttributesParser.parseFileAttributes("file", asList("efrw", "-rw-r--r-- 1 user group 1234 Jan  1 12:00 /tmp/my file.txt",
+		        "1325419200", ""), 7);
+		assertThat(attributes.exists, is(true));
+		assertThat(attributes.isFile, is(true));
+		assertThat(attributes.isDirectory, is(false));
+		assertThat(attributes.canRead, is(true));
+		assertThat(attributes.canWrite, is(true));
+		assertThat(attributes.canExecute, is(false));
+		assertThat(attributes.length, is(1234L));
+		assertThat(attributes.lastModified, is(1325419200000L));
+		assertThat(attributes.generation, is(7L));
+	}
+
+	@Test
+	public void shouldSkipLinesBeforeFlagsAndStatErrors() {
+		FileAttributes attributes = SshScpAttributesParser.parseFileAttributes("dir", asList("Last login: today", "edrx",
+		        "drwxr-xr-x 2 0 0 4096 Jan  1  2020 /tmp/dir", "stat: illegal option -- c", "1577880000"), 0);
+		assertThat(attributes.isDirectory, is(true));
+		assertThat(attributes.canWrite, is(false));
+		assertThat(attributes.canExecute, is(true));
+		assertThat(attributes.length, is(4096L));
+		assertThat(attributes.lastModified, is(1577880000000L));
+	}
+
+	@Test
+	public void shouldReportLengthOfDeviceAsUnknown() {
+		FileAttributes attributes = SshScpAttributesParser.parseFileAttributes("device", asList("erw", "crw-rw-rw- 1 0 0 1, 3 Jan  1 12:00 /dev/null",
+		        "1325419200"), 0);
+		assertThat(attributes.isFile, is(false));
+		assertThat(attributes.length, is(-1L));
+	}
+
+	@Test
+	public void shouldParseAttributesOfNonExistentFile() {
+		FileAttributes attributes = SshScpAttributesParser.parseFileAttributes("file", asList("n"), 0);
+		assertThat(attributes.exists, is(false));
+		assertThat(attributes.length, is(-1L));
+		assertThat(attributes.lastModified, is(-1L));
+	}
+
+	@Test(expectedExceptions = RuntimeIOException.class)
+	public void shouldFailWithoutFlagsLine() {
+		SshScpAttributesParser.parseFileAttributes("file", asList("sh: 1: Syntax error"), 0);
+	}
+
+	@Test
+	public void shouldParseFindOutput() {
+		Map<String, FileAttributes> entries = SshScpAttributesParser.parseRecursiveListing("dir", "/tmp/dir", asList("ids 1000 1000 27 100", "find",
+		        "d 1000 1000 755 4096 1325419200.1234567890 sub dir", "f 0 100 664 12 1325419201.5 sub dir/my file.txt",
+		        "f 0 200 604 3 1325419202 other.txt", "c 0 0 666 0 1325419203.0 null"), 3);
+		assertThat(entries.keySet().toString(), is("[sub dir, sub dir/my file.txt, other.txt, null]"));
+
+		FileAttributes dir = entries.get("sub dir");
+		assertThat(dir.exists, is(true));
+		assertThat(dir.listed, is(true));
+		assertThat(dir.isDirectory, is(true));
+		assertThat(dir.lastModified, is(1325419200000L));
+		assertThat(dir.canWrite, is(true));
+		assertThat(dir.generation, is(3L));
+
+		FileAttributes groupFile = entries.get("sub dir/my file.txt");
+		assertThat(groupFile.isFile, is(true));
+		assertThat(groupFile.length, is(12L));
+		assertThat(groupFile.lastModified, is(1325419201000L));
+		assertThat(groupFile.canRead, is(true));
+		assertThat(groupFile.canWrite, is(true));
+		assertThat(groupFile.canExecute, is(false));
+
+		FileAttributes otherFile = entries.get("other.txt");
+		assertThat(otherFile.canRead, is(true));
+		assertThat(otherFile.canWrite, is(false));
+
+		FileAttributes device = entries.get("null");
+		assertThat(device.isFile, is(false));
+		assertThat(device.isDirectory, is(false));
+	}
+
+	@Test
+	public void shouldParseLsOutput() {
+		Map<String, FileAttributes> entries = SshScpAttributesParser.parseRecursiveListing("dir", "/tmp/dir", asList("ids 1000 1000 27 100", "ls",
+		        "/tmp/dir:", "total 12", "drwxr-xr-x  2 1000 1000 4096 Jan  1 12:00 sub dir", "-rw-rw-r--+ 1 0  100   12 Jan  1  2020 my file.txt",
+		        "crw-rw-rw-  1 0 0 1,   3 Jan  1 12:00 null", "", "/tmp/dir/sub dir:", "total 4", "-rwx------  1 1000 1000 3 Jan  1 12:00 run.sh",
+		        "-rw-------  1 0  200    5 Jan  1  2020 secret"), 0);
+		assertThat(entries.keySet().toString(), is("[sub dir, my file.txt, null, sub dir/run.sh, sub dir/secret]"));
+
+		assertThat(entries.get("sub dir").isDirectory, is(true));
+		assertThat(entries.get("sub dir").length, is(4096L));
+
+		FileAttributes groupFile = entries.get("my file.txt");
+		assertThat(groupFile.isFile, is(true));
+		assertThat(groupFile.length, is(12L));
+		assertThat(groupFile.canWrite, is(true));
+		assertThat(groupFile.lastModified, is(-1L));
+
+		FileAttributes device = entries.get("null");
+		assertThat(device.isFile, is(false));
+		assertThat(device.length, is(-1L));
+
+		FileAttributes script = entries.get("sub dir/run.sh");
+		assertThat(script.canExecute, is(true));
+		assertThat(script.length, is(3L));
+
+		FileAttributes secret = entries.get("sub dir/secret");
+		assertThat(secret.canRead, is(false));
+	}
+
+	@Test
+	public void shouldGiveRootAllPermissions() {
+		Map<String, FileAttributes> entries = SshScpAttributesParser.parseRecursiveListing("dir", "/tmp/dir/", asList("ids 0 0", "ls", "/tmp/dir/:",
+		        "total 0", "----------  1 1000 1000 0 Jan  1 12:00 locked", "---x------  1 1000 1000 0 Jan  1 12:00 script"), 0);
+		assertThat(entries.get("locked").canRead, is(true));
+		assertThat(entries.get("locked").canWrite, is(true));
+		assertThat(entries.get("locked").canExecute, is(false));
+		assertThat(entries.get("script").canExecute, is(true));
+	}
+
+	@Test
+	public void shouldReturnNullWithoutFormatLine() {
+		assertThat(SshScpAttributesParser.parseRecursiveListing("dir", "/tmp/dir", asList("ids 1000 1000", "sh: id: not found"), 0), nullValue());
+	}
+
+	@Test(expectedExceptions = RuntimeIOException.class)
+	public void shouldFailOnUnexpectedLsDirectory() {
+		SshScpAttributesParser.parseRecursiveListing("dir", "/tmp/dir", asList("ids 1000 1000", "ls", "/tmp/dir:", "total 0", "", "/elsewhere:", "total 0"), 0);
+	}
+
+}
@@ -0,0 +1,198 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MAX_CONCURRENT_SESSIONS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SCP;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SFTP;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+/**
+ * Unit tests for the copying of directories as tar archives by the {@link SshScpFile}
+ */
+public class SshScpFileTest {
+
+	private TemporaryFolder temp;
+
+	private OverthereConnection local;
+
+	@BeforeMethod
+	public void init() throws IOException {
+		temp = new TemporaryFolder();
+		temp.create();
+		local = new LocalConnection("local", new ConnectionOptions());
+	}
+
+	@AfterMethod
+	public void deleteTemporaryFolder() {
+		local.close();
+		temp.delete();
+	}
+
+	@Test
+	public void shouldNotCopyWithTarFromSameConnectionWithOneSession() {
+		SshScpConnection connection = new SshScpConnection(SSH_PROTOCOL, options(1), new DefaultAddressPortMapper());
+		SshScpFile dest = new SshScpFile(connection, "/tmp/dest");
+		assertThat(dest.canCopyFromWithTar(new SshScpFile(connection, "/tmp/source")), is(false));
+	}
+
+	@Test
+	public void shouldCopyWithTarFromLocalDirectory() {
+		SshScpConnection connection = new SshScpConnection(SSH_PROTOCOL, options(1), new DefaultAddressPortMapper());
+		SshScpFile dest = new SshScpFile(connection, "/tmp/dest");
+		assertThat(dest.canCopyFromWithTar(local.getFile(temp.getRoot().getPath())), is(true));
+	}
+
+	@Test
+	public void shouldExtractHardLinksAsCopies() throws IOException {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		TarArchiveOutputStream out = new TarArchiveOutputStream(archive);
+		out.putDirectory("./dir", 0755, 0);
+		out.putFile("./dir/script.sh", 0755, 5, 0);
+		out.write("hello".getBytes("UTF-8"));
+		out.closeEntry();
+		archive.write(hardLinkHeader("./link.sh", "./dir/script.sh", 0755));
+		archive.write(hardLinkHeader("./dangling", "./missing", 0644));
+		out.close();
+
+		File dest = new File(temp.getRoot(), "dest");
+		SshScpFile.extractTarEntries(new TarArchiveInputStream(new ByteArrayInputStream(archive.toByteArray())), local.getFile(dest.getPath()));
+
+		assertThat(Files.toString(new File(dest, "dir/script.sh"), UTF_8), is("hello"));
+		assertThat(Files.toString(new File(dest, "link.sh"), UTF_8), is("hello"));
+		assertThat(new File(dest, "link.sh").canExecute(), is(true));
+		assertThat(new File(dest, "dangling").exists(), is(false));
+	}
+
+	@Test
+	public void shouldRecordPermissionBitsOfSftpFilesInTarArchive() throws IOException {
+		assertThat(SshScpFile.getTarMode(new ModeRecordingSftpFile(04750)), is(04750));
+
+		File script = temp.newFile("script.sh");
+		script.setExecutable(true);
+		assertThat(SshScpFile.getTarMode(local.getFile(script.getPath())), is(0755));
+		assertThat(SshScpFile.getTarMode(local.getFile(temp.newFile("data.txt").getPath())), is(0644));
+		assertThat(SshScpFile.getTarMode(local.getFile(temp.getRoot().getPath())), is(0755));
+	}
+
+	@Test
+	public void shouldApplyPermissionBitsToSftpFilesAndExecuteBitToOtherFiles() throws IOException {
+		ModeRecordingSftpFile sftpFile = new ModeRecordingSftpFile(0);
+		SshScpFile.setTarMode(sftpFile, 0640, false);
+		assertThat(sftpFile.permissionsMask, is(0640));
+
+		File script = temp.newFile("script.sh");
+		SshScpFile.setTarMode(local.getFile(script.getPath()), 0750, false);
+		assertThat(script.canExecute(), is(true));
+		File data = temp.newFile("data.txt");
+		SshScpFile.setTarMode(local.getFile(data.getPath()), 0640, false);
+		assertThat(data.canExecute(), is(false));
+	}
+
+	/**
+	 * A file on a Unix host connected through SSH w/ SFTP of which the permission bits are kept in memory.
+	 */
+	private static class ModeRecordingSftpFile extends SshSftpFile {
+
+		int permissionsMask;
+
+		ModeRecordingSftpFile(int permissionsMask) {
+			super(new SshSftpUnixConnection(SSH_PROTOCOL, sftpOptions(), new DefaultAddressPortMapper()), "/tmp/file");
+			this.permissionsMask = permissionsMask;
+		}
+
+		@Override
+		int getPermissionsMask() {
+			return permissionsMask;
+		}
+
+		@Override
+		void setPermissionsMask(int permissionsMask) {
+			this.permissionsMask = permissionsMask;
+		}
+	}
+
+	private static byte[] hardLinkHeader(String name, String linkName, int mode) throws IOException {
+		byte[] header = new byte[TarArchiveOutputStream.BLOCK_SIZE];
+		writeAscii(header, 0, name);
+		writeAscii(header, 100, String.format("%07o", mode));
+		writeAscii(header, 108, "0000000");
+		writeAscii(header, 116, "0000000");
+		writeAscii(header, 124, "00000000000");
+		writeAscii(header, 136, "00000000000");
+		header[156] = '1';
+		writeAscii(header, 157, linkName);
+		writeAscii(header, 257, "ustar");
+		writeAscii(header, 263, "00");
+		int checksum = 8 * ' ';
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		writeAscii(header, 148, String.format("%06o", checksum));
+		header[155] = ' ';
+		return header;
+	}
+
+	private static void writeAscii(byte[] header, int offset, String value) throws IOException {
+		byte[] bytes = value.getBytes("US-ASCII");
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	private static ConnectionOptions sftpOptions() {
+		ConnectionOptions options = options(1);
+		options.set(CONNECTION_TYPE, SFTP);
+		return options;
+	}
+
+	private static ConnectionOptions options(int maxConcurrentSessions) {
+		ConnectionOptions options = new ConnectionOptions();
+		options.set(CONNECTION_TYPE, SCP);
+		options.set(OPERATING_SYSTEM, UNIX);
+		options.set(ADDRESS, "localhost");
+		options.set(USERNAME, "user");
+		options.set(PASSWORD, "password");
+		options.set(MAX_CONCURRENT_SESSIONS, maxConcurrentSessions);
+		return options;
+	}
+
+}
@@ -0,0 +1,229 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+import net.schmizz.sshj.sftp.SFTPPacket;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Unit tests for the {@link SshSftpInputStream} and the {@link SshSftpOutputStream} against a remote file that answers requests with canned responses.
+ */
+public class SshSftpStreamsTest {
+
+	private static final int EOF = 1;
+
+	private static final int FAILURE = 4;
+
+	private SshSftpFile file;
+
+	private byte[] contents;
+
+	@BeforeMethod
+	public void init() {
+		file = mock(SshSftpFile.class);
+		contents = new byte[100];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) i;
+		}
+	}
+
+	@Test
+	public void shouldRequestRestOfShortReadBeforeLaterRequests() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(contents, 10);
+		InputStream in = new SshSftpInputStream(file, remoteFile, 16, 4, 5);
+
+		assertThat(ByteStreams.toByteArray(in), is(contents));
+		// every read returns at most 10 bytes, so the other 6 bytes are requested before the response to the next outstanding request is used
+		assertThat(remoteFile.reads.subList(0, 6), is(Arrays.asList("0+16", "16+16", "32+16", "48+16", "10+6", "64+16")));
+		in.close();
+		assertThat(remoteFile.closed, is(true));
+	}
+
+	@Test
+	public void shouldStopAtEndOfFileWithRequestsOutstanding() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(Arrays.copyOf(contents, 40), Integer.MAX_VALUE);
+		InputStream in = new SshSftpInputStream(file, remoteFile, 16, 8, 5);
+
+		assertThat(ByteStreams.toByteArray(in), is(Arrays.copyOf(contents, 40)));
+		assertThat(in.read(), is(-1));
+		// the pipeline is refilled before each response is used; the first response beyond the end of the file ends the stream
+		assertThat(remoteFile.reads, is(Arrays.asList("0+16", "16+16", "32+16", "48+16", "64+16", "80+16", "96+16", "112+16", "128+16", "144+16", "40+8")));
+	}
+
+	@Test
+	public void shouldReportFailedRead() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(contents, Integer.MAX_VALUE);
+		remoteFile.failingOffset = 32;
+		InputStream in = new SshSftpInputStream(file, remoteFile, 16, 4, 5);
+
+		byte[] b = new byte[32];
+		ByteStreams.readFully(in, b);
+		try {
+			in.read();
+			fail("Expected read to fail");
+		} catch (SFTPException expected) {
+			assertThat(expected.getStatusCode(), is(Response.StatusCode.FAILURE));
+		}
+	}
+
+	@Test
+	public void shouldWriteChunksWithRequestsOutstanding() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(new byte[0], 0);
+		OutputStream out = new SshSftpOutputStream(file, remoteFile, 16, 4, 5);
+
+		out.write(contents, 0, 50);
+		// the fourth chunk is not sent until more is written or the stream is flushed
+		assertThat(remoteFile.writes, is(Arrays.asList("0+16", "16+16", "32+16")));
+		out.close();
+
+		assertThat(remoteFile.written, is(Arrays.copyOf(contents, 50)));
+		assertThat(remoteFile.closed, is(true));
+		verify(file).invalidateAttributes(false);
+	}
+
+	@Test
+	public void shouldReportFailedWriteOnFlush() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(new byte[0], 0);
+		remoteFile.failingOffset = 16;
+		OutputStream out = new SshSftpOutputStream(file, remoteFile, 16, 4, 5);
+
+		// the failed write is only noticed when its response is needed
+		out.write(contents, 0, 40);
+		try {
+			out.flush();
+			fail("Expected flush to fail");
+		} catch (SFTPException expected) {
+			assertThat(expected.getStatusCode(), is(Response.StatusCode.FAILURE));
+		}
+	}
+
+	@Test
+	public void shouldReportFailedWriteOnCloseAndCloseRemoteFile() throws IOException {
+		StubRemoteFile remoteFile = new StubRemoteFile(new byte[0], 0);
+		remoteFile.failingOffset = 0;
+		OutputStream out = new SshSftpOutputStream(file, remoteFile, 16, 4, 5);
+
+		out.write(contents, 0, 40);
+		try {
+			out.close();
+			fail("Expected close to fail");
+		} catch (SFTPException expected) {
+			assertThat(expected.getStatusCode(), is(Response.StatusCode.FAILURE));
+		}
+		assertThat(remoteFile.closed, is(true));
+		verify(file).invalidateAttributes(false);
+	}
+
+	/**
+	 * A remote file that answers read requests from a byte array, collects the written bytes and records the requests it gets.
+	 */
+	private static class StubRemoteFile extends SshSftpRemoteFile {
+
+		private final byte[] contents;
+
+		private final int maxReadLength;
+
+		final List<String> reads = Lists.newArrayList();
+
+		final List<String> writes = Lists.newArrayList();
+
+		byte[] written = new byte[0];
+
+		long failingOffset = -1;
+
+		boolean closed;
+
+		StubRemoteFile(byte[] contents, int maxReadLength) {
+			super(null, "/file", "handle");
+			this.contents = contents;
+			this.maxReadLength = maxReadLength;
+		}
+
+		@Override
+		public Promise<Response, SFTPException> sendRead(long offset, int len) throws IOException {
+			reads.add(offset + "+" + len);
+			Promise<Response, SFTPException> promise = new Promise<Response, SFTPException>("read", SFTPException.chainer);
+			if (offset == failingOffset) {
+				promise.deliver(status(FAILURE));
+			} else if (offset >= contents.length) {
+				promise.deliver(status(EOF));
+			} else {
+				int n = (int) Math.min(Math.min(len, maxReadLength), contents.length - offset);
+				SFTPPacket<Response> packet = new SFTPPacket<Response>(PacketType.DATA);
+				packet.putUInt32(0);
+				packet.putUInt32(n);
+				packet.putRawBytes(contents, (int) offset, n);
+				promise.deliver(new Response(packet, 3));
+			}
+			return promise;
+		}
+
+		@Override
+		public Promise<Response, SFTPException> sendWrite(long offset, byte[] b, int off, int len) throws IOException {
+			writes.add(offset + "+" + len);
+			if (offset + len > written.length) {
+				written = Arrays.copyOf(written, (int) offset + len);
+			}
+			System.arraycopy(b, off, written, (int) offset, len);
+
+			Promise<Response, SFTPException> promise = new Promise<Response, SFTPException>("write", SFTPException.chainer);
+			promise.deliver(status(offset == failingOffset ? FAILURE : 0));
+			return promise;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		private static Response status(int code) {
+			SFTPPacket<Response> packet = new SFTPPacket<Response>(PacketType.STATUS);
+			packet.putUInt32(0);
+			packet.putUInt32(code);
+			packet.putString("status " + code);
+			packet.putString("");
+			try {
+				return new Response(packet, 3);
+			} catch (SFTPException exc) {
+				throw new IllegalStateException(exc);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.PASSWORD;
+import static com.xebialabs.overthere.ConnectionOptions.PORT;
+import static com.xebialabs.overthere.ConnectionOptions.TEMPORARY_DIRECTORY_PATH;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SFTP;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.PasswordAuthenticator;
+import org.apache.sshd.server.filesystem.NativeFileSystemFactory;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.sftp.SftpSubsystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.TemporaryFolder;
+
+/**
+ * Measures how long it takes to write and read a file over SFTP with one outstanding request and with the default number of outstanding requests,
+ * against an embedded SSH server on the loopback interface.
+ */
+public class SshSftpThroughputItest {
+
+	private static final int FILE_SIZE = 20 * 1024 * 1024;
+
+	private static final int ROUNDS = 2;
+
+	private TemporaryFolder temp = new TemporaryFolder();
+
+	private SshServer server;
+
+	private byte[] contents;
+
+	@BeforeClass
+	public void startServer() throws IOException {
+		temp.create();
+		server = SshServer.setUpDefaultServer();
+		server.setPort(getFreePort());
+		server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(new File(temp.getRoot(), "hostkey.ser").getPath()));
+		server.setPasswordAuthenticator(new PasswordAuthenticator() {
+			@Override
+			public boolean authenticate(String username, String password, ServerSession session) {
+				return username.equals("overthere") && password.equals("overhere");
+			}
+		});
+		server.setFileSystemFactory(new NativeFileSystemFactory());
+		server.setSubsystemFactories(Arrays.<NamedFactory<Command>> asList(new SftpSubsystem.Factory()));
+		server.start();
+
+		contents = new byte[FILE_SIZE];
+		new Random(42).nextBytes(contents);
+	}
+
+	@AfterClass
+	public void stopServer() throws InterruptedException {
+		if (server != null) {
+			server.stop(true);
+		}
+		temp.delete();
+	}
+
+	@Test
+	public void measureWithOneOutstandingRequest() throws IOException {
+		measure(1);
+	}
+
+	@Test
+	public void measureWithDefaultOutstandingRequests() throws IOException {
+		measure(SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT);
+	}
+
+	private void measure(int maxOutstandingRequests) throws IOException {
+		ConnectionOptions options = new ConnectionOptions();
+		options.set(OPERATING_SYSTEM, UNIX);
+		options.set(CONNECTION_TYPE, SFTP);
+		options.set(ADDRESS, "localhost");
+		options.set(PORT, server.getPort());
+		options.set(USERNAME, "overthere");
+		options.set(PASSWORD, "overhere");
+		options.set(TEMPORARY_DIRECTORY_PATH, temp.getRoot().getPath());
+		options.set(SFTP_MAX_OUTSTANDING_REQUESTS, maxOutstandingRequests);
+
+		OverthereConnection connection = Overthere.getConnection(SSH_PROTOCOL, options);
+		try {
+			OverthereFile file = connection.getTempFile("throughput.bin");
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				OutputStream out = file.getOutputStream();
+				try {
+					out.write(contents);
+				} finally {
+					out.close();
+				}
+				long written = System.nanoTime();
+				InputStream in = file.getInputStream();
+				byte[] read;
+				try {
+					read = ByteStreams.toByteArray(in);
+				} finally {
+					in.close();
+				}
+				long end = System.nanoTime();
+
+				assertThat(Arrays.equals(read, contents), equalTo(true));
+				assertThat(Arrays.equals(Files.toByteArray(new File(file.getPath())), contents), equalTo(true));
+				logger.info("{} outstanding requests, round {}: wrote {} bytes in {} ms, read them in {} ms",
+				        new Object[] { maxOutstandingRequests, round + 1, FILE_SIZE, (written - start) / 1000000, (end - written) / 1000000 });
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(SshSftpThroughputItest.class);
+
+}
@@ -165,5 +165,16 @@ public class SshSudoConnectionSudoCommandTest {
 		assertThat(prefixed.get(3).toString(UNIX, false), equalTo("a\\ \\;\\ b"));
 	}
 
-}
+	@Test
+	public void writeCommandShouldNotContainRedirectionThatIsLeftUnescapedIfQuotingCommand() {
+		connectionOptions.set(SUDO_COMMAND_PREFIX, "su -u {0}");
+		connectionOptions.set(SUDO_QUOTE_COMMAND, true);
+		SshSudoConnection connection = new SshSudoConnection(SSH_PROTOCOL, connectionOptions, resolver);
+
+		CmdLine writeCmdLine = new SshSudoFile(connection, "/tmp/some file", false).getWriteCommandLine();
+		CmdLine cmdLine = connection.processCommandLine(writeCmdLine);
+		assertThat(cmdLine.toString(), equalTo("su -u some-other-user sh\\ -c\\ \\'dd\\ of=\\\"\\$1\\\"\\ bs=65536\\'\\ sh\\ /tmp/some\\\\\\ file"));
+		assertThat(cmdLine.toString().contains(">"), equalTo(false));
+	}
 
+}
@@ -0,0 +1,94 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.ssh;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.xebialabs.overthere.ssh.TarArchiveInputStream.TarArchiveEntry;
+
+/**
+ * Unit tests for the {@link TarArchiveOutputStream} and the {@link TarArchiveInputStream}
+ */
+public class TarArchiveOutputStreamTest {
+
+	@Test
+	public void shouldReadBackDirectoriesAndFiles() throws IOException {
+		String longDir = Strings.repeat("d", 120);
+		String longName = longDir + "/" + longDir + "/" + Strings.repeat("f", 120) + ".txt";
+		byte[] contents = new byte[1000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) i;
+		}
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		TarArchiveOutputStream out = new TarArchiveOutputStream(archive);
+		out.putDirectory("dir", 0755, 0);
+		out.putFile("dir/script.sh", 0755, contents.length, 0);
+		out.write(contents);
+		out.putFile("empty.txt", 0644, 0, 0);
+		out.putFile(longName, 0644, 3, 0);
+		out.write("abc".getBytes("UTF-8"));
+		out.close();
+		assertThat(archive.size() % 512, is(0));
+
+		TarArchiveInputStream in = new TarArchiveInputStream(new ByteArrayInputStream(archive.toByteArray()));
+		TarArchiveEntry dir = in.getNextEntry();
+		assertThat(dir.getName(), is("dir/"));
+		assertThat(dir.isDirectory(), is(true));
+		assertThat(dir.getMode(), is(0755));
+
+		TarArchiveEntry script = in.getNextEntry();
+		assertThat(script.getName(), is("dir/script.sh"));
+		assertThat(script.isFile(), is(true));
+		assertThat(script.getMode(), is(0755));
+		assertThat(ByteStreams.toByteArray(in), is(contents));
+
+		TarArchiveEntry empty = in.getNextEntry();
+		assertThat(empty.getName(), is("empty.txt"));
+		assertThat(empty.getSize(), is(0L));
+
+		TarArchiveEntry longEntry = in.getNextEntry();
+		assertThat(longEntry.getName(), is(longName));
+		assertThat(new String(ByteStreams.toByteArray(in), "UTF-8"), is("abc"));
+
+		assertThat(in.getNextEntry() == null, is(true));
+	}
+
+	@Test
+	public void shouldNotCompleteEntryThatIsShorterThanAnnounced() throws IOException {
+		TarArchiveOutputStream out = new TarArchiveOutputStream(new ByteArrayOutputStream());
+		out.putFile("file", 0644, 10, 0);
+		out.write(new byte[5]);
+		try {
+			out.finish();
+			fail("Expected finishing the archive to fail");
+		} catch (IOException expected) {
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Unit tests for the {@link ChunkedInputStream} and the {@link ChunkedOutputStream}, transferring chunks of an in-memory file that complete in a random
+ * order.
+ */
+public class ChunkedStreamTest {
+
+	private static final int CHUNK_SIZE = 1000;
+
+	private static final int PARALLELISM = 3;
+
+	private byte[] file;
+
+	private AtomicInteger running;
+
+	private AtomicInteger maxRunning;
+
+	private Random random;
+
+	@BeforeMethod
+	public void createFile() {
+		random = new Random(7);
+		file = new byte[10 * CHUNK_SIZE + 123];
+		random.nextBytes(file);
+		running = new AtomicInteger();
+		maxRunning = new AtomicInteger();
+	}
+
+	@Test
+	public void writesChunksInParallel() throws IOException {
+		final byte[] written = new byte[file.length];
+		OutputStream out = new ChunkedOutputStream("file", CHUNK_SIZE, PARALLELISM) {
+			@Override
+			protected void writeChunk(long offset, byte[] chunk, int length) throws IOException {
+				transfer();
+				System.arraycopy(chunk, 0, written, (int) offset, length);
+			}
+		};
+		for (int i = 0; i < file.length; i += 777) {
+			out.write(file, i, Math.min(777, file.length - i));
+		}
+		out.close();
+
+		assertThat(Arrays.equals(written, file), is(true));
+		assertThat(maxRunning.get() > 1, is(true));
+		assertThat(maxRunning.get() <= PARALLELISM, is(true));
+	}
+
+	@Test
+	public void readsChunksInParallelInOrder() throws IOException {
+		InputStream in = new ChunkedInputStream("file", file.length, CHUNK_SIZE, PARALLELISM) {
+			@Override
+			protected byte[] readChunk(long offset, int length) throws IOException {
+				transfer();
+				return Arrays.copyOfRange(file, (int) offset, (int) offset + length);
+			}
+		};
+		byte[] read = ByteStreams.toByteArray(in);
+		in.close();
+
+		assertThat(Arrays.equals(read, file), is(true));
+		assertThat(maxRunning.get() > 1, is(true));
+		assertThat(maxRunning.get() <= PARALLELISM, is(true));
+	}
+
+	@Test
+	public void reportsFailedWriteWhenClosing() throws IOException {
+		OutputStream out = new ChunkedOutputStream("file", CHUNK_SIZE, PARALLELISM) {
+			@Override
+			protected void writeChunk(long offset, byte[] chunk, int length) throws IOException {
+				if (offset == CHUNK_SIZE) {
+					throw new IOException("disk full");
+				}
+			}
+		};
+		out.write(file, 0, 2 * CHUNK_SIZE + 1);
+		try {
+			out.close();
+			fail("Expected failed chunk to be reported");
+		} catch (IOException expected) {
+			assertThat(expected.getCause().getMessage(), containsString("disk full"));
+		}
+	}
+
+	@Test
+	public void reportsFailedRead() throws IOException {
+		InputStream in = new ChunkedInputStream("file", file.length, CHUNK_SIZE, PARALLELISM) {
+			@Override
+			protected byte[] readChunk(long offset, int length) throws IOException {
+				if (offset == CHUNK_SIZE) {
+					throw new IOException("connection reset");
+				}
+				return new byte[length];
+			}
+		};
+		try {
+			ByteStreams.toByteArray(in);
+			fail("Expected failed chunk to be reported");
+		} catch (IOException expected) {
+			assertThat(expected.getCause().getMessage(), containsString("connection reset"));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void transfer() throws IOException {
+		int n = running.incrementAndGet();
+		try {
+			synchronized (maxRunning) {
+				maxRunning.set(Math.max(n, maxRunning.get()));
+			}
+			Thread.sleep(5 + nextInt(20));
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	private int nextInt(int n) {
+		synchronized (random) {
+			return random.nextInt(n);
+		}
+	}
+
+}
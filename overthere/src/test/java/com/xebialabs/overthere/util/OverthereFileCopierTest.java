@@ -0,0 +1,161 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.testng.Assert.fail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.spi.ParallelTransferSupport;
+
+/**
+ * Unit tests for the parallel copy mode of the {@link OverthereFileCopier}
+ */
+public class OverthereFileCopierTest {
+
+	private TemporaryFolder temp;
+
+	private OverthereConnection connection;
+
+	private File src;
+
+	private File dst;
+
+	@BeforeMethod
+	public void createSourceTree() throws IOException {
+		temp = new TemporaryFolder();
+		temp.create();
+		connection = new LocalConnection("local", new ConnectionOptions());
+
+		src = temp.newFolder("src");
+		for (int i = 0; i < 20; i++) {
+			File dir = new File(src, "dir" + (i % 4) + "/sub" + (i % 2));
+			dir.mkdirs();
+			Files.write("contents of file " + i, new File(dir, "file" + i), UTF_8);
+		}
+		Files.write("top", new File(src, "top"), UTF_8);
+		new File(src, "empty").mkdir();
+		dst = new File(temp.getRoot(), "dst");
+	}
+
+	@AfterMethod
+	public void deleteTemporaryFolder() {
+		connection.close();
+		temp.delete();
+	}
+
+	@Test
+	public void shouldCopyDirectoryTreeInParallel() throws IOException {
+		OverthereFileCopier.copy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), 4);
+
+		assertSameTree(src, dst);
+	}
+
+	@Test
+	public void shouldCopyFilesLargerThanTheByteBudget() throws IOException {
+		OverthereFileCopier.copy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), 4, 1);
+
+		assertSameTree(src, dst);
+	}
+
+	@Test
+	public void shouldCopyOtherFilesAndReportAllFailuresTogether() throws IOException {
+		new File(dst, "dir1/sub1/file1").mkdirs();
+		new File(dst, "top").mkdirs();
+
+		try {
+			OverthereFileCopier.copy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), 4);
+			fail("Expected copy to fail");
+		} catch (RuntimeIOException expected) {
+			assertThat(expected.getMessage(), containsString("Cannot copy 2 of 21 files"));
+			assertThat(expected.getMessage(), containsString("file1"));
+			assertThat(expected.getMessage(), containsString("top"));
+		}
+
+		assertThat(Files.toString(new File(dst, "dir1/sub1/file5"), UTF_8), is("contents of file 5"));
+		assertThat(Files.toString(new File(dst, "dir0/sub0/file0"), UTF_8), is("contents of file 0"));
+	}
+
+	@Test
+	public void shouldOpenTransferChannelsOnceWhenBothDirectoriesAreOnOneConnection() throws IOException {
+		final AtomicInteger opened = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		connection.close();
+		connection = new ChannelCountingConnection(opened, closed);
+
+		OverthereFileCopier.copy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), 4);
+
+		assertSameTree(src, dst);
+		assertThat(opened.get(), is(1));
+		assertThat(closed.get(), is(1));
+	}
+
+	private static class ChannelCountingConnection extends LocalConnection implements ParallelTransferSupport {
+
+		private final AtomicInteger opened;
+
+		private final AtomicInteger closed;
+
+		ChannelCountingConnection(AtomicInteger opened, AtomicInteger closed) {
+			super("local", new ConnectionOptions());
+			this.opened = opened;
+			this.closed = closed;
+		}
+
+		@Override
+		public Closeable openTransferChannels(int parallelism) {
+			opened.incrementAndGet();
+			return new Closeable() {
+				@Override
+				public void close() {
+					closed.incrementAndGet();
+				}
+			};
+		}
+	}
+
+	private static void assertSameTree(File expected, File actual) throws IOException {
+		assertThat(actual + " is a directory", actual.isDirectory(), is(expected.isDirectory()));
+		if (expected.isDirectory()) {
+			assertThat(actual.list().length, is(expected.list().length));
+			for (String name : expected.list()) {
+				assertSameTree(new File(expected, name), new File(actual, name));
+			}
+		} else {
+			assertThat(Files.toString(actual, UTF_8), is(Files.toString(expected, UTF_8)));
+		}
+	}
+
+}
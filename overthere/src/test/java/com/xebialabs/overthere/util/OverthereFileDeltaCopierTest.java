@@ -0,0 +1,154 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.util.OverthereFileDeltaCopier.BlockChecksum;
+import com.xebialabs.overthere.util.OverthereFileDeltaCopier.DeltaEncoder;
+
+/**
+ * Unit tests for the {@link OverthereFileDeltaCopier}
+ */
+public class OverthereFileDeltaCopierTest {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private TemporaryFolder temp;
+
+	private OverthereConnection connection;
+
+	private byte[] oldContents;
+
+	private byte[] newContents;
+
+	@BeforeMethod
+	public void createContents() throws IOException {
+		temp = new TemporaryFolder();
+		temp.create();
+		connection = new LocalConnection("local", new ConnectionOptions());
+
+		Random random = new Random(42);
+		oldContents = new byte[100 * BLOCK_SIZE + 123];
+		random.nextBytes(oldContents);
+
+		// insert 1000 bytes after 30 blocks and change 10 bytes after 70 blocks, which shifts everything after the insertion
+		byte[] inserted = new byte[1000];
+		random.nextBytes(inserted);
+		newContents = new byte[oldContents.length + inserted.length];
+		System.arraycopy(oldContents, 0, newContents, 0, 30 * BLOCK_SIZE);
+		System.arraycopy(inserted, 0, newContents, 30 * BLOCK_SIZE, inserted.length);
+		System.arraycopy(oldContents, 30 * BLOCK_SIZE, newContents, 30 * BLOCK_SIZE + inserted.length, oldContents.length - 30 * BLOCK_SIZE);
+		for (int i = 0; i < 10; i++) {
+			newContents[70 * BLOCK_SIZE + i] ^= 0xff;
+		}
+	}
+
+	@AfterMethod
+	public void deleteTemporaryFolder() {
+		connection.close();
+		temp.delete();
+	}
+
+	@Test
+	public void shouldOnlySendChangedBlocks() throws IOException, NoSuchAlgorithmException {
+		List<BlockChecksum> blocks = new ArrayList<BlockChecksum>();
+		for (int i = 0; i < oldContents.length / BLOCK_SIZE; i++) {
+			Adler32 adler = new Adler32();
+			adler.update(oldContents, i * BLOCK_SIZE, BLOCK_SIZE);
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(oldContents, i * BLOCK_SIZE, BLOCK_SIZE);
+			blocks.add(new BlockChecksum(i, (int) adler.getValue(), toHex(md5.digest())));
+		}
+
+		ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+		DeltaEncoder encoder = new DeltaEncoder(blocks, BLOCK_SIZE, new DataOutputStream(instructions));
+		encoder.encode(new ByteArrayInputStream(newContents));
+
+		// the inserted bytes, the changed block, the block that straddles the insertion and the partial last block
+		assertThat(encoder.literalBytes, lessThan(1000L + 3 * BLOCK_SIZE + 123));
+		assertThat(encoder.literalBytes + encoder.copiedBytes, is((long) newContents.length));
+		assertThat(instructions.size(), lessThan((int) encoder.literalBytes + 200));
+	}
+
+	@Test
+	public void shouldRebuildExistingFileFromChangedBlocks() throws IOException {
+		File src = temp.newFile("src");
+		Files.write(newContents, src);
+		File dst = temp.newFile("dst");
+		Files.write(oldContents, dst);
+
+		if (connection.getHostOperatingSystem() != OperatingSystemFamily.UNIX) {
+			throw new SkipException("Delta copies need a Unix host");
+		}
+		boolean copied = OverthereFileDeltaCopier.tryCopy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), BLOCK_SIZE);
+		if (!copied) {
+			throw new SkipException("Delta copies need perl with the Digest::MD5 and Compress::Zlib modules");
+		}
+
+		assertThat(Arrays.equals(Files.toByteArray(dst), newContents), is(true));
+		assertThat(dst.getParentFile().list().length, is(2));
+	}
+
+	@Test
+	public void shouldCopyWholeFileWhenDestinationDoesNotExist() throws IOException {
+		File src = temp.newFile("src");
+		Files.write(newContents, src);
+		File dst = new File(temp.getRoot(), "dst");
+
+		assertThat(OverthereFileDeltaCopier.tryCopy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), BLOCK_SIZE), is(false));
+		OverthereFileDeltaCopier.copy(connection.getFile(src.getPath()), connection.getFile(dst.getPath()));
+
+		assertThat(Arrays.equals(Files.toByteArray(dst), newContents), is(true));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte each : bytes) {
+			hex.append(String.format("%02x", each & 0xff));
+		}
+		return hex.toString();
+	}
+
+}
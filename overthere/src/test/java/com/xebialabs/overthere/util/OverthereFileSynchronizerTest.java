@@ -0,0 +1,148 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overthere.util;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.util.OverthereFileSynchronizer.Changes;
+
+/**
+ * Unit tests for the {@link OverthereFileSynchronizer}
+ */
+public class OverthereFileSynchronizerTest {
+
+	private TemporaryFolder temp;
+
+	private OverthereConnection connection;
+
+	private File src;
+
+	private File dst;
+
+	@BeforeMethod
+	public void createSourceTree() throws IOException {
+		temp = new TemporaryFolder();
+		temp.create();
+		connection = new LocalConnection("local", new ConnectionOptions());
+
+		src = temp.newFolder("src");
+		for (int i = 0; i < 10; i++) {
+			File dir = new File(src, "dir" + (i % 2));
+			dir.mkdirs();
+			write("contents of file " + i, new File(dir, "file" + i));
+		}
+		write("top", new File(src, "top"));
+		dst = new File(temp.getRoot(), "dst");
+	}
+
+	@AfterMethod
+	public void deleteTemporaryFolder() {
+		connection.close();
+		temp.delete();
+	}
+
+	@Test
+	public void shouldCopyWholeTreeToNewDirectoryAndNothingTheSecondTime() throws IOException {
+		Changes first = sync(false, false);
+		assertThat(first.getCreatedDirectories(), contains("dir0", "dir1"));
+		assertThat(first.getCopiedFiles().size(), is(11));
+		assertThat(Files.toString(new File(dst, "dir1/file3"), UTF_8), is("contents of file 3"));
+
+		Changes second = sync(false, false);
+		assertThat(second.getCreatedDirectories().isEmpty(), is(true));
+		assertThat(second.getCopiedFiles().isEmpty(), is(true));
+		assertThat(second.getUpdatedFiles().isEmpty(), is(true));
+		assertThat(second.getUnchangedFiles(), is(11));
+	}
+
+	@Test
+	public void shouldOnlyCopyNewAndChangedFiles() throws IOException {
+		sync(false, false);
+		write("a longer top", new File(src, "top"));
+		write("contents of file 5", new File(src, "dir1/file5"));
+		new File(src, "dir1/file5").setLastModified(new File(dst, "dir1/file5").lastModified() + 10000);
+		new File(src, "dir2").mkdir();
+		write("new", new File(src, "dir2/file10"));
+
+		Changes changes = sync(false, false);
+
+		assertThat(changes.getCreatedDirectories(), contains("dir2"));
+		assertThat(changes.getCopiedFiles(), contains("dir2/file10"));
+		assertThat(changes.getUpdatedFiles().size(), is(2));
+		assertThat(changes.getUnchangedFiles(), is(9));
+		assertThat(Files.toString(new File(dst, "top"), UTF_8), is("a longer top"));
+		assertThat(Files.toString(new File(dst, "dir2/file10"), UTF_8), is("new"));
+	}
+
+	@Test
+	public void shouldDetectChangedContentsWithSameLengthAndTimeWhenComparingContents() throws IOException {
+		sync(false, false);
+		File changed = new File(src, "dir0/file4");
+		write("contents of file X", changed);
+		changed.setLastModified(new File(dst, "dir0/file4").lastModified() - 10000);
+
+		assertThat(sync(false, false).getUpdatedFiles().isEmpty(), is(true));
+
+		Changes changes = sync(true, false);
+		assertThat(changes.getUpdatedFiles(), contains("dir0/file4"));
+		assertThat(changes.getUnchangedFiles(), is(10));
+		assertThat(Files.toString(new File(dst, "dir0/file4"), UTF_8), is("contents of file X"));
+	}
+
+	@Test
+	public void shouldOnlyDeleteExtraneousFilesWhenAsked() throws IOException {
+		sync(false, false);
+		write("extra", new File(dst, "extra"));
+		new File(dst, "olddir/sub").mkdirs();
+		write("old", new File(dst, "olddir/sub/old"));
+
+		assertThat(sync(false, false).getDeletedFiles().isEmpty(), is(true));
+		assertThat(new File(dst, "extra").exists(), is(true));
+
+		Changes changes = sync(false, true);
+		assertThat(changes.getDeletedFiles().size(), is(2));
+		assertThat(changes.getDeletedFiles().contains("olddir"), is(true));
+		assertThat(new File(dst, "extra").exists(), is(false));
+		assertThat(new File(dst, "olddir").exists(), is(false));
+		assertThat(new File(dst, "top").exists(), is(true));
+	}
+
+	private Changes sync(boolean compareContents, boolean deleteExtraneous) {
+		return OverthereFileSynchronizer.sync(connection.getFile(src.getPath()), connection.getFile(dst.getPath()), compareContents, deleteExtraneous);
+	}
+
+	private static void write(String contents, File file) throws IOException {
+		Files.write(contents, file, UTF_8);
+	}
+
+}